@@ -0,0 +1,94 @@
+package com.rforristall.fhir.benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.rforristall.fhir.auth.BasicAuthentication;
+import com.rforristall.fhir.auth.OauthAuthentication;
+import com.rforristall.fhir.keystore.KeyStoreAccessor;
+import com.rforristall.fhir.keystore.KeyStoreSpec;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.stub.StubFhirServer;
+import com.rforristall.fhir.util.CertificateInfo;
+
+/**
+ * Measures appending the Authorization header to a request: OAuth with a warm token, which should never touch the
+ * network or the keystore, and Basic authentication including building its header value.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class AuthenticationBenchmark {
+
+  private static final URI REQUEST_URI = URI.create("https://localhost/fhir/Patient/1");
+
+  private StubFhirServer server;
+
+  private OauthAuthentication oauthAuthentication;
+
+  private BasicAuthentication basicAuthentication;
+
+  @Setup
+  public void setUp() throws Exception {
+    server = StubFhirServer.start(FhirDialect.EPIC);
+    server.setTokenLifetime(Duration.ofHours(1));
+    Path storeDir = Files.createTempDirectory("fhir-auth-benchmark");
+    storeDir.toFile().deleteOnExit();
+    KeyStoreAccessor keyStoreAccessor = new KeyStoreAccessor(new KeyStoreSpec(storeDir, "benchmark.p12", "storepass", "benchmark", "keypass", "benchmark-kid"));
+    keyStoreAccessor.createKeyStoreAndKeySet(JWSAlgorithm.RS384, new CertificateInfo("Benchmark", "Benchmark", "US"));
+    // Wait on the background warm-up, so every benchmark invocation runs against a warm token
+    oauthAuthentication = new OauthAuthentication(keyStoreAccessor, JWSAlgorithm.RS384, "benchmark-client", server.getTokenUrl(), "system/Patient.read", 300);
+    oauthAuthentication.getReadiness().join();
+    basicAuthentication = BasicAuthentication.createInternalUserBasicAuthentication("benchmark", "password", "benchmark-client");
+  }
+
+  @TearDown
+  public void tearDown() {
+    oauthAuthentication.close();
+    server.close();
+  }
+
+  @Benchmark
+  public HttpRequest.Builder oauthAppendWarmToken() throws Exception {
+    return oauthAuthentication.appendAuthentication(HttpRequest.newBuilder(REQUEST_URI));
+  }
+
+  @Benchmark
+  public HttpRequest.Builder oauthAppendWarmTokenAsync() {
+    return oauthAuthentication.appendAuthenticationAsync(HttpRequest.newBuilder(REQUEST_URI)).join();
+  }
+
+  @Benchmark
+  public HttpRequest.Builder basicAppend() {
+    return basicAuthentication.appendAuthentication(HttpRequest.newBuilder(REQUEST_URI));
+  }
+
+  @Benchmark
+  public HttpRequest.Builder basicCreateAndAppend() {
+    return BasicAuthentication.createInternalUserBasicAuthentication("benchmark", "password", "benchmark-client")
+            .appendAuthentication(HttpRequest.newBuilder(REQUEST_URI));
+  }
+
+}
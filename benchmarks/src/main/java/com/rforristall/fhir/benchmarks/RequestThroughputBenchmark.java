@@ -0,0 +1,71 @@
+package com.rforristall.fhir.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.client.FhirResponse;
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.stub.StubFhirServer;
+
+/**
+ * Measures end-to-end request throughput of the {@link FhirClient} against a loopback server, covering request
+ * building, the rate limiter, the retry loop, the shared HTTP client and response mapping.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class RequestThroughputBenchmark {
+
+  private StubFhirServer server;
+
+  private HapiFhirSpecification fhirSpec;
+
+  private FhirClient fhirClient;
+
+  @Setup
+  public void setUp() throws Exception {
+    server = StubFhirServer.start(FhirDialect.HAPI);
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth(server.getFhirUrl(), ImmutableList.of(), FhirVersion.R4, false, 0);
+    fhirClient = new FhirClient(fhirSpec);
+  }
+
+  @TearDown
+  public void tearDown() {
+    fhirSpec.close();
+    server.close();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public FhirResponse read() throws Exception {
+    return fhirClient.read("Patient", "1");
+  }
+
+  @Benchmark
+  @Threads(8)
+  public FhirResponse readAsync() {
+    return fhirClient.readAsync("Patient", "1").join();
+  }
+
+}
@@ -0,0 +1,60 @@
+package com.rforristall.fhir.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.rforristall.fhir.keystore.JwkAlgBuildParams;
+import com.rforristall.fhir.keystore.KeyStoreAccessor;
+import com.rforristall.fhir.keystore.KeyStoreSpec;
+import com.rforristall.fhir.util.CertificateInfo;
+
+/**
+ * Measures signing the client assertion JWT sent to the OAuth endpoint with a cached signing key, for every algorithm
+ * of {@link JwkAlgBuildParams}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SigningBenchmark {
+
+  @Param({"RS384", "ES256"})
+  private String securityAlg;
+
+  private JWSAlgorithm jwsAlgorithm;
+
+  private KeyStoreAccessor keyStoreAccessor;
+
+  @Setup
+  public void setUp() throws Exception {
+    jwsAlgorithm = JwkAlgBuildParams.fromJwsAlg(JWSAlgorithm.parse(securityAlg)).getSecurityAlg();
+    Path storeDir = Files.createTempDirectory("fhir-signing-benchmark");
+    storeDir.toFile().deleteOnExit();
+    keyStoreAccessor = new KeyStoreAccessor(new KeyStoreSpec(storeDir, "benchmark.p12", "storepass", "benchmark", "keypass", "benchmark-kid"));
+    keyStoreAccessor.createKeyStoreAndKeySet(jwsAlgorithm, new CertificateInfo("Benchmark", "Benchmark", "US"));
+  }
+
+  @Benchmark
+  public String signClientAssertion() throws Exception {
+    return keyStoreAccessor.getSignedJwtToken(jwsAlgorithm, "benchmark-client", "https://localhost/oauth2/token", 300).serialize();
+  }
+
+}
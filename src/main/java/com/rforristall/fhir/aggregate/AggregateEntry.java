@@ -0,0 +1,46 @@
+package com.rforristall.fhir.aggregate;
+
+import com.nimbusds.jose.shaded.gson.JsonObject;
+
+/**
+ * A resource of an {@link AggregateResult} along with the name of the query that returned it.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class AggregateEntry {
+
+  /**
+   * The name of the query that returned the resource
+   */
+  private final String queryName;
+
+  /**
+   * The resource
+   */
+  private final JsonObject resource;
+
+  /**
+   * Constructor for an entry
+   * @param queryName {@link String}: The name of the query that returned the resource
+   * @param resource {@link JsonObject}: The resource
+   */
+  public AggregateEntry(String queryName, JsonObject resource) {
+    super();
+    this.queryName = queryName;
+    this.resource = resource;
+  }
+
+  public String getQueryName() {
+    return queryName;
+  }
+
+  public JsonObject getResource() {
+    return resource;
+  }
+
+  @Override
+  public String toString() {
+    return "AggregateEntry [queryName=" + queryName + ", resourceType=" + (resource.has("resourceType") ? resource.get("resourceType").getAsString() : null) + "]";
+  }
+
+}
@@ -0,0 +1,498 @@
+package com.rforristall.fhir.aggregate;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.rforristall.fhir.bundle.BundleReader;
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.client.FhirRequest;
+import com.rforristall.fhir.client.FhirResponse;
+import com.rforristall.fhir.client.HttpMethod;
+
+/**
+ * Streamed aggregate of the queries started by a {@link FanOutAggregator}.
+ *
+ * Resources are handed out in the order their pages arrive, tagged with the name of their query. A query that fails or
+ * times out does not fail the aggregate: the iteration simply ends without its remaining pages and
+ * {@link #getOutcomes()} reports how every query ended, so callers can tell a complete chart from a partial one.
+ * Closing the aggregate cancels the queries that are still running.
+ *
+ * A query's timeout only counts the time spent waiting on the server for its pages. A query parked while the consumer
+ * catches up does not use up its timeout, so a slow consumer never turns a complete query into a timed out one. A page
+ * still in flight when its query times out or the aggregate is closed is cancelled. A consumer interrupted while
+ * waiting on a page gets a {@link CompletionException} caused by the {@link InterruptedException}, with its interrupt
+ * flag restored and the aggregate closed.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class AggregateResult implements Iterator<AggregateEntry>, AutoCloseable {
+
+  /**
+   * The client the searches are sent with
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The maximum number of queries running at once
+   */
+  private final int maxConcurrentQueries;
+
+  /**
+   * The maximum number of pages buffered ahead of the consumer
+   */
+  private final int maxBufferedPages;
+
+  /**
+   * Guards the state of the queries and the page buffer, a lock rather than a monitor so waiting does not pin virtual threads
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled whenever a page arrives or a query ends
+   */
+  private final Condition changed = lock.newCondition();
+
+  /**
+   * The queries that have not been started yet
+   */
+  private final Deque<QueryState> pendingQueries = new ArrayDeque<>();
+
+  /**
+   * The queries holding back their next page until the consumer drains the buffer
+   */
+  private final Deque<QueryState> parkedQueries = new ArrayDeque<>();
+
+  /**
+   * The pages received but not yet handed to the consumer
+   */
+  private final Deque<Page> bufferedPages = new ArrayDeque<>();
+
+  /**
+   * The outcome of every query in declaration order, null until the query ends
+   */
+  private final Map<String, QueryOutcome> outcomes = new LinkedHashMap<>();
+
+  /**
+   * Every query of the aggregate in declaration order
+   */
+  private final List<QueryState> queryStates = new ArrayList<>();
+
+  /**
+   * The number of queries currently running
+   */
+  private int runningQueries;
+
+  /**
+   * The number of queries that have not ended
+   */
+  private int remainingQueries;
+
+  /**
+   * If the aggregate was closed by the caller
+   */
+  private boolean closed;
+
+  /**
+   * The page currently being consumed
+   */
+  private Page currentPage;
+
+  /**
+   * The resources of the current page that have not been handed out
+   */
+  private Iterator<JsonObject> currentResources = Collections.emptyIterator();
+
+  /**
+   * Constructor for an aggregate, starts the first queries right away
+   * @param fhirClient {@link FhirClient}: The client the searches are sent with
+   * @param queries {@link List}<{@link FanOutQuery}>: The queries to run, with unique names
+   * @param maxConcurrentQueries int: The maximum number of queries running at once
+   * @param maxBufferedPages int: The maximum number of pages buffered ahead of the consumer
+   */
+  AggregateResult(FhirClient fhirClient, List<FanOutQuery> queries, int maxConcurrentQueries, int maxBufferedPages) {
+    super();
+    this.fhirClient = fhirClient;
+    this.maxConcurrentQueries = maxConcurrentQueries;
+    this.maxBufferedPages = maxBufferedPages;
+    for (FanOutQuery query : queries) {
+      QueryState state = new QueryState(query);
+      queryStates.add(state);
+      pendingQueries.add(state);
+      outcomes.put(query.getName(), null);
+    }
+    this.remainingQueries = queries.size();
+    List<QueryState> toStart;
+    lock.lock();
+    try {
+      toStart = claimStarts();
+    } finally {
+      lock.unlock();
+    }
+    for (QueryState state : toStart) start(state);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!currentResources.hasNext()) {
+      Page page = takePage();
+      if (page == null) return false;
+      currentPage = page;
+      currentResources = page.resources.iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public AggregateEntry next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    return new AggregateEntry(currentPage.queryName, currentResources.next());
+  }
+
+  /**
+   * Getter function for a sequential stream over the remaining resources, closing the stream closes the aggregate
+   * @return {@link Stream}<{@link AggregateEntry}> of the remaining resources
+   */
+  public Stream<AggregateEntry> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false).onClose(this::close);
+  }
+
+  /**
+   * Getter function for how the queries ended, complete once the iteration is over
+   * @return {@link Map}<{@link String}, {@link QueryOutcome}> by query name in declaration order, without the queries that are still running
+   */
+  public Map<String, QueryOutcome> getOutcomes() {
+    lock.lock();
+    try {
+      Map<String, QueryOutcome> ended = new LinkedHashMap<>();
+      for (Map.Entry<String, QueryOutcome> outcome : outcomes.entrySet()) {
+        if (outcome.getValue() != null) ended.put(outcome.getKey(), outcome.getValue());
+      }
+      return Collections.unmodifiableMap(ended);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Helper function for checking if any query failed, timed out or was cancelled
+   * @return true if the aggregate is missing pages and false otherwise
+   */
+  public boolean isPartial() {
+    for (QueryOutcome outcome : getOutcomes().values()) {
+      if (!outcome.isComplete()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Cancels the queries that are still running, pages already in flight complete but are discarded
+   */
+  @Override
+  public void close() {
+    List<CompletableFuture<FhirResponse>> toCancel = new ArrayList<>();
+    lock.lock();
+    try {
+      if (closed) return;
+      closed = true;
+      for (QueryState state : pendingQueries) end(state, QueryOutcome.Status.CANCELLED, null);
+      pendingQueries.clear();
+      for (QueryState state : queryStates) {
+        if (!state.running) continue;
+        if (state.pageFuture != null) toCancel.add(state.pageFuture);
+        state.pageFuture = null;
+        end(state, QueryOutcome.Status.CANCELLED, null);
+      }
+      parkedQueries.clear();
+      bufferedPages.clear();
+      currentResources = Collections.emptyIterator();
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (CompletableFuture<FhirResponse> page : toCancel) page.cancel(true);
+  }
+
+  /**
+   * Waits for the next buffered page and resumes a parked query if the buffer has room again
+   * @return {@link Page} that was received next, or null once every query has ended and its pages were consumed
+   */
+  private Page takePage() {
+    QueryState toResume = null;
+    FhirRequest resumeRequest = null;
+    Page page;
+    lock.lock();
+    try {
+      while (bufferedPages.isEmpty() && remainingQueries > 0 && !closed) changed.await();
+      page = bufferedPages.poll();
+      if (page != null) toResume = claimResume();
+      if (toResume != null) resumeRequest = nextPageRequest(toResume);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new CompletionException(ex);
+    } finally {
+      lock.unlock();
+    }
+    if (toResume != null) fetch(toResume, resumeRequest);
+    return page;
+  }
+
+  /**
+   * Claims a parked query to resume if the buffer has room, must hold the lock
+   * @return {@link QueryState} query whose next page is fetched once the lock is released, null if none should be resumed
+   */
+  private QueryState claimResume() {
+    if (closed || parkedQueries.isEmpty() || bufferedPages.size() >= maxBufferedPages) return null;
+    return parkedQueries.poll();
+  }
+
+  /**
+   * Claims the pending queries that fit under the concurrency limit, must hold the lock
+   * @return {@link List}<{@link QueryState}> queries to start once the lock is released
+   */
+  private List<QueryState> claimStarts() {
+    List<QueryState> toStart = new ArrayList<>();
+    while (!closed && runningQueries < maxConcurrentQueries && !pendingQueries.isEmpty()) {
+      QueryState state = pendingQueries.poll();
+      state.running = true;
+      runningQueries++;
+      toStart.add(state);
+    }
+    return toStart;
+  }
+
+  private void start(QueryState state) {
+    FanOutQuery query = state.query;
+    fetch(state, () -> fhirClient.searchAsync(query.getResourceType(), query.getParams()));
+  }
+
+  private void fetch(QueryState state, FhirRequest request) {
+    fetch(state, () -> fhirClient.executeAsync(request));
+  }
+
+  /**
+   * Sends the request of a query's page, with a timeout of whatever is left of the query's timeout
+   * @param state {@link QueryState}: The query the page belongs to
+   * @param call {@link Supplier}<{@link CompletableFuture}<{@link FhirResponse}>>: Sends the request of the page
+   */
+  private void fetch(QueryState state, Supplier<CompletableFuture<FhirResponse>> call) {
+    long timeoutNanos;
+    int fetchId;
+    lock.lock();
+    try {
+      if (!state.running) return;
+      state.fetchStartNanos = System.nanoTime();
+      if (state.startNanos == 0) state.startNanos = state.fetchStartNanos;
+      timeoutNanos = state.remainingNanos;
+      fetchId = ++state.fetchCount;
+    } finally {
+      lock.unlock();
+    }
+    CompletableFuture.delayedExecutor(timeoutNanos, TimeUnit.NANOSECONDS).execute(() -> onTimeout(state, fetchId));
+    CompletableFuture<FhirResponse> page;
+    try {
+      page = call.get();
+    } catch (RuntimeException ex) {
+      page = CompletableFuture.failedFuture(ex);
+    }
+    boolean ended;
+    lock.lock();
+    try {
+      ended = !state.running || state.fetchCount != fetchId;
+      if (!ended) state.pageFuture = page;
+    } finally {
+      lock.unlock();
+    }
+    // The query timed out or was cancelled while the request was being started
+    if (ended) page.cancel(true);
+    else onPage(state, page, fetchId);
+  }
+
+  /**
+   * Helper function for building the request of a query's next page, must hold the lock
+   */
+  private FhirRequest nextPageRequest(QueryState state) {
+    String link = state.nextLink;
+    state.nextLink = null;
+    return new FhirRequest(HttpMethod.GET, state.query.getResourceType(), link, null);
+  }
+
+  /**
+   * Buffers a page once it arrives, parsing it off the consumer's thread, and fetches the page after it if the buffer has room
+   */
+  private void onPage(QueryState state, CompletableFuture<FhirResponse> pageFuture, int fetchId) {
+    pageFuture.whenComplete((response, ex) -> {
+      List<JsonObject> resources = new ArrayList<>();
+      String link = null;
+      Throwable error = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+      if (error == null) {
+        try (BundleReader bundleReader = new BundleReader(new StringReader(response.getBody()))) {
+          bundleReader.forEachRemaining(resources::add);
+          link = bundleReader.getNextLink();
+        } catch (IOException | RuntimeException parseEx) {
+          error = parseEx;
+        }
+      }
+      List<QueryState> toStart = Collections.emptyList();
+      FhirRequest nextPage = null;
+      QueryState toResume = null;
+      FhirRequest resumeRequest = null;
+      lock.lock();
+      try {
+        if (!state.running || state.fetchCount != fetchId) return;
+        // Only the time spent waiting on the server counts against the timeout, not the time parked afterwards
+        state.remainingNanos -= System.nanoTime() - state.fetchStartNanos;
+        state.pageFuture = null;
+        // Disarms the timeout of the fetch
+        state.fetchCount++;
+        if (error != null) {
+          toStart = end(state, QueryOutcome.Status.FAILED, error);
+        } else {
+          if (!resources.isEmpty()) bufferedPages.add(new Page(state.query.getName(), resources));
+          state.resourceCount += resources.size();
+          if (link == null) {
+            toStart = end(state, QueryOutcome.Status.COMPLETED, null);
+          } else if (state.remainingNanos <= 0) {
+            toStart = end(state, QueryOutcome.Status.TIMED_OUT, null);
+          } else {
+            state.nextLink = link;
+            if (bufferedPages.size() < maxBufferedPages) nextPage = nextPageRequest(state);
+            else parkedQueries.add(state);
+          }
+        }
+        // A query that ended without buffering a page leaves room a parked query would otherwise wait on forever
+        if (!state.running) toResume = claimResume();
+        if (toResume != null) resumeRequest = nextPageRequest(toResume);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (nextPage != null) fetch(state, nextPage);
+      if (toResume != null) fetch(toResume, resumeRequest);
+      for (QueryState next : toStart) start(next);
+    });
+  }
+
+  /**
+   * Ends a query whose page did not arrive in time and cancels the page
+   * @param state {@link QueryState}: The query the page belongs to
+   * @param fetchId int: The fetch the timeout was armed for, the timeout is ignored once the page has arrived
+   */
+  private void onTimeout(QueryState state, int fetchId) {
+    List<QueryState> toStart;
+    CompletableFuture<FhirResponse> page;
+    QueryState toResume;
+    FhirRequest resumeRequest = null;
+    lock.lock();
+    try {
+      if (!state.running || state.fetchCount != fetchId) return;
+      page = state.pageFuture;
+      state.pageFuture = null;
+      state.fetchCount++;
+      toStart = end(state, QueryOutcome.Status.TIMED_OUT, null);
+      toResume = claimResume();
+      if (toResume != null) resumeRequest = nextPageRequest(toResume);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (page != null) page.cancel(true);
+    if (toResume != null) fetch(toResume, resumeRequest);
+    for (QueryState next : toStart) start(next);
+  }
+
+  /**
+   * Records how a query ended and claims the queries that can start in its place, must hold the lock
+   * @return {@link List}<{@link QueryState}> queries to start once the lock is released
+   */
+  private List<QueryState> end(QueryState state, QueryOutcome.Status status, Throwable failure) {
+    if (state.running) {
+      state.running = false;
+      runningQueries--;
+    }
+    remainingQueries--;
+    Duration duration = state.startNanos != 0 ? Duration.ofNanos(System.nanoTime() - state.startNanos) : Duration.ZERO;
+    outcomes.put(state.query.getName(), new QueryOutcome(state.query, status, state.resourceCount, duration, failure));
+    return claimStarts();
+  }
+
+  /**
+   * Mutable state of one query, guarded by the lock of the aggregate
+   */
+  private static class QueryState {
+
+    private final FanOutQuery query;
+
+    private boolean running;
+
+    private long startNanos;
+
+    private int resourceCount;
+
+    private String nextLink;
+
+    /**
+     * The part of the query's timeout not yet spent waiting on the server
+     */
+    private long remainingNanos;
+
+    /**
+     * When the page currently in flight was requested
+     */
+    private long fetchStartNanos;
+
+    /**
+     * Counts the fetches started and ended, a timeout only applies while the fetch it was armed for is in flight
+     */
+    private int fetchCount;
+
+    /**
+     * The page currently in flight, null while the query waits to start or is parked
+     */
+    private CompletableFuture<FhirResponse> pageFuture;
+
+    private QueryState(FanOutQuery query) {
+      this.query = query;
+      this.remainingNanos = query.getTimeout().toNanos();
+    }
+
+  }
+
+  /**
+   * A page of resources received for a query
+   */
+  private static class Page {
+
+    private final String queryName;
+
+    private final List<JsonObject> resources;
+
+    private Page(String queryName, List<JsonObject> resources) {
+      this.queryName = queryName;
+      this.resources = resources;
+    }
+
+  }
+
+}
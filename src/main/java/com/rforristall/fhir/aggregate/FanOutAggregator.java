@@ -0,0 +1,106 @@
+package com.rforristall.fhir.aggregate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.rforristall.fhir.client.FhirClient;
+
+/**
+ * Runs a declared set of independent searches against one specification concurrently and merges their resources into a
+ * single streamed {@link AggregateResult}, i.e. to assemble a patient chart from its Conditions, Medications,
+ * Observations and Encounters.
+ *
+ * At most maxConcurrentQueries queries run at once and every page goes through the {@link FhirClient}, so the
+ * specification's rate limiter and the retry policy apply as they do to any other request. Each query has its own
+ * timeout, a query that fails or times out only loses its remaining pages, so the aggregate is built in roughly the time
+ * of the slowest query rather than the sum of all of them.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FanOutAggregator {
+
+  /**
+   * The default maximum number of queries running at once
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
+
+  /**
+   * The default maximum number of pages buffered ahead of the consumer
+   */
+  public static final int DEFAULT_MAX_BUFFERED_PAGES = 8;
+
+  /**
+   * The client the searches are sent with
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The maximum number of queries running at once
+   */
+  private final int maxConcurrentQueries;
+
+  /**
+   * The maximum number of pages buffered ahead of the consumer before queries stop fetching their next page
+   */
+  private final int maxBufferedPages;
+
+  /**
+   * Constructor for an aggregator using the default limits
+   * @param fhirClient {@link FhirClient}: The client the searches are sent with
+   */
+  public FanOutAggregator(FhirClient fhirClient) {
+    this(fhirClient, DEFAULT_MAX_CONCURRENT_QUERIES, DEFAULT_MAX_BUFFERED_PAGES);
+  }
+
+  /**
+   * Constructor for an aggregator
+   * @param fhirClient {@link FhirClient}: The client the searches are sent with
+   * @param maxConcurrentQueries int: The maximum number of queries running at once, at least 1
+   * @param maxBufferedPages int: The maximum number of pages buffered ahead of the consumer, at least 1
+   */
+  public FanOutAggregator(FhirClient fhirClient, int maxConcurrentQueries, int maxBufferedPages) {
+    super();
+    if (maxConcurrentQueries < 1) throw new IllegalArgumentException("At least one query must be allowed to run at once!");
+    if (maxBufferedPages < 1) throw new IllegalArgumentException("At least one page must be allowed to be buffered!");
+    this.fhirClient = fhirClient;
+    this.maxConcurrentQueries = maxConcurrentQueries;
+    this.maxBufferedPages = maxBufferedPages;
+  }
+
+  /**
+   * Starts the queries, the first maxConcurrentQueries right away and the others as running ones end
+   * @param queries {@link FanOutQuery}...: The queries to run, with unique names
+   * @return {@link AggregateResult} streaming the resources of every query as their pages arrive
+   */
+  public AggregateResult execute(FanOutQuery... queries) {
+    return execute(Arrays.asList(queries));
+  }
+
+  /**
+   * Starts the queries, the first maxConcurrentQueries right away and the others as running ones end
+   * @param queries {@link List}<{@link FanOutQuery}>: The queries to run, with unique names
+   * @return {@link AggregateResult} streaming the resources of every query as their pages arrive
+   */
+  public AggregateResult execute(List<FanOutQuery> queries) {
+    Set<String> names = new HashSet<>();
+    for (FanOutQuery query : queries) {
+      if (!names.add(query.getName())) throw new IllegalArgumentException("Query name " + query.getName() + " is used more than once!");
+    }
+    return new AggregateResult(fhirClient, queries, maxConcurrentQueries, maxBufferedPages);
+  }
+
+  public FhirClient getFhirClient() {
+    return fhirClient;
+  }
+
+  public int getMaxConcurrentQueries() {
+    return maxConcurrentQueries;
+  }
+
+  public int getMaxBufferedPages() {
+    return maxBufferedPages;
+  }
+
+}
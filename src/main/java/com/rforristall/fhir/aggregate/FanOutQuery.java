@@ -0,0 +1,86 @@
+package com.rforristall.fhir.aggregate;
+
+import java.time.Duration;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Immutable description of one search run by a {@link FanOutAggregator}, i.e. the Conditions of a patient.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FanOutQuery {
+
+  /**
+   * The default amount of time a query may take, including every page
+   */
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+  /**
+   * The name identifying the query in the aggregate, unique within one execution
+   */
+  private final String name;
+
+  /**
+   * The resource type of the search
+   */
+  private final String resourceType;
+
+  /**
+   * The search parameters
+   */
+  private final ImmutableListMultimap<String, String> params;
+
+  /**
+   * The amount of time the query may take, including every page
+   */
+  private final Duration timeout;
+
+  /**
+   * Constructor for a query named after its resource type using the default timeout
+   * @param resourceType {@link String}: The resource type of the search, i.e. Condition
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, i.e. patient=123
+   */
+  public FanOutQuery(String resourceType, Multimap<String, String> params) {
+    this(resourceType, resourceType, params, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Constructor for a query
+   * @param name {@link String}: The name identifying the query in the aggregate, unique within one execution
+   * @param resourceType {@link String}: The resource type of the search, i.e. Condition
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, i.e. patient=123
+   * @param timeout {@link Duration}: The amount of time the query may wait on the server, summed over every page
+   */
+  public FanOutQuery(String name, String resourceType, Multimap<String, String> params, Duration timeout) {
+    super();
+    if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("The timeout of a query must be positive!");
+    this.name = name;
+    this.resourceType = resourceType;
+    this.params = params != null ? ImmutableListMultimap.copyOf(params) : ImmutableListMultimap.<String, String>of();
+    this.timeout = timeout;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public ImmutableListMultimap<String, String> getParams() {
+    return params;
+  }
+
+  public Duration getTimeout() {
+    return timeout;
+  }
+
+  @Override
+  public String toString() {
+    return "FanOutQuery [name=" + name + ", resourceType=" + resourceType + ", params=" + params + ", timeout=" + timeout + "]";
+  }
+
+}
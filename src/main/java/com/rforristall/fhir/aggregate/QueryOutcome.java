@@ -0,0 +1,115 @@
+package com.rforristall.fhir.aggregate;
+
+import java.time.Duration;
+
+/**
+ * How one query of an {@link AggregateResult} ended.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class QueryOutcome {
+
+  /**
+   * The query
+   */
+  private final FanOutQuery query;
+
+  /**
+   * How the query ended
+   */
+  private final Status status;
+
+  /**
+   * The number of resources the query contributed to the aggregate, including the pages received before it failed or timed out
+   */
+  private final int resourceCount;
+
+  /**
+   * The time from starting the query to its end
+   */
+  private final Duration duration;
+
+  /**
+   * The failure of the query, null unless the status is {@link Status#FAILED}
+   */
+  private final Throwable failure;
+
+  /**
+   * Constructor for an outcome
+   * @param query {@link FanOutQuery}: The query
+   * @param status {@link Status}: How the query ended
+   * @param resourceCount int: The number of resources the query contributed to the aggregate
+   * @param duration {@link Duration}: The time from starting the query to its end
+   * @param failure {@link Throwable}: The failure of the query, null unless the status is {@link Status#FAILED}
+   */
+  public QueryOutcome(FanOutQuery query, Status status, int resourceCount, Duration duration, Throwable failure) {
+    super();
+    this.query = query;
+    this.status = status;
+    this.resourceCount = resourceCount;
+    this.duration = duration;
+    this.failure = failure;
+  }
+
+  public FanOutQuery getQuery() {
+    return query;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public int getResourceCount() {
+    return resourceCount;
+  }
+
+  public Duration getDuration() {
+    return duration;
+  }
+
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Helper function for checking if every page of the query made it into the aggregate
+   * @return true if the query completed and false otherwise
+   */
+  public boolean isComplete() {
+    return status == Status.COMPLETED;
+  }
+
+  @Override
+  public String toString() {
+    return "QueryOutcome [name=" + query.getName() + ", status=" + status + ", resourceCount=" + resourceCount + ", duration=" + duration
+            + ", failure=" + failure + "]";
+  }
+
+  /**
+   * Enumeration for how a query ended
+   */
+  public enum Status {
+
+    /**
+     * Every page of the query was received
+     */
+    COMPLETED,
+
+    /**
+     * A page of the query failed, the pages received before it are part of the aggregate
+     */
+    FAILED,
+
+    /**
+     * The query ran out of time, the pages received before its timeout are part of the aggregate
+     */
+    TIMED_OUT,
+
+    /**
+     * The aggregate was closed before the query ended
+     */
+    CANCELLED;
+
+  }
+
+}
@@ -4,4 +4,9 @@ public abstract class AbstractFhirAuthentication implements FhirAuthentication{
 
   protected static final String AUTH_HEADER = "Authorization";
   
+  @Override
+  public void close() {
+    // Nothing to release by default
+  }
+  
 }
@@ -2,6 +2,7 @@ package com.rforristall.fhir.auth;
 
 import java.net.http.HttpRequest.Builder;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 
 public class BasicAuthentication extends AbstractFhirAuthentication{
 
@@ -43,6 +44,11 @@ public class BasicAuthentication extends AbstractFhirAuthentication{
     return requestBuilder;
   }
   
+  @Override
+  public CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder) {
+    return CompletableFuture.completedFuture(appendAuthentication(requestBuilder));
+  }
+  
   private enum UserType {
     INTERNAL("INTERNAL"),
     EXTERNAL("EXTERNAL");
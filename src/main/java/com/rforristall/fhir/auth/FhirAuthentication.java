@@ -7,12 +7,57 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.text.ParseException;
+import java.util.concurrent.CompletableFuture;
 
 import com.nimbusds.jose.JOSEException;
 import com.rforristall.fhir.exception.HttpErrorException;
 
-public interface FhirAuthentication {
+public interface FhirAuthentication extends AutoCloseable {
   
   Builder appendAuthentication(Builder requestBuilder) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, ParseException, IOException, JOSEException, InterruptedException, HttpErrorException;
   
+  /**
+   * Non-blocking variant of {@link #appendAuthentication(Builder)}, failures complete the returned future exceptionally
+   * with the same exceptions the blocking variant throws
+   * @param requestBuilder {@link Builder}: The builder of the request to authenticate
+   * @return {@link CompletableFuture}<{@link Builder}> completed with the provided builder once authentication is appended
+   */
+  CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder);
+  
+  /**
+   * Variant of {@link #appendAuthentication(Builder)} for schemas that can authenticate a request with different scopes,
+   * by default the resource type and action are ignored
+   * @param requestBuilder {@link Builder}: The builder of the request to authenticate
+   * @param resourceType {@link String}: The resource type of the request, null for requests against the server base
+   * @param action {@link ScopeAction}: The action of the request
+   * @return {@link Builder} the provided builder with authentication appended
+   */
+  default Builder appendAuthentication(Builder requestBuilder, String resourceType, ScopeAction action) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, ParseException, IOException, JOSEException, InterruptedException, HttpErrorException {
+    return appendAuthentication(requestBuilder);
+  }
+  
+  /**
+   * Non-blocking variant of {@link #appendAuthentication(Builder, String, ScopeAction)}
+   * @param requestBuilder {@link Builder}: The builder of the request to authenticate
+   * @param resourceType {@link String}: The resource type of the request, null for requests against the server base
+   * @param action {@link ScopeAction}: The action of the request
+   * @return {@link CompletableFuture}<{@link Builder}> completed with the provided builder once authentication is appended
+   */
+  default CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder, String resourceType, ScopeAction action) {
+    return appendAuthenticationAsync(requestBuilder);
+  }
+  
+  /**
+   * Getter function for the readiness of the schema, schemas that acquire credentials in the background complete it once
+   * requests can be authenticated without waiting, and complete it exceptionally if the acquisition failed. Requests can
+   * be sent before it completes, they wait on (or retry) the acquisition themselves
+   * @return {@link CompletableFuture}<{@link Void}> completed once the schema is ready, already completed by default
+   */
+  default CompletableFuture<Void> getReadiness() {
+    return CompletableFuture.completedFuture(null);
+  }
+  
+  @Override
+  void close();
+  
 }
@@ -0,0 +1,279 @@
+package com.rforristall.fhir.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import com.rforristall.fhir.keystore.KeyStoreAccessor;
+
+/**
+ * {@link TokenStore} keeping one encrypted file per token in a directory, shared by every process on the host that
+ * points at the same directory.
+ *
+ * Tokens are encrypted with AES-GCM using a key derived from the private key of the client's keystore, with the token
+ * key as associated data, so a file can neither be read nor moved to another key without the keystore. Files are named
+ * after the SHA-256 of the token key and written to a temporary file that is then renamed over the previous one.
+ * Refreshes are serialized with a lock file per key, locked with {@link FileChannel#tryLock()} across processes and with
+ * a semaphore between threads of this process, as file locks are held by the whole JVM. File locks cannot be waited on
+ * with a timeout, so the lock file is polled until it is free or the timeout elapses.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FileTokenStore implements TokenStore {
+
+  /**
+   * The name of the directory inside the keystore directory used by {@link #FileTokenStore(KeyStoreAccessor)}
+   */
+  public static final String DEFAULT_DIRECTORY_NAME = "tokens";
+
+  /**
+   * The label the encryption key is derived with, changing it invalidates every stored token
+   */
+  private static final String KEY_LABEL = "fhir-connector-token-store-v1";
+
+  /**
+   * Marks the files written by this class, followed by the format version
+   */
+  private static final int MAGIC = 0x464f544b;
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String ENTRY_SUFFIX = ".token";
+
+  private static final String LOCK_SUFFIX = ".lock";
+
+  private static final String CIPHER = "AES/GCM/NoPadding";
+
+  private static final int IV_BYTES = 12;
+
+  private static final int TAG_BITS = 128;
+
+  /**
+   * The longest pause between two attempts to lock a lock file held by another process
+   */
+  private static final long MAX_LOCK_POLL_MILLIS = 50;
+
+  /**
+   * Locks held by this process by lock file, the semaphore is released by whichever thread completes the fetch
+   */
+  private static final ConcurrentMap<Path, Semaphore> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * The directory the tokens are written to
+   */
+  private final Path directory;
+
+  /**
+   * The key the tokens are encrypted with
+   */
+  private final SecretKey secretKey;
+
+  /**
+   * Constructor for a file store in the "tokens" directory next to the keystore, encrypted with a key derived from the keystore
+   * @param keyStoreAccessor {@link KeyStoreAccessor}: The accessor of the keystore the client signs its assertions with
+   * @throws KeyStoreException
+   * @throws NoSuchAlgorithmException
+   * @throws CertificateException
+   * @throws UnrecoverableEntryException
+   * @throws IOException if the keystore could not be read or the directory could not be created
+   */
+  public FileTokenStore(KeyStoreAccessor keyStoreAccessor) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException {
+    this(keyStoreAccessor.getKeyStoreSpec().getStoreDir().resolve(DEFAULT_DIRECTORY_NAME), keyStoreAccessor);
+  }
+
+  /**
+   * Constructor for a file store encrypted with a key derived from the keystore
+   * @param directory {@link Path}: The directory the tokens are written to, created if it does not exist
+   * @param keyStoreAccessor {@link KeyStoreAccessor}: The accessor of the keystore the client signs its assertions with
+   * @throws KeyStoreException
+   * @throws NoSuchAlgorithmException
+   * @throws CertificateException
+   * @throws UnrecoverableEntryException
+   * @throws IOException if the keystore could not be read or the directory could not be created
+   */
+  public FileTokenStore(Path directory, KeyStoreAccessor keyStoreAccessor) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException {
+    this(directory, keyStoreAccessor.deriveSecretKey(KEY_LABEL));
+  }
+
+  /**
+   * Constructor for a file store
+   * @param directory {@link Path}: The directory the tokens are written to, created if it does not exist
+   * @param secretKey {@link SecretKey}: The AES key the tokens are encrypted with, every process sharing the directory must use the same key
+   * @throws IOException if the directory could not be created
+   */
+  public FileTokenStore(Path directory, SecretKey secretKey) throws IOException {
+    super();
+    this.directory = Files.createDirectories(directory);
+    this.secretKey = secretKey;
+  }
+
+  @Override
+  public OauthToken load(String key) throws IOException {
+    byte[] encrypted;
+    try {
+      encrypted = Files.readAllBytes(toPath(key, ENTRY_SUFFIX));
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encrypted))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+      byte[] iv = new byte[IV_BYTES];
+      in.readFully(iv);
+      byte[] ciphertext = new byte[in.available()];
+      in.readFully(ciphertext);
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+      DataInputStream token = new DataInputStream(new ByteArrayInputStream(cipher.doFinal(ciphertext)));
+      byte[] headerValue = new byte[token.readInt()];
+      token.readFully(headerValue);
+      return new OauthToken(new String(headerValue, StandardCharsets.UTF_8), token.readLong(), token.readLong());
+    } catch (EOFException | GeneralSecurityException ex) {
+      // Truncated, tampered with or written with another keystore, the caller fetches a new token
+      return null;
+    }
+  }
+
+  @Override
+  public void store(String key, OauthToken token) throws IOException {
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(plaintext)) {
+      byte[] headerValue = token.getHeaderValue().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(headerValue.length);
+      out.write(headerValue);
+      out.writeLong(token.getIssuedAtMillis());
+      out.writeLong(token.getExpiresAtMillis());
+    }
+    byte[] iv = new byte[IV_BYTES];
+    RANDOM.nextBytes(iv);
+    byte[] ciphertext;
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+      ciphertext = cipher.doFinal(plaintext.toByteArray());
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Unable to encrypt the token", ex);
+    }
+    Path entry = toPath(key, ENTRY_SUFFIX);
+    Path tempFile = Files.createTempFile(directory, "token", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.write(iv);
+        out.write(ciphertext);
+      }
+      try {
+        Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  @Override
+  public StoreLock lock(String key, Duration timeout) throws IOException, InterruptedException {
+    long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    Path lockFile = toPath(key, LOCK_SUFFIX);
+    Semaphore localLock = LOCAL_LOCKS.computeIfAbsent(lockFile, path -> new Semaphore(1));
+    if (!localLock.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) return null;
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock fileLock = tryLock(channel, deadlineNanos);
+      if (fileLock == null) {
+        channel.close();
+        localLock.release();
+        return null;
+      }
+      FileChannel lockedChannel = channel;
+      AtomicBoolean released = new AtomicBoolean();
+      return () -> {
+        if (!released.compareAndSet(false, true)) return;
+        try {
+          fileLock.release();
+        } finally {
+          try {
+            lockedChannel.close();
+          } finally {
+            localLock.release();
+          }
+        }
+      };
+    } catch (IOException | InterruptedException | RuntimeException ex) {
+      if (channel != null) channel.close();
+      localLock.release();
+      throw ex;
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Helper function for polling a lock file until it is locked or a deadline passes, backing off between attempts
+   * @param channel {@link FileChannel}: The open channel of the lock file
+   * @param deadlineNanos long: The {@link System#nanoTime()} after which the lock is given up
+   * @return {@link FileLock} held on the lock file, or null if another process held it until the deadline
+   * @throws IOException if the lock file could not be locked
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  private static FileLock tryLock(FileChannel channel, long deadlineNanos) throws IOException, InterruptedException {
+    long pauseMillis = 1;
+    for (;;) {
+      FileLock fileLock = channel.tryLock();
+      if (fileLock != null) return fileLock;
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) return null;
+      Thread.sleep(Math.min(pauseMillis, TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1));
+      pauseMillis = Math.min(pauseMillis * 2, MAX_LOCK_POLL_MILLIS);
+    }
+  }
+
+  private Path toPath(String key, String suffix) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(digest.length * 2 + suffix.length());
+      for (byte b : digest) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      return directory.resolve(name.append(suffix).toString());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is not available", ex);
+    }
+  }
+
+}
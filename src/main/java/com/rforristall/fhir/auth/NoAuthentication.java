@@ -1,6 +1,7 @@
 package com.rforristall.fhir.auth;
 
 import java.net.http.HttpRequest.Builder;
+import java.util.concurrent.CompletableFuture;
 
 public class NoAuthentication extends AbstractFhirAuthentication{
   
@@ -13,5 +14,10 @@ public class NoAuthentication extends AbstractFhirAuthentication{
     // TODO Auto-generated method stub
     return requestBuilder;
   }
+
+  @Override
+  public CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder) {
+    return CompletableFuture.completedFuture(requestBuilder);
+  }
   
 }
@@ -13,9 +13,14 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.text.ParseException;
-import java.time.Instant;
+import java.time.Duration;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.Maps;
@@ -25,17 +30,39 @@ import com.nimbusds.jose.shaded.gson.JsonObject;
 import com.nimbusds.jose.shaded.gson.JsonParser;
 import com.nimbusds.jwt.SignedJWT;
 import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.http.HttpClientRegistry;
+import com.rforristall.fhir.http.HttpClientSettings;
 import com.rforristall.fhir.keystore.KeyStoreAccessor;
+import com.rforristall.fhir.metrics.FhirMetrics;
+import com.rforristall.fhir.metrics.MetricsRegistry;
+import com.rforristall.fhir.tracing.InterceptorRegistry;
+import com.rforristall.fhir.tracing.OutboundCall;
+import com.rforristall.fhir.tracing.RequestInterceptor.Completion;
+import com.rforristall.fhir.util.VirtualThreads;
 
 public class OauthAuthentication extends AbstractFhirAuthentication{
   
-  private KeyStoreAccessor keyStoreAccessor;
-  private JWSAlgorithm securityAlg;
-  private String clientId;
-  private String oauthEndpoint;
-  private String scopes;
-  private String accessToken;
-  private long tokenTtl;
+  public static final long DEFAULT_CLOCK_SKEW_SECONDS = 30;
+  private static final long DEFAULT_TOKEN_LIFETIME_SECONDS = 5 * 60;
+  /**
+   * The longest a token request may take, also the longest a token store lock held by another process is waited on
+   */
+  public static final Duration TOKEN_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+  
+  private final KeyStoreAccessor keyStoreAccessor;
+  private final JWSAlgorithm securityAlg;
+  private final String clientId;
+  private final String oauthEndpoint;
+  private final ScopeSet scopes;
+  private final long tokenTtl;
+  private final long clockSkewMillis;
+  private final double refreshAheadFraction;
+  private final TokenStore tokenStore;
+  private final HttpClientSettings httpClientSettings;
+  private final HttpClient httpClient;
+  private final OauthTokenPool tokenPool;
+  private volatile CompletableFuture<Void> readiness;
+  private final AtomicBoolean closed = new AtomicBoolean();
   
 
   public OauthAuthentication(
@@ -44,51 +71,279 @@ public class OauthAuthentication extends AbstractFhirAuthentication{
           String clientId,
           String oauthEndpoint,
           String scopes,
-          long tokenTtl) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException, InterruptedException, HttpErrorException {
+          long tokenTtl) {
+    this(keyStoreAccessor, securityAlg, clientId, oauthEndpoint, scopes, tokenTtl, OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION, DEFAULT_CLOCK_SKEW_SECONDS, HttpClientSettings.defaultSettings());
+  }
+
+  public OauthAuthentication(
+          KeyStoreAccessor keyStoreAccessor,
+          JWSAlgorithm securityAlg,
+          String clientId,
+          String oauthEndpoint,
+          String scopes,
+          long tokenTtl,
+          double refreshAheadFraction,
+          long clockSkewSeconds,
+          HttpClientSettings httpClientSettings) {
+    this(keyStoreAccessor, securityAlg, clientId, oauthEndpoint, scopes, tokenTtl, refreshAheadFraction, clockSkewSeconds, httpClientSettings, null);
+  }
+
+  /**
+   * Constructor for an OAuth authentication whose tokens are shared through a {@link TokenStore}, a still valid stored
+   * token is used instead of contacting the OAuth endpoint, and only one process holding the store refreshes it
+   * @param keyStoreAccessor {@link KeyStoreAccessor}: The accessor of the keystore the client assertions are signed with
+   * @param securityAlg {@link JWSAlgorithm}: The JWS algorithm the client assertions are signed with
+   * @param clientId {@link String}: clientId for the OAuth authentication
+   * @param oauthEndpoint {@link String}: The token endpoint of the OAuth server
+   * @param scopes {@link String}: The space separated scopes of the default token
+   * @param tokenTtl long: The lifetime in seconds of the client assertions
+   * @param refreshAheadFraction double: The fraction of each token's lifetime after which it is refreshed in the background
+   * @param clockSkewSeconds long: The margin in seconds a token is considered expired before its actual expiry
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client of the OAuth endpoint
+   * @param tokenStore {@link TokenStore}: The store tokens are shared through, null to keep them in this instance only
+   */
+  public OauthAuthentication(
+          KeyStoreAccessor keyStoreAccessor,
+          JWSAlgorithm securityAlg,
+          String clientId,
+          String oauthEndpoint,
+          String scopes,
+          long tokenTtl,
+          double refreshAheadFraction,
+          long clockSkewSeconds,
+          HttpClientSettings httpClientSettings,
+          TokenStore tokenStore) {
     super();
     this.keyStoreAccessor = keyStoreAccessor;
     this.securityAlg = securityAlg;
     this.clientId = clientId;
     this.oauthEndpoint = oauthEndpoint;
-    this.scopes = scopes;
-    this.accessToken = getAccessToken();
+    this.scopes = ScopeSet.of(scopes);
     this.tokenTtl = tokenTtl;
+    this.clockSkewMillis = clockSkewSeconds * 1000;
+    this.refreshAheadFraction = refreshAheadFraction;
+    this.tokenStore = tokenStore;
+    this.httpClientSettings = httpClientSettings;
+    this.httpClient = HttpClientRegistry.getShared().acquire(oauthEndpoint, httpClientSettings);
+    this.tokenPool = new OauthTokenPool(this::getAccessToken, this.scopes, refreshAheadFraction);
+    // The first token is fetched in the background, so building many specifications does not wait on their OAuth endpoints.
+    // Every field is assigned by now and warmUp() cannot be overridden, so the fetch never sees a partly built instance
+    warmUp();
   }
 
   @Override
   public Builder appendAuthentication(Builder requestBuilder) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, ParseException, IOException, JOSEException, InterruptedException, HttpErrorException {
-    if (this.isTokenExpired()) accessToken = getAccessToken();
-    requestBuilder.header(AUTH_HEADER, accessToken);
+    requestBuilder.header(AUTH_HEADER, getCurrentToken(tokenPool.getDefaultManager()).getHeaderValue());
     return requestBuilder;
   }
   
-  private String getAccessToken() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException, InterruptedException, HttpErrorException {
+  @Override
+  public Builder appendAuthentication(Builder requestBuilder, String resourceType, ScopeAction action) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, ParseException, IOException, JOSEException, InterruptedException, HttpErrorException {
+    requestBuilder.header(AUTH_HEADER, getCurrentToken(tokenPool.select(resourceType, action)).getHeaderValue());
+    return requestBuilder;
+  }
+  
+  @Override
+  public CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder) {
+    return tokenPool.getDefaultManager().getTokenAsync().thenApply(token -> requestBuilder.header(AUTH_HEADER, token.getHeaderValue()));
+  }
+  
+  @Override
+  public CompletableFuture<Builder> appendAuthenticationAsync(Builder requestBuilder, String resourceType, ScopeAction action) {
+    return tokenPool.select(resourceType, action).getTokenAsync().thenApply(token -> requestBuilder.header(AUTH_HEADER, token.getHeaderValue()));
+  }
+  
+  /**
+   * Registers an additional scope set, signed with the same keystore and client id, that requests it grants are
+   * authenticated with when it is narrower than the other registered scope sets. Its token is fetched the first time a
+   * request selects it and is refreshed ahead of its own expiry from then on
+   * @param scopes {@link String}: The space separated scopes, i.e. "system/Patient.write system/Observation.write"
+   * @return {@link ScopeSet} that was registered
+   * @throws IllegalArgumentException if any of the scopes is malformed, see {@link SmartScope#parse(String)}
+   */
+  public ScopeSet registerScopes(String scopes) {
+    ScopeSet scopeSet = ScopeSet.of(scopes);
+    tokenPool.register(scopeSet);
+    return scopeSet;
+  }
+  
+  @Override
+  public CompletableFuture<Void> getReadiness() {
+    return readiness;
+  }
+  
+  /**
+   * Starts loading the signing key and fetching the token of the default scope set in the background, this runs once
+   * when the authentication is constructed and can be called again (i.e. once an unreachable OAuth endpoint is back)
+   * @return {@link CompletableFuture}<{@link Void}> completed once the token has been acquired, which
+   * {@link #getReadiness()} returns from now on
+   */
+  public final CompletableFuture<Void> warmUp() {
+    OauthTokenManager tokenManager = tokenPool.getDefaultManager();
+    CompletableFuture<Void> attempt = CompletableFuture.supplyAsync(tokenManager::getTokenAsync, VirtualThreads.getSharedExecutor())
+            .thenCompose(Function.identity())
+            .thenApply(token -> (Void) null);
+    readiness = attempt;
+    return attempt;
+  }
+  
+  public ScopeSet getScopes() {
+    return scopes;
+  }
+  
+  public OauthTokenPool getTokenPool() {
+    return tokenPool;
+  }
+  
+  public TokenStore getTokenStore() {
+    return tokenStore;
+  }
+  
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    tokenPool.close();
+    HttpClientRegistry.getShared().release(oauthEndpoint, httpClientSettings);
+  }
+  
+  private OauthToken getCurrentToken(OauthTokenManager tokenManager) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException, InterruptedException, HttpErrorException {
+    try {
+      return tokenManager.getToken();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof KeyStoreException) throw (KeyStoreException) cause;
+      if (cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+      if (cause instanceof CertificateException) throw (CertificateException) cause;
+      if (cause instanceof UnrecoverableEntryException) throw (UnrecoverableEntryException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof JOSEException) throw (JOSEException) cause;
+      if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+      if (cause instanceof HttpErrorException) throw (HttpErrorException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException("Unexpected failure while fetching the access token", cause);
+    }
+  }
+  
+  private CompletableFuture<OauthToken> getAccessToken(ScopeSet scopes) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException {
+    if (tokenStore == null) return fetchAccessToken(scopes);
+    String storeKey = oauthEndpoint + " " + clientId + " " + scopes;
+    // Reading the store and waiting on its lock block, so neither runs on the caller's thread or the refresh scheduler
+    return CompletableFuture.supplyAsync(() -> loadOrFetchAccessToken(scopes, storeKey), VirtualThreads.getSharedExecutor()).thenCompose(Function.identity());
+  }
+  
+  private CompletableFuture<OauthToken> loadOrFetchAccessToken(ScopeSet scopes, String storeKey) {
+    try {
+      OauthToken stored = loadStoredToken(storeKey);
+      if (stored != null) return CompletableFuture.completedFuture(stored);
+      TokenStore.StoreLock lock = tokenStore.lock(storeKey, TOKEN_REQUEST_TIMEOUT);
+      // The holder outlived its own token request, so fetch without the lock rather than queue behind it
+      if (lock == null) return fetchAccessToken(scopes).thenApply(token -> storeToken(storeKey, token));
+      CompletableFuture<OauthToken> fetch;
+      try {
+        // Another process may have refreshed the token while this one waited on the lock
+        stored = loadStoredToken(storeKey);
+        fetch = stored != null ? CompletableFuture.completedFuture(stored) : fetchAccessToken(scopes).thenApply(token -> storeToken(storeKey, token));
+      } catch (Exception ex) {
+        releaseQuietly(lock);
+        throw ex;
+      }
+      return fetch.whenComplete((token, ex) -> releaseQuietly(lock));
+    } catch (Exception ex) {
+      throw new CompletionException(ex);
+    }
+  }
+  
+  private OauthToken loadStoredToken(String storeKey) {
+    OauthToken stored;
+    try {
+      stored = tokenStore.load(storeKey);
+    } catch (IOException ex) {
+      // An unreadable store only costs a round trip to the OAuth endpoint
+      return null;
+    }
+    // A stored token that is already due for a refresh is refreshed rather than shared, otherwise the refresh would be rescheduled immediately
+    return stored != null && System.currentTimeMillis() < stored.getRefreshAtMillis(refreshAheadFraction) ? stored : null;
+  }
+  
+  private OauthToken storeToken(String storeKey, OauthToken token) {
+    try {
+      tokenStore.store(storeKey, token);
+    } catch (IOException ex) {
+      // The token is still valid for this process, other processes fetch their own
+    }
+    return token;
+  }
+  
+  private static void releaseQuietly(TokenStore.StoreLock lock) {
+    try {
+      lock.close();
+    } catch (IOException ex) {
+      // Closing the lock file releases the lock regardless
+    }
+  }
+  
+  private CompletableFuture<OauthToken> fetchAccessToken(ScopeSet scopes) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException {
+    FhirMetrics metrics = MetricsRegistry.getMetrics();
+    long startNanos = System.nanoTime();
+    CompletableFuture<OauthToken> fetch;
+    try {
+      fetch = requestAccessToken(scopes);
+    } catch (Exception ex) {
+      metrics.tokenFetchFailed(oauthEndpoint, ex, System.nanoTime() - startNanos);
+      throw ex;
+    }
+    return fetch.whenComplete((token, ex) -> {
+      if (ex == null) metrics.tokenFetched(oauthEndpoint, System.nanoTime() - startNanos);
+      else metrics.tokenFetchFailed(oauthEndpoint, ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex, System.nanoTime() - startNanos);
+    });
+  }
+  
+  private CompletableFuture<OauthToken> requestAccessToken(ScopeSet scopes) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException {
     Map<String, String> params = Maps.newHashMap();
     params.put("grant_type", "client_credentials");
     params.put("client_assertion_type", "urn:ietf:params:oauth:client-assertion-type:jwt-bearer");
-    params.put("scope", String.join(" ", scopes));
+    params.put("scope", scopes.toString());
     params.put("client_assertion", keyStoreAccessor.getSignedJwtToken(securityAlg, clientId, oauthEndpoint, tokenTtl).serialize());
     String form = params.entrySet().stream().map((e) -> {
       return e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8);
     }).collect(Collectors.joining("&"));
     URI endpointUri = URI.create(oauthEndpoint);
-    HttpRequest request = HttpRequest.newBuilder().uri(endpointUri).header("Content-Type", "application/x-www-form-urlencoded").POST(HttpRequest.BodyPublishers.ofString(form)).build();
-    HttpResponse<String> response = null;
-    response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-    if (response.statusCode() == 200) return "Bearer " + getAccessTokenFromResponse(response.body());
-    else throw HttpErrorException.createExceptionFromStatusCode(response.statusCode(), response.body());
+    HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(endpointUri).timeout(TOKEN_REQUEST_TIMEOUT).header("Content-Type", "application/x-www-form-urlencoded").POST(HttpRequest.BodyPublishers.ofString(form));
+    Completion completion = InterceptorRegistry.intercept(OutboundCall.Kind.TOKEN, "POST", endpointUri, null, null, null, 1, requestBuilder);
+    long issuedAtMillis = System.currentTimeMillis();
+    CompletableFuture<HttpResponse<String>> sent = httpClient.sendAsync(requestBuilder.build(), HttpResponse.BodyHandlers.ofString());
+    if (completion != Completion.NOOP) sent.whenComplete((response, ex) -> {
+      if (ex == null) completion.onResponse(response.statusCode());
+      else completion.onFailure(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+    });
+    return sent.thenApply(response -> {
+      if (response.statusCode() == 200) return getAccessTokenFromResponse(response.body(), issuedAtMillis);
+      else throw new CompletionException(HttpErrorException.createExceptionFromResponse(response));
+    });
   }
   
-  private String getAccessTokenFromResponse(String responseBody) {
+  private OauthToken getAccessTokenFromResponse(String responseBody, long issuedAtMillis) {
     JsonObject jsonObject = JsonParser.parseString(responseBody).getAsJsonObject();
-    if (jsonObject.has("access_token")) return jsonObject.get("access_token").getAsString();
-    else return "";
+    String accessToken = jsonObject.has("access_token") ? jsonObject.get("access_token").getAsString() : "";
+    long expiresAtMillis = getJwtExpiryMillis(accessToken);
+    if (expiresAtMillis <= 0) {
+      long expiresIn = jsonObject.has("expires_in") ? jsonObject.get("expires_in").getAsLong() : DEFAULT_TOKEN_LIFETIME_SECONDS;
+      expiresAtMillis = issuedAtMillis + expiresIn * 1000;
+    }
+    // Never let the skew margin consume more than half of the token lifetime, otherwise the token would be refetched on every request
+    long skewMillis = Math.min(clockSkewMillis, Math.max(0, expiresAtMillis - issuedAtMillis) / 2);
+    return new OauthToken("Bearer " + accessToken, issuedAtMillis, expiresAtMillis - skewMillis);
   }
   
-  private boolean isTokenExpired() throws ParseException {
-    SignedJWT jwt = SignedJWT.parse(accessToken.replace("Bearer ", ""));
-    long exp = (long) jwt.getPayload().toJSONObject().get("exp");
-    return Date.from(Instant.ofEpochSecond(exp)).before(new Date());
+  private long getJwtExpiryMillis(String accessToken) {
+    try {
+      Date exp = SignedJWT.parse(accessToken).getJWTClaimsSet().getExpirationTime();
+      return exp != null ? exp.getTime() : 0;
+    } catch (ParseException ex) {
+      // Opaque (non JWT) token, the caller falls back to expires_in
+      return 0;
+    }
   }
   
 }
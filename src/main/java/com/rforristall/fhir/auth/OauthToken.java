@@ -0,0 +1,96 @@
+package com.rforristall.fhir.auth;
+
+import java.util.Objects;
+
+/**
+ * Immutable OAuth access token along with the window in which it is valid.
+ *
+ * The expiry is decoded once when the token is acquired and kept as epoch milliseconds, so checking the token on every
+ * request is a single comparison and does not allocate.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class OauthToken {
+
+  /**
+   * The value of the Authorization header for this token (i.e. "Bearer ...")
+   */
+  private final String headerValue;
+
+  /**
+   * The epoch milliseconds at which the token was acquired from the OAuth endpoint
+   */
+  private final long issuedAtMillis;
+
+  /**
+   * The epoch milliseconds after which the token should no longer be used, already reduced by the clock skew margin
+   */
+  private final long expiresAtMillis;
+
+  /**
+   * Constructor for an OAuth token
+   * @param headerValue {@link String}: The value of the Authorization header for this token
+   * @param issuedAtMillis long: The epoch milliseconds at which the token was acquired
+   * @param expiresAtMillis long: The epoch milliseconds after which the token should no longer be used
+   */
+  public OauthToken(String headerValue, long issuedAtMillis, long expiresAtMillis) {
+    super();
+    this.headerValue = headerValue;
+    this.issuedAtMillis = issuedAtMillis;
+    this.expiresAtMillis = expiresAtMillis;
+  }
+
+  public String getHeaderValue() {
+    return headerValue;
+  }
+
+  public long getIssuedAtMillis() {
+    return issuedAtMillis;
+  }
+
+  public long getExpiresAtMillis() {
+    return expiresAtMillis;
+  }
+
+  /**
+   * Helper function for checking if the token has expired
+   * @param nowMillis long: The epoch milliseconds to check the token against
+   * @return true if the token is expired at the provided time and false otherwise
+   */
+  public boolean isExpired(long nowMillis) {
+    return nowMillis >= expiresAtMillis;
+  }
+
+  /**
+   * Helper function for calculating when the token should be refreshed ahead of its expiry
+   * @param refreshAheadFraction double: The fraction of the token lifetime after which it should be refreshed
+   * @return long epoch milliseconds at which the token should be refreshed
+   */
+  public long getRefreshAtMillis(double refreshAheadFraction) {
+    return issuedAtMillis + (long) ((expiresAtMillis - issuedAtMillis) * refreshAheadFraction);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(expiresAtMillis, headerValue, issuedAtMillis);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    OauthToken other = (OauthToken) obj;
+    return expiresAtMillis == other.expiresAtMillis && Objects.equals(headerValue, other.headerValue)
+            && issuedAtMillis == other.issuedAtMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "OauthToken [headerValue=<Hidden>, issuedAtMillis=" + issuedAtMillis + ", expiresAtMillis=" + expiresAtMillis + "]";
+  }
+
+}
@@ -0,0 +1,208 @@
+package com.rforristall.fhir.auth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe cache for a single OAuth access token.
+ *
+ * Only one fetch is ever in flight at a time: callers that find the token expired while a fetch is running wait on that
+ * fetch instead of starting their own, asynchronous callers share the same future without parking a thread. Once a
+ * token is acquired a refresh is scheduled in the background after the configured fraction of the token lifetime has
+ * elapsed, so request threads keep using the still valid token and do not block on the OAuth round trip.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class OauthTokenManager {
+
+  /**
+   * The default fraction of a token's lifetime after which it is refreshed in the background
+   */
+  public static final double DEFAULT_REFRESH_AHEAD_FRACTION = 0.8;
+
+  /**
+   * Scheduler shared by all managers for background refreshes, it only starts the fetch and never waits on the response
+   */
+  private static final ScheduledExecutorService REFRESH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "fhir-oauth-refresh");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Function used to acquire a new token from the OAuth endpoint
+   */
+  private final TokenFetcher tokenFetcher;
+
+  /**
+   * The fraction of the token lifetime after which the token is refreshed in the background
+   */
+  private final double refreshAheadFraction;
+
+  /**
+   * Completed future holding the most recently acquired token, null until the first fetch completes. Keeping the
+   * completed future lets asynchronous callers with a valid token be answered without allocating
+   */
+  private volatile CompletableFuture<OauthToken> currentToken;
+
+  /**
+   * The fetch that is currently in flight, null when no fetch is running
+   */
+  private final AtomicReference<CompletableFuture<OauthToken>> inFlightFetch = new AtomicReference<>();
+
+  /**
+   * The background refresh that is scheduled for the current token
+   */
+  private volatile ScheduledFuture<?> scheduledRefresh;
+
+  /**
+   * If the manager has been closed, fetches that complete afterwards no longer schedule a refresh
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructor for a token manager
+   * @param tokenFetcher {@link TokenFetcher}: Function used to acquire a new token from the OAuth endpoint
+   * @param refreshAheadFraction double: The fraction of the token lifetime, between 0 and 1 exclusive, after which the token is refreshed in the background
+   */
+  public OauthTokenManager(TokenFetcher tokenFetcher, double refreshAheadFraction) {
+    super();
+    if (refreshAheadFraction <= 0 || refreshAheadFraction >= 1)
+      throw new IllegalArgumentException("The refresh ahead fraction must be between 0 and 1 exclusive!");
+    this.tokenFetcher = tokenFetcher;
+    this.refreshAheadFraction = refreshAheadFraction;
+  }
+
+  /**
+   * Getter function for a valid token, fetching a new token only if the current one is missing or expired
+   * @return {@link OauthToken} that is valid at the time of the call
+   * @throws ExecutionException if the fetch failed, the cause is the exception raised by the {@link TokenFetcher}
+   * @throws InterruptedException if the thread was interrupted while waiting on the fetch
+   */
+  public OauthToken getToken() throws ExecutionException, InterruptedException {
+    OauthToken token = getValidToken();
+    if (token != null) return token;
+    return refresh(getCurrentToken()).get();
+  }
+
+  /**
+   * Non-blocking variant of {@link #getToken()}, all callers waiting on an expired token share the same in-flight fetch
+   * @return {@link CompletableFuture}<{@link OauthToken}> completed with a token that is valid at the time of the call
+   */
+  public CompletableFuture<OauthToken> getTokenAsync() {
+    CompletableFuture<OauthToken> current = currentToken;
+    if (current != null && !current.getNow(null).isExpired(System.currentTimeMillis())) return current;
+    return refresh(getCurrentToken());
+  }
+
+  /**
+   * Helper function for checking if a token is cached and can be used without a round trip to the OAuth endpoint
+   * @return true if the current token has not expired and false otherwise
+   */
+  public boolean hasValidToken() {
+    return getValidToken() != null;
+  }
+
+  /**
+   * Cancels the background refresh, the current token can still be used until it expires
+   */
+  public void close() {
+    closed = true;
+    ScheduledFuture<?> refresh = scheduledRefresh;
+    if (refresh != null) refresh.cancel(false);
+  }
+
+  /**
+   * Helper function for reading the current token
+   * @return {@link OauthToken} most recently acquired, or null if none has been acquired yet
+   */
+  private OauthToken getCurrentToken() {
+    CompletableFuture<OauthToken> current = currentToken;
+    return current != null ? current.getNow(null) : null;
+  }
+
+  /**
+   * Helper function for reading the current token only if it has not expired
+   * @return {@link OauthToken} most recently acquired, or null if it is missing or expired
+   */
+  private OauthToken getValidToken() {
+    OauthToken token = getCurrentToken();
+    return token != null && !token.isExpired(System.currentTimeMillis()) ? token : null;
+  }
+
+  /**
+   * Replaces the observed token, joining the fetch in flight if there is one
+   * @param observedToken {@link OauthToken}: The token the caller saw before deciding to refresh, may be null
+   * @return {@link CompletableFuture}<{@link OauthToken}> completed with the new token
+   */
+  private CompletableFuture<OauthToken> refresh(OauthToken observedToken) {
+    for (;;) {
+      CompletableFuture<OauthToken> existing = inFlightFetch.get();
+      if (existing != null) return existing;
+      CompletableFuture<OauthToken> fetch = new CompletableFuture<>();
+      if (!inFlightFetch.compareAndSet(null, fetch)) continue;
+      OauthToken latest = getValidToken();
+      if (latest != null && latest != observedToken) {
+        // Another thread replaced the token between our check and claiming the fetch
+        inFlightFetch.compareAndSet(fetch, null);
+        fetch.complete(latest);
+        return fetch;
+      }
+      CompletableFuture<OauthToken> fetched;
+      try {
+        fetched = tokenFetcher.fetch();
+      } catch (Throwable ex) {
+        fetched = new CompletableFuture<>();
+        fetched.completeExceptionally(ex);
+      }
+      fetched.whenComplete((token, ex) -> {
+        if (ex == null) {
+          currentToken = CompletableFuture.completedFuture(token);
+          scheduleRefresh(token);
+        }
+        // Clear the in-flight fetch before completing it so callers reacting to a failure can start a new one
+        inFlightFetch.compareAndSet(fetch, null);
+        if (ex == null) fetch.complete(token);
+        else fetch.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+      });
+      return fetch;
+    }
+  }
+
+  /**
+   * Schedules a background refresh of the provided token after the refresh ahead fraction of its lifetime
+   * @param token {@link OauthToken}: The token that was just acquired
+   */
+  private void scheduleRefresh(OauthToken token) {
+    if (closed) return;
+    long delayMillis = Math.max(0, token.getRefreshAtMillis(refreshAheadFraction) - System.currentTimeMillis());
+    ScheduledFuture<?> previous = scheduledRefresh;
+    if (previous != null) previous.cancel(false);
+    // Failures are not surfaced here, the token is still valid and callers refresh it themselves once it expires
+    scheduledRefresh = REFRESH_SCHEDULER.schedule(() -> refresh(token), delayMillis, TimeUnit.MILLISECONDS);
+    // The manager may have been closed while the refresh was being scheduled
+    if (closed) scheduledRefresh.cancel(false);
+  }
+
+  /**
+   * Function for acquiring a new token from an OAuth endpoint
+   */
+  @FunctionalInterface
+  public interface TokenFetcher {
+
+    /**
+     * Starts fetching a new token from the OAuth endpoint
+     * @return {@link CompletableFuture}<{@link OauthToken}> completed with the token that was acquired
+     * @throws Exception if the fetch could not be started
+     */
+    CompletableFuture<OauthToken> fetch() throws Exception;
+
+  }
+
+}
@@ -0,0 +1,156 @@
+package com.rforristall.fhir.auth;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of OAuth access tokens for one client, keyed by the normalized {@link ScopeSet} each token was requested with.
+ *
+ * Every scope set has its own {@link OauthTokenManager}, so each token is refreshed ahead of its own expiry while all of
+ * them are signed with the same keystore and client id. When a request is authenticated the pool picks the narrowest
+ * registered scope set that grants the request's resource type and action, preferring one whose token is already
+ * cached so that a broader valid token is used rather than waiting on the OAuth endpoint for a narrower one. Requests
+ * no registered scope set grants use the default scope set, leaving the decision to the FHIR server.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class OauthTokenPool {
+
+  /**
+   * Function used to acquire a new token for a scope set from the OAuth endpoint
+   */
+  private final ScopedTokenFetcher tokenFetcher;
+
+  /**
+   * The fraction of each token's lifetime after which it is refreshed in the background
+   */
+  private final double refreshAheadFraction;
+
+  /**
+   * The scope set used when no registered scope set grants a request
+   */
+  private final ScopeSet defaultScopes;
+
+  /**
+   * The token manager of the default scope set
+   */
+  private final OauthTokenManager defaultManager;
+
+  /**
+   * The token managers by scope set, including the default scope set
+   */
+  private final ConcurrentMap<ScopeSet, OauthTokenManager> managers = new ConcurrentHashMap<>();
+
+  /**
+   * If the pool has been closed, scope sets can no longer be registered once it is
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructor for a token pool
+   * @param tokenFetcher {@link ScopedTokenFetcher}: Function used to acquire a new token for a scope set from the OAuth endpoint
+   * @param defaultScopes {@link ScopeSet}: The scope set used when no registered scope set grants a request
+   * @param refreshAheadFraction double: The fraction of each token's lifetime, between 0 and 1 exclusive, after which it is refreshed in the background
+   */
+  public OauthTokenPool(ScopedTokenFetcher tokenFetcher, ScopeSet defaultScopes, double refreshAheadFraction) {
+    super();
+    this.tokenFetcher = tokenFetcher;
+    this.refreshAheadFraction = refreshAheadFraction;
+    this.defaultScopes = defaultScopes;
+    this.defaultManager = newManager(defaultScopes);
+    managers.put(defaultScopes, defaultManager);
+  }
+
+  /**
+   * Registers a scope set with the pool, its token is fetched the first time a request selects it
+   * @param scopes {@link ScopeSet}: The scope set to register
+   * @return {@link OauthTokenManager} of the scope set, the existing one if the scope set was already registered
+   */
+  public OauthTokenManager register(ScopeSet scopes) {
+    if (closed) throw new IllegalStateException("The token pool has been closed!");
+    return managers.computeIfAbsent(scopes, this::newManager);
+  }
+
+  /**
+   * Selects the token manager to authenticate a request with, without contacting the OAuth endpoint
+   * @param resourceType {@link String}: The resource type of the request, null for requests against the server base
+   * @param action {@link ScopeAction}: The action of the request
+   * @return {@link OauthTokenManager} of the narrowest cached scope set granting the request, otherwise of the narrowest
+   * registered scope set granting it, otherwise of the default scope set
+   */
+  public OauthTokenManager select(String resourceType, ScopeAction action) {
+    // The common case of a single scope set needs no comparison
+    if (managers.size() == 1) return defaultManager;
+    ScopeSet bestCached = null;
+    ScopeSet bestRegistered = null;
+    for (ScopeSet scopes : managers.keySet()) {
+      if (!scopes.permits(resourceType, action)) continue;
+      if (isNarrower(scopes, bestRegistered)) bestRegistered = scopes;
+      if (isNarrower(scopes, bestCached) && managers.get(scopes).hasValidToken()) bestCached = scopes;
+    }
+    if (bestCached != null) return managers.get(bestCached);
+    if (bestRegistered != null) return managers.get(bestRegistered);
+    return defaultManager;
+  }
+
+  public ScopeSet getDefaultScopes() {
+    return defaultScopes;
+  }
+
+  public OauthTokenManager getDefaultManager() {
+    return defaultManager;
+  }
+
+  public Set<ScopeSet> getScopeSets() {
+    return Collections.unmodifiableSet(managers.keySet());
+  }
+
+  /**
+   * Cancels the background refresh of every token in the pool
+   */
+  public void close() {
+    closed = true;
+    for (OauthTokenManager manager : managers.values()) manager.close();
+  }
+
+  /**
+   * Helper function for comparing two scope sets, ties are broken by the scope string so the selection is stable
+   * @param scopes {@link ScopeSet}: The candidate scope set
+   * @param best {@link ScopeSet}: The narrowest scope set found so far, may be null
+   * @return true if the candidate should replace the best scope set and false otherwise
+   */
+  private static boolean isNarrower(ScopeSet scopes, ScopeSet best) {
+    if (best == null) return true;
+    if (scopes.getBreadth() != best.getBreadth()) return scopes.getBreadth() < best.getBreadth();
+    return scopes.toString().compareTo(best.toString()) < 0;
+  }
+
+  /**
+   * Helper function for creating the token manager of a scope set
+   * @param scopes {@link ScopeSet}: The scope set the manager fetches tokens for
+   * @return {@link OauthTokenManager} of the scope set
+   */
+  private OauthTokenManager newManager(ScopeSet scopes) {
+    return new OauthTokenManager(() -> tokenFetcher.fetch(scopes), refreshAheadFraction);
+  }
+
+  /**
+   * Function for acquiring a new token for a scope set from an OAuth endpoint
+   */
+  @FunctionalInterface
+  public interface ScopedTokenFetcher {
+
+    /**
+     * Starts fetching a new token with the provided scopes from the OAuth endpoint
+     * @param scopes {@link ScopeSet}: The scopes the token is requested with
+     * @return {@link CompletableFuture}<{@link OauthToken}> completed with the token that was acquired
+     * @throws Exception if the fetch could not be started
+     */
+    CompletableFuture<OauthToken> fetch(ScopeSet scopes) throws Exception;
+
+  }
+
+}
@@ -0,0 +1,20 @@
+package com.rforristall.fhir.auth;
+
+/**
+ * Enumeration for the kinds of access a request needs from a SMART on FHIR scope
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public enum ScopeAction {
+
+  /**
+   * Reading or searching resources, granted by ".read" (SMART v1) or the "r" and "s" permissions (SMART v2)
+   */
+  READ,
+
+  /**
+   * Creating, updating or deleting resources, granted by ".write" (SMART v1) or the "c", "u" and "d" permissions (SMART v2)
+   */
+  WRITE;
+
+}
@@ -0,0 +1,121 @@
+package com.rforristall.fhir.auth;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Normalized set of SMART on FHIR scopes requested together in a single token.
+ *
+ * Scopes are de-duplicated and sorted, so "system/Patient.read system/Observation.read" and the same scopes in a
+ * different order or with extra whitespace are equal and share a token in the {@link OauthTokenPool}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class ScopeSet {
+
+  /**
+   * The parsed scopes, sorted by their scope string
+   */
+  private final ImmutableList<SmartScope> scopes;
+
+  /**
+   * The scopes joined with single spaces, as sent in the scope parameter of a token request
+   */
+  private final String value;
+
+  /**
+   * The summed breadth of the scopes, see {@link SmartScope#getBreadth()}
+   */
+  private final int breadth;
+
+  /**
+   * Private constructor used by the static builders
+   * @param scopeStrings {@link Collection}<{@link String}>: The scope strings, each of which may hold several space separated scopes
+   */
+  private ScopeSet(Collection<String> scopeStrings) {
+    super();
+    TreeMap<String, SmartScope> sorted = new TreeMap<>();
+    for (String scopeString : scopeStrings) {
+      if (scopeString == null) continue;
+      for (String scope : scopeString.trim().split("\\s+")) {
+        if (!scope.isEmpty()) sorted.put(scope, SmartScope.parse(scope));
+      }
+    }
+    int summedBreadth = 0;
+    for (SmartScope scope : sorted.values()) summedBreadth += scope.getBreadth();
+    this.scopes = ImmutableList.copyOf(sorted.values());
+    this.value = String.join(" ", sorted.keySet());
+    this.breadth = summedBreadth;
+  }
+
+  /**
+   * Static builder function for a scope set from a space separated scope string
+   * @param scopes {@link String}: The space separated scopes, i.e. "system/Patient.read system/Observation.read"
+   * @return {@link ScopeSet} of the scopes
+   * @throws IllegalArgumentException if any of the scopes is malformed, see {@link SmartScope#parse(String)}
+   */
+  public static ScopeSet of(String scopes) {
+    return new ScopeSet(Arrays.asList(scopes));
+  }
+
+  /**
+   * Static builder function for a scope set from a list of scopes
+   * @param scopes {@link Collection}<{@link String}>: The scopes, each of which may hold several space separated scopes
+   * @return {@link ScopeSet} of the scopes
+   * @throws IllegalArgumentException if any of the scopes is malformed, see {@link SmartScope#parse(String)}
+   */
+  public static ScopeSet of(Collection<String> scopes) {
+    return new ScopeSet(scopes);
+  }
+
+  public ImmutableList<SmartScope> getScopes() {
+    return scopes;
+  }
+
+  public int getBreadth() {
+    return breadth;
+  }
+
+  /**
+   * Helper function for checking if any scope of the set grants an action on a resource type
+   * @param resourceType {@link String}: The resource type of the request, null for requests against the server base
+   * @param action {@link ScopeAction}: The action of the request
+   * @return true if a token with these scopes can be used for the request and false otherwise
+   */
+  public boolean permits(String resourceType, ScopeAction action) {
+    for (SmartScope scope : scopes) {
+      if (scope.permits(resourceType, action)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return value.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    ScopeSet other = (ScopeSet) obj;
+    return value.equals(other.value);
+  }
+
+  /**
+   * Getter function for the scopes joined with single spaces
+   * @return {@link String} value of the scope parameter of a token request
+   */
+  @Override
+  public String toString() {
+    return value;
+  }
+
+}
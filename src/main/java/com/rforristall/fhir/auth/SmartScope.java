@@ -0,0 +1,232 @@
+package com.rforristall.fhir.auth;
+
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single SMART on FHIR scope string, parsed once so that checking it against a request does not touch the string.
+ *
+ * Resource scopes follow either the SMART v1 syntax (i.e. "system/Patient.read") or the SMART v2 syntax (i.e.
+ * "system/Observation.rs?category=laboratory"). The query of a v2 scope is kept as the scope's constraint: such a scope
+ * only grants the resources matching the query, which cannot be told from a request's resource type and action, so
+ * {@link #permits(String, ScopeAction)} never counts it as granting a request and a token holding only constrained
+ * scopes is never picked over one granting the whole type.
+ *
+ * Every other scope, from identity and launch scopes (i.e. "openid", "launch/patient") to scopes specific to a server,
+ * is kept as an opaque scope: it is sent as is but grants access to no resource. Only strings that start like a resource
+ * scope (i.e. "patient/") without following either syntax are rejected, as they are most likely a typo.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class SmartScope {
+
+  /**
+   * Pattern of a resource scope, groups are the context, the resource type and the permissions
+   */
+  private static final Pattern RESOURCE_SCOPE = Pattern.compile("(patient|user|system)/([A-Za-z]+|\\*)\\.(read|write|\\*|(?=[cruds])c?r?u?d?s?)(\\?\\S*)?");
+
+  /**
+   * Pattern of the strings that can only be meant as a resource scope
+   */
+  private static final Pattern RESOURCE_SCOPE_PREFIX = Pattern.compile("(patient|user|system)/.*");
+
+  /**
+   * Pattern of an OAuth 2.0 scope token, printable ASCII without spaces, double quotes or backslashes
+   */
+  private static final Pattern SCOPE_TOKEN = Pattern.compile("[\\x21\\x23-\\x5B\\x5D-\\x7E]+");
+
+  /**
+   * The wildcard resource type, granting access to every resource type
+   */
+  public static final String WILDCARD = "*";
+
+  /**
+   * The scope string as it was provided
+   */
+  private final String value;
+
+  /**
+   * The context of the scope (patient, user or system), null for non-resource scopes
+   */
+  private final String context;
+
+  /**
+   * The resource type the scope grants access to, {@link #WILDCARD} for every type and null for non-resource scopes
+   */
+  private final String resourceType;
+
+  /**
+   * If the scope grants reading or searching resources
+   */
+  private final boolean read;
+
+  /**
+   * If the scope grants creating, updating or deleting resources
+   */
+  private final boolean write;
+
+  /**
+   * The number of individual permissions the scope grants, used to compare how broad scopes are
+   */
+  private final int permissionCount;
+
+  /**
+   * The query of a SMART v2 scope without the leading "?", limiting the resources it grants, null if the scope has none
+   */
+  private final String constraint;
+
+  /**
+   * Private constructor used by {@link #parse(String)}
+   * @param value {@link String}: The scope string as it was provided
+   * @param context {@link String}: The context of the scope, null for non-resource scopes
+   * @param resourceType {@link String}: The resource type the scope grants access to, null for non-resource scopes
+   * @param read boolean: If the scope grants reading or searching resources
+   * @param write boolean: If the scope grants creating, updating or deleting resources
+   * @param permissionCount int: The number of individual permissions the scope grants
+   * @param constraint {@link String}: The query of a SMART v2 scope without the leading "?", null if the scope has none
+   */
+  private SmartScope(String value, String context, String resourceType, boolean read, boolean write, int permissionCount, String constraint) {
+    super();
+    this.value = value;
+    this.context = context;
+    this.resourceType = resourceType;
+    this.read = read;
+    this.write = write;
+    this.permissionCount = permissionCount;
+    this.constraint = constraint;
+  }
+
+  /**
+   * Parses a single scope string
+   * @param scope {@link String}: The scope string, i.e. "system/Patient.read"
+   * @return {@link SmartScope} parsed from the string
+   * @throws IllegalArgumentException if the string is not a scope token or is a malformed resource scope
+   */
+  public static SmartScope parse(String scope) {
+    if (scope == null) throw new IllegalArgumentException("The scope must not be null!");
+    if (!SCOPE_TOKEN.matcher(scope).matches()) throw new IllegalArgumentException("The scope " + scope + " is not a valid OAuth scope!");
+    Matcher matcher = RESOURCE_SCOPE.matcher(scope);
+    if (!matcher.matches()) {
+      if (RESOURCE_SCOPE_PREFIX.matcher(scope).matches())
+        throw new IllegalArgumentException("The scope " + scope + " is not a valid SMART on FHIR resource scope!");
+      return new SmartScope(scope, null, null, false, false, 0, null);
+    }
+    String permissions = matcher.group(3);
+    boolean read;
+    boolean write;
+    int permissionCount;
+    if (permissions.equals("read")) {
+      read = true;
+      write = false;
+      permissionCount = 2;
+    } else if (permissions.equals("write")) {
+      read = false;
+      write = true;
+      permissionCount = 3;
+    } else if (permissions.equals(WILDCARD)) {
+      read = true;
+      write = true;
+      permissionCount = 5;
+    } else {
+      // SMART v2 permissions, already validated to be a non-empty ordered subset of "cruds"
+      read = permissions.indexOf('r') >= 0 || permissions.indexOf('s') >= 0;
+      write = permissions.indexOf('c') >= 0 || permissions.indexOf('u') >= 0 || permissions.indexOf('d') >= 0;
+      permissionCount = permissions.length();
+    }
+    String query = matcher.group(4);
+    String constraint = query != null && query.length() > 1 ? query.substring(1) : null;
+    return new SmartScope(scope, matcher.group(1), matcher.group(2), read, write, permissionCount, constraint);
+  }
+
+  /**
+   * Helper function for checking if a string is a valid scope, see {@link #parse(String)}
+   * @param scope {@link String}: The scope string
+   * @return true if the string can be parsed and false otherwise
+   */
+  public static boolean isValid(String scope) {
+    try {
+      parse(scope);
+      return true;
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public String getContext() {
+    return context;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public String getConstraint() {
+    return constraint;
+  }
+
+  /**
+   * Helper function for checking if the scope only grants the resources matching a SMART v2 query
+   * @return true if the scope has a constraint and false otherwise
+   */
+  public boolean isConstrained() {
+    return constraint != null;
+  }
+
+  /**
+   * Helper function for checking if the scope names a resource, false for identity, launch and other opaque scopes
+   * @return true if the scope grants access to resources and false otherwise
+   */
+  public boolean isResourceScope() {
+    return resourceType != null;
+  }
+
+  /**
+   * Helper function for checking if the scope grants an action on a resource type
+   * @param resourceType {@link String}: The resource type of the request, null for requests against the server base which only wildcard scopes grant
+   * @param action {@link ScopeAction}: The action of the request
+   * @return true if the scope grants the action on every resource of the type and false otherwise, always false for constrained scopes
+   */
+  public boolean permits(String resourceType, ScopeAction action) {
+    if (this.resourceType == null || constraint != null) return false;
+    if (!this.resourceType.equals(WILDCARD) && !this.resourceType.equals(resourceType)) return false;
+    return action == ScopeAction.READ ? read : write;
+  }
+
+  /**
+   * Getter function for how broad the scope is, a wildcard resource type weighs as much as many named types so a scope
+   * set naming the needed type is always preferred over one granting every type
+   * @return int breadth of the scope, 0 for non-resource scopes
+   */
+  public int getBreadth() {
+    if (resourceType == null) return 0;
+    return (resourceType.equals(WILDCARD) ? 64 : 1) * permissionCount;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(value);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    SmartScope other = (SmartScope) obj;
+    return Objects.equals(value, other.value);
+  }
+
+  @Override
+  public String toString() {
+    return value;
+  }
+
+}
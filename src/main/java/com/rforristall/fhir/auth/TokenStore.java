@@ -0,0 +1,61 @@
+package com.rforristall.fhir.auth;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Store that keeps OAuth access tokens outside a single {@link OauthAuthentication}, so still valid tokens survive
+ * restarts and can be shared by every process that uses the same client and scopes.
+ *
+ * Before fetching a token the authentication takes the store's lock for the key, then checks the store again, so when
+ * several processes find the stored token due for a refresh only the first one contacts the OAuth endpoint and the
+ * others pick up the token it stored. The wait on the lock is bounded, so a process stuck while holding it only costs
+ * the others their own round trip to the OAuth endpoint.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public interface TokenStore {
+
+  /**
+   * Loads a stored token
+   * @param key {@link String}: The key of the token, identifying the OAuth endpoint, client id and scopes
+   * @return {@link OauthToken} stored for the key, or null if there is none or it cannot be read
+   * @throws IOException if the store could not be read
+   */
+  OauthToken load(String key) throws IOException;
+
+  /**
+   * Stores a token, replacing the one stored for the same key
+   * @param key {@link String}: The key of the token, identifying the OAuth endpoint, client id and scopes
+   * @param token {@link OauthToken}: The token to store
+   * @throws IOException if the store could not be written
+   */
+  void store(String key, OauthToken token) throws IOException;
+
+  /**
+   * Takes the exclusive lock for a key, waiting up to a timeout while another thread or process holds it
+   * @param key {@link String}: The key of the token
+   * @param timeout {@link Duration}: The maximum amount of time to wait for the lock
+   * @return {@link StoreLock} that must be closed once the token has been fetched and stored, from any thread, or null
+   * if the lock was still held by another thread or process once the timeout elapsed
+   * @throws IOException if the lock could not be taken
+   * @throws InterruptedException if the thread was interrupted while waiting on the lock
+   */
+  StoreLock lock(String key, Duration timeout) throws IOException, InterruptedException;
+
+  /**
+   * Exclusive lock for a key of a {@link TokenStore}
+   */
+  @FunctionalInterface
+  interface StoreLock extends AutoCloseable {
+
+    /**
+     * Releases the lock
+     * @throws IOException if the lock could not be released
+     */
+    @Override
+    void close() throws IOException;
+
+  }
+
+}
@@ -0,0 +1,383 @@
+package com.rforristall.fhir.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.client.FhirRequest;
+import com.rforristall.fhir.client.FhirResponse;
+import com.rforristall.fhir.client.HttpMethod;
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Client for the FHIR Bulk Data Access $export flow.
+ *
+ * The export is kicked off asynchronously and its status endpoint is polled, honouring the server's Retry-After and
+ * otherwise backing off from the minimum to the maximum poll interval. Once complete, the NDJSON files of the manifest
+ * are downloaded in parallel and streamed either to disk or line by line to a consumer, so a file is never held in
+ * memory. A download that fails mid-body is resumed from the last byte received with a Range request; servers that
+ * ignore the range resend the file and the bytes already received are skipped.
+ *
+ * Every request goes through the {@link FhirClient}, so it is authenticated, rate limited and retried like any other
+ * request against the specification.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BulkExportClient {
+
+  /**
+   * The default minimum amount of time between two polls of the status endpoint
+   */
+  public static final Duration DEFAULT_MIN_POLL_INTERVAL = Duration.ofSeconds(1);
+
+  /**
+   * The default maximum amount of time between two polls of the status endpoint
+   */
+  public static final Duration DEFAULT_MAX_POLL_INTERVAL = Duration.ofSeconds(60);
+
+  /**
+   * The default number of files downloaded at the same time
+   */
+  public static final int DEFAULT_PARALLEL_DOWNLOADS = 4;
+
+  /**
+   * The number of times in a row a download may fail without receiving any new bytes before giving up
+   */
+  private static final int MAX_RESUME_ATTEMPTS = 5;
+
+  /**
+   * The size of the buffer used to copy a download
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String FHIR_JSON = "application/fhir+json";
+
+  /**
+   * The client used to send every request of the export
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The minimum amount of time between two polls of the status endpoint
+   */
+  private final Duration minPollInterval;
+
+  /**
+   * The maximum amount of time between two polls of the status endpoint
+   */
+  private final Duration maxPollInterval;
+
+  /**
+   * The number of files downloaded at the same time
+   */
+  private final int parallelDownloads;
+
+  /**
+   * Constructor for a bulk export client using the default poll intervals and download parallelism
+   * @param fhirClient {@link FhirClient}: The client used to send every request of the export
+   */
+  public BulkExportClient(FhirClient fhirClient) {
+    this(fhirClient, DEFAULT_MIN_POLL_INTERVAL, DEFAULT_MAX_POLL_INTERVAL, DEFAULT_PARALLEL_DOWNLOADS);
+  }
+
+  /**
+   * Constructor for a bulk export client
+   * @param fhirClient {@link FhirClient}: The client used to send every request of the export
+   * @param minPollInterval {@link Duration}: The minimum amount of time between two polls of the status endpoint
+   * @param maxPollInterval {@link Duration}: The maximum amount of time between two polls of the status endpoint
+   * @param parallelDownloads int: The number of files downloaded at the same time, at least 1
+   */
+  public BulkExportClient(FhirClient fhirClient, Duration minPollInterval, Duration maxPollInterval, int parallelDownloads) {
+    super();
+    if (minPollInterval.isNegative() || minPollInterval.isZero() || maxPollInterval.compareTo(minPollInterval) < 0)
+      throw new IllegalArgumentException("The poll intervals must be positive and the maximum may not be less than the minimum!");
+    if (parallelDownloads < 1) throw new IllegalArgumentException("At least one download must be allowed at a time!");
+    this.fhirClient = fhirClient;
+    this.minPollInterval = minPollInterval;
+    this.maxPollInterval = maxPollInterval;
+    this.parallelDownloads = parallelDownloads;
+  }
+
+  /**
+   * Kicks off an export and waits for it to complete
+   * @param request {@link BulkExportRequest}: The export to run
+   * @return {@link BulkExportManifest} listing the files of the completed export
+   * @throws IOException if a request could not be sent or the server did not follow the bulk data flow
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public BulkExportManifest export(BulkExportRequest request) throws IOException, InterruptedException, HttpErrorException {
+    return awaitManifest(kickOff(request));
+  }
+
+  /**
+   * Kicks off an export without waiting for it to complete
+   * @param request {@link BulkExportRequest}: The export to run
+   * @return {@link String} absolute URL of the status endpoint of the export
+   * @throws IOException if the request could not be sent or the server did not accept the export
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public String kickOff(BulkExportRequest request) throws IOException, InterruptedException, HttpErrorException {
+    // Every kick-off starts its own export, sharing the response would hand one status URL to several callers
+    FhirResponse response = fhirClient.executeUncoalesced(new FhirRequest(HttpMethod.GET, null, request.toPath(), null,
+            ImmutableMap.of("Accept", FHIR_JSON, "Prefer", "respond-async"), true));
+    if (response.getStatusCode() != 202)
+      throw new IOException("The $export kick-off returned status " + response.getStatusCode() + " instead of 202 Accepted!");
+    String location = response.getHeaders().firstValue("Content-Location")
+            .orElseThrow(() -> new IOException("The $export kick-off did not return a Content-Location header!"));
+    return URI.create(fhirClient.getFhirSpec().getHostname() + "/").resolve(location).toString();
+  }
+
+  /**
+   * Polls the status endpoint of an export until it completes
+   * @param statusUrl {@link String}: The absolute URL of the status endpoint returned by {@link #kickOff(BulkExportRequest)}
+   * @return {@link BulkExportManifest} listing the files of the completed export
+   * @throws IOException if a request could not be sent or the server did not follow the bulk data flow
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code, i.e. the export failed
+   */
+  public BulkExportManifest awaitManifest(String statusUrl) throws IOException, InterruptedException, HttpErrorException {
+    FhirRequest statusRequest = new FhirRequest(HttpMethod.GET, null, statusUrl, null, ImmutableMap.of("Accept", "application/json"), true);
+    long intervalNanos = minPollInterval.toNanos();
+    for (;;) {
+      FhirResponse response = fhirClient.execute(statusRequest);
+      if (response.getStatusCode() == 200) return BulkExportManifest.parse(response.getBody());
+      if (response.getStatusCode() != 202)
+        throw new IOException("The $export status endpoint returned unexpected status " + response.getStatusCode() + "!");
+      Duration retryAfter = HttpErrorException.parseRetryAfter(response.getHeaders());
+      long waitNanos = retryAfter != null
+              ? Math.max(minPollInterval.toNanos(), Math.min(retryAfter.toNanos(), maxPollInterval.toNanos()))
+              : intervalNanos;
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+      intervalNanos = Math.min(intervalNanos * 2, maxPollInterval.toNanos());
+    }
+  }
+
+  /**
+   * Cancels an export that is still running, or asks the server to delete the files of a completed one
+   * @param statusUrl {@link String}: The absolute URL of the status endpoint returned by {@link #kickOff(BulkExportRequest)}
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public void cancel(String statusUrl) throws IOException, InterruptedException, HttpErrorException {
+    fhirClient.execute(new FhirRequest(HttpMethod.DELETE, null, statusUrl, null));
+  }
+
+  /**
+   * Downloads every output file of a manifest into a directory, several files at a time
+   * @param manifest {@link BulkExportManifest}: The manifest of the completed export
+   * @param directory {@link Path}: The existing directory the files are written to, as [type]-[index].ndjson
+   * @return {@link List}<{@link Path}> of the written files in the order of the manifest's output
+   * @throws IOException if a file could not be downloaded or written
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public List<Path> downloadToDirectory(BulkExportManifest manifest, Path directory) throws IOException, InterruptedException, HttpErrorException {
+    List<BulkExportFile> files = manifest.getOutput();
+    return runInParallel(files, index -> downloadFile(files.get(index), manifest.isRequiresAccessToken(),
+            directory.resolve(files.get(index).getType() + "-" + index + ".ndjson")));
+  }
+
+  /**
+   * Streams every output file of a manifest line by line to a consumer, several files at a time
+   * @param manifest {@link BulkExportManifest}: The manifest of the completed export
+   * @param consumer {@link NdjsonConsumer}: Receives every resource, called from several threads at once
+   * @return long the number of resources passed to the consumer
+   * @throws IOException if a file could not be downloaded
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public long download(BulkExportManifest manifest, NdjsonConsumer consumer) throws IOException, InterruptedException, HttpErrorException {
+    List<BulkExportFile> files = manifest.getOutput();
+    long total = 0;
+    for (long count : runInParallel(files, index -> streamFile(files.get(index), manifest.isRequiresAccessToken(), consumer))) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Downloads a single file to disk, resuming it with a Range request if the body fails part way through
+   * @param file {@link BulkExportFile}: The file to download
+   * @param requiresAccessToken boolean: If the specification's authentication must be sent with the download
+   * @param target {@link Path}: The file written, replaced if it exists
+   * @return {@link Path} the target that was written
+   * @throws IOException if the file could not be downloaded or written
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public Path downloadFile(BulkExportFile file, boolean requiresAccessToken, Path target) throws IOException, InterruptedException, HttpErrorException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long written = 0;
+    int failures = 0;
+    try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (;;) {
+        try (InputStream in = openFrom(file, requiresAccessToken, written)) {
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            written += read;
+            failures = 0;
+          }
+          return target;
+        } catch (IOException ex) {
+          if (++failures >= MAX_RESUME_ATTEMPTS) throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams a single file line by line to a consumer, resuming it after the last complete line if the body fails part way through
+   * @param file {@link BulkExportFile}: The file to download
+   * @param requiresAccessToken boolean: If the specification's authentication must be sent with the download
+   * @param consumer {@link NdjsonConsumer}: Receives every resource of the file
+   * @return long the number of resources passed to the consumer
+   * @throws IOException if the file could not be downloaded
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public long streamFile(BulkExportFile file, boolean requiresAccessToken, NdjsonConsumer consumer) throws IOException, InterruptedException, HttpErrorException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long consumed = 0;
+    long count = 0;
+    int failures = 0;
+    for (;;) {
+      line.reset();
+      try (InputStream in = openFrom(file, requiresAccessToken, consumed)) {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          int start = 0;
+          for (int i = 0; i < read; i++) {
+            if (buffer[i] != '\n') continue;
+            line.write(buffer, start, i - start);
+            if (deliver(file, line, consumer)) count++;
+            // Only complete lines count as consumed, a resumed download restarts at the beginning of the partial line
+            consumed += line.size() + 1;
+            line.reset();
+            start = i + 1;
+            failures = 0;
+          }
+          line.write(buffer, start, read - start);
+        }
+        if (deliver(file, line, consumer)) count++;
+        return count;
+      } catch (IOException ex) {
+        if (++failures >= MAX_RESUME_ATTEMPTS) throw ex;
+      }
+    }
+  }
+
+  private boolean deliver(BulkExportFile file, ByteArrayOutputStream line, NdjsonConsumer consumer) {
+    String resource = line.toString(StandardCharsets.UTF_8).trim();
+    if (resource.isEmpty()) return false;
+    consumer.accept(file, resource);
+    return true;
+  }
+
+  /**
+   * Opens the body of a file positioned at the provided offset
+   * @param file {@link BulkExportFile}: The file to download
+   * @param requiresAccessToken boolean: If the specification's authentication must be sent with the download
+   * @param offset long: The number of bytes of the file already received
+   * @return {@link InputStream} of the file starting at the offset
+   */
+  private InputStream openFrom(BulkExportFile file, boolean requiresAccessToken, long offset) throws IOException, InterruptedException, HttpErrorException {
+    Map<String, String> headers = offset > 0
+            ? ImmutableMap.of("Accept", BulkExportRequest.NDJSON_OUTPUT_FORMAT, "Range", "bytes=" + offset + "-")
+            : ImmutableMap.of("Accept", BulkExportRequest.NDJSON_OUTPUT_FORMAT);
+    HttpResponse<InputStream> response = fhirClient.executeRaw(new FhirRequest(HttpMethod.GET, file.getType(), file.getUrl(), null, headers, requiresAccessToken));
+    InputStream body = response.body();
+    if (offset > 0 && response.statusCode() != 206) {
+      // The server ignored the range and resent the whole file
+      try {
+        body.skipNBytes(offset);
+      } catch (IOException ex) {
+        body.close();
+        throw ex;
+      }
+    }
+    return body;
+  }
+
+  private <T> List<T> runInParallel(List<BulkExportFile> files, FileTask<T> task) throws IOException, InterruptedException, HttpErrorException {
+    if (files.isEmpty()) return ImmutableList.of();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelDownloads, files.size()), runnable -> {
+      Thread thread = new Thread(runnable, "fhir-bulk-download");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<T>> futures = new ArrayList<>(files.size());
+      for (int i = 0; i < files.size(); i++) {
+        int index = i;
+        futures.add(executor.submit(() -> task.run(index)));
+      }
+      List<T> results = new ArrayList<>(files.size());
+      for (Future<T> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof IOException) throw (IOException) cause;
+          if (cause instanceof HttpErrorException) throw (HttpErrorException) cause;
+          if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          throw new IOException("Unable to download the bulk export files", cause);
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Receives the resources of a bulk export one NDJSON line at a time
+   */
+  @FunctionalInterface
+  public interface NdjsonConsumer {
+
+    /**
+     * Receives a single resource
+     * @param file {@link BulkExportFile}: The file the resource was read from
+     * @param resource {@link String}: The JSON of the resource
+     */
+    void accept(BulkExportFile file, String resource);
+
+  }
+
+  /**
+   * Work done for a single file of a manifest
+   * @param <T> The type of the result
+   */
+  @FunctionalInterface
+  private interface FileTask<T> {
+
+    T run(int index) throws IOException, InterruptedException, HttpErrorException;
+
+  }
+
+}
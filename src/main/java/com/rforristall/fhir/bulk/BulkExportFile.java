@@ -0,0 +1,74 @@
+package com.rforristall.fhir.bulk;
+
+import java.util.Objects;
+
+/**
+ * A single NDJSON file listed in the output or error section of a {@link BulkExportManifest}
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BulkExportFile {
+
+  /**
+   * The resource type of every line in the file
+   */
+  private final String type;
+
+  /**
+   * The absolute URL the file is downloaded from
+   */
+  private final String url;
+
+  /**
+   * The number of resources in the file, -1 if the server did not report it
+   */
+  private final long count;
+
+  /**
+   * Constructor for an export file
+   * @param type {@link String}: The resource type of every line in the file
+   * @param url {@link String}: The absolute URL the file is downloaded from
+   * @param count long: The number of resources in the file, -1 if unknown
+   */
+  public BulkExportFile(String type, String url, long count) {
+    super();
+    this.type = type;
+    this.url = url;
+    this.count = count;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(count, type, url);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    BulkExportFile other = (BulkExportFile) obj;
+    return count == other.count && Objects.equals(type, other.type) && Objects.equals(url, other.url);
+  }
+
+  @Override
+  public String toString() {
+    return "BulkExportFile [type=" + type + ", url=" + url + ", count=" + count + "]";
+  }
+
+}
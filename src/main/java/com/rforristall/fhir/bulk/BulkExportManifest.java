@@ -0,0 +1,124 @@
+package com.rforristall.fhir.bulk;
+
+import java.util.List;
+import java.util.Objects;
+
+import com.google.common.collect.ImmutableList;
+import com.nimbusds.jose.shaded.gson.JsonArray;
+import com.nimbusds.jose.shaded.gson.JsonElement;
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.nimbusds.jose.shaded.gson.JsonParser;
+
+/**
+ * The manifest returned by the status endpoint once a bulk export has completed
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BulkExportManifest {
+
+  /**
+   * The server time at which the export started, use it as the _since of the next incremental export
+   */
+  private final String transactionTime;
+
+  /**
+   * If the specification's authentication must be sent when downloading the files
+   */
+  private final boolean requiresAccessToken;
+
+  /**
+   * The files holding the exported resources
+   */
+  private final List<BulkExportFile> output;
+
+  /**
+   * The files holding OperationOutcome resources for the errors the server ran into
+   */
+  private final List<BulkExportFile> error;
+
+  /**
+   * Constructor for an export manifest
+   * @param transactionTime {@link String}: The server time at which the export started
+   * @param requiresAccessToken boolean: If the specification's authentication must be sent when downloading the files
+   * @param output {@link List}<{@link BulkExportFile}>: The files holding the exported resources
+   * @param error {@link List}<{@link BulkExportFile}>: The files holding OperationOutcome resources for the errors
+   */
+  public BulkExportManifest(String transactionTime, boolean requiresAccessToken, List<BulkExportFile> output, List<BulkExportFile> error) {
+    super();
+    this.transactionTime = transactionTime;
+    this.requiresAccessToken = requiresAccessToken;
+    this.output = ImmutableList.copyOf(output);
+    this.error = ImmutableList.copyOf(error);
+  }
+
+  /**
+   * Parses the JSON manifest returned by the status endpoint
+   * @param body {@link String}: The JSON body of the completed status response
+   * @return {@link BulkExportManifest} described by the body
+   */
+  public static BulkExportManifest parse(String body) {
+    JsonObject manifest = JsonParser.parseString(body).getAsJsonObject();
+    JsonElement transactionTime = manifest.get("transactionTime");
+    JsonElement requiresAccessToken = manifest.get("requiresAccessToken");
+    return new BulkExportManifest(
+            transactionTime != null && !transactionTime.isJsonNull() ? transactionTime.getAsString() : null,
+            requiresAccessToken != null && !requiresAccessToken.isJsonNull() && requiresAccessToken.getAsBoolean(),
+            parseFiles(manifest.get("output")),
+            parseFiles(manifest.get("error")));
+  }
+
+  private static List<BulkExportFile> parseFiles(JsonElement files) {
+    if (files == null || !files.isJsonArray()) return ImmutableList.of();
+    ImmutableList.Builder<BulkExportFile> parsed = ImmutableList.builder();
+    for (JsonElement element : (JsonArray) files) {
+      JsonObject file = element.getAsJsonObject();
+      JsonElement count = file.get("count");
+      parsed.add(new BulkExportFile(
+              file.get("type").getAsString(),
+              file.get("url").getAsString(),
+              count != null && !count.isJsonNull() ? count.getAsLong() : -1));
+    }
+    return parsed.build();
+  }
+
+  public String getTransactionTime() {
+    return transactionTime;
+  }
+
+  public boolean isRequiresAccessToken() {
+    return requiresAccessToken;
+  }
+
+  public List<BulkExportFile> getOutput() {
+    return output;
+  }
+
+  public List<BulkExportFile> getError() {
+    return error;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(error, output, requiresAccessToken, transactionTime);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    BulkExportManifest other = (BulkExportManifest) obj;
+    return Objects.equals(error, other.error) && Objects.equals(output, other.output)
+            && requiresAccessToken == other.requiresAccessToken && Objects.equals(transactionTime, other.transactionTime);
+  }
+
+  @Override
+  public String toString() {
+    return "BulkExportManifest [transactionTime=" + transactionTime + ", requiresAccessToken=" + requiresAccessToken
+            + ", output=" + output.size() + " files, error=" + error.size() + " files]";
+  }
+
+}
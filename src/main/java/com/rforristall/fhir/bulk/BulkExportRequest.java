@@ -0,0 +1,131 @@
+package com.rforristall.fhir.bulk;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Immutable description of a FHIR Bulk Data $export kick-off request at the system, patient or group level
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BulkExportRequest {
+
+  /**
+   * The output format requested from the server
+   */
+  public static final String NDJSON_OUTPUT_FORMAT = "application/fhir+ndjson";
+
+  /**
+   * The path of the $export operation relative to the hostname of the specification (i.e. Group/123/$export)
+   */
+  private final String operationPath;
+
+  /**
+   * The resource types to export, empty to export every type the server supports
+   */
+  private final List<String> types;
+
+  /**
+   * Only resources changed after this instant are exported, null to export every resource
+   */
+  private final Instant since;
+
+  /**
+   * Constructor for an export request
+   * @param operationPath {@link String}: The path of the $export operation relative to the hostname of the specification
+   * @param types {@link List}<{@link String}>: The resource types to export, empty to export every type
+   * @param since {@link Instant}: Only resources changed after this instant are exported, null to export every resource
+   */
+  private BulkExportRequest(String operationPath, List<String> types, Instant since) {
+    super();
+    this.operationPath = operationPath;
+    this.types = types != null ? ImmutableList.copyOf(types) : ImmutableList.<String>of();
+    this.since = since;
+  }
+
+  /**
+   * Creates a request exporting the data of every patient on the server
+   * @param types {@link List}<{@link String}>: The resource types to export, empty to export every type
+   * @param since {@link Instant}: Only resources changed after this instant are exported, null to export every resource
+   * @return {@link BulkExportRequest} for Patient/$export
+   */
+  public static BulkExportRequest createPatientExport(List<String> types, Instant since) {
+    return new BulkExportRequest("Patient/$export", types, since);
+  }
+
+  /**
+   * Creates a request exporting the data of the patients in a group (i.e. a cohort registered with Epic or Cerner)
+   * @param groupId {@link String}: The logical id of the Group resource
+   * @param types {@link List}<{@link String}>: The resource types to export, empty to export every type
+   * @param since {@link Instant}: Only resources changed after this instant are exported, null to export every resource
+   * @return {@link BulkExportRequest} for Group/[id]/$export
+   */
+  public static BulkExportRequest createGroupExport(String groupId, List<String> types, Instant since) {
+    if (groupId == null || groupId.isEmpty()) throw new IllegalArgumentException("A group export requires a group id!");
+    return new BulkExportRequest("Group/" + groupId + "/$export", types, since);
+  }
+
+  /**
+   * Creates a request exporting every resource on the server
+   * @param types {@link List}<{@link String}>: The resource types to export, empty to export every type
+   * @param since {@link Instant}: Only resources changed after this instant are exported, null to export every resource
+   * @return {@link BulkExportRequest} for $export
+   */
+  public static BulkExportRequest createSystemExport(List<String> types, Instant since) {
+    return new BulkExportRequest("$export", types, since);
+  }
+
+  public String getOperationPath() {
+    return operationPath;
+  }
+
+  public List<String> getTypes() {
+    return types;
+  }
+
+  public Instant getSince() {
+    return since;
+  }
+
+  /**
+   * Helper function for building the kick-off path including the query parameters
+   * @return {@link String} path relative to the hostname of the specification
+   */
+  String toPath() {
+    StringBuilder path = new StringBuilder(operationPath)
+            .append("?_outputFormat=")
+            .append(URLEncoder.encode(NDJSON_OUTPUT_FORMAT, StandardCharsets.UTF_8));
+    if (!types.isEmpty()) path.append("&_type=").append(URLEncoder.encode(String.join(",", types), StandardCharsets.UTF_8));
+    if (since != null) path.append("&_since=").append(URLEncoder.encode(since.toString(), StandardCharsets.UTF_8));
+    return path.toString();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(operationPath, since, types);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    BulkExportRequest other = (BulkExportRequest) obj;
+    return Objects.equals(operationPath, other.operationPath) && Objects.equals(since, other.since)
+            && Objects.equals(types, other.types);
+  }
+
+  @Override
+  public String toString() {
+    return "BulkExportRequest [operationPath=" + operationPath + ", types=" + types + ", since=" + since + "]";
+  }
+
+}
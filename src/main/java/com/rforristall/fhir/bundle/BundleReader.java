@@ -0,0 +1,246 @@
+package com.rforristall.fhir.bundle;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.nimbusds.jose.shaded.gson.JsonParseException;
+import com.nimbusds.jose.shaded.gson.JsonParser;
+import com.nimbusds.jose.shaded.gson.stream.JsonReader;
+import com.nimbusds.jose.shaded.gson.stream.JsonToken;
+
+/**
+ * Streaming reader for FHIR Bundles that yields the entry.resource elements one at a time.
+ *
+ * The Bundle is pull-parsed straight from the response stream and only the resource currently being returned is ever
+ * held in memory, so memory use is bounded by the largest single resource rather than the size of the page. The JSON
+ * layout of Bundle.type, Bundle.total, Bundle.link and Bundle.entry.resource is the same for every
+ * {@link com.rforristall.fhir.spec.FhirVersion}, so a single reader handles all of them.
+ *
+ * The Bundle level elements are read as they are reached. Servers write them before the entries, as the FHIR JSON
+ * format prescribes, in which case they are available right after construction; otherwise they are available once
+ * iteration has finished.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BundleReader implements Iterator<JsonObject>, Closeable {
+
+  /**
+   * The pull parser reading the Bundle
+   */
+  private final JsonReader jsonReader;
+
+  /**
+   * The links of the Bundle keyed by relation (i.e. self, next)
+   */
+  private final Map<String, String> links = new LinkedHashMap<>();
+
+  /**
+   * The type of the Bundle (i.e. searchset), null until reached
+   */
+  private String type;
+
+  /**
+   * The total number of matches of a search Bundle, -1 until reached or if the server did not include it
+   */
+  private long total = -1;
+
+  /**
+   * If the parser is positioned inside the entry array
+   */
+  private boolean inEntries;
+
+  /**
+   * If the whole Bundle has been read
+   */
+  private boolean finished;
+
+  /**
+   * The resource that will be returned by the next call to {@link #next()}, null if it has not been read yet
+   */
+  private JsonObject nextResource;
+
+  /**
+   * Constructor for a reader over a UTF-8 encoded stream, e.g. the body of a search response
+   * @param inputStream {@link InputStream}: The stream containing the Bundle
+   * @throws IOException if the stream could not be read or does not contain a JSON object
+   */
+  public BundleReader(InputStream inputStream) throws IOException {
+    this(new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Constructor for a reader over a character stream
+   * @param reader {@link Reader}: The reader containing the Bundle
+   * @throws IOException if the reader could not be read or does not contain a JSON object
+   */
+  public BundleReader(Reader reader) throws IOException {
+    super();
+    this.jsonReader = new JsonReader(reader);
+    try {
+      jsonReader.beginObject();
+      advanceToEntries();
+    } catch (IOException | RuntimeException ex) {
+      jsonReader.close();
+      if (ex instanceof JsonParseException || ex instanceof IllegalStateException) throw new IOException("The Bundle is not valid JSON", ex);
+      throw ex;
+    }
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Getter function for the links of the Bundle
+   * @return {@link Map}<{@link String}, {@link String}> urls keyed by relation
+   */
+  public Map<String, String> getLinks() {
+    return Collections.unmodifiableMap(links);
+  }
+
+  /**
+   * Getter function for the link to the next page of a search
+   * @return {@link String} url of the next page, or null if this is the last page
+   */
+  public String getNextLink() {
+    return links.get("next");
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (nextResource != null) return true;
+    try {
+      nextResource = readNextResource();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } catch (JsonParseException | IllegalStateException ex) {
+      throw new UncheckedIOException(new IOException("The Bundle is not valid JSON", ex));
+    }
+    return nextResource != null;
+  }
+
+  @Override
+  public JsonObject next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    JsonObject resource = nextResource;
+    nextResource = null;
+    return resource;
+  }
+
+  /**
+   * Getter function for a sequential stream over the remaining resources, closing the stream closes the reader
+   * @return {@link Stream}<{@link JsonObject}> of the remaining resources
+   */
+  public Stream<JsonObject> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(() -> {
+              try {
+                close();
+              } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+              }
+            });
+  }
+
+  @Override
+  public void close() throws IOException {
+    finished = true;
+    jsonReader.close();
+  }
+
+  /**
+   * Reads entries until one with a resource is found, moving on to the rest of the Bundle once the entries run out
+   * @return {@link JsonObject} resource of the next entry, or null if the Bundle has no more entries
+   * @throws IOException if the stream could not be read
+   */
+  private JsonObject readNextResource() throws IOException {
+    while (!finished) {
+      if (!inEntries) {
+        advanceToEntries();
+        continue;
+      }
+      if (!jsonReader.hasNext()) {
+        jsonReader.endArray();
+        inEntries = false;
+        continue;
+      }
+      JsonObject resource = null;
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        if ("resource".equals(jsonReader.nextName())) resource = JsonParser.parseReader(jsonReader).getAsJsonObject();
+        else jsonReader.skipValue();
+      }
+      jsonReader.endObject();
+      if (resource != null) return resource;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the Bundle level elements until the start of the entry array or the end of the Bundle
+   * @throws IOException if the stream could not be read
+   */
+  private void advanceToEntries() throws IOException {
+    while (jsonReader.hasNext()) {
+      String name = jsonReader.nextName();
+      if ("entry".equals(name) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+        jsonReader.beginArray();
+        inEntries = true;
+        return;
+      } else if ("type".equals(name)) {
+        type = jsonReader.nextString();
+      } else if ("total".equals(name)) {
+        total = jsonReader.nextLong();
+      } else if ("link".equals(name)) {
+        readLinks();
+      } else {
+        jsonReader.skipValue();
+      }
+    }
+    jsonReader.endObject();
+    finished = true;
+  }
+
+  /**
+   * Reads the link array of the Bundle
+   * @throws IOException if the stream could not be read
+   */
+  private void readLinks() throws IOException {
+    jsonReader.beginArray();
+    while (jsonReader.hasNext()) {
+      String relation = null;
+      String url = null;
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if ("relation".equals(name)) relation = jsonReader.nextString();
+        else if ("url".equals(name)) url = jsonReader.nextString();
+        else jsonReader.skipValue();
+      }
+      jsonReader.endObject();
+      if (relation != null && url != null) links.put(relation, url);
+    }
+    jsonReader.endArray();
+  }
+
+}
@@ -0,0 +1,35 @@
+package com.rforristall.fhir.cache;
+
+import java.io.IOException;
+
+/**
+ * Second tier of a {@link ResponseCache} that keeps responses outside the heap, i.e. on disk so they survive restarts.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public interface CacheStore {
+
+  /**
+   * Loads a stored response
+   * @param key {@link String}: The cache key of the response
+   * @return {@link CachedResponse} stored for the key, or null if there is none
+   * @throws IOException if the store could not be read
+   */
+  CachedResponse load(String key) throws IOException;
+
+  /**
+   * Stores a response, replacing the one stored for the same key
+   * @param key {@link String}: The cache key of the response
+   * @param response {@link CachedResponse}: The response to store
+   * @throws IOException if the store could not be written
+   */
+  void store(String key, CachedResponse response) throws IOException;
+
+  /**
+   * Removes a stored response
+   * @param key {@link String}: The cache key of the response
+   * @throws IOException if the store could not be written
+   */
+  void remove(String key) throws IOException;
+
+}
@@ -0,0 +1,211 @@
+package com.rforristall.fhir.cache;
+
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.rforristall.fhir.client.FhirResponse;
+
+/**
+ * Immutable copy of a successful response held by a {@link ResponseCache}, along with the validators used to revalidate
+ * it and the time until which it can be served without asking the server.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class CachedResponse {
+
+  /**
+   * The approximate number of bytes a cached response takes up besides its body
+   */
+  private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+  /**
+   * The JSON body of the response
+   */
+  private final String body;
+
+  /**
+   * The ETag header of the response, null if the server did not send one
+   */
+  private final String etag;
+
+  /**
+   * The Last-Modified header of the response, null if the server did not send one
+   */
+  private final String lastModified;
+
+  /**
+   * The Content-Type header of the response, null if the server did not send one
+   */
+  private final String contentType;
+
+  /**
+   * The time in epoch millis at which the response was stored or last revalidated
+   */
+  private final long storedAtMillis;
+
+  /**
+   * The time in epoch millis until which the response is fresh, responses that must always be revalidated use the time they were stored
+   */
+  private final long freshUntilMillis;
+
+  /**
+   * Constructor for a cached response
+   * @param body {@link String}: The JSON body of the response
+   * @param etag {@link String}: The ETag header of the response, null if the server did not send one
+   * @param lastModified {@link String}: The Last-Modified header of the response, null if the server did not send one
+   * @param contentType {@link String}: The Content-Type header of the response, null if the server did not send one
+   * @param storedAtMillis long: The time in epoch millis at which the response was stored or last revalidated
+   * @param freshUntilMillis long: The time in epoch millis until which the response can be served without revalidating it
+   */
+  public CachedResponse(String body, String etag, String lastModified, String contentType, long storedAtMillis, long freshUntilMillis) {
+    super();
+    this.body = body;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.contentType = contentType;
+    this.storedAtMillis = storedAtMillis;
+    this.freshUntilMillis = freshUntilMillis;
+  }
+
+  /**
+   * Builds the cached copy of a response, following the Cache-Control header of the server
+   * @param response {@link FhirResponse}: The response to copy
+   * @param nowMillis long: The current time in epoch millis
+   * @return {@link CachedResponse} copy of the response, or null if the response must not be stored (i.e. Cache-Control: no-store)
+   */
+  public static CachedResponse fromResponse(FhirResponse response, long nowMillis) {
+    if (response.getStatusCode() != 200) return null;
+    HttpHeaders headers = response.getHeaders();
+    long maxAgeSeconds = getMaxAgeSeconds(headers);
+    if (maxAgeSeconds < 0) return null;
+    String etag = headers.firstValue("ETag").orElse(null);
+    String lastModified = headers.firstValue("Last-Modified").orElse(null);
+    // A response without validators can only be reused while it is fresh
+    if (etag == null && lastModified == null && maxAgeSeconds == 0) return null;
+    return new CachedResponse(
+            response.getBody(),
+            etag,
+            lastModified,
+            headers.firstValue("Content-Type").orElse(null),
+            nowMillis,
+            nowMillis + maxAgeSeconds * 1000);
+  }
+
+  /**
+   * Builds the copy of this response that was revalidated with a 304 Not Modified response, the server may send updated
+   * validators and freshness along with the 304
+   * @param notModified {@link FhirResponse}: The 304 response
+   * @param nowMillis long: The current time in epoch millis
+   * @return {@link CachedResponse} revalidated copy
+   */
+  public CachedResponse revalidate(FhirResponse notModified, long nowMillis) {
+    HttpHeaders headers = notModified.getHeaders();
+    long maxAgeSeconds = Math.max(0, getMaxAgeSeconds(headers));
+    return new CachedResponse(
+            body,
+            headers.firstValue("ETag").orElse(etag),
+            headers.firstValue("Last-Modified").orElse(lastModified),
+            contentType,
+            nowMillis,
+            nowMillis + maxAgeSeconds * 1000);
+  }
+
+  /**
+   * Helper function for checking if the response can be served without revalidating it
+   * @param nowMillis long: The current time in epoch millis
+   * @return true if the response is fresh and false otherwise
+   */
+  public boolean isFresh(long nowMillis) {
+    return nowMillis < freshUntilMillis;
+  }
+
+  /**
+   * Helper function for checking if the response can be revalidated with a conditional request
+   * @return true if the response has an ETag or a Last-Modified header and false otherwise
+   */
+  public boolean hasValidators() {
+    return etag != null || lastModified != null;
+  }
+
+  /**
+   * Helper function for estimating the memory held by the response
+   * @return long approximate number of bytes
+   */
+  public long getWeight() {
+    return ENTRY_OVERHEAD_BYTES + 2L * body.length();
+  }
+
+  /**
+   * Builds the response returned to callers for a cache hit
+   * @return {@link FhirResponse} with status 200 and the stored validators and content type
+   */
+  public FhirResponse toFhirResponse() {
+    Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    if (etag != null) headers.put("ETag", Collections.singletonList(etag));
+    if (lastModified != null) headers.put("Last-Modified", Collections.singletonList(lastModified));
+    if (contentType != null) headers.put("Content-Type", Collections.singletonList(contentType));
+    return new FhirResponse(200, HttpHeaders.of(headers, (name, value) -> true), body);
+  }
+
+  public String getBody() {
+    return body;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getStoredAtMillis() {
+    return storedAtMillis;
+  }
+
+  public long getFreshUntilMillis() {
+    return freshUntilMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "CachedResponse [etag=" + etag + ", lastModified=" + lastModified + ", storedAtMillis=" + storedAtMillis
+            + ", freshUntilMillis=" + freshUntilMillis + ", bodyLength=" + body.length() + "]";
+  }
+
+  /**
+   * Helper function for reading the freshness lifetime from the Cache-Control header
+   * @param headers {@link HttpHeaders}: The headers of the response
+   * @return long max-age in seconds, 0 if the response must be revalidated before every use and -1 if it must not be stored
+   */
+  private static long getMaxAgeSeconds(HttpHeaders headers) {
+    List<String> directives = new ArrayList<>();
+    for (String value : headers.allValues("Cache-Control")) {
+      for (String directive : value.split(",")) directives.add(directive.trim().toLowerCase(Locale.ROOT));
+    }
+    // Every directive is read first, no-store wins over no-cache and both win over max-age wherever they appear
+    if (directives.contains("no-store")) return -1;
+    if (directives.contains("no-cache")) return 0;
+    long maxAgeSeconds = 0;
+    for (String directive : directives) {
+      if (directive.startsWith("max-age=")) {
+        try {
+          maxAgeSeconds = Math.max(0, Long.parseLong(directive.substring("max-age=".length()).replace("\"", "")));
+        } catch (NumberFormatException ex) {
+          maxAgeSeconds = 0;
+        }
+      }
+    }
+    return maxAgeSeconds;
+  }
+
+}
@@ -0,0 +1,380 @@
+package com.rforristall.fhir.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import com.rforristall.fhir.keystore.KeyStoreAccessor;
+
+/**
+ * {@link CacheStore} keeping one file per response in a directory, so cached responses survive restarts.
+ *
+ * Files are named after the SHA-256 of the cache key and written to a temporary file that is then renamed over the
+ * previous one, so readers never see a partial entry. Once the files exceed the configured size the oldest written
+ * ones are deleted until the store is back under 90% of it.
+ *
+ * Cached bodies may hold patient data. The directory is created readable by its owner only where the file system
+ * supports POSIX permissions, and entry files are always created that way. When a key is provided the entries are also
+ * encrypted with AES-GCM, with the cache key as associated data, as {@link com.rforristall.fhir.auth.FileTokenStore}
+ * does for tokens; without one they are written in plain text.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class DiskCacheStore implements CacheStore {
+
+  /**
+   * The default bound of the space used by the store
+   */
+  public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+  /**
+   * Marks the files written by this class, followed by the format version
+   */
+  private static final int MAGIC = 0x46484952;
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * The format version of encrypted entries, followed by the IV and the encrypted entry
+   */
+  private static final int ENCRYPTED_FORMAT_VERSION = 2;
+
+  private static final String ENTRY_SUFFIX = ".entry";
+
+  /**
+   * The label the encryption key is derived with, changing it invalidates every stored entry
+   */
+  private static final String KEY_LABEL = "fhir-connector-response-cache-v1";
+
+  private static final String CIPHER = "AES/GCM/NoPadding";
+
+  private static final int IV_BYTES = 12;
+
+  private static final int TAG_BITS = 128;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * The directory the entries are written to
+   */
+  private final Path directory;
+
+  /**
+   * The maximum combined size of the entry files
+   */
+  private final long maxBytes;
+
+  /**
+   * The key the entries are encrypted with, null to write them in plain text
+   */
+  private final SecretKey secretKey;
+
+  /**
+   * The combined size of the entry files, approximate while writes are racing
+   */
+  private final AtomicLong currentBytes = new AtomicLong();
+
+  /**
+   * Ensures only one thread prunes the directory at a time
+   */
+  private final ReentrantLock pruneLock = new ReentrantLock();
+
+  /**
+   * Constructor for a disk store using the default bound
+   * @param directory {@link Path}: The directory the entries are written to, created if it does not exist
+   * @throws IOException if the directory could not be created or read
+   */
+  public DiskCacheStore(Path directory) throws IOException {
+    this(directory, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructor for a disk store
+   * @param directory {@link Path}: The directory the entries are written to, created if it does not exist
+   * @param maxBytes long: The maximum combined size of the entry files
+   * @throws IOException if the directory could not be created or read
+   */
+  public DiskCacheStore(Path directory, long maxBytes) throws IOException {
+    this(directory, maxBytes, (SecretKey) null);
+  }
+
+  /**
+   * Constructor for a disk store encrypted with a key derived from the keystore
+   * @param directory {@link Path}: The directory the entries are written to, created if it does not exist
+   * @param maxBytes long: The maximum combined size of the entry files
+   * @param keyStoreAccessor {@link KeyStoreAccessor}: The accessor of the keystore the client signs its assertions with
+   * @throws KeyStoreException
+   * @throws NoSuchAlgorithmException
+   * @throws CertificateException
+   * @throws UnrecoverableEntryException
+   * @throws IOException if the keystore could not be read or the directory could not be created or read
+   */
+  public DiskCacheStore(Path directory, long maxBytes, KeyStoreAccessor keyStoreAccessor) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException {
+    this(directory, maxBytes, keyStoreAccessor.deriveSecretKey(KEY_LABEL));
+  }
+
+  /**
+   * Constructor for a disk store
+   * @param directory {@link Path}: The directory the entries are written to, created if it does not exist
+   * @param maxBytes long: The maximum combined size of the entry files
+   * @param secretKey {@link SecretKey}: The AES key the entries are encrypted with, null to write them in plain text
+   * @throws IOException if the directory could not be created or read
+   */
+  public DiskCacheStore(Path directory, long maxBytes, SecretKey secretKey) throws IOException {
+    super();
+    if (maxBytes <= 0) throw new IllegalArgumentException("The maximum size of the store must be positive!");
+    this.directory = createPrivateDirectory(directory);
+    this.maxBytes = maxBytes;
+    this.secretKey = secretKey;
+    long existingBytes = 0;
+    for (Path entry : listEntries()) existingBytes += sizeOf(entry);
+    currentBytes.set(existingBytes);
+  }
+
+  @Override
+  public CachedResponse load(String key) throws IOException {
+    Path entry = toPath(key);
+    byte[] bytes;
+    try {
+      // Entries are never larger than the store, anything bigger was not written by this class
+      if (Files.size(entry) > maxBytes) return null;
+      bytes = Files.readAllBytes(entry);
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readInt() != MAGIC) return null;
+    int formatVersion = in.readInt();
+    if (secretKey == null && formatVersion == FORMAT_VERSION) return readEntry(key, in);
+    if (secretKey == null || formatVersion != ENCRYPTED_FORMAT_VERSION) return null;
+    try {
+      byte[] iv = new byte[IV_BYTES];
+      in.readFully(iv);
+      byte[] ciphertext = new byte[in.available()];
+      in.readFully(ciphertext);
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+      return readEntry(key, new DataInputStream(new ByteArrayInputStream(cipher.doFinal(ciphertext))));
+    } catch (EOFException | GeneralSecurityException ex) {
+      // Truncated, tampered with or written with another key, the response is fetched again
+      return null;
+    }
+  }
+
+  @Override
+  public void store(String key, CachedResponse response) throws IOException {
+    ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(response.getBody().length() + 256);
+    try (DataOutputStream out = new DataOutputStream(entryBytes)) {
+      writeString(out, key);
+      writeString(out, response.getEtag());
+      writeString(out, response.getLastModified());
+      writeString(out, response.getContentType());
+      out.writeLong(response.getStoredAtMillis());
+      out.writeLong(response.getFreshUntilMillis());
+      writeString(out, response.getBody());
+    }
+    Path entry = toPath(key);
+    // Temporary files are created readable by their owner only
+    Path tempFile = Files.createTempFile(directory, "entry", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+        out.writeInt(MAGIC);
+        if (secretKey == null) {
+          out.writeInt(FORMAT_VERSION);
+          entryBytes.writeTo(out);
+        } else {
+          byte[] iv = new byte[IV_BYTES];
+          RANDOM.nextBytes(iv);
+          out.writeInt(ENCRYPTED_FORMAT_VERSION);
+          out.write(iv);
+          out.write(encrypt(key, iv, entryBytes.toByteArray()));
+        }
+      }
+      long previousSize = sizeOf(entry);
+      long size = Files.size(tempFile);
+      try {
+        Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (currentBytes.addAndGet(size - previousSize) > maxBytes) prune();
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  @Override
+  public void remove(String key) throws IOException {
+    Path entry = toPath(key);
+    long size = sizeOf(entry);
+    if (Files.deleteIfExists(entry)) currentBytes.addAndGet(-size);
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public boolean isEncrypted() {
+    return secretKey != null;
+  }
+
+  /**
+   * Deletes the oldest written entries until the store is back under 90% of its bound
+   * @throws IOException if the directory could not be read
+   */
+  private void prune() throws IOException {
+    if (!pruneLock.tryLock()) return;
+    try {
+      List<Path> entries = listEntries();
+      List<FileTime> modifiedTimes = new ArrayList<>(entries.size());
+      for (Path entry : entries) modifiedTimes.add(lastModifiedOf(entry));
+      List<Integer> order = new ArrayList<>(entries.size());
+      for (int i = 0; i < entries.size(); i++) order.add(i);
+      order.sort(Comparator.comparing(modifiedTimes::get));
+      long target = maxBytes / 10 * 9;
+      for (int i = 0; i < order.size() && currentBytes.get() > target; i++) {
+        Path entry = entries.get(order.get(i));
+        long size = sizeOf(entry);
+        if (Files.deleteIfExists(entry)) currentBytes.addAndGet(-size);
+      }
+    } finally {
+      pruneLock.unlock();
+    }
+  }
+
+  private byte[] encrypt(String key, byte[] iv, byte[] plaintext) throws IOException {
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+      return cipher.doFinal(plaintext);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Unable to encrypt the cache entry", ex);
+    }
+  }
+
+  /**
+   * Reads the fields of an entry
+   * @param key {@link String}: The cache key the entry was loaded for
+   * @param in {@link DataInputStream}: The entry positioned after its header
+   * @return {@link CachedResponse} stored in the entry, or null if it was stored for another key
+   * @throws IOException if the entry is truncated or malformed
+   */
+  private static CachedResponse readEntry(String key, DataInputStream in) throws IOException {
+    // Guards against the (unlikely) case of two keys sharing a hash
+    if (!key.equals(readString(in))) return null;
+    String etag = readString(in);
+    String lastModified = readString(in);
+    String contentType = readString(in);
+    long storedAtMillis = in.readLong();
+    long freshUntilMillis = in.readLong();
+    String body = readString(in);
+    return new CachedResponse(body, etag, lastModified, contentType, storedAtMillis, freshUntilMillis);
+  }
+
+  /**
+   * Helper function for creating the directory readable by its owner only where the file system supports it
+   * @param directory {@link Path}: The directory to create, left as is if it exists
+   * @return {@link Path} the directory
+   * @throws IOException if the directory could not be created
+   */
+  private static Path createPrivateDirectory(Path directory) throws IOException {
+    if (Files.isDirectory(directory) || !directory.getFileSystem().supportedFileAttributeViews().contains("posix"))
+      return Files.createDirectories(directory);
+    return Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+  }
+
+  private List<Path> listEntries() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+      for (Path entry : stream) entries.add(entry);
+    }
+    return entries;
+  }
+
+  private Path toPath(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(digest.length * 2 + ENTRY_SUFFIX.length());
+      for (byte b : digest) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      return directory.resolve(name.append(ENTRY_SUFFIX).toString());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is not available", ex);
+    }
+  }
+
+  private static long sizeOf(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  private static FileTime lastModifiedOf(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a length-prefixed string, the stream must be in memory so the length can be checked before allocating
+   * @param in {@link DataInputStream}: The stream over the entry
+   * @return {@link String} read, or null if a null was written
+   * @throws IOException if the length is larger than what is left of the entry
+   */
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    if (length > in.available()) throw new EOFException("The cache entry is truncated");
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,275 @@
+package com.rforristall.fhir.cache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rforristall.fhir.util.VirtualThreads;
+
+/**
+ * Bounded in-memory cache of FHIR responses with an optional {@link CacheStore} behind it.
+ *
+ * Responses are keyed by the hostname of the specification and the URL of the request, and evicted in least recently
+ * used order once their combined weight exceeds the configured bound. When a store is configured every response is
+ * written through to it in the background and responses missing from memory are loaded from it on the calling thread,
+ * so the hit rate survives restarts without the store's entries counting against the heap.
+ *
+ * Writes and removals of the same key reach the store one after the other in the order they were made, so an
+ * invalidation can never be overtaken by the write of the response it replaced. While a key has store operations
+ * pending the memory tier is authoritative and the key is not loaded from the store.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class ResponseCache {
+
+  /**
+   * The default bound of the memory held by cached responses
+   */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The maximum combined weight of the responses held in memory
+   */
+  private final long maxBytes;
+
+  /**
+   * The store behind the memory tier, null if there is none
+   */
+  private final CacheStore cacheStore;
+
+  /**
+   * The executor responses are written to and removed from the store on
+   */
+  private final Executor storeExecutor;
+
+  /**
+   * The responses held in memory in access order, the eldest entry is the least recently used
+   */
+  private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The last store operation queued for each key with operations pending, later operations of the key run once it completes
+   */
+  private final Map<String, CompletableFuture<Void>> pendingStoreOperations = new HashMap<>();
+
+  /**
+   * Guards the entries, their weight and the pending store operations
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * The combined weight of the responses held in memory
+   */
+  private long currentBytes;
+
+  /**
+   * The number of puts and invalidations made, a response loaded from the store is only kept in memory if none was
+   * made while it was loading
+   */
+  private long modificationCount;
+
+  /**
+   * Constructor for a memory only cache using the default bound
+   */
+  public ResponseCache() {
+    this(DEFAULT_MAX_BYTES, null);
+  }
+
+  /**
+   * Constructor for a cache
+   * @param maxBytes long: The maximum combined weight of the responses held in memory
+   * @param cacheStore {@link CacheStore}: The store behind the memory tier, null for a memory only cache
+   */
+  public ResponseCache(long maxBytes, CacheStore cacheStore) {
+    super();
+    if (maxBytes <= 0) throw new IllegalArgumentException("The maximum size of the cache must be positive!");
+    this.maxBytes = maxBytes;
+    this.cacheStore = cacheStore;
+    this.storeExecutor = VirtualThreads.getSharedExecutor();
+  }
+
+  /**
+   * Helper function for building the key of a request
+   * @param hostname {@link String}: The hostname of the specification the request is sent with
+   * @param url {@link String}: The URL of the request, relative to the hostname or absolute
+   * @return {@link String} cache key
+   */
+  public static String toKey(String hostname, String url) {
+    return hostname + " " + url;
+  }
+
+  /**
+   * Getter function for a cached response, loading it from the store if it is not held in memory
+   * @param key {@link String}: The cache key of the response
+   * @return {@link CachedResponse} cached for the key, or null if there is none
+   */
+  public CachedResponse get(String key) {
+    long loadedAtModification;
+    lock.lock();
+    try {
+      CachedResponse response = entries.get(key);
+      // The stored entry is about to be replaced or removed, so memory is authoritative until the store catches up
+      if (response != null || cacheStore == null || pendingStoreOperations.containsKey(key)) return response;
+      loadedAtModification = modificationCount;
+    } finally {
+      lock.unlock();
+    }
+    CachedResponse stored;
+    try {
+      stored = cacheStore.load(key);
+    } catch (IOException ex) {
+      // The store is best effort, an unreadable entry is a miss
+      return null;
+    }
+    if (stored == null) return null;
+    lock.lock();
+    try {
+      // A put or invalidation made while loading may have replaced the stored entry, it is then not kept in memory
+      if (modificationCount == loadedAtModification) putInMemory(key, stored);
+    } finally {
+      lock.unlock();
+    }
+    return stored;
+  }
+
+  /**
+   * Caches a response, replacing the one cached for the same key
+   * @param key {@link String}: The cache key of the response
+   * @param response {@link CachedResponse}: The response to cache
+   */
+  public void put(String key, CachedResponse response) {
+    lock.lock();
+    try {
+      modificationCount++;
+      putInMemory(key, response);
+      if (cacheStore != null) queueStoreOperation(key, () -> {
+        try {
+          cacheStore.store(key, response);
+        } catch (IOException ex) {
+          // The store is best effort, the response is still cached in memory
+        }
+      });
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a cached response from memory right away and from the store in the background, without blocking the caller
+   * @param key {@link String}: The cache key of the response
+   */
+  public void invalidate(String key) {
+    lock.lock();
+    try {
+      modificationCount++;
+      CachedResponse removed = entries.remove(key);
+      if (removed != null) currentBytes -= removed.getWeight();
+      if (cacheStore != null) queueStoreOperation(key, () -> {
+        try {
+          cacheStore.remove(key);
+        } catch (IOException ex) {
+          // A stale stored entry is revalidated before it is served, unless it is still fresh
+        }
+      });
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every response held in memory, the store is left untouched
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      entries.clear();
+      currentBytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Getter function for the number of responses held in memory
+   * @return int number of responses
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Getter function for the combined weight of the responses held in memory
+   * @return long approximate number of bytes
+   */
+  public long getCurrentBytes() {
+    lock.lock();
+    try {
+      return currentBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public CacheStore getCacheStore() {
+    return cacheStore;
+  }
+
+  /**
+   * Helper function for running a store operation once the operations queued before it for the same key are done, must hold the lock
+   * @param key {@link String}: The cache key the operation writes
+   * @param operation {@link Runnable}: The store operation, which must not throw
+   */
+  private void queueStoreOperation(String key, Runnable operation) {
+    CompletableFuture<Void> previous = pendingStoreOperations.get(key);
+    CompletableFuture<Void> queued = previous != null
+            ? previous.handle((ignored, ex) -> null).thenRunAsync(operation, storeExecutor)
+            : CompletableFuture.runAsync(operation, storeExecutor);
+    pendingStoreOperations.put(key, queued);
+    queued.whenComplete((ignored, ex) -> {
+      lock.lock();
+      try {
+        // Drop the entry once nothing else was queued behind it, so the map only holds keys with pending operations
+        pendingStoreOperations.remove(key, queued);
+      } finally {
+        lock.unlock();
+      }
+    });
+  }
+
+  private void putInMemory(String key, CachedResponse response) {
+    lock.lock();
+    try {
+      // Responses larger than the whole cache would evict everything and then themselves, but the response they replace is outdated
+      if (response.getWeight() > maxBytes) {
+        CachedResponse removed = entries.remove(key);
+        if (removed != null) currentBytes -= removed.getWeight();
+        return;
+      }
+      CachedResponse previous = entries.put(key, response);
+      if (previous != null) currentBytes -= previous.getWeight();
+      currentBytes += response.getWeight();
+      Iterator<Map.Entry<String, CachedResponse>> eldest = entries.entrySet().iterator();
+      while (currentBytes > maxBytes && eldest.hasNext()) {
+        currentBytes -= eldest.next().getValue().getWeight();
+        eldest.remove();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,352 @@
+package com.rforristall.fhir.client;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.nimbusds.jose.shaded.gson.JsonArray;
+import com.nimbusds.jose.shaded.gson.JsonElement;
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.nimbusds.jose.shaded.gson.JsonParser;
+import com.nimbusds.jose.shaded.gson.JsonPrimitive;
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.spec.FhirDialect;
+
+/**
+ * Write-behind batcher that groups individual creates, updates and deletes into batch or transaction Bundles.
+ *
+ * Writes are queued and sent as a single Bundle once maxBatchSize writes are pending or the oldest pending write has
+ * waited maxDelay, whichever comes first. Each write returns a future completed with its own entry of the response
+ * Bundle, or exceptionally with an {@link HttpErrorException} built from the entry's status and OperationOutcome. When
+ * the whole Bundle is rejected (i.e. a failed transaction) every write of the Bundle fails with the same exception.
+ *
+ * Only dialects for which {@link FhirDialect#supportsBatchWrites()} is true can be used.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class BatchWriter implements AutoCloseable {
+
+  /**
+   * The default maximum number of writes in a single Bundle
+   */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+  /**
+   * The default maximum amount of time a write waits in the queue before its Bundle is sent
+   */
+  public static final Duration DEFAULT_MAX_DELAY = Duration.ofMillis(50);
+
+  /**
+   * Scheduler shared by all writers for the latency deadline, it only starts the send and never waits on the response
+   */
+  private static final ScheduledExecutorService FLUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "fhir-batch-flush");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * The client the Bundles are posted with
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The type of Bundle the writes are grouped into
+   */
+  private final BundleType bundleType;
+
+  /**
+   * The maximum number of writes in a single Bundle
+   */
+  private final int maxBatchSize;
+
+  /**
+   * The maximum amount of time a write waits in the queue before its Bundle is sent
+   */
+  private final Duration maxDelay;
+
+  /**
+   * Guards the pending writes and the scheduled flush
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * The writes queued for the next Bundle
+   */
+  private List<PendingWrite> pending = new ArrayList<>();
+
+  /**
+   * The flush scheduled for the oldest pending write, null when nothing is pending
+   */
+  private ScheduledFuture<?> scheduledFlush;
+
+  /**
+   * If the writer was closed, further writes are rejected
+   */
+  private boolean closed;
+
+  /**
+   * Constructor for a batch writer using the default batch size and delay
+   * @param fhirClient {@link FhirClient}: The client the Bundles are posted with
+   * @param bundleType {@link BundleType}: The type of Bundle the writes are grouped into
+   */
+  public BatchWriter(FhirClient fhirClient, BundleType bundleType) {
+    this(fhirClient, bundleType, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * Constructor for a batch writer
+   * @param fhirClient {@link FhirClient}: The client the Bundles are posted with
+   * @param bundleType {@link BundleType}: The type of Bundle the writes are grouped into
+   * @param maxBatchSize int: The maximum number of writes in a single Bundle, at least 1
+   * @param maxDelay {@link Duration}: The maximum amount of time a write waits in the queue before its Bundle is sent
+   */
+  public BatchWriter(FhirClient fhirClient, BundleType bundleType, int maxBatchSize, Duration maxDelay) {
+    super();
+    FhirDialect fhirDialect = fhirClient.getFhirSpec().getFhirDialect();
+    if (!fhirDialect.supportsBatchWrites())
+      throw new IllegalArgumentException(fhirDialect.getName() + " does not support batch or transaction Bundles for writes!");
+    if (maxBatchSize < 1) throw new IllegalArgumentException("The maximum batch size must be at least 1!");
+    if (maxDelay.isNegative()) throw new IllegalArgumentException("The maximum delay may not be negative!");
+    this.fhirClient = fhirClient;
+    this.bundleType = bundleType;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Queues the creation of a new resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the entry of the response Bundle
+   */
+  public CompletableFuture<FhirResponse> create(String resourceType, String resource) {
+    return enqueue(HttpMethod.POST, resourceType, resource);
+  }
+
+  /**
+   * Queues the update of a resource, creating it if the server allows it
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the entry of the response Bundle
+   */
+  public CompletableFuture<FhirResponse> update(String resourceType, String id, String resource) {
+    return enqueue(HttpMethod.PUT, resourceType + "/" + id, resource);
+  }
+
+  /**
+   * Queues the deletion of a resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the entry of the response Bundle
+   */
+  public CompletableFuture<FhirResponse> delete(String resourceType, String id) {
+    return enqueue(HttpMethod.DELETE, resourceType + "/" + id, null);
+  }
+
+  /**
+   * Sends the pending writes right away instead of waiting for the batch size or deadline
+   */
+  public void flush() {
+    List<PendingWrite> batch;
+    lock.lock();
+    try {
+      batch = takePending();
+    } finally {
+      lock.unlock();
+    }
+    send(batch);
+  }
+
+  /**
+   * Sends the pending writes and rejects any further writes, Bundles already sent still complete their futures
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+    flush();
+  }
+
+  private CompletableFuture<FhirResponse> enqueue(HttpMethod method, String url, String resource) {
+    PendingWrite write = new PendingWrite(method, url, resource);
+    List<PendingWrite> batch = null;
+    lock.lock();
+    try {
+      if (closed) throw new IllegalStateException("The batch writer has been closed!");
+      pending.add(write);
+      if (pending.size() >= maxBatchSize) {
+        batch = takePending();
+      } else if (pending.size() == 1) {
+        scheduledFlush = FLUSH_SCHEDULER.schedule(this::flush, maxDelay.toNanos(), TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (batch != null) send(batch);
+    return write.future;
+  }
+
+  /**
+   * Takes the pending writes and cancels their scheduled flush, must hold the lock
+   * @return {@link List}<{@link PendingWrite}> taken from the queue, possibly empty
+   */
+  private List<PendingWrite> takePending() {
+    if (pending.isEmpty()) return Collections.emptyList();
+    List<PendingWrite> batch = pending;
+    pending = new ArrayList<>();
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    return batch;
+  }
+
+  private void send(List<PendingWrite> batch) {
+    if (batch.isEmpty()) return;
+    String baseUrl = fhirClient.getFhirSpec().getHostname();
+    FhirRequest request = new FhirRequest(HttpMethod.POST, null, baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl, toBundle(batch));
+    fhirClient.executeAsync(request).whenComplete((response, ex) -> {
+      Throwable failure = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+      if (failure == null) {
+        try {
+          completeEntries(batch, response);
+        } catch (RuntimeException parseEx) {
+          failure = parseEx;
+        }
+      }
+      if (failure != null) {
+        for (PendingWrite write : batch) write.future.completeExceptionally(failure);
+      }
+    });
+  }
+
+  private String toBundle(List<PendingWrite> batch) {
+    StringBuilder bundle = new StringBuilder(batch.size() * 256)
+            .append("{\"resourceType\":\"Bundle\",\"type\":\"").append(bundleType.getCode()).append("\",\"entry\":[");
+    for (int i = 0; i < batch.size(); i++) {
+      PendingWrite write = batch.get(i);
+      if (i > 0) bundle.append(',');
+      bundle.append('{');
+      // The resource is already JSON, so it is copied into the Bundle as is rather than parsed and re-serialized
+      if (write.resource != null) bundle.append("\"resource\":").append(write.resource).append(',');
+      bundle.append("\"request\":{\"method\":\"").append(write.method.name())
+              .append("\",\"url\":").append(new JsonPrimitive(write.url)).append("}}");
+    }
+    return bundle.append("]}").toString();
+  }
+
+  private void completeEntries(List<PendingWrite> batch, FhirResponse response) {
+    JsonElement entries = JsonParser.parseString(response.getBody()).getAsJsonObject().get("entry");
+    JsonArray entryArray = entries != null && entries.isJsonArray() ? entries.getAsJsonArray() : new JsonArray();
+    if (entryArray.size() != batch.size())
+      throw new IllegalStateException("The response Bundle has " + entryArray.size() + " entries for " + batch.size() + " writes!");
+    for (int i = 0; i < batch.size(); i++) {
+      JsonObject entry = entryArray.get(i).getAsJsonObject();
+      JsonObject entryResponse = entry.getAsJsonObject("response");
+      String status = getString(entryResponse, "status");
+      int statusCode = parseStatusCode(status);
+      if (statusCode >= 400) {
+        JsonElement outcome = entryResponse.get("outcome");
+        batch.get(i).future.completeExceptionally(HttpErrorException.createExceptionFromStatusCode(statusCode, outcome != null ? outcome.toString() : status));
+        continue;
+      }
+      Map<String, List<String>> headers = new HashMap<>();
+      putHeader(headers, "Location", getString(entryResponse, "location"));
+      putHeader(headers, "ETag", getString(entryResponse, "etag"));
+      putHeader(headers, "Last-Modified", getString(entryResponse, "lastModified"));
+      JsonElement resource = entry.get("resource");
+      batch.get(i).future.complete(new FhirResponse(statusCode, HttpHeaders.of(headers, (name, value) -> true),
+              resource != null ? resource.toString() : ""));
+    }
+  }
+
+  private static String getString(JsonObject object, String name) {
+    JsonElement element = object != null ? object.get(name) : null;
+    return element != null && !element.isJsonNull() ? element.getAsString() : null;
+  }
+
+  private static void putHeader(Map<String, List<String>> headers, String name, String value) {
+    if (value != null) headers.put(name, Collections.singletonList(value));
+  }
+
+  /**
+   * Helper function for reading the status code of an entry, i.e. "201 Created"
+   * @param status {@link String}: The status of the entry's response
+   * @return int status code, 0 if the status is missing or malformed
+   */
+  private static int parseStatusCode(String status) {
+    if (status == null) return 0;
+    int end = 0;
+    while (end < status.length() && Character.isDigit(status.charAt(end))) end++;
+    return end > 0 ? Integer.parseInt(status.substring(0, end)) : 0;
+  }
+
+  /**
+   * A write waiting in the queue along with the future of its caller
+   */
+  private static class PendingWrite {
+
+    private final HttpMethod method;
+
+    private final String url;
+
+    private final String resource;
+
+    private final CompletableFuture<FhirResponse> future = new CompletableFuture<>();
+
+    private PendingWrite(HttpMethod method, String url, String resource) {
+      this.method = method;
+      this.url = url;
+      this.resource = resource;
+    }
+
+  }
+
+  /**
+   * The types of Bundle writes can be grouped into
+   */
+  public enum BundleType {
+
+    /**
+     * Every entry is processed independently and may fail on its own
+     */
+    BATCH("batch"),
+
+    /**
+     * The entries are processed atomically, either all succeed or the whole Bundle fails
+     */
+    TRANSACTION("transaction");
+
+    /**
+     * The value of Bundle.type
+     */
+    private final String code;
+
+    private BundleType(String code) {
+      this.code = code;
+    }
+
+    public String getCode() {
+      return code;
+    }
+
+  }
+
+}
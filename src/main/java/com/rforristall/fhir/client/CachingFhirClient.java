@@ -0,0 +1,213 @@
+package com.rforristall.fhir.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.collect.Multimap;
+import com.rforristall.fhir.cache.CachedResponse;
+import com.rforristall.fhir.cache.ResponseCache;
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Client that answers reads and searches from a {@link ResponseCache} in front of a {@link FhirClient}.
+ *
+ * Cached responses are served without contacting the server while they are fresh according to their Cache-Control
+ * max-age, and are revalidated with If-None-Match and If-Modified-Since otherwise. A 304 Not Modified response is a
+ * cache hit: the cached body is returned and its freshness renewed. Updates and deletes sent through
+ * {@link #execute(FhirRequest)} invalidate the cached read of the same URL.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class CachingFhirClient {
+
+  /**
+   * The client sending the requests that cannot be answered from the cache
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The cache the responses are stored in, it may be shared with clients of other specifications
+   */
+  private final ResponseCache responseCache;
+
+  /**
+   * The number of requests answered from the cache without contacting the server
+   */
+  private final LongAdder freshHits = new LongAdder();
+
+  /**
+   * The number of requests answered from the cache after the server confirmed it with a 304
+   */
+  private final LongAdder revalidatedHits = new LongAdder();
+
+  /**
+   * The number of requests answered by the server with a new body
+   */
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Constructor for a caching client
+   * @param fhirClient {@link FhirClient}: The client sending the requests that cannot be answered from the cache
+   * @param responseCache {@link ResponseCache}: The cache the responses are stored in
+   */
+  public CachingFhirClient(FhirClient fhirClient, ResponseCache responseCache) {
+    super();
+    this.fhirClient = fhirClient;
+    this.responseCache = responseCache;
+  }
+
+  /**
+   * Reads a single resource, from the cache when possible
+   * @param resourceType {@link String}: The type of the resource, i.e. Patient
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link FhirResponse} containing the resource
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting on the rate limiter or the response
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse read(String resourceType, String id) throws IOException, InterruptedException, HttpErrorException {
+    return execute(fhirClient.readRequest(resourceType, id));
+  }
+
+  /**
+   * Non-blocking variant of {@link #read(String, String)}
+   * @param resourceType {@link String}: The type of the resource, i.e. Patient
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the resource
+   */
+  public CompletableFuture<FhirResponse> readAsync(String resourceType, String id) {
+    return executeAsync(fhirClient.readRequest(resourceType, id));
+  }
+
+  /**
+   * Searches for resources of a single type, from the cache when possible
+   * @param resourceType {@link String}: The type of the resources, i.e. Observation
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters
+   * @return {@link FhirResponse} containing the searchset Bundle
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting on the rate limiter or the response
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse search(String resourceType, Multimap<String, String> params) throws IOException, InterruptedException, HttpErrorException {
+    return execute(fhirClient.searchRequest(resourceType, params));
+  }
+
+  /**
+   * Non-blocking variant of {@link #search(String, Multimap)}
+   * @param resourceType {@link String}: The type of the resources, i.e. Observation
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the searchset Bundle
+   */
+  public CompletableFuture<FhirResponse> searchAsync(String resourceType, Multimap<String, String> params) {
+    return executeAsync(fhirClient.searchRequest(resourceType, params));
+  }
+
+  /**
+   * Executes a request, GET requests are answered from the cache when possible and other requests invalidate the
+   * cached response of their URL
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link FhirResponse} of the request
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting on the rate limiter or the response
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse execute(FhirRequest request) throws IOException, InterruptedException, HttpErrorException {
+    String key = toKey(request);
+    if (request.getMethod() != HttpMethod.GET) {
+      try {
+        return fhirClient.execute(request);
+      } finally {
+        responseCache.invalidate(key);
+      }
+    }
+    long nowMillis = System.currentTimeMillis();
+    CachedResponse cached = responseCache.get(key);
+    if (cached != null && cached.isFresh(nowMillis)) {
+      freshHits.increment();
+      return cached.toFhirResponse();
+    }
+    return onResponse(key, cached, fhirClient.execute(toConditionalRequest(request, cached)));
+  }
+
+  /**
+   * Non-blocking variant of {@link #execute(FhirRequest)}, a response missing from memory may be loaded from the cache's
+   * store on the calling thread
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response of the request
+   */
+  public CompletableFuture<FhirResponse> executeAsync(FhirRequest request) {
+    String key = toKey(request);
+    if (request.getMethod() != HttpMethod.GET) {
+      return fhirClient.executeAsync(request).whenComplete((response, ex) -> responseCache.invalidate(key));
+    }
+    long nowMillis = System.currentTimeMillis();
+    CachedResponse cached = responseCache.get(key);
+    if (cached != null && cached.isFresh(nowMillis)) {
+      freshHits.increment();
+      return CompletableFuture.completedFuture(cached.toFhirResponse());
+    }
+    return fhirClient.executeAsync(toConditionalRequest(request, cached)).thenApply(response -> onResponse(key, cached, response));
+  }
+
+  public FhirClient getFhirClient() {
+    return fhirClient;
+  }
+
+  public ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Getter function for the number of requests answered from the cache, including the ones revalidated with a 304
+   * @return long number of hits
+   */
+  public long getHitCount() {
+    return freshHits.sum() + revalidatedHits.sum();
+  }
+
+  /**
+   * Getter function for the number of hits that were revalidated with the server
+   * @return long number of 304 responses
+   */
+  public long getRevalidatedHitCount() {
+    return revalidatedHits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  private FhirResponse onResponse(String key, CachedResponse cached, FhirResponse response) {
+    long nowMillis = System.currentTimeMillis();
+    if (response.getStatusCode() == 304 && cached != null) {
+      revalidatedHits.increment();
+      CachedResponse revalidated = cached.revalidate(response, nowMillis);
+      responseCache.put(key, revalidated);
+      return revalidated.toFhirResponse();
+    }
+    misses.increment();
+    CachedResponse updated = CachedResponse.fromResponse(response, nowMillis);
+    if (updated != null) responseCache.put(key, updated);
+    else if (cached != null) responseCache.invalidate(key);
+    return response;
+  }
+
+  private String toKey(FhirRequest request) {
+    return ResponseCache.toKey(fhirClient.getFhirSpec().getHostname(), request.getPath());
+  }
+
+  /**
+   * Helper function for adding the validators of a cached response to a request
+   */
+  private static FhirRequest toConditionalRequest(FhirRequest request, CachedResponse cached) {
+    if (cached == null || !cached.hasValidators()) return request;
+    Map<String, String> headers = new HashMap<>(request.getHeaders());
+    if (cached.getEtag() != null) headers.put("If-None-Match", cached.getEtag());
+    if (cached.getLastModified() != null) headers.put("If-Modified-Since", cached.getLastModified());
+    return new FhirRequest(request.getMethod(), request.getResourceType(), request.getPath(), request.getBody(), headers, request.isAuthenticated());
+  }
+
+}
@@ -0,0 +1,118 @@
+package com.rforristall.fhir.client;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Body handler counting the bytes of the response body as they are read from the connection, wrapping the handler that
+ * turns them into the body the caller receives.
+ *
+ * The count is final once the body has been read to the end, has failed or has been cancelled (i.e. a streamed body
+ * closed part way through), which for buffered bodies is before the response is returned and for streamed bodies is
+ * whenever the caller is done with the stream.
+ *
+ * @param <T> The type of the response body
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+final class CountingBodyHandler<T> implements HttpResponse.BodyHandler<T> {
+
+  /**
+   * The handler producing the body the caller receives
+   */
+  private final HttpResponse.BodyHandler<T> bodyHandler;
+
+  /**
+   * Completed with the number of bytes of the body once it has been read, failed or cancelled
+   */
+  private final CompletableFuture<Long> bytesReceived = new CompletableFuture<>();
+
+  /**
+   * Constructor for a counting handler
+   * @param bodyHandler {@link HttpResponse.BodyHandler}<T>: The handler producing the body the caller receives
+   */
+  CountingBodyHandler(HttpResponse.BodyHandler<T> bodyHandler) {
+    super();
+    this.bodyHandler = bodyHandler;
+  }
+
+  @Override
+  public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+    return new CountingBodySubscriber(bodyHandler.apply(responseInfo));
+  }
+
+  /**
+   * Getter function for the number of bytes of the body
+   * @return {@link CompletableFuture}<{@link Long}> completed once the body has been read to the end, failed or been cancelled
+   */
+  CompletableFuture<Long> getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /**
+   * Subscriber counting the bytes passed on to the wrapped subscriber
+   */
+  private final class CountingBodySubscriber implements HttpResponse.BodySubscriber<T> {
+
+    private final HttpResponse.BodySubscriber<T> downstream;
+
+    /**
+     * The bytes received so far, only written from the HTTP client's delivery of the body
+     */
+    private volatile long count;
+
+    private CountingBodySubscriber(HttpResponse.BodySubscriber<T> downstream) {
+      super();
+      this.downstream = downstream;
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+      return downstream.getBody();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      downstream.onSubscribe(new Flow.Subscription() {
+
+        @Override
+        public void request(long n) {
+          subscription.request(n);
+        }
+
+        @Override
+        public void cancel() {
+          bytesReceived.complete(count);
+          subscription.cancel();
+        }
+
+      });
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+      long received = count;
+      for (ByteBuffer buffer : item) received += buffer.remaining();
+      count = received;
+      downstream.onNext(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      bytesReceived.complete(count);
+      downstream.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      // Completed before the body so a buffered response is returned with its final count
+      bytesReceived.complete(count);
+      downstream.onComplete();
+    }
+
+  }
+
+}
@@ -0,0 +1,709 @@
+package com.rforristall.fhir.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimap;
+import com.nimbusds.jose.JOSEException;
+import com.rforristall.fhir.auth.FhirAuthentication;
+import com.rforristall.fhir.auth.ScopeAction;
+import com.rforristall.fhir.bundle.BundleReader;
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.metrics.FhirMetrics;
+import com.rforristall.fhir.metrics.MetricTags;
+import com.rforristall.fhir.metrics.MetricsRegistry;
+import com.rforristall.fhir.retry.RetryPolicy;
+import com.rforristall.fhir.spec.FhirSpecification;
+import com.rforristall.fhir.tracing.InterceptorRegistry;
+import com.rforristall.fhir.tracing.OutboundCall;
+import com.rforristall.fhir.tracing.RequestInterceptor.Completion;
+import com.rforristall.fhir.util.VirtualThreads;
+
+/**
+ * Client that runs the FHIR REST interactions (read, search, create, update and delete) against the server described
+ * by a {@link FhirSpecification}.
+ *
+ * Every request is authenticated through {@link FhirSpecification#getFhirAuth()}, throttled by
+ * {@link FhirSpecification#getRateLimiter()} and sent on the HTTP client the specification shares with every other
+ * connection to the same host. Failed requests are retried according to a {@link RetryPolicy}. The client holds no
+ * per-request state and is safe to share between threads, its asynchronous methods never block the calling thread.
+ *
+ * Every attempt, its time spent on the rate limiter and its response are reported to the {@link FhirMetrics} installed in
+ * the {@link MetricsRegistry}, tagged with the client's tenant, dialect and version, and runs through the interceptors of
+ * the {@link InterceptorRegistry} before it is authenticated.
+ *
+ * Requests to absolute URLs (i.e. paging links returned by the server) are only authenticated when the URL has the
+ * scheme, host and port of the specification's hostname, so the token is never sent to another origin.
+ *
+ * Identical GET requests returning a {@link FhirResponse} that are in flight at the same time, from any client of the
+ * specification, share a single request to the server, unless they are sent with {@link #executeUncoalesced(FhirRequest)}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FhirClient {
+
+  /**
+   * The default amount of time to wait for a response before the request fails
+   */
+  public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+  /**
+   * The maximum number of bytes of an error response read into the {@link HttpErrorException} of a streamed request
+   */
+  private static final int MAX_ERROR_BODY_BYTES = 64 * 1024;
+
+  /**
+   * The specification of the FHIR server the client connects to
+   */
+  private final FhirSpecification fhirSpec;
+
+  /**
+   * The hostname of the specification without a trailing slash
+   */
+  private final String baseUrl;
+
+  /**
+   * The hostname of the specification, absolute URLs are only authenticated when they share its scheme, host and port
+   */
+  private final URI baseUri;
+
+  /**
+   * The amount of time to wait for a response before the request fails
+   */
+  private final Duration requestTimeout;
+
+  /**
+   * The policy deciding if and when failed requests are retried
+   */
+  private final RetryPolicy retryPolicy;
+
+  /**
+   * The executor the tasks passed to {@link #submit(BlockingTask)} run on, virtual threads by default when the runtime supports them
+   */
+  private final Executor blockingExecutor;
+
+  /**
+   * The tags the client's requests are recorded with
+   */
+  private final MetricTags metricTags;
+
+  /**
+   * Deduplicates identical GET requests in flight, shared by every client of the specification
+   */
+  private final RequestCoalescer coalescer;
+
+  /**
+   * Constructor for a client using the default request timeout and retry policy
+   * @param fhirSpec {@link FhirSpecification}: The specification of the FHIR server the client connects to
+   */
+  public FhirClient(FhirSpecification fhirSpec) {
+    this(fhirSpec, DEFAULT_REQUEST_TIMEOUT, RetryPolicy.defaultPolicy());
+  }
+
+  /**
+   * Constructor for a client
+   * @param fhirSpec {@link FhirSpecification}: The specification of the FHIR server the client connects to
+   * @param requestTimeout {@link Duration}: The amount of time to wait for a response before the request fails
+   * @param retryPolicy {@link RetryPolicy}: The policy deciding if and when failed requests are retried
+   */
+  public FhirClient(FhirSpecification fhirSpec, Duration requestTimeout, RetryPolicy retryPolicy) {
+    this(fhirSpec, requestTimeout, retryPolicy, VirtualThreads.getSharedExecutor());
+  }
+
+  /**
+   * Constructor for a client
+   * @param fhirSpec {@link FhirSpecification}: The specification of the FHIR server the client connects to
+   * @param requestTimeout {@link Duration}: The amount of time to wait for a response before the request fails
+   * @param retryPolicy {@link RetryPolicy}: The policy deciding if and when failed requests are retried
+   * @param blockingExecutor {@link Executor}: The executor the tasks passed to {@link #submit(BlockingTask)} run on
+   */
+  public FhirClient(FhirSpecification fhirSpec, Duration requestTimeout, RetryPolicy retryPolicy, Executor blockingExecutor) {
+    this(fhirSpec, requestTimeout, retryPolicy, blockingExecutor, MetricTags.DEFAULT_TENANT);
+  }
+
+  /**
+   * Constructor for a client
+   * @param fhirSpec {@link FhirSpecification}: The specification of the FHIR server the client connects to
+   * @param requestTimeout {@link Duration}: The amount of time to wait for a response before the request fails
+   * @param retryPolicy {@link RetryPolicy}: The policy deciding if and when failed requests are retried
+   * @param blockingExecutor {@link Executor}: The executor the tasks passed to {@link #submit(BlockingTask)} run on
+   * @param tenantId {@link String}: The id of the tenant the client's requests are recorded for in the metrics
+   */
+  public FhirClient(FhirSpecification fhirSpec, Duration requestTimeout, RetryPolicy retryPolicy, Executor blockingExecutor, String tenantId) {
+    super();
+    this.fhirSpec = fhirSpec;
+    this.baseUrl = fhirSpec.getHostname().endsWith("/")
+            ? fhirSpec.getHostname().substring(0, fhirSpec.getHostname().length() - 1)
+            : fhirSpec.getHostname();
+    this.baseUri = URI.create(baseUrl);
+    this.requestTimeout = requestTimeout;
+    this.retryPolicy = retryPolicy;
+    this.blockingExecutor = blockingExecutor;
+    this.metricTags = new MetricTags(tenantId, fhirSpec.getFhirDialect(), fhirSpec.getFhirVersion());
+    this.coalescer = RequestCoalescer.forSpecification(fhirSpec);
+  }
+
+  public FhirSpecification getFhirSpec() {
+    return fhirSpec;
+  }
+
+  public MetricTags getMetricTags() {
+    return metricTags;
+  }
+
+  /**
+   * Getter function for the number of GET requests answered with the response of an identical request that was already
+   * in flight, across every client of the specification
+   * @return long number of coalesced requests
+   */
+  public long getCoalescedCount() {
+    return coalescer.getCoalescedCount();
+  }
+
+  /**
+   * Reads a single resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Patient)
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link FhirResponse} containing the resource
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse read(String resourceType, String id) throws IOException, InterruptedException, HttpErrorException {
+    return execute(readRequest(resourceType, id));
+  }
+
+  /**
+   * Non-blocking variant of {@link #read(String, String)}
+   * @param resourceType {@link String}: The type of the resource (i.e. Patient)
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the resource
+   */
+  public CompletableFuture<FhirResponse> readAsync(String resourceType, String id) {
+    return executeAsync(readRequest(resourceType, id));
+  }
+
+  /**
+   * Searches a resource type, returning the first page of the resulting Bundle
+   * @param resourceType {@link String}: The type of the resources to search (i.e. Observation)
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, a parameter may repeat
+   * @return {@link FhirResponse} containing the search Bundle
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse search(String resourceType, Multimap<String, String> params) throws IOException, InterruptedException, HttpErrorException {
+    return execute(searchRequest(resourceType, params));
+  }
+
+  /**
+   * Non-blocking variant of {@link #search(String, Multimap)}
+   * @param resourceType {@link String}: The type of the resources to search (i.e. Observation)
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, a parameter may repeat
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the search Bundle
+   */
+  public CompletableFuture<FhirResponse> searchAsync(String resourceType, Multimap<String, String> params) {
+    return executeAsync(searchRequest(resourceType, params));
+  }
+
+  /**
+   * Searches a resource type, streaming the resources of the first page of the resulting Bundle
+   * @param resourceType {@link String}: The type of the resources to search (i.e. Observation)
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, a parameter may repeat
+   * @return {@link BundleReader} over the first page, which must be closed to release the connection
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public BundleReader searchStreaming(String resourceType, Multimap<String, String> params) throws IOException, InterruptedException, HttpErrorException {
+    return executeStreaming(searchRequest(resourceType, params));
+  }
+
+  /**
+   * Searches a resource type, lazily iterating the resources of every page of the resulting Bundle
+   * @param resourceType {@link String}: The type of the resources to search (i.e. Observation)
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, a parameter may repeat
+   * @return {@link SearchResultIterator} over every page, prefetching {@link SearchResultIterator#DEFAULT_PREFETCH_DEPTH} pages ahead
+   */
+  public SearchResultIterator searchAll(String resourceType, Multimap<String, String> params) {
+    return searchAll(resourceType, params, SearchResultIterator.DEFAULT_PREFETCH_DEPTH);
+  }
+
+  /**
+   * Searches a resource type, lazily iterating the resources of every page of the resulting Bundle
+   * @param resourceType {@link String}: The type of the resources to search (i.e. Observation)
+   * @param params {@link Multimap}<{@link String}, {@link String}>: The search parameters, a parameter may repeat
+   * @param prefetchDepth int: The maximum number of pages fetched ahead of the caller, at least 1
+   * @return {@link SearchResultIterator} over every page, which should be closed if it is not consumed to the end
+   */
+  public SearchResultIterator searchAll(String resourceType, Multimap<String, String> params, int prefetchDepth) {
+    return new SearchResultIterator(this, searchRequest(resourceType, params), prefetchDepth);
+  }
+
+  /**
+   * Creates a new resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link FhirResponse} returned by the server
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse create(String resourceType, String resource) throws IOException, InterruptedException, HttpErrorException {
+    return execute(new FhirRequest(HttpMethod.POST, resourceType, resourceType, resource));
+  }
+
+  /**
+   * Non-blocking variant of {@link #create(String, String)}
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response returned by the server
+   */
+  public CompletableFuture<FhirResponse> createAsync(String resourceType, String resource) {
+    return executeAsync(new FhirRequest(HttpMethod.POST, resourceType, resourceType, resource));
+  }
+
+  /**
+   * Updates (or creates with a client assigned id) a resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link FhirResponse} returned by the server
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse update(String resourceType, String id, String resource) throws IOException, InterruptedException, HttpErrorException {
+    return execute(new FhirRequest(HttpMethod.PUT, resourceType, resourceType + "/" + id, resource));
+  }
+
+  /**
+   * Non-blocking variant of {@link #update(String, String, String)}
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @param resource {@link String}: The JSON of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response returned by the server
+   */
+  public CompletableFuture<FhirResponse> updateAsync(String resourceType, String id, String resource) {
+    return executeAsync(new FhirRequest(HttpMethod.PUT, resourceType, resourceType + "/" + id, resource));
+  }
+
+  /**
+   * Deletes a resource
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link FhirResponse} returned by the server
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse delete(String resourceType, String id) throws IOException, InterruptedException, HttpErrorException {
+    return execute(new FhirRequest(HttpMethod.DELETE, resourceType, resourceType + "/" + id, null));
+  }
+
+  /**
+   * Non-blocking variant of {@link #delete(String, String)}
+   * @param resourceType {@link String}: The type of the resource (i.e. Observation)
+   * @param id {@link String}: The logical id of the resource
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response returned by the server
+   */
+  public CompletableFuture<FhirResponse> deleteAsync(String resourceType, String id) {
+    return executeAsync(new FhirRequest(HttpMethod.DELETE, resourceType, resourceType + "/" + id, null));
+  }
+
+  /**
+   * Runs sequential code using the blocking methods of the client on the client's blocking executor. With the default
+   * executor on a Java 21+ runtime every task gets its own virtual thread, so waiting on the rate limiter, the token
+   * and the response does not hold a platform thread and tens of thousands of tasks can be in flight at once
+   * @param <T> The type of the result
+   * @param task {@link BlockingTask}<T>: The code to run, receiving this client
+   * @return {@link CompletableFuture}<T> completed with the result of the task, or exceptionally with the exception it threw
+   */
+  public <T> CompletableFuture<T> submit(BlockingTask<T> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    blockingExecutor.execute(() -> {
+      try {
+        result.complete(task.run(this));
+      } catch (Throwable ex) {
+        result.completeExceptionally(ex);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Executes a request on the calling thread, retrying it according to the retry policy
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link FhirResponse} returned by the server
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse execute(FhirRequest request) throws IOException, InterruptedException, HttpErrorException {
+    if (request.getMethod() == HttpMethod.GET) {
+      return coalescer.execute(request, () -> execute(request, HttpResponse.BodyHandlers.ofString(), this::toFhirResponse), this::onCoalesced);
+    }
+    try {
+      return execute(request, HttpResponse.BodyHandlers.ofString(), this::toFhirResponse);
+    } finally {
+      coalescer.detach(request.getResourceType());
+    }
+  }
+
+  /**
+   * Executes a request without blocking the calling thread, retrying it according to the retry policy
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response returned by the server, or
+   * exceptionally with the exception {@link #execute(FhirRequest)} would have thrown
+   */
+  public CompletableFuture<FhirResponse> executeAsync(FhirRequest request) {
+    if (request.getMethod() == HttpMethod.GET) {
+      return coalescer.executeAsync(request, () -> executeAsync(request, HttpResponse.BodyHandlers.ofString(), this::toFhirResponse), this::onCoalesced);
+    }
+    return executeAsync(request, HttpResponse.BodyHandlers.ofString(), this::toFhirResponse).whenComplete((response, ex) -> coalescer.detach(request.getResourceType()));
+  }
+
+  /**
+   * Executes a request on the calling thread without sharing it with identical requests in flight, for GET requests that
+   * start work on the server (i.e. a bulk data kick-off) where every caller must get a response of its own
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link FhirResponse} returned by the server
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public FhirResponse executeUncoalesced(FhirRequest request) throws IOException, InterruptedException, HttpErrorException {
+    return execute(request, HttpResponse.BodyHandlers.ofString(), this::toFhirResponse);
+  }
+
+  /**
+   * Executes a request returning a Bundle and streams its resources from the response body instead of buffering it
+   * @param request {@link FhirRequest}: The request to execute, i.e. a search or the next link of a search
+   * @return {@link BundleReader} over the response body, which must be closed to release the connection
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public BundleReader executeStreaming(FhirRequest request) throws IOException, InterruptedException, HttpErrorException {
+    return execute(request, HttpResponse.BodyHandlers.ofInputStream(), this::toBundleReader);
+  }
+
+  /**
+   * Non-blocking variant of {@link #executeStreaming(FhirRequest)}, the future completes once the response headers
+   * have arrived and the resources are read from the body as the reader is iterated
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link CompletableFuture}<{@link BundleReader}> completed with a reader over the response body
+   */
+  public CompletableFuture<BundleReader> executeStreamingAsync(FhirRequest request) {
+    return executeAsync(request, HttpResponse.BodyHandlers.ofInputStream(), this::toBundleReader);
+  }
+
+  /**
+   * Executes a request and returns the raw response once its headers have arrived, for bodies that are not JSON (i.e.
+   * NDJSON bulk data files). Only sending the request is retried, failures while reading the body are left to the caller
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link HttpResponse}<{@link InputStream}> with a successful status code, whose body must be closed to release the connection
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  public HttpResponse<InputStream> executeRaw(FhirRequest request) throws IOException, InterruptedException, HttpErrorException {
+    return execute(request, HttpResponse.BodyHandlers.ofInputStream(), this::toStreamedResponse);
+  }
+
+  /**
+   * Non-blocking variant of {@link #executeRaw(FhirRequest)}
+   * @param request {@link FhirRequest}: The request to execute
+   * @return {@link CompletableFuture}<{@link HttpResponse}<{@link InputStream}>> completed once the response headers have arrived
+   */
+  public CompletableFuture<HttpResponse<InputStream>> executeRawAsync(FhirRequest request) {
+    return executeAsync(request, HttpResponse.BodyHandlers.ofInputStream(), this::toStreamedResponse);
+  }
+
+  private <B, T> T execute(FhirRequest request, HttpResponse.BodyHandler<B> bodyHandler, ResponseMapper<B, T> responseMapper) throws IOException, InterruptedException, HttpErrorException {
+    URI uri = toUri(request);
+    retryPolicy.onRequest(uri.getAuthority());
+    for (int attempt = 1;; attempt++) {
+      try {
+        return responseMapper.map(send(request, uri, bodyHandler, attempt));
+      } catch (HttpErrorException | IOException ex) {
+        long delayNanos = retryPolicy.getRetryDelayNanos(uri.getAuthority(), request.getMethod(), ex, attempt);
+        if (delayNanos < 0) throw ex;
+        if (delayNanos > 0) TimeUnit.NANOSECONDS.sleep(delayNanos);
+      }
+    }
+  }
+
+  private <B, T> CompletableFuture<T> executeAsync(FhirRequest request, HttpResponse.BodyHandler<B> bodyHandler, ResponseMapper<B, T> responseMapper) {
+    URI uri = toUri(request);
+    retryPolicy.onRequest(uri.getAuthority());
+    return executeAsync(request, uri, bodyHandler, responseMapper, 1);
+  }
+
+  private <B, T> CompletableFuture<T> executeAsync(FhirRequest request, URI uri, HttpResponse.BodyHandler<B> bodyHandler, ResponseMapper<B, T> responseMapper, int attempt) {
+    return sendAsync(request, uri, bodyHandler, attempt).thenApply(response -> {
+      try {
+        return responseMapper.map(response);
+      } catch (HttpErrorException | IOException ex) {
+        throw new CompletionException(ex);
+      }
+    }).handle((result, ex) -> {
+      if (ex == null) return CompletableFuture.completedFuture(result);
+      Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+      long delayNanos = retryPolicy.getRetryDelayNanos(uri.getAuthority(), request.getMethod(), cause, attempt);
+      if (delayNanos < 0) return CompletableFuture.<T>failedFuture(cause);
+      return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS))
+              .thenCompose(ignored -> executeAsync(request, uri, bodyHandler, responseMapper, attempt + 1));
+    }).thenCompose(Function.identity());
+  }
+
+  private <B> HttpResponse<B> send(FhirRequest request, URI uri, HttpResponse.BodyHandler<B> bodyHandler, int attempt) throws IOException, InterruptedException, HttpErrorException {
+    FhirMetrics metrics = MetricsRegistry.getMetrics();
+    long waitStartNanos = System.nanoTime();
+    fhirSpec.getRateLimiter().acquire();
+    metrics.rateLimitWaited(metricTags, System.nanoTime() - waitStartNanos);
+    HttpRequest.Builder requestBuilder = newRequestBuilder(request, uri);
+    Completion completion = intercept(request, uri, attempt, requestBuilder);
+    try {
+      if (isAuthenticated(request, uri)) fhirSpec.getFhirAuth().appendAuthentication(requestBuilder, request.getResourceType(), toScopeAction(request));
+    } catch (GeneralSecurityException | ParseException | JOSEException ex) {
+      IOException failure = new IOException("Unable to authenticate the request to " + fhirSpec.getHostname(), ex);
+      completion.onFailure(failure);
+      throw failure;
+    } catch (IOException | InterruptedException | HttpErrorException | RuntimeException ex) {
+      completion.onFailure(ex);
+      throw ex;
+    }
+    HttpRequest httpRequest = requestBuilder.build();
+    CountingBodyHandler<B> countingHandler = new CountingBodyHandler<>(bodyHandler);
+    metrics.requestStarted(metricTags);
+    long startNanos = System.nanoTime();
+    HttpResponse<B> response;
+    try {
+      response = getHttpClient().send(httpRequest, countingHandler);
+    } catch (IOException | InterruptedException | RuntimeException ex) {
+      metrics.requestFailed(metricTags, request.getMethod(), request.getResourceType(), ex, System.nanoTime() - startNanos);
+      completion.onFailure(ex);
+      throw ex;
+    }
+    recordResponse(metrics, request, httpRequest, response, startNanos, countingHandler);
+    completion.onResponse(response.statusCode());
+    return response;
+  }
+
+  private <B> CompletableFuture<HttpResponse<B>> sendAsync(FhirRequest request, URI uri, HttpResponse.BodyHandler<B> bodyHandler, int attempt) {
+    FhirMetrics metrics = MetricsRegistry.getMetrics();
+    FhirAuthentication fhirAuth = fhirSpec.getFhirAuth();
+    long waitStartNanos = System.nanoTime();
+    return fhirSpec.getRateLimiter().acquireAsync().thenCompose(ignored -> {
+      metrics.rateLimitWaited(metricTags, System.nanoTime() - waitStartNanos);
+      HttpRequest.Builder requestBuilder = newRequestBuilder(request, uri);
+      Completion completion = intercept(request, uri, attempt, requestBuilder);
+      CompletableFuture<HttpRequest.Builder> authenticated = isAuthenticated(request, uri)
+              ? fhirAuth.appendAuthenticationAsync(requestBuilder, request.getResourceType(), toScopeAction(request))
+              : CompletableFuture.completedFuture(requestBuilder);
+      // Only observe authentication failures when an interceptor is installed, so the chain stays the same size otherwise
+      if (completion != Completion.NOOP) authenticated.exceptionally(ex -> {
+        completion.onFailure(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+        return null;
+      });
+      return authenticated.thenCompose(authenticatedBuilder -> {
+        HttpRequest httpRequest = authenticatedBuilder.build();
+        CountingBodyHandler<B> countingHandler = new CountingBodyHandler<>(bodyHandler);
+        metrics.requestStarted(metricTags);
+        long startNanos = System.nanoTime();
+        return getHttpClient().sendAsync(httpRequest, countingHandler).whenComplete((response, ex) -> {
+          if (ex == null) {
+            recordResponse(metrics, request, httpRequest, response, startNanos, countingHandler);
+            completion.onResponse(response.statusCode());
+          } else {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            metrics.requestFailed(metricTags, request.getMethod(), request.getResourceType(), cause, System.nanoTime() - startNanos);
+            completion.onFailure(cause);
+          }
+        });
+      });
+    });
+  }
+
+  /**
+   * Helper function for checking if the specification's authentication is appended to a request
+   * @param request {@link FhirRequest}: The request to send
+   * @param uri {@link URI}: The URI the request is sent to
+   * @return true if the request asks to be authenticated and is sent to the specification's origin, false otherwise
+   */
+  private boolean isAuthenticated(FhirRequest request, URI uri) {
+    if (!request.isAuthenticated()) return false;
+    if (!request.isAbsolute()) return true;
+    return baseUri.getScheme().equalsIgnoreCase(uri.getScheme())
+            && baseUri.getHost() != null && baseUri.getHost().equalsIgnoreCase(uri.getHost())
+            && toPort(baseUri) == toPort(uri);
+  }
+
+  private static int toPort(URI uri) {
+    if (uri.getPort() != -1) return uri.getPort();
+    return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+  }
+
+  /**
+   * Helper function for the action a request needs from the scopes of its token
+   * @param request {@link FhirRequest}: The request to authenticate
+   * @return {@link ScopeAction} READ for GET requests and WRITE otherwise
+   */
+  private static ScopeAction toScopeAction(FhirRequest request) {
+    return request.getMethod() == HttpMethod.GET ? ScopeAction.READ : ScopeAction.WRITE;
+  }
+
+  private Completion intercept(FhirRequest request, URI uri, int attempt, HttpRequest.Builder requestBuilder) {
+    return InterceptorRegistry.intercept(
+            OutboundCall.Kind.FHIR,
+            request.getMethod().name(),
+            uri,
+            fhirSpec.getFhirDialect(),
+            fhirSpec.getFhirVersion(),
+            request.getResourceType(),
+            attempt,
+            requestBuilder);
+  }
+
+  private void recordResponse(FhirMetrics metrics, FhirRequest request, HttpRequest httpRequest, HttpResponse<?> response, long startNanos, CountingBodyHandler<?> bodyHandler) {
+    long durationNanos = System.nanoTime() - startNanos;
+    long bytesSent = httpRequest.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L);
+    // Buffered bodies have been counted by now, streamed bodies are recorded once the caller has read or closed them
+    bodyHandler.getBytesReceived().thenAccept(bytesReceived -> metrics.requestCompleted(
+            metricTags, request.getMethod(), request.getResourceType(), response.statusCode(), durationNanos, bytesSent, bytesReceived));
+  }
+
+  private HttpClient getHttpClient() {
+    return fhirSpec.getHttpClient();
+  }
+
+  /**
+   * Helper function for building the request of a read, shared with the other clients of the package
+   */
+  FhirRequest readRequest(String resourceType, String id) {
+    return new FhirRequest(HttpMethod.GET, resourceType, resourceType + "/" + id, null);
+  }
+
+  /**
+   * Helper function for building the request of a search, shared with the other clients of the package
+   */
+  FhirRequest searchRequest(String resourceType, Multimap<String, String> params) {
+    return new FhirRequest(HttpMethod.GET, resourceType, resourceType + toQueryString(params != null ? params : ImmutableListMultimap.<String, String>of()), null);
+  }
+
+  private String toQueryString(Multimap<String, String> params) {
+    if (params.isEmpty()) return "";
+    StringBuilder query = new StringBuilder("?");
+    for (Map.Entry<String, String> param : params.entries()) {
+      if (query.length() > 1) query.append('&');
+      query.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+              .append('=')
+              .append(URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8));
+    }
+    return query.toString();
+  }
+
+  private URI toUri(FhirRequest request) {
+    return URI.create(request.isAbsolute() ? request.getPath() : baseUrl + "/" + request.getPath());
+  }
+
+  private HttpRequest.Builder newRequestBuilder(FhirRequest request, URI uri) {
+    String mimeType = fhirSpec.getFhirVersion().getJsonMimeType();
+    HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+            .uri(uri)
+            .timeout(requestTimeout)
+            .header("Accept", mimeType);
+    if (request.getBody() != null) {
+      requestBuilder.header("Content-Type", mimeType);
+      requestBuilder.method(request.getMethod().name(), HttpRequest.BodyPublishers.ofString(request.getBody()));
+    } else {
+      requestBuilder.method(request.getMethod().name(), HttpRequest.BodyPublishers.noBody());
+    }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      requestBuilder.setHeader(header.getKey(), header.getValue());
+    }
+    return requestBuilder;
+  }
+
+  private FhirResponse toFhirResponse(HttpResponse<String> response) throws HttpErrorException {
+    if (response.statusCode() >= 400) throw onErrorResponse(HttpErrorException.createExceptionFromResponse(response));
+    return new FhirResponse(response.statusCode(), response.headers(), response.body());
+  }
+
+  private HttpResponse<InputStream> toStreamedResponse(HttpResponse<InputStream> response) throws HttpErrorException, IOException {
+    if (response.statusCode() >= 400) {
+      String body;
+      try (InputStream errorStream = response.body()) {
+        body = new String(errorStream.readNBytes(MAX_ERROR_BODY_BYTES), StandardCharsets.UTF_8);
+      }
+      throw onErrorResponse(HttpErrorException.createExceptionFromResponse(response.statusCode(), response.headers(), body));
+    }
+    return response;
+  }
+
+  private BundleReader toBundleReader(HttpResponse<InputStream> response) throws HttpErrorException, IOException {
+    toStreamedResponse(response);
+    try {
+      return new BundleReader(response.body());
+    } catch (IOException ex) {
+      response.body().close();
+      throw ex;
+    }
+  }
+
+  private void onCoalesced() {
+    MetricsRegistry.getMetrics().requestCoalesced(metricTags);
+  }
+
+  private HttpErrorException onErrorResponse(HttpErrorException ex) {
+    fhirSpec.getRateLimiter().onThrottled(ex);
+    return ex;
+  }
+
+  /**
+   * Sequential code run by {@link FhirClient#submit(BlockingTask)}
+   * @param <T> The type of the result
+   */
+  @FunctionalInterface
+  public interface BlockingTask<T> {
+
+    /**
+     * Runs the task
+     * @param fhirClient {@link FhirClient}: The client the task was submitted to
+     * @return T the result of the task
+     * @throws Exception if the task failed
+     */
+    T run(FhirClient fhirClient) throws Exception;
+
+  }
+
+  /**
+   * Function turning a raw response into the result returned to the caller
+   * @param <B> The type of the response body
+   * @param <T> The type of the result
+   */
+  @FunctionalInterface
+  private interface ResponseMapper<B, T> {
+
+    T map(HttpResponse<B> response) throws HttpErrorException, IOException;
+
+  }
+
+}
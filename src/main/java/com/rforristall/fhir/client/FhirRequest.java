@@ -0,0 +1,132 @@
+package com.rforristall.fhir.client;
+
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable description of a single request made against a FHIR server by the {@link FhirClient}
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FhirRequest {
+
+  /**
+   * The HTTP method of the request
+   */
+  private final HttpMethod method;
+
+  /**
+   * The resource type the request targets, null for requests against the server base (i.e. batch bundles)
+   */
+  private final String resourceType;
+
+  /**
+   * The path of the request relative to the hostname of the specification, or an absolute URL (i.e. a paging link)
+   */
+  private final String path;
+
+  /**
+   * The JSON body of the request, null for requests without a body
+   */
+  private final String body;
+
+  /**
+   * Additional headers of the request, these replace the default Accept and Content-Type headers of the same name
+   */
+  private final Map<String, String> headers;
+
+  /**
+   * If the specification's authentication is appended to the request, false for URLs outside the FHIR server (i.e. pre-signed download links)
+   */
+  private final boolean authenticated;
+
+  /**
+   * Constructor for an authenticated FHIR request without additional headers
+   * @param method {@link HttpMethod}: The HTTP method of the request
+   * @param resourceType {@link String}: The resource type the request targets, null for requests against the server base
+   * @param path {@link String}: The path of the request relative to the hostname of the specification, or an absolute URL
+   * @param body {@link String}: The JSON body of the request, null for requests without a body
+   */
+  public FhirRequest(HttpMethod method, String resourceType, String path, String body) {
+    this(method, resourceType, path, body, ImmutableMap.of(), true);
+  }
+
+  /**
+   * Constructor for a FHIR request
+   * @param method {@link HttpMethod}: The HTTP method of the request
+   * @param resourceType {@link String}: The resource type the request targets, null for requests against the server base
+   * @param path {@link String}: The path of the request relative to the hostname of the specification, or an absolute URL
+   * @param body {@link String}: The JSON body of the request, null for requests without a body
+   * @param headers {@link Map}<{@link String}, {@link String}>: Additional headers of the request, replacing the default Accept and Content-Type headers of the same name
+   * @param authenticated boolean: If the specification's authentication is appended to the request
+   */
+  public FhirRequest(HttpMethod method, String resourceType, String path, String body, Map<String, String> headers, boolean authenticated) {
+    super();
+    this.method = method;
+    this.resourceType = resourceType;
+    this.path = path;
+    this.body = body;
+    this.headers = ImmutableMap.copyOf(headers);
+    this.authenticated = authenticated;
+  }
+
+  public HttpMethod getMethod() {
+    return method;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getBody() {
+    return body;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public boolean isAuthenticated() {
+    return authenticated;
+  }
+
+  /**
+   * Helper function for checking if the path is an absolute URL rather than relative to the specification's hostname
+   * @return true if the path is absolute and false otherwise
+   */
+  public boolean isAbsolute() {
+    return path.startsWith("http://") || path.startsWith("https://");
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(authenticated, body, headers, method, path, resourceType);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    FhirRequest other = (FhirRequest) obj;
+    return authenticated == other.authenticated && Objects.equals(body, other.body)
+            && Objects.equals(headers, other.headers) && method == other.method && Objects.equals(path, other.path)
+            && Objects.equals(resourceType, other.resourceType);
+  }
+
+  @Override
+  public String toString() {
+    return "FhirRequest [method=" + method + ", resourceType=" + resourceType + ", path=" + path + ", headers=" + headers.keySet()
+            + ", authenticated=" + authenticated + "]";
+  }
+
+}
@@ -0,0 +1,57 @@
+package com.rforristall.fhir.client;
+
+import java.net.http.HttpHeaders;
+
+/**
+ * Successful response returned by the {@link FhirClient}
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FhirResponse {
+
+  /**
+   * The HTTP status code of the response
+   */
+  private final int statusCode;
+
+  /**
+   * The headers of the response
+   */
+  private final HttpHeaders headers;
+
+  /**
+   * The JSON body of the response, empty when the server did not return a body
+   */
+  private final String body;
+
+  /**
+   * Constructor for a FHIR response
+   * @param statusCode int: The HTTP status code of the response
+   * @param headers {@link HttpHeaders}: The headers of the response
+   * @param body {@link String}: The JSON body of the response
+   */
+  public FhirResponse(int statusCode, HttpHeaders headers, String body) {
+    super();
+    this.statusCode = statusCode;
+    this.headers = headers;
+    this.body = body;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public HttpHeaders getHeaders() {
+    return headers;
+  }
+
+  public String getBody() {
+    return body;
+  }
+
+  @Override
+  public String toString() {
+    return "FhirResponse [statusCode=" + statusCode + ", bodyLength=" + (body != null ? body.length() : 0) + "]";
+  }
+
+}
@@ -0,0 +1,36 @@
+package com.rforristall.fhir.client;
+
+/**
+ * Enumeration for the HTTP methods used by the FHIR REST API
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public enum HttpMethod {
+
+  GET(true),
+  POST(false),
+  PUT(true),
+  DELETE(true);
+
+  /**
+   * If repeating the request has the same effect on the server as sending it once
+   */
+  private boolean idempotent;
+
+  /**
+   * Private constructor for creating the enumerations
+   * @param idempotent boolean: If repeating the request has the same effect on the server as sending it once
+   */
+  private HttpMethod(boolean idempotent) {
+    this.idempotent = idempotent;
+  }
+
+  /**
+   * Getter function for if the method is idempotent
+   * @return boolean idempotent
+   */
+  public boolean isIdempotent() {
+    return idempotent;
+  }
+
+}
@@ -0,0 +1,179 @@
+package com.rforristall.fhir.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.collect.MapMaker;
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.spec.FhirSpecification;
+
+/**
+ * Single-flight deduplication of the GET requests sent with one {@link FhirSpecification}.
+ *
+ * Identical requests (same path, headers and authentication, and therefore the same scopes since they share the
+ * specification) that arrive while one of them is in flight wait for its response instead of sending their own, so a
+ * burst of reads of the same resource costs one request against the server's rate limit. Every client of a
+ * specification shares the same coalescer.
+ *
+ * Once a write completes the requests in flight that may return the written resource type are detached, so a read
+ * issued after the write never joins a read that may have been answered before it. Reads of other resource types keep
+ * coalescing, while reads against the server base, searches including other resource types and writes of a Bundle
+ * against the server base are treated as touching every type.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+final class RequestCoalescer {
+
+  /**
+   * The coalescer of every specification, dropped once the specification is no longer referenced
+   */
+  private static final ConcurrentMap<FhirSpecification, RequestCoalescer> COALESCERS = new MapMaker().weakKeys().makeMap();
+
+  /**
+   * The response of every request in flight
+   */
+  private final ConcurrentMap<FhirRequest, CompletableFuture<FhirResponse>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * The number of requests that were answered with the response of another request
+   */
+  private final LongAdder coalescedCount = new LongAdder();
+
+  private RequestCoalescer() {
+    super();
+  }
+
+  /**
+   * Getter function for the coalescer shared by the clients of a specification
+   * @param fhirSpec {@link FhirSpecification}: The specification the requests are sent with
+   * @return {@link RequestCoalescer} of the specification
+   */
+  static RequestCoalescer forSpecification(FhirSpecification fhirSpec) {
+    return COALESCERS.computeIfAbsent(fhirSpec, spec -> new RequestCoalescer());
+  }
+
+  /**
+   * Runs a request on the calling thread, or waits for the identical request in flight
+   * @param request {@link FhirRequest}: The GET request
+   * @param call {@link BlockingCall}: Sends the request if none is in flight
+   * @param onCoalesced {@link Runnable}: Called when the request joins one in flight
+   * @return {@link FhirResponse} of the request
+   * @throws IOException if the request could not be sent or authenticated
+   * @throws InterruptedException if the thread was interrupted while waiting
+   * @throws HttpErrorException if the server responded with an error status code
+   */
+  FhirResponse execute(FhirRequest request, BlockingCall call, Runnable onCoalesced) throws IOException, InterruptedException, HttpErrorException {
+    CompletableFuture<FhirResponse> flight = new CompletableFuture<>();
+    CompletableFuture<FhirResponse> existing = inFlight.putIfAbsent(request, flight);
+    if (existing != null) {
+      coalescedCount.increment();
+      onCoalesced.run();
+      return await(existing);
+    }
+    try {
+      FhirResponse response = call.execute();
+      inFlight.remove(request, flight);
+      flight.complete(response);
+      return response;
+    } catch (Throwable ex) {
+      inFlight.remove(request, flight);
+      flight.completeExceptionally(ex);
+      throw ex;
+    }
+  }
+
+  /**
+   * Starts a request, or joins the identical request in flight
+   * @param request {@link FhirRequest}: The GET request
+   * @param call {@link Supplier}<{@link CompletableFuture}<{@link FhirResponse}>>: Starts the request if none is in flight
+   * @param onCoalesced {@link Runnable}: Called when the request joins one in flight
+   * @return {@link CompletableFuture}<{@link FhirResponse}> completed with the response, callers cannot complete the shared future
+   */
+  CompletableFuture<FhirResponse> executeAsync(FhirRequest request, Supplier<CompletableFuture<FhirResponse>> call, Runnable onCoalesced) {
+    CompletableFuture<FhirResponse> flight = new CompletableFuture<>();
+    CompletableFuture<FhirResponse> existing = inFlight.putIfAbsent(request, flight);
+    if (existing != null) {
+      coalescedCount.increment();
+      onCoalesced.run();
+      return existing.copy();
+    }
+    CompletableFuture<FhirResponse> started;
+    try {
+      started = call.get();
+    } catch (RuntimeException ex) {
+      started = CompletableFuture.failedFuture(ex);
+    }
+    started.whenComplete((response, ex) -> {
+      inFlight.remove(request, flight);
+      if (ex == null) flight.complete(response);
+      else flight.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+    });
+    return flight.copy();
+  }
+
+  /**
+   * Detaches the requests in flight, they still complete for the callers already waiting on them
+   */
+  void detachAll() {
+    inFlight.clear();
+  }
+
+  /**
+   * Detaches the requests in flight that may return resources of a type, they still complete for the callers already waiting on them
+   * @param resourceType {@link String}: The resource type that was written, null to detach every request (i.e. after a batch Bundle)
+   */
+  void detach(String resourceType) {
+    if (resourceType == null) {
+      detachAll();
+      return;
+    }
+    inFlight.keySet().removeIf(request -> mayReturn(request, resourceType));
+  }
+
+  long getCoalescedCount() {
+    return coalescedCount.sum();
+  }
+
+  /**
+   * Helper function for checking if a request may return resources of a type
+   * @param request {@link FhirRequest}: The GET request in flight
+   * @param resourceType {@link String}: The resource type that was written
+   * @return true if the request targets the type, the server base or includes resources of other types, false otherwise
+   */
+  private static boolean mayReturn(FhirRequest request, String resourceType) {
+    if (request.getResourceType() == null || request.getResourceType().equals(resourceType)) return true;
+    String path = request.getPath();
+    return path.contains("_include") || path.contains("_revinclude") || path.contains("_has");
+  }
+
+  private static FhirResponse await(CompletableFuture<FhirResponse> flight) throws IOException, InterruptedException, HttpErrorException {
+    try {
+      return flight.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof HttpErrorException) throw (HttpErrorException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      // The thread sending the shared request was interrupted, not this one
+      throw new IOException("The request this request was coalesced with failed", cause);
+    }
+  }
+
+  /**
+   * Sends a request on the calling thread
+   */
+  @FunctionalInterface
+  interface BlockingCall {
+
+    FhirResponse execute() throws IOException, InterruptedException, HttpErrorException;
+
+  }
+
+}
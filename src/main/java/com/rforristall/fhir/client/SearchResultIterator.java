@@ -0,0 +1,240 @@
+package com.rforristall.fhir.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.rforristall.fhir.bundle.BundleReader;
+
+/**
+ * Iterator over every resource of a search, following Bundle.link[rel=next] across pages.
+ *
+ * Pages are fetched in the background while the caller consumes the current one, at most prefetchDepth pages are
+ * buffered ahead of the caller so a slow consumer holds back the fetching instead of growing the buffer. Every page
+ * goes through {@link FhirClient#executeStreaming(FhirRequest)} on the client's blocking executor, so its resources are
+ * read from the response stream as it arrives and the specification's rate limit and the retry policy apply to it.
+ *
+ * A failed page is reported by {@link #hasNext()} throwing a {@link CompletionException} whose cause is the exception
+ * the blocking client would have thrown. A caller interrupted while waiting on a page gets a {@link CompletionException}
+ * caused by the {@link InterruptedException}, with its interrupt flag restored and the iterator closed.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class SearchResultIterator implements Iterator<JsonObject>, AutoCloseable {
+
+  /**
+   * The default number of pages fetched ahead of the caller
+   */
+  public static final int DEFAULT_PREFETCH_DEPTH = 2;
+
+  /**
+   * The client used to fetch the pages
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The resource type of the search
+   */
+  private final String resourceType;
+
+  /**
+   * The maximum number of pages buffered ahead of the caller
+   */
+  private final int prefetchDepth;
+
+  /**
+   * Guards the page buffer and fetch state, a lock rather than a monitor so waiting does not pin virtual threads
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled whenever a page arrives or a fetch fails
+   */
+  private final Condition pageArrived = lock.newCondition();
+
+  /**
+   * The pages fetched but not yet handed to the caller
+   */
+  private final Deque<List<JsonObject>> bufferedPages = new ArrayDeque<>();
+
+  /**
+   * The link of the next page to fetch, null once the last page has been fetched
+   */
+  private String nextLink;
+
+  /**
+   * If a page is currently being fetched
+   */
+  private boolean fetching;
+
+  /**
+   * The failure of the last fetch, null if every fetch succeeded
+   */
+  private Throwable failure;
+
+  /**
+   * If the iterator was closed by the caller
+   */
+  private boolean closed;
+
+  /**
+   * The resources of the page currently being consumed
+   */
+  private Iterator<JsonObject> currentPage = Collections.emptyIterator();
+
+  /**
+   * Constructor for an iterator, starts fetching the first page right away
+   * @param fhirClient {@link FhirClient}: The client used to fetch the pages
+   * @param firstPage {@link FhirRequest}: The request for the first page of the search
+   * @param prefetchDepth int: The maximum number of pages buffered ahead of the caller, at least 1
+   */
+  SearchResultIterator(FhirClient fhirClient, FhirRequest firstPage, int prefetchDepth) {
+    super();
+    if (prefetchDepth < 1) throw new IllegalArgumentException("The prefetch depth must be at least 1!");
+    this.fhirClient = fhirClient;
+    this.resourceType = firstPage.getResourceType();
+    this.prefetchDepth = prefetchDepth;
+    this.fetching = true;
+    fetch(firstPage);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!currentPage.hasNext()) {
+      List<JsonObject> page = takePage();
+      if (page == null) return false;
+      currentPage = page.iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public JsonObject next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    return currentPage.next();
+  }
+
+  /**
+   * Getter function for a sequential stream over the remaining resources, closing the stream closes the iterator
+   * @return {@link Stream}<{@link JsonObject}> of the remaining resources
+   */
+  public Stream<JsonObject> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+  }
+
+  /**
+   * Stops fetching further pages, a fetch already in flight completes but its page is discarded
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      nextLink = null;
+      bufferedPages.clear();
+      pageArrived.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the next buffered page and starts fetching the page after it if the buffer has room
+   * @return {@link List}<{@link JsonObject}> resources of the next page, or null once every page has been consumed
+   */
+  private List<JsonObject> takePage() {
+    FhirRequest toFetch = null;
+    List<JsonObject> page;
+    lock.lock();
+    try {
+      while (bufferedPages.isEmpty() && failure == null && fetching && !closed) pageArrived.await();
+      if (failure != null) throw new CompletionException(failure);
+      page = bufferedPages.poll();
+      if (page != null) toFetch = claimNextFetch();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new CompletionException(ex);
+    } finally {
+      lock.unlock();
+    }
+    if (toFetch != null) fetch(toFetch);
+    return page;
+  }
+
+  /**
+   * Claims the next fetch if there is a next page, no fetch in flight and room in the buffer, must hold the lock
+   * @return {@link FhirRequest} for the next page, or null if no fetch should be started
+   */
+  private FhirRequest claimNextFetch() {
+    if (closed || fetching || nextLink == null || bufferedPages.size() >= prefetchDepth) return null;
+    fetching = true;
+    FhirRequest request = new FhirRequest(HttpMethod.GET, resourceType, nextLink, null);
+    nextLink = null;
+    return request;
+  }
+
+  /**
+   * Fetches a page in the background on the client's blocking executor, reading its resources straight from the
+   * response stream so the page body is never buffered as a whole
+   * @param request {@link FhirRequest}: The request for the page
+   */
+  private void fetch(FhirRequest request) {
+    fhirClient.submit(client -> {
+      try (BundleReader bundleReader = client.executeStreaming(request)) {
+        List<JsonObject> resources = new ArrayList<>();
+        bundleReader.forEachRemaining(resources::add);
+        return new FetchedPage(resources, bundleReader.getNextLink());
+      }
+    }).whenComplete((page, ex) -> {
+      Throwable error = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+      FhirRequest toFetch = null;
+      lock.lock();
+      try {
+        fetching = false;
+        if (error != null) {
+          failure = error;
+        } else if (!closed) {
+          bufferedPages.add(page.resources);
+          nextLink = page.nextLink;
+          toFetch = claimNextFetch();
+        }
+        pageArrived.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (toFetch != null) fetch(toFetch);
+    });
+  }
+
+  /**
+   * The resources and the next link read from a page
+   */
+  private static class FetchedPage {
+
+    private final List<JsonObject> resources;
+
+    private final String nextLink;
+
+    private FetchedPage(List<JsonObject> resources, String nextLink) {
+      super();
+      this.resources = resources;
+      this.nextLink = nextLink;
+    }
+
+  }
+
+}
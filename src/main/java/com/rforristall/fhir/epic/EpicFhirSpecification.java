@@ -1,18 +1,15 @@
 package com.rforristall.fhir.epic;
 
-import java.io.IOException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
 import java.util.List;
 
-import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.rforristall.fhir.auth.BasicAuthentication;
 import com.rforristall.fhir.auth.FhirAuthentication;
+import com.rforristall.fhir.auth.FileTokenStore;
 import com.rforristall.fhir.auth.OauthAuthentication;
-import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.auth.OauthTokenManager;
+import com.rforristall.fhir.auth.TokenStore;
+import com.rforristall.fhir.http.HttpClientSettings;
 import com.rforristall.fhir.keystore.KeyStoreAccessor;
 import com.rforristall.fhir.keystore.KeyStoreSpec;
 import com.rforristall.fhir.spec.AbstractFhirSpecification;
@@ -47,13 +44,41 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
           String username,
           String password,
           String clientId) {
+    return createSpecWithBasicAuth(
+            hostname,
+            scopes,
+            fhirVersion,
+            limitRate,
+            rateLimitWaitDuration,
+            username,
+            password,
+            clientId,
+            HttpClientSettings.defaultSettings());
+  }
+
+  /**
+   * Static builder function like {@link #createSpecWithBasicAuth(String, List, FhirVersion, boolean, long, String, String, String)} with custom HTTP client settings
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
+   * @return {@link EpicFhirSpecification} using the {@link BasicAuthentication} schema
+   */
+  public static EpicFhirSpecification createSpecWithBasicAuth(
+          String hostname,
+          List<String> scopes,
+          FhirVersion fhirVersion,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          String username,
+          String password,
+          String clientId,
+          HttpClientSettings httpClientSettings) {
     return new EpicFhirSpecification(
             hostname,
             scopes,
             BasicAuthentication.createExternalUserBasicAuthentication(username, password, clientId),
             fhirVersion,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
   /**
@@ -68,14 +93,6 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
    * @param securityAlg {@link JWSAlgorithm}: The JWS algorithm that is used with OAuth
    * @param clientId {@link String}: clientId for the OAuth authentication 
    * @return {@link EpicFhirSpecification} using the {@link OauthAuthentication} schema
-   * @throws KeyStoreException
-   * @throws NoSuchAlgorithmException
-   * @throws CertificateException
-   * @throws UnrecoverableEntryException
-   * @throws IOException
-   * @throws JOSEException
-   * @throws InterruptedException
-   * @throws HttpErrorException
    */
   public static EpicFhirSpecification createSpecWithOauth(
           String hostname,
@@ -86,7 +103,68 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
           long rateLimitWaitDuration,
           KeyStoreSpec keyStoreSpec,
           JWSAlgorithm securityAlg,
-          String clientId) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException, InterruptedException, HttpErrorException {
+          String clientId) {
+    return createSpecWithOauth(
+            hostname,
+            oauthEndpoint,
+            scopes,
+            fhirVersion,
+            limitRate,
+            rateLimitWaitDuration,
+            keyStoreSpec,
+            securityAlg,
+            clientId,
+            HttpClientSettings.defaultSettings());
+  }
+
+  /**
+   * Static builder function like {@link #createSpecWithOauth(String, String, List, FhirVersion, boolean, long, KeyStoreSpec, JWSAlgorithm, String)} with custom HTTP client settings
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP clients shared by connections to the FHIR server and OAuth endpoint
+   * @return {@link EpicFhirSpecification} using the {@link OauthAuthentication} schema
+   */
+  public static EpicFhirSpecification createSpecWithOauth(
+          String hostname,
+          String oauthEndpoint,
+          List<String> scopes,
+          FhirVersion fhirVersion,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          KeyStoreSpec keyStoreSpec,
+          JWSAlgorithm securityAlg,
+          String clientId,
+          HttpClientSettings httpClientSettings) {
+    return createSpecWithOauth(
+            hostname,
+            oauthEndpoint,
+            scopes,
+            fhirVersion,
+            limitRate,
+            rateLimitWaitDuration,
+            keyStoreSpec,
+            securityAlg,
+            clientId,
+            httpClientSettings,
+            null);
+  }
+
+  /**
+   * Static builder function like {@link #createSpecWithOauth(String, String, List, FhirVersion, boolean, long, KeyStoreSpec, JWSAlgorithm, String)} with custom HTTP client settings and a token store
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP clients shared by connections to the FHIR server and OAuth endpoint
+   * @param tokenStore {@link TokenStore}: The store access tokens are shared through across restarts and processes (i.e. a {@link FileTokenStore}), null to keep them in memory only
+   * @return {@link EpicFhirSpecification} using the {@link OauthAuthentication} schema
+   */
+  public static EpicFhirSpecification createSpecWithOauth(
+          String hostname,
+          String oauthEndpoint,
+          List<String> scopes,
+          FhirVersion fhirVersion,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          KeyStoreSpec keyStoreSpec,
+          JWSAlgorithm securityAlg,
+          String clientId,
+          HttpClientSettings httpClientSettings,
+          TokenStore tokenStore) {
     KeyStoreAccessor keyStoreAccessor = new KeyStoreAccessor(keyStoreSpec);
     return new EpicFhirSpecification(
             hostname,
@@ -96,11 +174,16 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
                     securityAlg,
                     clientId,
                     oauthEndpoint,
-                    String.join("", scopes),
-                    TOKEN_TTL),
+                    String.join(" ", scopes),
+                    TOKEN_TTL,
+                    OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION,
+                    OauthAuthentication.DEFAULT_CLOCK_SKEW_SECONDS,
+                    httpClientSettings,
+                    tokenStore),
             fhirVersion,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
   /**
@@ -111,6 +194,7 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
    * @param fhirVersion {@link FhirVersion}: The version of the FHIR server that this specification references
    * @param limitRate boolean: If connections made using this specification should limit requests to the FHIR server
    * @param rateLimitWaitDuration long: The amount of time in seconds that connections made using this specification should wait between requests, only applied if limitRate is true
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
    */
   private EpicFhirSpecification(
           String hostname,
@@ -118,7 +202,8 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
           FhirAuthentication fhirAuth,
           FhirVersion fhirVersion,
           boolean limitRate,
-          long rateLimitWaitDuration) {
+          long rateLimitWaitDuration,
+          HttpClientSettings httpClientSettings) {
     super(
             hostname,
             scopes,
@@ -126,7 +211,8 @@ public class EpicFhirSpecification extends AbstractFhirSpecification {
             fhirVersion,
             FhirDialect.EPIC,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
 }
@@ -1,6 +1,13 @@
 package com.rforristall.fhir.exception;
 
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Objects;
+import java.util.Optional;
 
 public class HttpErrorException extends Exception {
   
@@ -11,15 +18,46 @@ public class HttpErrorException extends Exception {
   
   private int statusCode;
   private String msg;
+  private Duration retryAfter;
 
   //TODO handle different msgs based on provided status code
   public static HttpErrorException createExceptionFromStatusCode(int statusCode, String responseBody) {
-    return new HttpErrorException(statusCode, responseBody);
+    return new HttpErrorException(statusCode, responseBody, null);
   }
   
-  private HttpErrorException(int statusCode, String msg) {
+  public static HttpErrorException createExceptionFromResponse(HttpResponse<String> response) {
+    return createExceptionFromResponse(response.statusCode(), response.headers(), response.body());
+  }
+  
+  public static HttpErrorException createExceptionFromResponse(int statusCode, HttpHeaders headers, String responseBody) {
+    return new HttpErrorException(statusCode, responseBody, parseRetryAfter(headers));
+  }
+  
+  private HttpErrorException(int statusCode, String msg, Duration retryAfter) {
     this.statusCode = statusCode;
     this.msg = msg;
+    this.retryAfter = retryAfter;
+  }
+  
+  /**
+   * Helper function for reading the Retry-After header, which is either a number of seconds or an HTTP date
+   * @param headers {@link HttpHeaders}: The headers of the response
+   * @return {@link Duration} to wait before retrying, or null if the header is missing or invalid
+   */
+  public static Duration parseRetryAfter(HttpHeaders headers) {
+    Optional<String> header = headers.firstValue("Retry-After");
+    if (!header.isPresent()) return null;
+    String value = header.get().trim();
+    try {
+      return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+    } catch (NumberFormatException ex) {
+      try {
+        Duration untilDate = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+        return untilDate.isNegative() ? Duration.ZERO : untilDate;
+      } catch (DateTimeParseException dex) {
+        return null;
+      }
+    }
   }
 
   public static long getSerialversionuid() {
@@ -34,9 +72,13 @@ public class HttpErrorException extends Exception {
     return msg;
   }
 
+  public Duration getRetryAfter() {
+    return retryAfter;
+  }
+
   @Override
   public int hashCode() {
-    return Objects.hash(msg, statusCode);
+    return Objects.hash(msg, retryAfter, statusCode);
   }
 
   @Override
@@ -48,12 +90,12 @@ public class HttpErrorException extends Exception {
     if (getClass() != obj.getClass())
       return false;
     HttpErrorException other = (HttpErrorException) obj;
-    return Objects.equals(msg, other.msg) && statusCode == other.statusCode;
+    return Objects.equals(msg, other.msg) && Objects.equals(retryAfter, other.retryAfter) && statusCode == other.statusCode;
   }
 
   @Override
   public String toString() {
-    return "HttpErrorException [statusCode=" + statusCode + ", msg=" + msg + "]";
+    return "HttpErrorException [statusCode=" + statusCode + ", msg=" + msg + ", retryAfter=" + retryAfter + "]";
   }
   
   
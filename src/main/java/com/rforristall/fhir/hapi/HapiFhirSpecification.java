@@ -5,6 +5,7 @@ import java.util.List;
 import com.rforristall.fhir.auth.BasicAuthentication;
 import com.rforristall.fhir.auth.FhirAuthentication;
 import com.rforristall.fhir.auth.NoAuthentication;
+import com.rforristall.fhir.http.HttpClientSettings;
 import com.rforristall.fhir.spec.AbstractFhirSpecification;
 import com.rforristall.fhir.spec.FhirDialect;
 import com.rforristall.fhir.spec.FhirVersion;
@@ -31,13 +32,35 @@ public class HapiFhirSpecification extends AbstractFhirSpecification {
           FhirVersion fhirVersion,
           boolean limitRate,
           long rateLimitWaitDuration) {
+    return createSpecWithNoAuth(
+            hostname,
+            scopes,
+            fhirVersion,
+            limitRate,
+            rateLimitWaitDuration,
+            HttpClientSettings.defaultSettings());
+  }
+
+  /**
+   * Static builder function like {@link #createSpecWithNoAuth(String, List, FhirVersion, boolean, long)} with custom HTTP client settings
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
+   * @return {@link HapiFhirSpecification} using the {@link NoAuthentication} schema
+   */
+  public static HapiFhirSpecification createSpecWithNoAuth(
+          String hostname,
+          List<String> scopes,
+          FhirVersion fhirVersion,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          HttpClientSettings httpClientSettings) {
     return new HapiFhirSpecification(
             hostname,
             scopes,
             new NoAuthentication(),
             fhirVersion,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
   /**
@@ -61,13 +84,41 @@ public class HapiFhirSpecification extends AbstractFhirSpecification {
           String username,
           String password,
           String clientId) {
+    return createSpecWithBasicAuth(
+            hostname,
+            scopes,
+            fhirVersion,
+            limitRate,
+            rateLimitWaitDuration,
+            username,
+            password,
+            clientId,
+            HttpClientSettings.defaultSettings());
+  }
+
+  /**
+   * Static builder function like {@link #createSpecWithBasicAuth(String, List, FhirVersion, boolean, long, String, String, String)} with custom HTTP client settings
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
+   * @return {@link HapiFhirSpecification} using the {@link BasicAuthentication} schema
+   */
+  public static HapiFhirSpecification createSpecWithBasicAuth(
+          String hostname,
+          List<String> scopes,
+          FhirVersion fhirVersion,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          String username,
+          String password,
+          String clientId,
+          HttpClientSettings httpClientSettings) {
     return new HapiFhirSpecification(
             hostname,
             scopes,
             BasicAuthentication.createInternalUserBasicAuthentication(username, password, clientId),
             fhirVersion,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
   /**
@@ -78,6 +129,7 @@ public class HapiFhirSpecification extends AbstractFhirSpecification {
    * @param fhirVersion {@link FhirVersion}: The version of the FHIR server that this specification references
    * @param limitRate boolean: If connections made using this specification should limit requests to the FHIR server
    * @param rateLimitWaitDuration long: The amount of time in seconds that connections made using this specification should wait between requests, only applied if limitRate is true
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
    */
   private HapiFhirSpecification(
           String hostname,
@@ -85,7 +137,8 @@ public class HapiFhirSpecification extends AbstractFhirSpecification {
           FhirAuthentication fhirAuth,
           FhirVersion fhirVersion,
           boolean limitRate,
-          long rateLimitWaitDuration) {
+          long rateLimitWaitDuration,
+          HttpClientSettings httpClientSettings) {
     super(
             hostname,
             scopes,
@@ -93,7 +146,8 @@ public class HapiFhirSpecification extends AbstractFhirSpecification {
             fhirVersion,
             FhirDialect.HAPI,
             limitRate,
-            rateLimitWaitDuration);
+            rateLimitWaitDuration,
+            httpClientSettings);
   }
 
 }
@@ -0,0 +1,151 @@
+package com.rforristall.fhir.http;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link HttpClient} instances shared by everything that connects to the same host with the same
+ * {@link HttpClientSettings}.
+ *
+ * Each client owns a selector thread, a connection pool and its TLS session cache, so building one per request throws
+ * all of that away. Callers acquire a client for a URL and release it once they are done with it, the client is closed
+ * and dropped from the registry when its last holder releases it.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class HttpClientRegistry {
+
+  /**
+   * The registry shared by the whole library
+   */
+  private static final HttpClientRegistry SHARED_REGISTRY = new HttpClientRegistry();
+
+  /**
+   * The clients currently held, keyed by host and settings
+   */
+  private final ConcurrentMap<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+
+  /**
+   * Getter function for the registry shared by the whole library
+   * @return {@link HttpClientRegistry} shared registry
+   */
+  public static HttpClientRegistry getShared() {
+    return SHARED_REGISTRY;
+  }
+
+  /**
+   * Acquires the client for the host of the provided URL, building it if no other holder has one with the same settings
+   * @param url {@link String}: Any URL on the host that will be connected to
+   * @param settings {@link HttpClientSettings}: The settings the client should be built with
+   * @return {@link HttpClient} shared with every other holder for the same host and settings
+   */
+  public HttpClient acquire(String url, HttpClientSettings settings) {
+    PooledClient pooled = clients.compute(new ClientKey(getHostKey(url), settings), (key, existing) -> {
+      PooledClient client = existing != null ? existing : new PooledClient(settings.buildClient());
+      client.references++;
+      return client;
+    });
+    return pooled.client;
+  }
+
+  /**
+   * Releases a client previously acquired for the host of the provided URL, closing it when it has no holders left
+   * @param url {@link String}: The URL that was used to acquire the client
+   * @param settings {@link HttpClientSettings}: The settings that were used to acquire the client
+   */
+  public void release(String url, HttpClientSettings settings) {
+    PooledClient[] closed = new PooledClient[1];
+    clients.computeIfPresent(new ClientKey(getHostKey(url), settings), (key, existing) -> {
+      if (--existing.references > 0) return existing;
+      closed[0] = existing;
+      return null;
+    });
+    if (closed[0] != null) closeClient(closed[0].client);
+  }
+
+  /**
+   * Getter function for the number of distinct clients currently held
+   * @return int number of clients
+   */
+  public int size() {
+    return clients.size();
+  }
+
+  /**
+   * Helper function for reducing a URL to the scheme, host and port that a connection pool can be shared across
+   * @param url {@link String}: The URL to reduce
+   * @return {@link String} key for the host of the URL
+   */
+  private static String getHostKey(String url) {
+    URI uri = URI.create(url);
+    if (uri.getHost() == null) return url.toLowerCase(Locale.ROOT);
+    String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "https";
+    int port = uri.getPort() != -1 ? uri.getPort() : ("http".equals(scheme) ? 80 : 443);
+    return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+  }
+
+  /**
+   * Closes the client when the runtime supports it (Java 21 and later), otherwise the client shuts down once unreachable
+   * @param client {@link HttpClient}: The client to close
+   */
+  private static void closeClient(HttpClient client) {
+    if (client instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) client).close();
+      } catch (Exception ex) {
+        // Nothing is waiting on the client anymore, failing to close it cleanly is not actionable
+      }
+    }
+  }
+
+  /**
+   * Key of a pooled client
+   */
+  private static class ClientKey {
+
+    private final String hostKey;
+    private final HttpClientSettings settings;
+
+    private ClientKey(String hostKey, HttpClientSettings settings) {
+      this.hostKey = hostKey;
+      this.settings = settings;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(hostKey, settings);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null)
+        return false;
+      if (getClass() != obj.getClass())
+        return false;
+      ClientKey other = (ClientKey) obj;
+      return Objects.equals(hostKey, other.hostKey) && Objects.equals(settings, other.settings);
+    }
+
+  }
+
+  /**
+   * A pooled client and the number of holders it has, only modified inside the map's compute functions
+   */
+  private static class PooledClient {
+
+    private final HttpClient client;
+    private int references;
+
+    private PooledClient(HttpClient client) {
+      this.client = client;
+    }
+
+  }
+
+}
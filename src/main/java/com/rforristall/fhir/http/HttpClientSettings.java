@@ -0,0 +1,147 @@
+package com.rforristall.fhir.http;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+
+import com.rforristall.fhir.util.VirtualThreads;
+
+/**
+ * Settings used to build the {@link HttpClient} shared by all connections to a host through the {@link HttpClientRegistry}
+ * <p>
+ * Connection reuse is not a per-client setting of {@link HttpClient}, idle connections are kept alive for the
+ * JVM-wide {@code jdk.httpclient.keepalive.timeout} and pooled up to {@code jdk.httpclient.connectionPoolSize}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class HttpClientSettings {
+
+  /**
+   * The default amount of time to wait for a connection to be established
+   */
+  public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+  /**
+   * Settings that prefer HTTP/2, use the default connect timeout, the client's own executor and the JVM default TLS context
+   */
+  private static final HttpClientSettings DEFAULT_SETTINGS = new HttpClientSettings(true, DEFAULT_CONNECT_TIMEOUT, null, null);
+
+  /**
+   * If HTTP/2 should be negotiated with the server, falling back to HTTP/1.1 when it is not supported
+   */
+  private final boolean preferHttp2;
+
+  /**
+   * The amount of time to wait for a connection to be established
+   */
+  private final Duration connectTimeout;
+
+  /**
+   * The executor used for asynchronous tasks of the client, null to use the client's default executor
+   */
+  private final Executor executor;
+
+  /**
+   * The TLS context used for secure connections, null to use the JVM default
+   */
+  private final SSLContext sslContext;
+
+  /**
+   * Constructor for HTTP client settings
+   * @param preferHttp2 boolean: If HTTP/2 should be negotiated with the server, falling back to HTTP/1.1 when it is not supported
+   * @param connectTimeout {@link Duration}: The amount of time to wait for a connection to be established
+   * @param executor {@link Executor}: The executor used for asynchronous tasks of the client, null to use the client's default executor
+   * @param sslContext {@link SSLContext}: The TLS context used for secure connections, null to use the JVM default
+   */
+  public HttpClientSettings(boolean preferHttp2, Duration connectTimeout, Executor executor, SSLContext sslContext) {
+    super();
+    this.preferHttp2 = preferHttp2;
+    this.connectTimeout = connectTimeout;
+    this.executor = executor;
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Getter function for the default settings
+   * @return {@link HttpClientSettings} that prefer HTTP/2 with the default connect timeout, executor and TLS context
+   */
+  public static HttpClientSettings defaultSettings() {
+    return DEFAULT_SETTINGS;
+  }
+
+  /**
+   * Getter function for settings that run the client's asynchronous tasks on the library's shared virtual thread
+   * executor, or on its shared platform thread pool when the runtime does not support virtual threads
+   * @return {@link HttpClientSettings} that prefer HTTP/2 with the default connect timeout and TLS context
+   */
+  public static HttpClientSettings virtualThreadSettings() {
+    return VirtualThreadSettingsHolder.SETTINGS;
+  }
+
+  public boolean isPreferHttp2() {
+    return preferHttp2;
+  }
+
+  public Duration getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  /**
+   * Builds a new client using these settings; the client keeps its own connection pool so connections are reused for as
+   * long as the client is shared
+   * @return {@link HttpClient} configured with these settings
+   */
+  HttpClient buildClient() {
+    HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(preferHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1);
+    if (connectTimeout != null) builder.connectTimeout(connectTimeout);
+    if (executor != null) builder.executor(executor);
+    if (sslContext != null) builder.sslContext(sslContext);
+    return builder.build();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(connectTimeout, executor, preferHttp2, sslContext);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    HttpClientSettings other = (HttpClientSettings) obj;
+    return Objects.equals(connectTimeout, other.connectTimeout) && executor == other.executor
+            && preferHttp2 == other.preferHttp2 && sslContext == other.sslContext;
+  }
+
+  @Override
+  public String toString() {
+    return "HttpClientSettings [preferHttp2=" + preferHttp2 + ", connectTimeout=" + connectTimeout + ", executor="
+            + executor + ", sslContext=" + (sslContext != null ? sslContext.getProtocol() : "<Default>") + "]";
+  }
+
+  /**
+   * Holder for the virtual thread settings, so the shared executor is only created when they are first used
+   */
+  private static class VirtualThreadSettingsHolder {
+
+    private static final HttpClientSettings SETTINGS = new HttpClientSettings(true, DEFAULT_CONNECT_TIMEOUT, VirtualThreads.getSharedExecutor(), null);
+
+  }
+
+}
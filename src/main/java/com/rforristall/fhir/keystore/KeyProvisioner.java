@@ -0,0 +1,126 @@
+package com.rforristall.fhir.keystore;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.rforristall.fhir.util.CertificateInfo;
+
+/**
+ * Creates the keystores and key sets of many clients (i.e. one per tenant) in parallel.
+ *
+ * Generating a key pair is CPU bound, so keystores are provisioned on a pool sized to the number of processors. Specs
+ * whose keys share a keystore file are provisioned one after the other, as each one reads the keystore, adds its key and
+ * writes the keystore back, while specs with separate keystore files never wait on each other. Provisioning a spec
+ * whose keystore already holds its alias leaves the keystore unchanged, so a failed batch can simply be run again.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class KeyProvisioner implements AutoCloseable {
+
+  /**
+   * The pool the keys are generated on
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The last provisioning queued for each keystore file, later provisionings of the same file run once it completes
+   */
+  private final ConcurrentMap<Path, CompletableFuture<Void>> queuedByKeyStore = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for a provisioner using one thread per available processor
+   */
+  public KeyProvisioner() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructor for a provisioner
+   * @param parallelism int: The maximum number of keys generated at the same time, at least 1
+   */
+  public KeyProvisioner(int parallelism) {
+    super();
+    if (parallelism < 1) throw new IllegalArgumentException("The provisioner needs at least one thread!");
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "fhir-key-provisioning-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Creates the keystore and key set of a spec in the background, see {@link KeyStoreAccessor#createKeyStoreAndKeySet(JWSAlgorithm, CertificateInfo)}
+   * @param keyStoreSpec {@link KeyStoreSpec}: The specification of the keystore to provision
+   * @param securityAlg {@link JWSAlgorithm}: The JWS algorithm of the key
+   * @param certificateInfo {@link CertificateInfo}: The subject of the key's self-signed certificate
+   * @return {@link CompletableFuture}<{@link Void}> completed once the keystore and key set are written, exceptionally with the cause if they could not be
+   */
+  public CompletableFuture<Void> provision(KeyStoreSpec keyStoreSpec, JWSAlgorithm securityAlg, CertificateInfo certificateInfo) {
+    Path keyStorePath = keyStoreSpec.getKeyStoreFilePath().toAbsolutePath().normalize();
+    CompletableFuture<Void> provisioned = new CompletableFuture<>();
+    CompletableFuture<Void> queued = queuedByKeyStore.compute(keyStorePath, (path, previous) -> {
+      CompletableFuture<Void> start = previous != null ? previous.handle((ignored, ex) -> null) : CompletableFuture.completedFuture(null);
+      return start.thenRunAsync(() -> {
+        try {
+          new KeyStoreAccessor(keyStoreSpec).createKeyStoreAndKeySet(securityAlg, certificateInfo);
+        } catch (Exception ex) {
+          throw new CompletionException(ex);
+        }
+      }, executor);
+    });
+    queued.whenComplete((ignored, ex) -> {
+      // Drop the queue entry once nothing else was queued behind it, so the map does not grow with every keystore
+      queuedByKeyStore.remove(keyStorePath, queued);
+      if (ex == null) provisioned.complete(null);
+      else provisioned.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+    });
+    return provisioned;
+  }
+
+  /**
+   * Provisions the keystores and key sets of many specs in parallel, waiting until all of them are done
+   * @param keyStoreSpecs {@link Collection}<{@link KeyStoreSpec}>: The specifications of the keystores to provision
+   * @param securityAlg {@link JWSAlgorithm}: The JWS algorithm of the keys
+   * @param certificateInfo {@link CertificateInfo}: The subject of the keys' self-signed certificates
+   * @return {@link Map}<{@link KeyStoreSpec}, {@link Throwable}> of the specs that could not be provisioned along with the cause, empty if all succeeded
+   * @throws InterruptedException if the thread was interrupted while waiting, provisioning continues in the background
+   */
+  public Map<KeyStoreSpec, Throwable> provisionAll(Collection<KeyStoreSpec> keyStoreSpecs, JWSAlgorithm securityAlg, CertificateInfo certificateInfo) throws InterruptedException {
+    List<CompletableFuture<Void>> provisioned = new ArrayList<>(keyStoreSpecs.size());
+    for (KeyStoreSpec keyStoreSpec : keyStoreSpecs) provisioned.add(provision(keyStoreSpec, securityAlg, certificateInfo));
+    Map<KeyStoreSpec, Throwable> failures = new LinkedHashMap<>();
+    int i = 0;
+    for (KeyStoreSpec keyStoreSpec : keyStoreSpecs) {
+      try {
+        provisioned.get(i++).get();
+      } catch (ExecutionException ex) {
+        failures.put(keyStoreSpec, ex.getCause());
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Shuts the pool down, provisionings already submitted to it still complete while ones waiting on an earlier
+   * provisioning of the same keystore file fail with a {@link java.util.concurrent.RejectedExecutionException}
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+}
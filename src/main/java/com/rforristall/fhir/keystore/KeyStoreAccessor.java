@@ -1,16 +1,23 @@
 package com.rforristall.fhir.keystore;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -26,8 +33,17 @@ import java.security.interfaces.RSAPublicKey;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
@@ -59,6 +75,18 @@ public class KeyStoreAccessor {
   
   private static final String KEY_STORE_TYPE = "PKCS12";
   
+  /**
+   * Loaded signing keys shared by all accessors by keystore and algorithm, so the keystore is only read and decrypted
+   * again when the file changes. Each entry carries the lock its key is loaded under, so the locks go with the entries
+   */
+  private static final ConcurrentMap<SigningKeyId, SigningKeySlot> SIGNING_KEY_CACHE = new ConcurrentHashMap<>();
+  
+  /**
+   * Random source for key generation, a DRBG seeded once that never blocks on the entropy pool the way
+   * SecureRandom.getInstanceStrong() can in containers, and safe to share between threads generating keys in parallel
+   */
+  private static final SecureRandom KEY_RANDOM = newKeyRandom();
+  
   private KeyStoreSpec keyStoreSpec;
 
   public KeyStoreAccessor(KeyStoreSpec keyStoreSpec) {
@@ -94,7 +122,7 @@ public class KeyStoreAccessor {
       Date until = Date.from(LocalDate.now().plus(365, ChronoUnit.DAYS).atStartOfDay().toInstant(ZoneOffset.UTC));
       X509v3CertificateBuilder certBuilder = new X509v3CertificateBuilder(
               certName,
-              new BigInteger(10, new SecureRandom()),
+              new BigInteger(10, KEY_RANDOM),
               start,
               until,
               certName,
@@ -105,16 +133,16 @@ public class KeyStoreAccessor {
       certChain[0] = certificate;
       pkEntry = new KeyStore.PrivateKeyEntry(privateKey, certChain);
       ks.setEntry(keyStoreSpec.getKeyAlias(), pkEntry, keyProtParam);
-      Files.createDirectories(keyStoreSpec.getStoreDir());
-      try (FileOutputStream fos = new FileOutputStream(keyStoreSpec.getKeyStoreFilePath().toFile())) {
-        ks.store(fos, keyStoreSpec.getStorePassword().toCharArray());
-      }
+      ByteArrayOutputStream keyStoreBytes = new ByteArrayOutputStream();
+      ks.store(keyStoreBytes, keyStoreSpec.getStorePassword().toCharArray());
+      writeAtomically(keyStoreSpec.getKeyStoreFilePath(), keyStoreBytes.toByteArray(), false);
+      SIGNING_KEY_CACHE.keySet().removeIf(id -> id.keyStoreSpec.equals(keyStoreSpec));
     }
   }
   
   public SignedJWT getSignedJwtToken(JWSAlgorithm securityAlg, String clientId, String oauthEndpoint, long tokenTtl) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, JOSEException {
-    JwkAlgBuildParams buildParams = JwkAlgBuildParams.fromJwsAlg(securityAlg);
-    JWK key = fetchKeyFromStore(securityAlg);
+    SigningKey signingKey = getSigningKey(securityAlg);
+    JWK key = signingKey.getKey();
     Date now = new Date();
     JWSHeader header = new JWSHeader.Builder((JWSAlgorithm) key.getAlgorithm())
             .keyID(key.getKeyID())
@@ -122,15 +150,42 @@ public class KeyStoreAccessor {
             .build();
     JWTClaimsSet jwt = new JWTClaimsSet.Builder().issuer(clientId).subject(clientId).audience(oauthEndpoint).claim("kid", key.getKeyID()).notBeforeTime(Date.from(now.toInstant().minusSeconds(60))).expirationTime(Date.from(now.toInstant().plusSeconds(tokenTtl))).jwtID(UUID.randomUUID().toString()).build();
     SignedJWT signedJwt = new SignedJWT(header, jwt);
-    JWSSigner jwsSigner = getSignerForAlg(key, buildParams);
-    signedJwt.sign(jwsSigner);
+    signedJwt.sign(signingKey.getSigner());
     return signedJwt;
   }
   
+  /**
+   * Derives a symmetric key from the private key of the keystore, so data can be encrypted for every process holding the
+   * keystore without managing a second secret. The key changes when the keystore's key is replaced
+   * @param label {@link String}: Separates keys derived for different purposes from the same private key
+   * @return {@link SecretKey} 256 bit AES key, the HMAC-SHA256 of the label keyed with the encoded private key
+   * @throws KeyStoreException if the keystore has no private key for the alias
+   * @throws IOException
+   * @throws NoSuchAlgorithmException
+   * @throws CertificateException
+   * @throws UnrecoverableEntryException
+   */
+  public SecretKey deriveSecretKey(String label) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+    KeyStore ks = KeyStore.getInstance(KEY_STORE_TYPE);
+    try (ByteArrayInputStream bis = new ByteArrayInputStream(Files.readAllBytes(keyStoreSpec.getKeyStoreFilePath()))) {
+      ks.load(bis, keyStoreSpec.getStorePassword().toCharArray());
+    }
+    KeyStore.ProtectionParameter keyProtParam = new KeyStore.PasswordProtection(keyStoreSpec.getKeyPassword().toCharArray());
+    KeyStore.PrivateKeyEntry pkEntry = (KeyStore.PrivateKeyEntry) ks.getEntry(keyStoreSpec.getKeyAlias(), keyProtParam);
+    if (pkEntry == null) throw new KeyStoreException("The keystore has no private key with the alias " + keyStoreSpec.getKeyAlias() + "!");
+    Mac mac = Mac.getInstance("HmacSHA256");
+    try {
+      mac.init(new SecretKeySpec(pkEntry.getPrivateKey().getEncoded(), "HmacSHA256"));
+    } catch (InvalidKeyException ex) {
+      throw new KeyStoreException("The private key with the alias " + keyStoreSpec.getKeyAlias() + " cannot be encoded", ex);
+    }
+    return new SecretKeySpec(mac.doFinal(label.getBytes(StandardCharsets.UTF_8)), "AES");
+  }
+  
   private JWK generateKey(JWSAlgorithm securityAlg) throws NoSuchAlgorithmException, UnsupportedOperationException {
     JwkAlgBuildParams buildParams = JwkAlgBuildParams.fromJwsAlg(securityAlg);
     KeyPairGenerator keyGen = KeyPairGenerator.getInstance(buildParams.getInstanceStr());
-    keyGen.initialize(buildParams.getKeySize(), SecureRandom.getInstanceStrong());
+    keyGen.initialize(buildParams.getKeySize(), KEY_RANDOM);
     KeyPair pair = keyGen.generateKeyPair();
     switch(buildParams) {
       case EC:
@@ -146,21 +201,85 @@ public class KeyStoreAccessor {
   private JWK generateKeySet(JWSAlgorithm securityAlg) throws NoSuchAlgorithmException, IOException {
     JWK key = generateKey(securityAlg);
     JWKSet jwkSet = new JWKSet(key);
-    Files.createDirectories(keyStoreSpec.getStoreDir());
-    File keySetFile = keyStoreSpec.getKeySetFilePath().toFile();
-    try (FileOutputStream fos = new FileOutputStream(keySetFile)) {
-      fos.write(jwkSet.toString().getBytes());
-      fos.flush();
-    }
+    writeAtomically(keyStoreSpec.getKeySetFilePath(), jwkSet.toString().getBytes(StandardCharsets.UTF_8), true);
     return key;
   }
   
-  private JWK fetchKeyFromStore(JWSAlgorithm securityAlg) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+  /**
+   * Writes a file to a temporary file in the same directory and renames it over the target, so readers (i.e. the
+   * signing key cache or the server publishing the key set) never see a partially written keystore or key set
+   * @param target {@link Path}: The file to write
+   * @param bytes byte[]: The contents of the file
+   * @param publicFile boolean: If the file can be read by other users (i.e. the public key set), otherwise it stays readable by the owner only
+   * @throws IOException if the file could not be written
+   */
+  private static void writeAtomically(Path target, byte[] bytes, boolean publicFile) throws IOException {
+    Path directory = Files.createDirectories(target.toAbsolutePath().getParent());
+    Path tempFile = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tempFile, bytes);
+      if (publicFile) {
+        try {
+          Files.setPosixFilePermissions(tempFile, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException ex) {
+          // Not a POSIX file system, the temporary file already has the default permissions
+        }
+      }
+      try {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+  
+  private static SecureRandom newKeyRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException ex) {
+      // Runtimes before Java 9 have no DRBG, the default SecureRandom does not block there either
+      return new SecureRandom();
+    }
+  }
+  
+  private SigningKey getSigningKey(JWSAlgorithm securityAlg) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, JOSEException {
+    Path keyStorePath = keyStoreSpec.getKeyStoreFilePath();
+    long lastModified = Files.getLastModifiedTime(keyStorePath).toMillis();
+    SigningKeySlot slot = SIGNING_KEY_CACHE.computeIfAbsent(new SigningKeyId(keyStoreSpec, securityAlg), id -> new SigningKeySlot());
+    SigningKey cached = slot.signingKey;
+    if (cached != null && cached.getLastModified() == lastModified) return cached;
+    // Decrypting the keystore is CPU heavy, when many authentications warm up at once only one thread loads it and the others wait for the cached key
+    slot.loadLock.lock();
+    try {
+      return loadSigningKey(slot, securityAlg, keyStorePath, lastModified);
+    } finally {
+      slot.loadLock.unlock();
+    }
+  }
+  
+  private SigningKey loadSigningKey(SigningKeySlot slot, JWSAlgorithm securityAlg, Path keyStorePath, long lastModified) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, JOSEException {
+    SigningKey cached = slot.signingKey;
+    if (cached != null && cached.getLastModified() == lastModified) return cached;
+    byte[] keyStoreBytes = Files.readAllBytes(keyStorePath);
+    byte[] checksum = MessageDigest.getInstance("SHA-256").digest(keyStoreBytes);
+    SigningKey signingKey;
+    if (cached != null && Arrays.equals(cached.getChecksum(), checksum)) {
+      // The file was touched but its contents are unchanged, skip decrypting the keystore again
+      signingKey = new SigningKey(securityAlg, cached.getKey(), cached.getSigner(), lastModified, checksum);
+    } else {
+      JWK key = fetchKeyFromStore(keyStoreBytes, securityAlg);
+      signingKey = new SigningKey(securityAlg, key, getSignerForAlg(key, JwkAlgBuildParams.fromJwsAlg(securityAlg)), lastModified, checksum);
+    }
+    slot.signingKey = signingKey;
+    return signingKey;
+  }
+  
+  private JWK fetchKeyFromStore(byte[] keyStoreBytes, JWSAlgorithm securityAlg) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
     KeyStore ks = KeyStore.getInstance(KEY_STORE_TYPE);
-    try(FileInputStream fis = new FileInputStream(keyStoreSpec.getKeyStoreFilePath().toFile())) {
-      ks.load(fis, keyStoreSpec.getStorePassword().toCharArray());
-    } catch (FileNotFoundException ex) {
-      ks.load(null, keyStoreSpec.getStorePassword().toCharArray());
+    try(ByteArrayInputStream bis = new ByteArrayInputStream(keyStoreBytes)) {
+      ks.load(bis, keyStoreSpec.getStorePassword().toCharArray());
     }
     KeyStore.ProtectionParameter keyProtParam = new KeyStore.PasswordProtection(keyStoreSpec.getKeyPassword().toCharArray());
     KeyStore.PrivateKeyEntry pkEntry = (KeyStore.PrivateKeyEntry) ks.getEntry(keyStoreSpec.getKeyAlias(), keyProtParam);
@@ -228,5 +347,85 @@ public class KeyStoreAccessor {
         throw new UnsupportedOperationException("The provided security algorithm: " + buildParams.getSecurityAlg().getName() + " has not been implemented, please choose either RSA or EC.");
     }
   }
+  
+  /**
+   * Cache key of a signing key, a keystore may be used with several algorithms
+   */
+  private static class SigningKeyId {
+    
+    private final KeyStoreSpec keyStoreSpec;
+    private final JWSAlgorithm securityAlg;
+    
+    private SigningKeyId(KeyStoreSpec keyStoreSpec, JWSAlgorithm securityAlg) {
+      this.keyStoreSpec = keyStoreSpec;
+      this.securityAlg = securityAlg;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(keyStoreSpec, securityAlg);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (obj == null)
+        return false;
+      if (getClass() != obj.getClass())
+        return false;
+      SigningKeyId other = (SigningKeyId) obj;
+      return Objects.equals(keyStoreSpec, other.keyStoreSpec) && Objects.equals(securityAlg, other.securityAlg);
+    }
+    
+  }
+  
+  /**
+   * The cached signing key of a keystore and algorithm along with the lock it is loaded under
+   */
+  private static class SigningKeySlot {
+    
+    private final ReentrantLock loadLock = new ReentrantLock();
+    private volatile SigningKey signingKey;
+    
+  }
+  
+  private static class SigningKey {
+    
+    private final JWSAlgorithm securityAlg;
+    private final JWK key;
+    private final JWSSigner signer;
+    private final long lastModified;
+    private final byte[] checksum;
+    
+    private SigningKey(JWSAlgorithm securityAlg, JWK key, JWSSigner signer, long lastModified, byte[] checksum) {
+      this.securityAlg = securityAlg;
+      this.key = key;
+      this.signer = signer;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+    }
+
+    public JWSAlgorithm getSecurityAlg() {
+      return securityAlg;
+    }
+
+    public JWK getKey() {
+      return key;
+    }
+
+    public JWSSigner getSigner() {
+      return signer;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public byte[] getChecksum() {
+      return checksum;
+    }
+    
+  }
 
 }
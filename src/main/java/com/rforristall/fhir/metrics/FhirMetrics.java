@@ -0,0 +1,91 @@
+package com.rforristall.fhir.metrics;
+
+import com.rforristall.fhir.client.HttpMethod;
+
+/**
+ * Service provider interface for recording the library's metrics, i.e. with an adapter to Micrometer or Dropwizard.
+ *
+ * Every method has an empty default so an implementation only overrides what it records. The methods are called on the
+ * request path, including the HTTP client's threads, so they must be thread-safe and should not block. Implementations
+ * are installed with {@link MetricsRegistry#setMetrics(FhirMetrics)} or discovered through {@link java.util.ServiceLoader},
+ * {@link #NOOP} is used otherwise.
+ *
+ * Requests are reported once per attempt, so a request that is retried is reported once for every response or failure.
+ * The number of requests in flight is the number of {@link #requestStarted} calls that have not been followed by
+ * {@link #requestCompleted} or {@link #requestFailed} for the same tags. A streamed response (i.e. a bulk data file)
+ * stays in flight until the caller has read its body to the end or closed it.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public interface FhirMetrics {
+
+  /**
+   * Implementation that records nothing, the default
+   */
+  FhirMetrics NOOP = new FhirMetrics() {};
+
+  /**
+   * Called when a request is handed to the HTTP client, after the rate limiter and the authentication
+   * @param tags {@link MetricTags}: The tenant, dialect and version of the connection
+   */
+  default void requestStarted(MetricTags tags) {
+  }
+
+  /**
+   * Called when a response and its body have been received, including error responses that are raised as an
+   * {@link com.rforristall.fhir.exception.HttpErrorException}
+   * @param tags {@link MetricTags}: The tenant, dialect and version of the connection
+   * @param method {@link HttpMethod}: The method of the request
+   * @param resourceType {@link String}: The resource type of the request, null if the request does not target a single type
+   * @param statusCode int: The status code of the response
+   * @param durationNanos long: The time from handing the request to the HTTP client to receiving the response
+   * @param bytesSent long: The size of the request body
+   * @param bytesReceived long: The number of bytes of the response body read from the connection, including chunked bodies without a Content-Length
+   */
+  default void requestCompleted(MetricTags tags, HttpMethod method, String resourceType, int statusCode, long durationNanos, long bytesSent, long bytesReceived) {
+  }
+
+  /**
+   * Called when a request failed without a response, i.e. on a connection failure or a timeout
+   * @param tags {@link MetricTags}: The tenant, dialect and version of the connection
+   * @param method {@link HttpMethod}: The method of the request
+   * @param resourceType {@link String}: The resource type of the request, null if the request does not target a single type
+   * @param cause {@link Throwable}: The failure
+   * @param durationNanos long: The time from handing the request to the HTTP client to the failure
+   */
+  default void requestFailed(MetricTags tags, HttpMethod method, String resourceType, Throwable cause, long durationNanos) {
+  }
+
+  /**
+   * Called when a GET request is answered with the response of an identical request already in flight instead of being sent
+   * @param tags {@link MetricTags}: The tenant, dialect and version of the connection
+   */
+  default void requestCoalesced(MetricTags tags) {
+  }
+
+  /**
+   * Called once a request has been let through by the rate limiter of its specification
+   * @param tags {@link MetricTags}: The tenant, dialect and version of the connection
+   * @param waitNanos long: The time the request waited on the rate limiter
+   */
+  default void rateLimitWaited(MetricTags tags, long waitNanos) {
+  }
+
+  /**
+   * Called when an OAuth token was acquired
+   * @param oauthEndpoint {@link String}: The token endpoint
+   * @param durationNanos long: The time taken by the token request, including signing the client assertion
+   */
+  default void tokenFetched(String oauthEndpoint, long durationNanos) {
+  }
+
+  /**
+   * Called when acquiring an OAuth token failed
+   * @param oauthEndpoint {@link String}: The token endpoint
+   * @param cause {@link Throwable}: The failure, an {@link com.rforristall.fhir.exception.HttpErrorException} if the endpoint answered with an error
+   * @param durationNanos long: The time taken by the token request, including signing the client assertion
+   */
+  default void tokenFetchFailed(String oauthEndpoint, Throwable cause, long durationNanos) {
+  }
+
+}
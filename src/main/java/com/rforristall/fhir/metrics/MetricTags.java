@@ -0,0 +1,83 @@
+package com.rforristall.fhir.metrics;
+
+import java.util.Objects;
+
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+
+/**
+ * The dimensions the metrics of a connection are recorded with. Clients build their tags once, so recording a request
+ * does not allocate them.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class MetricTags {
+
+  /**
+   * The tenant id used by connections that are not made through a {@link com.rforristall.fhir.tenant.TenantRegistry}
+   */
+  public static final String DEFAULT_TENANT = "default";
+
+  /**
+   * The id of the tenant the connection belongs to
+   */
+  private final String tenantId;
+
+  /**
+   * The dialect of the FHIR server
+   */
+  private final FhirDialect fhirDialect;
+
+  /**
+   * The version of the FHIR server
+   */
+  private final FhirVersion fhirVersion;
+
+  /**
+   * Constructor for the tags of a connection
+   * @param tenantId {@link String}: The id of the tenant the connection belongs to
+   * @param fhirDialect {@link FhirDialect}: The dialect of the FHIR server
+   * @param fhirVersion {@link FhirVersion}: The version of the FHIR server
+   */
+  public MetricTags(String tenantId, FhirDialect fhirDialect, FhirVersion fhirVersion) {
+    super();
+    this.tenantId = Objects.requireNonNull(tenantId);
+    this.fhirDialect = fhirDialect;
+    this.fhirVersion = fhirVersion;
+  }
+
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public FhirDialect getFhirDialect() {
+    return fhirDialect;
+  }
+
+  public FhirVersion getFhirVersion() {
+    return fhirVersion;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(fhirDialect, fhirVersion, tenantId);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    MetricTags other = (MetricTags) obj;
+    return fhirDialect == other.fhirDialect && fhirVersion == other.fhirVersion && Objects.equals(tenantId, other.tenantId);
+  }
+
+  @Override
+  public String toString() {
+    return "MetricTags [tenantId=" + tenantId + ", fhirDialect=" + fhirDialect + ", fhirVersion=" + fhirVersion + "]";
+  }
+
+}
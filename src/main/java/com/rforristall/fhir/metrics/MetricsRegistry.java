@@ -0,0 +1,46 @@
+package com.rforristall.fhir.metrics;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Holder for the {@link FhirMetrics} implementation the whole library records to.
+ *
+ * The first implementation found through {@link ServiceLoader} is installed when the class is loaded, {@link FhirMetrics#NOOP}
+ * if there is none. The implementation is read on every request, so replacing it takes effect right away.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class MetricsRegistry {
+
+  /**
+   * The implementation that is currently installed
+   */
+  private static volatile FhirMetrics metrics = loadMetrics();
+
+  private MetricsRegistry() {
+    super();
+  }
+
+  /**
+   * Getter function for the implementation that is currently installed
+   * @return {@link FhirMetrics} metrics, never null
+   */
+  public static FhirMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Installs an implementation for the whole library
+   * @param fhirMetrics {@link FhirMetrics}: The implementation to install, null to stop recording
+   */
+  public static void setMetrics(FhirMetrics fhirMetrics) {
+    metrics = fhirMetrics != null ? fhirMetrics : FhirMetrics.NOOP;
+  }
+
+  private static FhirMetrics loadMetrics() {
+    Iterator<FhirMetrics> providers = ServiceLoader.load(FhirMetrics.class).iterator();
+    return providers.hasNext() ? providers.next() : FhirMetrics.NOOP;
+  }
+
+}
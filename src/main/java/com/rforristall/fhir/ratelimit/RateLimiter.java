@@ -0,0 +1,202 @@
+package com.rforristall.fhir.ratelimit;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Lock-free rate limiter implementing the generic cell rate algorithm (GCRA), the virtual scheduling equivalent of a
+ * token bucket.
+ *
+ * The whole state is a single theoretical arrival time in nanoseconds: a permit is granted when the theoretical arrival
+ * time minus the burst tolerance is not in the future, and granting it moves the theoretical arrival time forward by one
+ * emission interval. This allows bursts of up to the configured size after idle periods while holding the sustained
+ * rate, with nanosecond precision and without a background refill thread. One limiter is shared by every thread using
+ * the same {@link com.rforristall.fhir.spec.FhirSpecification}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class RateLimiter {
+
+  /**
+   * Future returned by {@link #acquireAsync()} when no wait is needed, avoids allocating on the unthrottled path
+   */
+  private static final CompletableFuture<Void> NO_WAIT = CompletableFuture.completedFuture(null);
+
+  /**
+   * The amount of time requests are paused after a 429 or 503 that did not include a Retry-After header
+   */
+  private static final Duration DEFAULT_THROTTLED_PAUSE = Duration.ofSeconds(1);
+
+  /**
+   * The current emission interval and burst tolerance, replaced as a whole when the rate is changed
+   */
+  private final AtomicReference<Rate> rate;
+
+  /**
+   * The theoretical arrival time (in {@link System#nanoTime()}) of the next permit if permits are granted at the sustained rate
+   */
+  private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+  /**
+   * Constructor for a rate limiter
+   * @param permitsPerSecond double: The sustained number of permits granted per second, zero or less for no limit
+   * @param burst int: The number of permits that can be granted at once after an idle period, at least 1
+   */
+  public RateLimiter(double permitsPerSecond, int burst) {
+    super();
+    this.rate = new AtomicReference<>(new Rate(permitsPerSecond, burst));
+  }
+
+  /**
+   * Static builder function for a limiter that never waits, it still honors pauses requested by the server through
+   * {@link #onThrottled(HttpErrorException)}
+   * @return {@link RateLimiter} without a sustained rate
+   */
+  public static RateLimiter unlimited() {
+    return new RateLimiter(0, 1);
+  }
+
+  /**
+   * Static builder function for a limiter that spaces permits a fixed interval apart without bursts
+   * @param interval {@link Duration}: The amount of time between two permits
+   * @return {@link RateLimiter} granting one permit per interval
+   */
+  public static RateLimiter fromInterval(Duration interval) {
+    if (interval.isZero() || interval.isNegative()) return unlimited();
+    return new RateLimiter(TimeUnit.SECONDS.toNanos(1) / (double) interval.toNanos(), 1);
+  }
+
+  /**
+   * Changes the sustained rate and burst of the limiter, permits that were already reserved are not affected
+   * @param permitsPerSecond double: The sustained number of permits granted per second, zero or less for no limit
+   * @param burst int: The number of permits that can be granted at once after an idle period, at least 1
+   */
+  public void setRate(double permitsPerSecond, int burst) {
+    rate.set(new Rate(permitsPerSecond, burst));
+  }
+
+  /**
+   * Getter function for the sustained rate of the limiter
+   * @return double permits granted per second, zero if the limiter has no sustained rate
+   */
+  public double getPermitsPerSecond() {
+    long interval = rate.get().emissionIntervalNanos;
+    return interval > 0 ? TimeUnit.SECONDS.toNanos(1) / (double) interval : 0;
+  }
+
+  /**
+   * Getter function for the burst of the limiter
+   * @return int number of permits that can be granted at once after an idle period
+   */
+  public int getBurst() {
+    return rate.get().burst;
+  }
+
+  /**
+   * Grants a permit only if one is available right now
+   * @return true if a permit was granted and false otherwise
+   */
+  public boolean tryAcquire() {
+    for (;;) {
+      long now = System.nanoTime();
+      long arrival = theoreticalArrival.get();
+      Rate current = rate.get();
+      long start = arrival - now > 0 ? arrival : now;
+      if (start - now > current.burstToleranceNanos) return false;
+      if (theoreticalArrival.compareAndSet(arrival, start + current.emissionIntervalNanos)) return true;
+    }
+  }
+
+  /**
+   * Reserves the next permit, the caller must wait for the returned amount of time before using it
+   * @return long nanoseconds until the reserved permit may be used, zero if it may be used right away
+   */
+  public long reserve() {
+    for (;;) {
+      long now = System.nanoTime();
+      long arrival = theoreticalArrival.get();
+      Rate current = rate.get();
+      long start = arrival - now > 0 ? arrival : now;
+      if (theoreticalArrival.compareAndSet(arrival, start + current.emissionIntervalNanos))
+        return Math.max(0, start - current.burstToleranceNanos - now);
+    }
+  }
+
+  /**
+   * Reserves the next permit and blocks the calling thread until it may be used
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public void acquire() throws InterruptedException {
+    long waitNanos = reserve();
+    if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+
+  /**
+   * Reserves the next permit without blocking the calling thread
+   * @return {@link CompletableFuture}<{@link Void}> completed once the reserved permit may be used
+   */
+  public CompletableFuture<Void> acquireAsync() {
+    long waitNanos = reserve();
+    if (waitNanos <= 0) return NO_WAIT;
+    return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+  }
+
+  /**
+   * Stops granting permits for the provided amount of time, permits granted afterwards start again without a burst
+   * @param pause {@link Duration}: The amount of time to stop granting permits for
+   */
+  public void pause(Duration pause) {
+    long pauseNanos = pause.toNanos();
+    for (;;) {
+      long now = System.nanoTime();
+      long arrival = theoreticalArrival.get();
+      long resumeAt = now + pauseNanos + rate.get().burstToleranceNanos;
+      if (arrival - resumeAt >= 0 || theoreticalArrival.compareAndSet(arrival, resumeAt)) return;
+    }
+  }
+
+  /**
+   * Adapts the limiter to an error returned by the server, a 429 or 503 pauses all permits for the Retry-After duration
+   * @param ex {@link HttpErrorException}: The error returned by the server
+   * @return true if the error was a throttling response and the limiter was paused, false otherwise
+   */
+  public boolean onThrottled(HttpErrorException ex) {
+    if (ex.getStatusCode() != 429 && ex.getStatusCode() != 503) return false;
+    if (ex.getRetryAfter() != null) pause(ex.getRetryAfter());
+    else if (ex.getStatusCode() == 429) pause(DEFAULT_THROTTLED_PAUSE);
+    else return false;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    Rate current = rate.get();
+    return "RateLimiter [permitsPerSecond=" + getPermitsPerSecond() + ", burst=" + current.burst + "]";
+  }
+
+  /**
+   * Immutable rate parameters of the limiter
+   */
+  private static class Rate {
+
+    private final int burst;
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+
+    private Rate(double permitsPerSecond, int burst) {
+      if (burst < 1) throw new IllegalArgumentException("The burst of a rate limiter must be at least 1!");
+      this.burst = burst;
+      this.emissionIntervalNanos = permitsPerSecond > 0 && !Double.isInfinite(permitsPerSecond)
+              ? (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond)
+              : 0;
+      this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+    }
+
+  }
+
+}
@@ -0,0 +1,79 @@
+package com.rforristall.fhir.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free budget limiting the retries sent to a single host to a fraction of its requests.
+ *
+ * Every request deposits the configured ratio of a retry into the budget and every retry withdraws a whole one, the
+ * balance is capped at the reserve so that a long healthy period cannot be spent on a sudden burst of retries. When a
+ * host starts failing every request the retries it receives settle at the ratio instead of multiplying the load.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class RetryBudget {
+
+  /**
+   * The number of units a single retry is worth, the balance is kept in thousandths of a retry to stay integral
+   */
+  private static final long UNITS_PER_RETRY = 1000;
+
+  /**
+   * The units deposited by every request
+   */
+  private final long depositUnits;
+
+  /**
+   * The maximum balance of the budget in units
+   */
+  private final long capacityUnits;
+
+  /**
+   * The current balance of the budget in units
+   */
+  private final AtomicLong balanceUnits;
+
+  /**
+   * Constructor for a retry budget, starting with a full reserve
+   * @param ratio double: The fraction of requests that may be retried, i.e. 0.2 for one retry every five requests
+   * @param reserve int: The number of retries that can be spent at once, also available before any request was made
+   */
+  public RetryBudget(double ratio, int reserve) {
+    super();
+    this.depositUnits = (long) (ratio * UNITS_PER_RETRY);
+    this.capacityUnits = reserve * UNITS_PER_RETRY;
+    this.balanceUnits = new AtomicLong(capacityUnits);
+  }
+
+  /**
+   * Deposits the share of a retry earned by a request
+   */
+  public void onRequest() {
+    for (;;) {
+      long balance = balanceUnits.get();
+      if (balance >= capacityUnits) return;
+      if (balanceUnits.compareAndSet(balance, Math.min(capacityUnits, balance + depositUnits))) return;
+    }
+  }
+
+  /**
+   * Withdraws a retry from the budget if there is one available
+   * @return true if the retry may be sent and false if the budget is exhausted
+   */
+  public boolean tryWithdraw() {
+    for (;;) {
+      long balance = balanceUnits.get();
+      if (balance < UNITS_PER_RETRY) return false;
+      if (balanceUnits.compareAndSet(balance, balance - UNITS_PER_RETRY)) return true;
+    }
+  }
+
+  /**
+   * Getter function for the number of whole retries currently available
+   * @return long available retries
+   */
+  public long getAvailableRetries() {
+    return balanceUnits.get() / UNITS_PER_RETRY;
+  }
+
+}
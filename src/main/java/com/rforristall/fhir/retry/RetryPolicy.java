@@ -0,0 +1,207 @@
+package com.rforristall.fhir.retry;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.rforristall.fhir.client.HttpMethod;
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Policy deciding if and when a failed request is retried.
+ *
+ * The following failures are retryable:
+ * <ul>
+ * <li>408 and 429 responses and connection failures, for every method since the server did not process the request</li>
+ * <li>5xx responses, connection resets and response timeouts, only for idempotent methods</li>
+ * </ul>
+ *
+ * The delay before a retry is the Retry-After sent by the server when there is one, otherwise an exponential backoff with
+ * full jitter. Retries are also limited per host by a {@link RetryBudget} so that a failing host cannot trigger a retry
+ * storm.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class RetryPolicy {
+
+  /**
+   * Policy that never retries
+   */
+  private static final RetryPolicy NO_RETRIES = new RetryPolicy(1, Duration.ZERO, Duration.ZERO, Duration.ZERO, 0, 0);
+
+  /**
+   * Policy used by default: up to 4 attempts, backoff between 200 milliseconds and 30 seconds, Retry-After honored up
+   * to 2 minutes and retries limited to 20% of the requests to a host with a reserve of 10
+   */
+  private static final RetryPolicy DEFAULT_POLICY = new RetryPolicy(4, Duration.ofMillis(200), Duration.ofSeconds(30), Duration.ofMinutes(2), 0.2, 10);
+
+  /**
+   * The maximum number of attempts for a request, including the first one
+   */
+  private final int maxAttempts;
+
+  /**
+   * The backoff before the first retry, doubled for every following retry
+   */
+  private final long baseDelayNanos;
+
+  /**
+   * The maximum backoff before a retry
+   */
+  private final long maxDelayNanos;
+
+  /**
+   * The maximum Retry-After that is honored, requests asking for a longer wait are not retried
+   */
+  private final long maxRetryAfterNanos;
+
+  /**
+   * The fraction of requests to a host that may be retried
+   */
+  private final double budgetRatio;
+
+  /**
+   * The number of retries to a host that can be spent at once
+   */
+  private final int budgetReserve;
+
+  /**
+   * The retry budgets of every host this policy has seen
+   */
+  private final ConcurrentMap<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for a retry policy
+   * @param maxAttempts int: The maximum number of attempts for a request, including the first one
+   * @param baseDelay {@link Duration}: The backoff before the first retry, doubled for every following retry
+   * @param maxDelay {@link Duration}: The maximum backoff before a retry
+   * @param maxRetryAfter {@link Duration}: The maximum Retry-After that is honored, requests asking for a longer wait are not retried
+   * @param budgetRatio double: The fraction of requests to a host that may be retried
+   * @param budgetReserve int: The number of retries to a host that can be spent at once
+   */
+  public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, Duration maxRetryAfter, double budgetRatio, int budgetReserve) {
+    super();
+    if (maxAttempts < 1) throw new IllegalArgumentException("A request must be attempted at least once!");
+    this.maxAttempts = maxAttempts;
+    this.baseDelayNanos = baseDelay.toNanos();
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.maxRetryAfterNanos = maxRetryAfter.toNanos();
+    this.budgetRatio = budgetRatio;
+    this.budgetReserve = budgetReserve;
+  }
+
+  /**
+   * Getter function for the policy used by default, its budgets are shared by every client using it
+   * @return {@link RetryPolicy} default policy
+   */
+  public static RetryPolicy defaultPolicy() {
+    return DEFAULT_POLICY;
+  }
+
+  /**
+   * Getter function for a policy that never retries
+   * @return {@link RetryPolicy} without retries
+   */
+  public static RetryPolicy noRetries() {
+    return NO_RETRIES;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Records that a request is about to be sent to a host for the first time, earning a share of a retry
+   * @param host {@link String}: The host the request is sent to
+   */
+  public void onRequest(String host) {
+    if (maxAttempts > 1) getBudget(host).onRequest();
+  }
+
+  /**
+   * Decides if a failed attempt should be retried and how long to wait before doing so, a retry is withdrawn from the
+   * host's budget when the answer is yes
+   * @param host {@link String}: The host the request was sent to
+   * @param method {@link HttpMethod}: The method of the request
+   * @param failure {@link Throwable}: The failure of the attempt
+   * @param attempt int: The number of the attempt that failed, starting at 1
+   * @return long nanoseconds to wait before retrying, or -1 if the request should not be retried
+   */
+  public long getRetryDelayNanos(String host, HttpMethod method, Throwable failure, int attempt) {
+    if (attempt >= maxAttempts || !isRetryable(method, failure)) return -1;
+    long delayNanos;
+    if (failure instanceof HttpErrorException && ((HttpErrorException) failure).getRetryAfter() != null) {
+      delayNanos = ((HttpErrorException) failure).getRetryAfter().toNanos();
+      if (delayNanos > maxRetryAfterNanos) return -1;
+    } else {
+      delayNanos = getBackoffNanos(attempt);
+    }
+    return getBudget(host).tryWithdraw() ? delayNanos : -1;
+  }
+
+  /**
+   * Helper function for classifying a failure as retryable for a method
+   * @param method {@link HttpMethod}: The method of the request
+   * @param failure {@link Throwable}: The failure of the attempt
+   * @return true if the failure is retryable and false otherwise
+   */
+  public boolean isRetryable(HttpMethod method, Throwable failure) {
+    if (failure instanceof HttpErrorException) {
+      int statusCode = ((HttpErrorException) failure).getStatusCode();
+      if (statusCode == 408 || statusCode == 429) return true;
+      return statusCode >= 500 && statusCode <= 599 && method.isIdempotent();
+    }
+    // The connection was never established so the request did not reach the server
+    if (failure instanceof ConnectException || failure instanceof HttpConnectTimeoutException) return true;
+    if (failure instanceof HttpTimeoutException || failure instanceof SocketException) return method.isIdempotent();
+    if (failure instanceof IOException) return method.isIdempotent() && isConnectionReset((IOException) failure);
+    return false;
+  }
+
+  /**
+   * Helper function for calculating the exponential backoff with full jitter before a retry
+   * @param attempt int: The number of the attempt that failed, starting at 1
+   * @return long nanoseconds to wait, uniformly distributed between zero and the capped exponential delay
+   */
+  private long getBackoffNanos(int attempt) {
+    if (baseDelayNanos <= 0) return 0;
+    // Shifting past the leading zeros of the base delay would overflow, the cap has been reached long before that
+    long ceiling = attempt - 1 >= Long.numberOfLeadingZeros(baseDelayNanos) - 1
+            ? maxDelayNanos
+            : Math.min(maxDelayNanos, baseDelayNanos << (attempt - 1));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * Helper function for recognizing the IOExceptions the JDK HTTP client raises when a pooled connection was reset
+   * @param ex {@link IOException}: The failure of the attempt
+   * @return true if the connection was reset or closed by the peer and false otherwise
+   */
+  private boolean isConnectionReset(IOException ex) {
+    for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketException) return true;
+      String message = cause.getMessage();
+      if (message != null && (message.contains("reset") || message.contains("closed") || message.contains("received no bytes")))
+        return true;
+    }
+    return false;
+  }
+
+  private RetryBudget getBudget(String host) {
+    return budgets.computeIfAbsent(host, key -> new RetryBudget(budgetRatio, budgetReserve));
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy [maxAttempts=" + maxAttempts + ", baseDelay=" + Duration.ofNanos(baseDelayNanos) + ", maxDelay="
+            + Duration.ofNanos(maxDelayNanos) + ", maxRetryAfter=" + Duration.ofNanos(maxRetryAfterNanos) + ", budgetRatio="
+            + budgetRatio + ", budgetReserve=" + budgetReserve + "]";
+  }
+
+}
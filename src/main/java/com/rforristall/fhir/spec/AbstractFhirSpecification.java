@@ -1,8 +1,15 @@
 package com.rforristall.fhir.spec;
 
+import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.rforristall.fhir.auth.FhirAuthentication;
+import com.rforristall.fhir.auth.SmartScope;
+import com.rforristall.fhir.http.HttpClientRegistry;
+import com.rforristall.fhir.http.HttpClientSettings;
+import com.rforristall.fhir.ratelimit.RateLimiter;
 
 /**
  * Abstract class for FHIR specifications, implements {@link FhirSpecification} and extended by the following:
@@ -58,7 +65,28 @@ public abstract class AbstractFhirSpecification implements FhirSpecification {
   private long rateLimitWaitDuration;
 
   /**
-   * Constructor for sub-classes to use when extending this class
+   * The rate limiter shared by every connection made using this specification, starts at one request per rateLimitWaitDuration
+   * and can be tuned with {@link RateLimiter#setRate(double, int)}
+   */
+  private RateLimiter rateLimiter;
+
+  /**
+   * The settings used to build the HTTP client of the specification
+   */
+  private HttpClientSettings httpClientSettings;
+
+  /**
+   * The HTTP client shared by all connections to the FHIR server, acquired from the {@link HttpClientRegistry}
+   */
+  private HttpClient httpClient;
+
+  /**
+   * If the specification has been closed and its HTTP client released
+   */
+  private AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Constructor for sub-classes to use when extending this class, using the default HTTP client settings
    * @param hostname {@link String}: The hostname of the FHIR server
    * @param scopes {@link List}<{@link String}>: The list of resources/actions that connections should request access to
    * @param fhirAuth {@link FhirAuthentication}: The FHIR authentication schema connections should use
@@ -75,25 +103,74 @@ public abstract class AbstractFhirSpecification implements FhirSpecification {
           FhirDialect fhirDialect,
           boolean limitRate,
           long rateLimitWaitDuration) {
-    super();
-    if (!checkScopes(scopes))
-      throw new IllegalArgumentException("The provided scope list is not valid!");
-    this.hostname = hostname;
-    this.scopes = scopes;
-    this.fhirAuth = fhirAuth;
-    this.fhirVersion = fhirVersion;
-    this.fhirDialect = fhirDialect;
-    this.limitRate = limitRate;
-    this.rateLimitWaitDuration = rateLimitWaitDuration;
+    this(
+            hostname,
+            scopes,
+            fhirAuth,
+            fhirVersion,
+            fhirDialect,
+            limitRate,
+            rateLimitWaitDuration,
+            HttpClientSettings.defaultSettings());
   }
 
   /**
-   * Helper function for checking that the provided list of scopes are valid given the provided FHIR dialect and version
+   * Constructor for sub-classes to use when extending this class
+   * @param hostname {@link String}: The hostname of the FHIR server
    * @param scopes {@link List}<{@link String}>: The list of resources/actions that connections should request access to
+   * @param fhirAuth {@link FhirAuthentication}: The FHIR authentication schema connections should use
+   * @param fhirVersion {@link FhirVersion}: The version of the FHIR server that this specification references
+   * @param fhirDialect {@link FhirDialect}: The dialect of the FHIR server that this specification references
+   * @param limitRate boolean: If connections made using this specification should limit requests to the FHIR server
+   * @param rateLimitWaitDuration long: The amount of time in seconds that connections made using this specification should wait between requests, only applied if limitRate is true
+   * @param httpClientSettings {@link HttpClientSettings}: The settings used to build the HTTP client shared by connections to the FHIR server
+   */
+  protected AbstractFhirSpecification(
+          String hostname,
+          List<String> scopes,
+          FhirAuthentication fhirAuth,
+          FhirVersion fhirVersion,
+          FhirDialect fhirDialect,
+          boolean limitRate,
+          long rateLimitWaitDuration,
+          HttpClientSettings httpClientSettings) {
+    super();
+    try {
+      if (!checkScopes(scopes))
+        throw new IllegalArgumentException("The provided scope list is not valid!");
+      this.hostname = hostname;
+      this.scopes = scopes;
+      this.fhirAuth = fhirAuth;
+      this.fhirVersion = fhirVersion;
+      this.fhirDialect = fhirDialect;
+      this.limitRate = limitRate;
+      this.rateLimitWaitDuration = rateLimitWaitDuration;
+      this.rateLimiter = limitRate ? RateLimiter.fromInterval(Duration.ofSeconds(rateLimitWaitDuration)) : RateLimiter.unlimited();
+      this.httpClientSettings = httpClientSettings;
+      this.httpClient = HttpClientRegistry.getShared().acquire(hostname, httpClientSettings);
+    } catch (RuntimeException | Error ex) {
+      // The authentication may already hold a client from the registry (i.e. OauthAuthentication), nothing else would release it
+      if (fhirAuth != null) fhirAuth.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Helper function for checking that the provided list of scopes are valid, resource scopes must follow either the
+   * SMART v1 (i.e. "system/Patient.read") or the v2 (i.e. "system/Patient.rs") syntax while any other scope is passed
+   * through as is, sub-classes can override this to restrict the scopes of their dialect
+   * @param scopes {@link List}<{@link String}>: The list of resources/actions that connections should request access to, null when the authentication schema does not use scopes
    * @return true if the scopes are valid and false otherwise
    */
   protected boolean checkScopes(List<String> scopes) {
-    // TODO Handle checking scopes for all different dialects
+    if (scopes == null) return true;
+    for (String scope : scopes) {
+      if (scope == null) return false;
+      // An entry may hold several space separated scopes
+      for (String part : scope.trim().split("\\s+")) {
+        if (!part.isEmpty() && !SmartScope.isValid(part)) return false;
+      }
+    }
     return true;
   }
 
@@ -132,4 +209,26 @@ public abstract class AbstractFhirSpecification implements FhirSpecification {
     return rateLimitWaitDuration;
   }
 
+  @Override
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  @Override
+  public HttpClientSettings getHttpClientSettings() {
+    return httpClientSettings;
+  }
+
+  @Override
+  public HttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    fhirAuth.close();
+    HttpClientRegistry.getShared().release(hostname, httpClientSettings);
+  }
+
 }
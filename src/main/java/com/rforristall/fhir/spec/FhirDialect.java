@@ -14,21 +14,28 @@ package com.rforristall.fhir.spec;
  */
 public enum FhirDialect {
   
-  HAPI("Hapi on FHIR"),
-  EPIC("Epic on FHIR"),
-  CERNER("Cerner Millenium");
+  HAPI("Hapi on FHIR", true),
+  EPIC("Epic on FHIR", false),
+  CERNER("Cerner Millenium", false);
   
   /**
    * The human readable name of the FHIR dialect for use in messages
    */
   private String name;
   
+  /**
+   * If the dialect accepts batch and transaction Bundles posted to the server base for writes
+   */
+  private boolean batchWrites;
+  
   /**
    * Private constructor for creating the enumerations with the dialect's name
    * @param name {@link String} Human readable name of the dialect
+   * @param batchWrites boolean If the dialect accepts batch and transaction Bundles for writes
    */
-  private FhirDialect(String name) {
+  private FhirDialect(String name, boolean batchWrites) {
     this.name = name;
+    this.batchWrites = batchWrites;
   }
   
   /**
@@ -38,5 +45,13 @@ public enum FhirDialect {
   public String getName() {
     return name;
   }
+  
+  /**
+   * Getter function for if the dialect accepts batch and transaction Bundles for writes
+   * @return boolean batchWrites: true if writes can be grouped into batch and transaction Bundles
+   */
+  public boolean supportsBatchWrites() {
+    return batchWrites;
+  }
 
 }
@@ -1,15 +1,18 @@
 package com.rforristall.fhir.spec;
 
+import java.net.http.HttpClient;
 import java.util.List;
 
 import com.rforristall.fhir.auth.FhirAuthentication;
+import com.rforristall.fhir.http.HttpClientSettings;
+import com.rforristall.fhir.ratelimit.RateLimiter;
 
 /**
  * Interface for all FHIR specifications; implemented by {@link AbstractFhirSpecification} and its sub-classes
  *
  * @author Robert Forristall (robert.s.forristall@gmail.com)
  */
-public interface FhirSpecification {
+public interface FhirSpecification extends AutoCloseable {
   
   /**
    * Getter function for the hostname of the FHIR server that the specification is connecting to
@@ -52,4 +55,29 @@ public interface FhirSpecification {
    * @return long rateLimitWaitDuration (In Seconds)
    */
   long getRateLimitWaitDuration();
+  
+  /**
+   * Getter function for the rate limiter shared by every connection made using this specification, a limiter without a
+   * sustained rate is returned if limitRate is false
+   * @return {@link RateLimiter} rateLimiter
+   */
+  RateLimiter getRateLimiter();
+  
+  /**
+   * Getter function for the settings used to build the HTTP client of the specification
+   * @return {@link HttpClientSettings} httpClientSettings
+   */
+  HttpClientSettings getHttpClientSettings();
+  
+  /**
+   * Getter function for the HTTP client shared by all connections to the FHIR server of the specification
+   * @return {@link HttpClient} httpClient
+   */
+  HttpClient getHttpClient();
+  
+  /**
+   * Releases the HTTP client and the authentication schema held by the specification
+   */
+  @Override
+  void close();
 }
@@ -16,23 +16,30 @@ package com.rforristall.fhir.spec;
  */
 public enum FhirVersion {
   
-  DSTU2("DSTU2"),
-  STU3("STU3"),
-  R4("R4"),
-  R4B("R4B"),
-  R5("R5");
+  DSTU2("DSTU2", "application/json+fhir"),
+  STU3("STU3", "application/fhir+json"),
+  R4("R4", "application/fhir+json"),
+  R4B("R4B", "application/fhir+json"),
+  R5("R5", "application/fhir+json");
 
   /**
    * The human readable name of the FHIR version for use in messages
    */
   private String name;
   
+  /**
+   * The JSON mime type that servers of this version expect in the Accept and Content-Type headers
+   */
+  private String jsonMimeType;
+  
   /**
    * Private constructor for creating the enumerations with the version's name
    * @param name {@link String} Human readable name of the dialect
+   * @param jsonMimeType {@link String} JSON mime type of the version
    */
-  private FhirVersion(String name) {
+  private FhirVersion(String name, String jsonMimeType) {
     this.name = name;
+    this.jsonMimeType = jsonMimeType;
   }
   
   /**
@@ -42,4 +49,12 @@ public enum FhirVersion {
   public String getName() {
     return name;
   }
+  
+  /**
+   * Getter function for the JSON mime type of the version
+   * @return {@link String} jsonMimeType: JSON mime type used in the Accept and Content-Type headers
+   */
+  public String getJsonMimeType() {
+    return jsonMimeType;
+  }
 }
@@ -0,0 +1,252 @@
+package com.rforristall.fhir.tenant;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission scheduler that shares a global limit of concurrent requests fairly between tenants.
+ *
+ * A tenant never holds more than maxConcurrentPerTenant permits, and when the global limit is reached the permits that
+ * are released are handed out round-robin to the tenants that are waiting, so a tenant with a deep backlog or a slow
+ * server cannot take the capacity the other tenants need. Waiting never parks a thread, {@link #acquire(String)} returns
+ * a future that completes once the permit is granted.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class FairScheduler {
+
+  /**
+   * Completed future returned when a permit is granted right away
+   */
+  private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+  /**
+   * The maximum number of permits held across every tenant
+   */
+  private final int maxConcurrent;
+
+  /**
+   * The maximum number of permits held by a single tenant
+   */
+  private final int maxConcurrentPerTenant;
+
+  /**
+   * Guards the permit counts and the waiters
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * The queue of every registered tenant by id
+   */
+  private final Map<String, TenantQueue> queuesById = new HashMap<>();
+
+  /**
+   * The queue of every registered tenant in round-robin order
+   */
+  private final List<TenantQueue> queues = new ArrayList<>();
+
+  /**
+   * The number of permits currently held across every tenant
+   */
+  private int inFlight;
+
+  /**
+   * The index of the tenant that is served first the next time a permit is released
+   */
+  private int cursor;
+
+  /**
+   * Constructor for a fair scheduler
+   * @param maxConcurrent int: The maximum number of permits held across every tenant, at least 1
+   * @param maxConcurrentPerTenant int: The maximum number of permits held by a single tenant, at least 1
+   */
+  public FairScheduler(int maxConcurrent, int maxConcurrentPerTenant) {
+    super();
+    if (maxConcurrent < 1 || maxConcurrentPerTenant < 1)
+      throw new IllegalArgumentException("The concurrency limits must be at least 1!");
+    this.maxConcurrent = maxConcurrent;
+    this.maxConcurrentPerTenant = maxConcurrentPerTenant;
+  }
+
+  /**
+   * Registers a tenant with the scheduler
+   * @param tenantId {@link String}: The id of the tenant
+   */
+  public void register(String tenantId) {
+    lock.lock();
+    try {
+      if (queuesById.containsKey(tenantId)) throw new IllegalArgumentException("Tenant " + tenantId + " is already registered!");
+      TenantQueue queue = new TenantQueue(tenantId);
+      queuesById.put(tenantId, queue);
+      queues.add(queue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a tenant from the scheduler, its waiting requests fail with an {@link IllegalStateException}
+   * @param tenantId {@link String}: The id of the tenant
+   */
+  public void unregister(String tenantId) {
+    List<CompletableFuture<Void>> rejected;
+    lock.lock();
+    try {
+      TenantQueue queue = queuesById.remove(tenantId);
+      if (queue == null) return;
+      int index = queues.indexOf(queue);
+      queues.remove(index);
+      if (index < cursor) cursor--;
+      rejected = new ArrayList<>(queue.waiters);
+      queue.waiters.clear();
+    } finally {
+      lock.unlock();
+    }
+    for (CompletableFuture<Void> waiter : rejected) {
+      waiter.completeExceptionally(new IllegalStateException("Tenant " + tenantId + " has been unregistered!"));
+    }
+  }
+
+  /**
+   * Acquires a permit for a request of the provided tenant, which must be returned through {@link #release(String)}
+   * @param tenantId {@link String}: The id of the tenant
+   * @return {@link CompletableFuture}<{@link Void}> completed once the permit is granted
+   */
+  public CompletableFuture<Void> acquire(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue queue = getQueue(tenantId);
+      if (queue.waiters.isEmpty() && inFlight < maxConcurrent && queue.inFlight < maxConcurrentPerTenant) {
+        inFlight++;
+        queue.inFlight++;
+        return GRANTED;
+      }
+      CompletableFuture<Void> waiter = new CompletableFuture<>();
+      queue.waiters.add(waiter);
+      return waiter;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a permit and grants the released capacity to the next waiting tenants
+   * @param tenantId {@link String}: The id of the tenant that held the permit
+   */
+  public void release(String tenantId) {
+    List<CompletableFuture<Void>> granted;
+    lock.lock();
+    try {
+      inFlight--;
+      TenantQueue queue = queuesById.get(tenantId);
+      if (queue != null) queue.inFlight--;
+      granted = dispatch();
+    } finally {
+      lock.unlock();
+    }
+    // Completed outside the lock since the waiters run their requests from the completion
+    for (CompletableFuture<Void> waiter : granted) waiter.complete(null);
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public int getMaxConcurrentPerTenant() {
+    return maxConcurrentPerTenant;
+  }
+
+  /**
+   * Getter function for the number of permits currently held across every tenant
+   * @return int number of permits held
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Getter function for the number of requests of a tenant waiting on a permit
+   * @param tenantId {@link String}: The id of the tenant
+   * @return int number of waiting requests
+   */
+  public int getWaiting(String tenantId) {
+    lock.lock();
+    try {
+      return getQueue(tenantId).waiters.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private TenantQueue getQueue(String tenantId) {
+    TenantQueue queue = queuesById.get(tenantId);
+    if (queue == null) throw new IllegalArgumentException("Tenant " + tenantId + " is not registered!");
+    return queue;
+  }
+
+  /**
+   * Grants free capacity to the waiting tenants one permit at a time in round-robin order, must hold the lock
+   * @return {@link List}<{@link CompletableFuture}<{@link Void}>> waiters that were granted a permit
+   */
+  private List<CompletableFuture<Void>> dispatch() {
+    List<CompletableFuture<Void>> granted = Collections.emptyList();
+    while (inFlight < maxConcurrent) {
+      TenantQueue next = null;
+      for (int i = 0; i < queues.size() && next == null; i++) {
+        int index = (cursor + i) % queues.size();
+        TenantQueue queue = queues.get(index);
+        if (!queue.waiters.isEmpty() && queue.inFlight < maxConcurrentPerTenant) {
+          next = queue;
+          cursor = index + 1;
+        }
+      }
+      if (next == null) break;
+      inFlight++;
+      next.inFlight++;
+      if (granted.isEmpty()) granted = new ArrayList<>();
+      granted.add(next.waiters.poll());
+    }
+    return granted;
+  }
+
+  @Override
+  public String toString() {
+    return "FairScheduler [maxConcurrent=" + maxConcurrent + ", maxConcurrentPerTenant=" + maxConcurrentPerTenant
+            + ", inFlight=" + getInFlight() + "]";
+  }
+
+  /**
+   * The permits held and the requests waiting for a single tenant
+   */
+  private static class TenantQueue {
+
+    private final String tenantId;
+
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    private int inFlight;
+
+    private TenantQueue(String tenantId) {
+      this.tenantId = tenantId;
+    }
+
+    @Override
+    public String toString() {
+      return "TenantQueue [tenantId=" + tenantId + ", inFlight=" + inFlight + ", waiting=" + waiters.size() + "]";
+    }
+
+  }
+
+}
@@ -0,0 +1,178 @@
+package com.rforristall.fhir.tenant;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.retry.RetryPolicy;
+import com.rforristall.fhir.spec.FhirSpecification;
+import com.rforristall.fhir.util.VirtualThreads;
+
+/**
+ * A single organization registered with a {@link TenantRegistry}.
+ *
+ * The tenant owns its specification, and with it its token manager and rate limiter, along with a dedicated executor
+ * that its HTTP client runs on. Because the executor is part of the client's settings the tenant never shares a
+ * connection pool or a thread with another tenant, even when both connect to the same host. The client's metrics are
+ * recorded with the tenant's id.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class Tenant implements AutoCloseable {
+
+  /**
+   * The id of the tenant
+   */
+  private final String id;
+
+  /**
+   * The specification of the tenant's FHIR server
+   */
+  private final FhirSpecification fhirSpec;
+
+  /**
+   * The client sending the tenant's requests
+   */
+  private final FhirClient fhirClient;
+
+  /**
+   * The executor dedicated to the tenant's HTTP client and requests
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The scheduler sharing the global request capacity between tenants
+   */
+  private final FairScheduler scheduler;
+
+  /**
+   * Guards against closing the tenant twice
+   */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Constructor for a tenant, the tenant must already be registered with the scheduler
+   * @param id {@link String}: The id of the tenant
+   * @param fhirSpec {@link FhirSpecification}: The specification of the tenant's FHIR server
+   * @param executor {@link ExecutorService}: The executor dedicated to the tenant's HTTP client and requests
+   * @param scheduler {@link FairScheduler}: The scheduler sharing the global request capacity between tenants
+   */
+  Tenant(String id, FhirSpecification fhirSpec, ExecutorService executor, FairScheduler scheduler) {
+    super();
+    this.id = id;
+    this.fhirSpec = fhirSpec;
+    this.fhirClient = new FhirClient(fhirSpec, FhirClient.DEFAULT_REQUEST_TIMEOUT, RetryPolicy.defaultPolicy(), VirtualThreads.getSharedExecutor(), id);
+    this.executor = executor;
+    this.scheduler = scheduler;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public FhirSpecification getFhirSpec() {
+    return fhirSpec;
+  }
+
+  /**
+   * Getter function for the tenant's client, requests sent directly on it bypass the fair scheduler
+   * @return {@link FhirClient} fhirClient
+   */
+  public FhirClient getFhirClient() {
+    return fhirClient;
+  }
+
+  /**
+   * Getter function for the readiness of the tenant, completed once its authentication has acquired its credentials in
+   * the background (see {@link com.rforristall.fhir.auth.FhirAuthentication#getReadiness()})
+   * @return {@link CompletableFuture}<{@link Void}> completed once the tenant is ready, exceptionally if its credentials could not be acquired
+   */
+  public CompletableFuture<Void> getReadiness() {
+    return fhirSpec.getFhirAuth().getReadiness();
+  }
+
+  /**
+   * Runs a request once the fair scheduler grants the tenant a permit, the request is started on the tenant's executor
+   * and the permit is returned when its future completes, or right away if the executor rejects it because the tenant
+   * is being closed
+   * @param <T> The type of the result
+   * @param task {@link TenantTask}<T>: The request to run
+   * @return {@link CompletableFuture}<T> completed with the result of the request
+   */
+  public <T> CompletableFuture<T> submit(TenantTask<T> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    scheduler.acquire(id).whenComplete((ignored, acquireEx) -> {
+      // No permit is held when the acquire failed, i.e. the tenant was unregistered while waiting
+      if (acquireEx != null) {
+        result.completeExceptionally(acquireEx);
+        return;
+      }
+      try {
+        executor.execute(() -> run(task, result));
+      } catch (RejectedExecutionException ex) {
+        scheduler.release(id);
+        result.completeExceptionally(ex);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Removes the tenant from the scheduler and closes its specification and executor
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    scheduler.unregister(id);
+    try {
+      fhirSpec.close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Helper function for running a request holding a permit, the permit is returned once the request completes
+   * @param <T> The type of the result
+   * @param task {@link TenantTask}<T>: The request to run
+   * @param result {@link CompletableFuture}<T>: Completed with the result of the request
+   */
+  private <T> void run(TenantTask<T> task, CompletableFuture<T> result) {
+    CompletableFuture<T> started;
+    try {
+      started = task.run(fhirClient);
+    } catch (RuntimeException ex) {
+      started = CompletableFuture.failedFuture(ex);
+    }
+    started.whenComplete((value, ex) -> {
+      scheduler.release(id);
+      if (ex == null) result.complete(value);
+      else result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "Tenant [id=" + id + ", fhirDialect=" + fhirSpec.getFhirDialect() + ", hostname=" + fhirSpec.getHostname() + "]";
+  }
+
+  /**
+   * A request run on behalf of a tenant
+   * @param <T> The type of the result
+   */
+  @FunctionalInterface
+  public interface TenantTask<T> {
+
+    /**
+     * Starts the request
+     * @param fhirClient {@link FhirClient}: The tenant's client
+     * @return {@link CompletableFuture}<T> completed with the result of the request
+     */
+    CompletableFuture<T> run(FhirClient fhirClient);
+
+  }
+
+}
@@ -0,0 +1,168 @@
+package com.rforristall.fhir.tenant;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rforristall.fhir.http.HttpClientSettings;
+import com.rforristall.fhir.spec.FhirSpecification;
+
+/**
+ * Registry of the tenants (i.e. Epic or Cerner organizations) a single process connects to.
+ *
+ * Every tenant is given its own executor, and with it its own HTTP client and connection pool, next to the token
+ * manager and rate limiter its specification already owns. Requests submitted through {@link Tenant#submit} share a
+ * global concurrency limit through a {@link FairScheduler}, so one tenant's slow server or burst of work cannot starve
+ * the other tenants.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class TenantRegistry implements AutoCloseable {
+
+  /**
+   * The default maximum number of requests in flight across every tenant
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+
+  /**
+   * The default maximum number of requests in flight for a single tenant
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_TENANT = 8;
+
+  /**
+   * The default number of threads dedicated to each tenant
+   */
+  public static final int DEFAULT_THREADS_PER_TENANT = 2;
+
+  /**
+   * The registered tenants by id
+   */
+  private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+  /**
+   * The scheduler sharing the global request capacity between tenants
+   */
+  private final FairScheduler scheduler;
+
+  /**
+   * The number of threads dedicated to each tenant
+   */
+  private final int threadsPerTenant;
+
+  /**
+   * Constructor for a tenant registry using the default limits
+   */
+  public TenantRegistry() {
+    this(DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS_PER_TENANT, DEFAULT_THREADS_PER_TENANT);
+  }
+
+  /**
+   * Constructor for a tenant registry
+   * @param maxConcurrentRequests int: The maximum number of requests in flight across every tenant
+   * @param maxConcurrentRequestsPerTenant int: The maximum number of requests in flight for a single tenant
+   * @param threadsPerTenant int: The number of threads dedicated to each tenant, at least 1
+   */
+  public TenantRegistry(int maxConcurrentRequests, int maxConcurrentRequestsPerTenant, int threadsPerTenant) {
+    super();
+    if (threadsPerTenant < 1) throw new IllegalArgumentException("Each tenant needs at least one thread!");
+    this.scheduler = new FairScheduler(maxConcurrentRequests, maxConcurrentRequestsPerTenant);
+    this.threadsPerTenant = threadsPerTenant;
+  }
+
+  /**
+   * Registers a tenant, building its specification with HTTP client settings dedicated to the tenant
+   * @param tenantId {@link String}: The id of the tenant
+   * @param specFactory {@link SpecificationFactory}: Builds the tenant's specification from the provided settings, i.e. a call to one of the createSpecWith factories
+   * @return {@link Tenant} that was registered
+   * @throws Exception if the specification could not be created
+   */
+  public Tenant register(String tenantId, SpecificationFactory specFactory) throws Exception {
+    // Registering with the scheduler first claims the id, so two racing registrations cannot both build a specification
+    scheduler.register(tenantId);
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threadsPerTenant, runnable -> {
+      Thread thread = new Thread(runnable, "fhir-tenant-" + tenantId + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    FhirSpecification fhirSpec;
+    try {
+      fhirSpec = specFactory.create(new HttpClientSettings(true, HttpClientSettings.DEFAULT_CONNECT_TIMEOUT, executor, null));
+    } catch (Exception ex) {
+      executor.shutdown();
+      scheduler.unregister(tenantId);
+      throw ex;
+    }
+    Tenant tenant = new Tenant(tenantId, fhirSpec, executor, scheduler);
+    tenants.put(tenantId, tenant);
+    return tenant;
+  }
+
+  /**
+   * Getter function for a registered tenant
+   * @param tenantId {@link String}: The id of the tenant
+   * @return {@link Tenant} registered with the id
+   */
+  public Tenant getTenant(String tenantId) {
+    Tenant tenant = tenants.get(tenantId);
+    if (tenant == null) throw new IllegalArgumentException("Tenant " + tenantId + " is not registered!");
+    return tenant;
+  }
+
+  public Collection<Tenant> getTenants() {
+    return Collections.unmodifiableCollection(tenants.values());
+  }
+
+  /**
+   * Getter function for the readiness of every registered tenant, registering a tenant no longer waits on its OAuth
+   * endpoint so all tenants acquire their first token in parallel
+   * @return {@link CompletableFuture}<{@link Void}> completed once every tenant registered at the time of the call is
+   * ready, exceptionally if any of them could not acquire its credentials
+   */
+  public CompletableFuture<Void> getReadiness() {
+    return CompletableFuture.allOf(tenants.values().stream().map(Tenant::getReadiness).toArray(CompletableFuture[]::new));
+  }
+
+  public FairScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Removes a tenant and closes its specification and executor
+   * @param tenantId {@link String}: The id of the tenant
+   */
+  public void unregister(String tenantId) {
+    Tenant tenant = tenants.remove(tenantId);
+    if (tenant != null) tenant.close();
+  }
+
+  /**
+   * Removes and closes every tenant
+   */
+  @Override
+  public void close() {
+    for (String tenantId : tenants.keySet()) unregister(tenantId);
+  }
+
+  /**
+   * Function building the specification of a tenant
+   */
+  @FunctionalInterface
+  public interface SpecificationFactory {
+
+    /**
+     * Creates the specification of a tenant
+     * @param httpClientSettings {@link HttpClientSettings}: The settings dedicated to the tenant, which must be passed to the specification
+     * @return {@link FhirSpecification} of the tenant
+     * @throws Exception if the specification could not be created
+     */
+    FhirSpecification create(HttpClientSettings httpClientSettings) throws Exception;
+
+  }
+
+}
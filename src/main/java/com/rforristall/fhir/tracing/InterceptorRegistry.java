@@ -0,0 +1,129 @@
+package com.rforristall.fhir.tracing;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.tracing.RequestInterceptor.Completion;
+
+/**
+ * Holder for the chain of {@link RequestInterceptor} instances run around every outbound request of the library.
+ *
+ * The chain is read on every request, when it is empty nothing is allocated: the {@link OutboundCall} is only built
+ * once at least one interceptor is installed.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class InterceptorRegistry {
+
+  private static final RequestInterceptor[] NO_INTERCEPTORS = new RequestInterceptor[0];
+
+  /**
+   * The installed interceptors in the order they run, replaced as a whole on every change
+   */
+  private static volatile RequestInterceptor[] interceptors = NO_INTERCEPTORS;
+
+  /**
+   * Serializes changes to the chain
+   */
+  private static final ReentrantLock lock = new ReentrantLock();
+
+  private InterceptorRegistry() {
+    super();
+  }
+
+  /**
+   * Appends an interceptor to the end of the chain
+   * @param interceptor {@link RequestInterceptor}: The interceptor to install
+   */
+  public static void addInterceptor(RequestInterceptor interceptor) {
+    if (interceptor == null) throw new IllegalArgumentException("The interceptor may not be null!");
+    lock.lock();
+    try {
+      RequestInterceptor[] current = interceptors;
+      RequestInterceptor[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = interceptor;
+      interceptors = updated;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an interceptor from the chain
+   * @param interceptor {@link RequestInterceptor}: The interceptor to remove
+   * @return true if the interceptor was installed and false otherwise
+   */
+  public static boolean removeInterceptor(RequestInterceptor interceptor) {
+    lock.lock();
+    try {
+      RequestInterceptor[] current = interceptors;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] != interceptor) continue;
+        RequestInterceptor[] updated = new RequestInterceptor[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        interceptors = updated;
+        return true;
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Helper function for checking if any interceptor is installed
+   * @return true if the chain is empty and false otherwise
+   */
+  public static boolean isEmpty() {
+    return interceptors.length == 0;
+  }
+
+  /**
+   * Runs the chain for a request that is about to be sent
+   * @param kind {@link OutboundCall.Kind}: What the request is for
+   * @param method {@link String}: The HTTP method of the request
+   * @param uri {@link URI}: The URI of the request
+   * @param fhirDialect {@link FhirDialect}: The dialect of the FHIR server, null for token requests
+   * @param fhirVersion {@link FhirVersion}: The version of the FHIR server, null for token requests
+   * @param resourceType {@link String}: The resource type of the request, null if the request does not target a single type
+   * @param attempt int: The attempt number, 1 for the first attempt
+   * @param requestBuilder {@link HttpRequest.Builder}: The builder of the request
+   * @return {@link Completion} that must be notified when the request completes, {@link Completion#NOOP} if the chain is empty
+   */
+  public static Completion intercept(
+          OutboundCall.Kind kind,
+          String method,
+          URI uri,
+          FhirDialect fhirDialect,
+          FhirVersion fhirVersion,
+          String resourceType,
+          int attempt,
+          HttpRequest.Builder requestBuilder) {
+    RequestInterceptor[] chain = interceptors;
+    if (chain.length == 0) return Completion.NOOP;
+    OutboundCall call = new OutboundCall(kind, method, uri, fhirDialect, fhirVersion, resourceType, attempt);
+    if (chain.length == 1) return chain[0].intercept(call, requestBuilder);
+    Completion[] completions = new Completion[chain.length];
+    for (int i = 0; i < chain.length; i++) completions[i] = chain[i].intercept(call, requestBuilder);
+    return new Completion() {
+
+      @Override
+      public void onResponse(int statusCode) {
+        // Completions run in reverse order so the outermost interceptor sees the request finish last
+        for (int i = completions.length - 1; i >= 0; i--) completions[i].onResponse(statusCode);
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        for (int i = completions.length - 1; i >= 0; i--) completions[i].onFailure(cause);
+      }
+
+    };
+  }
+
+}
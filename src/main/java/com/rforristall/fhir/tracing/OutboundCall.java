@@ -0,0 +1,130 @@
+package com.rforristall.fhir.tracing;
+
+import java.net.URI;
+
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+
+/**
+ * Description of a request the library is about to send, handed to every {@link RequestInterceptor}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class OutboundCall {
+
+  /**
+   * What the request is for
+   */
+  private final Kind kind;
+
+  /**
+   * The HTTP method of the request
+   */
+  private final String method;
+
+  /**
+   * The URI of the request
+   */
+  private final URI uri;
+
+  /**
+   * The dialect of the FHIR server, null for token requests
+   */
+  private final FhirDialect fhirDialect;
+
+  /**
+   * The version of the FHIR server, null for token requests
+   */
+  private final FhirVersion fhirVersion;
+
+  /**
+   * The resource type of the request, null if the request does not target a single type
+   */
+  private final String resourceType;
+
+  /**
+   * The attempt number, 1 for the first attempt and incremented on every retry
+   */
+  private final int attempt;
+
+  /**
+   * Constructor for a call
+   * @param kind {@link Kind}: What the request is for
+   * @param method {@link String}: The HTTP method of the request
+   * @param uri {@link URI}: The URI of the request
+   * @param fhirDialect {@link FhirDialect}: The dialect of the FHIR server, null for token requests
+   * @param fhirVersion {@link FhirVersion}: The version of the FHIR server, null for token requests
+   * @param resourceType {@link String}: The resource type of the request, null if the request does not target a single type
+   * @param attempt int: The attempt number, 1 for the first attempt and incremented on every retry
+   */
+  public OutboundCall(Kind kind, String method, URI uri, FhirDialect fhirDialect, FhirVersion fhirVersion, String resourceType, int attempt) {
+    super();
+    this.kind = kind;
+    this.method = method;
+    this.uri = uri;
+    this.fhirDialect = fhirDialect;
+    this.fhirVersion = fhirVersion;
+    this.resourceType = resourceType;
+    this.attempt = attempt;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public URI getUri() {
+    return uri;
+  }
+
+  public FhirDialect getFhirDialect() {
+    return fhirDialect;
+  }
+
+  public FhirVersion getFhirVersion() {
+    return fhirVersion;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public int getAttempt() {
+    return attempt;
+  }
+
+  /**
+   * Getter function for the number of times the request has been retried
+   * @return int number of retries, 0 for the first attempt
+   */
+  public int getRetryCount() {
+    return attempt - 1;
+  }
+
+  @Override
+  public String toString() {
+    return "OutboundCall [kind=" + kind + ", method=" + method + ", uri=" + uri + ", fhirDialect=" + fhirDialect
+            + ", fhirVersion=" + fhirVersion + ", resourceType=" + resourceType + ", attempt=" + attempt + "]";
+  }
+
+  /**
+   * Enumeration for what a request is for
+   */
+  public enum Kind {
+
+    /**
+     * A FHIR REST interaction sent by a {@link com.rforristall.fhir.client.FhirClient}
+     */
+    FHIR,
+
+    /**
+     * An OAuth token request sent by an {@link com.rforristall.fhir.auth.OauthAuthentication}
+     */
+    TOKEN;
+
+  }
+
+}
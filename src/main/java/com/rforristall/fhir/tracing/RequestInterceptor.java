@@ -0,0 +1,59 @@
+package com.rforristall.fhir.tracing;
+
+import java.net.http.HttpRequest;
+
+/**
+ * Hook run around every outbound FHIR and OAuth token request, installed with
+ * {@link InterceptorRegistry#addInterceptor(RequestInterceptor)}.
+ *
+ * Interceptors are called on the request path, including the HTTP client's threads, so they must be thread-safe and
+ * should not block.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+@FunctionalInterface
+public interface RequestInterceptor {
+
+  /**
+   * Called once the request has been built and before it is authenticated and sent, headers may be added to the builder
+   * @param call {@link OutboundCall}: The request that is about to be sent
+   * @param requestBuilder {@link HttpRequest.Builder}: The builder of the request
+   * @return {@link Completion} notified when the request completes, {@link Completion#NOOP} if the interceptor does not need it
+   */
+  Completion intercept(OutboundCall call, HttpRequest.Builder requestBuilder);
+
+  /**
+   * Callback for the outcome of an intercepted request, exactly one of its methods is called
+   */
+  interface Completion {
+
+    /**
+     * Completion that ignores the outcome
+     */
+    Completion NOOP = new Completion() {
+
+      @Override
+      public void onResponse(int statusCode) {
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+      }
+
+    };
+
+    /**
+     * Called when a response is received, including error responses
+     * @param statusCode int: The status code of the response
+     */
+    void onResponse(int statusCode);
+
+    /**
+     * Called when the request failed without a response, or could not be authenticated
+     * @param cause {@link Throwable}: The failure
+     */
+    void onFailure(Throwable cause);
+
+  }
+
+}
@@ -0,0 +1,49 @@
+package com.rforristall.fhir.tracing;
+
+/**
+ * A span opened by a {@link Tracer} for a single outbound request.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public interface Span {
+
+  /**
+   * Getter function for the trace id of the span
+   * @return {@link String} 32 lowercase hex characters
+   */
+  String getTraceId();
+
+  /**
+   * Getter function for the id of the span
+   * @return {@link String} 16 lowercase hex characters
+   */
+  String getSpanId();
+
+  /**
+   * Getter function for if the span is sampled, propagated as the trace flags of the traceparent header
+   * @return boolean sampled
+   */
+  boolean isSampled();
+
+  /**
+   * Adds a text attribute to the span
+   * @param key {@link String}: The name of the attribute
+   * @param value {@link String}: The value of the attribute
+   */
+  void setAttribute(String key, String value);
+
+  /**
+   * Adds a numeric attribute to the span
+   * @param key {@link String}: The name of the attribute
+   * @param value long: The value of the attribute
+   */
+  void setAttribute(String key, long value);
+
+  /**
+   * Ends the span
+   * @param statusCode int: The status code of the response, 0 if no response was received
+   * @param error {@link Throwable}: The failure, null if a response was received
+   */
+  void end(int statusCode, Throwable error);
+
+}
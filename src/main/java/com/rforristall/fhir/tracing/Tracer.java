@@ -0,0 +1,19 @@
+package com.rforristall.fhir.tracing;
+
+/**
+ * Service provider interface for opening spans, i.e. with an adapter to OpenTelemetry. The tracer decides the parent of
+ * a new span, typically the span that is current on the calling thread.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+@FunctionalInterface
+public interface Tracer {
+
+  /**
+   * Opens a client span
+   * @param name {@link String}: The name of the span, i.e. "FHIR GET Patient"
+   * @return {@link Span} that was opened
+   */
+  Span startSpan(String name);
+
+}
@@ -0,0 +1,99 @@
+package com.rforristall.fhir.tracing;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+
+import com.rforristall.fhir.tracing.RequestInterceptor.Completion;
+
+/**
+ * Interceptor opening a span for every outbound request and propagating it to the server with a W3C traceparent header.
+ *
+ * Spans are named "FHIR [method] [resource type]" or "OAuth token" and carry the dialect, version, resource type,
+ * HTTP method, server, path and retry count of the request. The query string is left out by default since search
+ * parameters can hold patient data (i.e. a name or birth date), the full URL is only recorded when it is enabled.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class TracingInterceptor implements RequestInterceptor {
+
+  /**
+   * The name of the W3C trace context header
+   */
+  public static final String TRACEPARENT_HEADER = "traceparent";
+
+  /**
+   * The tracer the spans are opened with
+   */
+  private final Tracer tracer;
+
+  /**
+   * If the full URL including the query string is recorded as url.full
+   */
+  private final boolean recordFullUrl;
+
+  /**
+   * Constructor for a tracing interceptor that does not record query strings, install it with
+   * {@link InterceptorRegistry#addInterceptor(RequestInterceptor)}
+   * @param tracer {@link Tracer}: The tracer the spans are opened with
+   */
+  public TracingInterceptor(Tracer tracer) {
+    this(tracer, false);
+  }
+
+  /**
+   * Constructor for a tracing interceptor, install it with {@link InterceptorRegistry#addInterceptor(RequestInterceptor)}
+   * @param tracer {@link Tracer}: The tracer the spans are opened with
+   * @param recordFullUrl boolean: If the full URL including the query string is recorded as url.full, only enable it
+   * where the tracing backend may hold patient data
+   */
+  public TracingInterceptor(Tracer tracer, boolean recordFullUrl) {
+    super();
+    this.tracer = tracer;
+    this.recordFullUrl = recordFullUrl;
+  }
+
+  @Override
+  public Completion intercept(OutboundCall call, HttpRequest.Builder requestBuilder) {
+    Span span = tracer.startSpan(getSpanName(call));
+    span.setAttribute("http.request.method", call.getMethod());
+    URI uri = call.getUri();
+    if (uri.getScheme() != null) span.setAttribute("url.scheme", uri.getScheme());
+    if (uri.getHost() != null) span.setAttribute("server.address", uri.getHost());
+    if (uri.getPort() != -1) span.setAttribute("server.port", uri.getPort());
+    if (uri.getRawPath() != null) span.setAttribute("url.path", uri.getRawPath());
+    if (recordFullUrl) span.setAttribute("url.full", uri.toString());
+    span.setAttribute("http.request.resend_count", call.getRetryCount());
+    if (call.getFhirDialect() != null) span.setAttribute("fhir.dialect", call.getFhirDialect().name());
+    if (call.getFhirVersion() != null) span.setAttribute("fhir.version", call.getFhirVersion().getName());
+    if (call.getResourceType() != null) span.setAttribute("fhir.resource_type", call.getResourceType());
+    requestBuilder.setHeader(TRACEPARENT_HEADER, toTraceparent(span));
+    return new Completion() {
+
+      @Override
+      public void onResponse(int statusCode) {
+        span.end(statusCode, null);
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        span.end(0, cause);
+      }
+
+    };
+  }
+
+  /**
+   * Helper function for formatting the traceparent header of a span, version 00 of the W3C trace context
+   * @param span {@link Span}: The span to propagate
+   * @return {@link String} header value, i.e. 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+   */
+  public static String toTraceparent(Span span) {
+    return "00-" + span.getTraceId() + "-" + span.getSpanId() + (span.isSampled() ? "-01" : "-00");
+  }
+
+  private static String getSpanName(OutboundCall call) {
+    if (call.getKind() == OutboundCall.Kind.TOKEN) return "OAuth token";
+    return call.getResourceType() != null ? "FHIR " + call.getMethod() + " " + call.getResourceType() : "FHIR " + call.getMethod();
+  }
+
+}
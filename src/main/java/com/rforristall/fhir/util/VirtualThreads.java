@@ -0,0 +1,112 @@
+package com.rforristall.fhir.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Access to virtual threads while the library is still compiled for older Java versions.
+ *
+ * The virtual thread API is looked up reflectively once, on a Java 21+ runtime {@link #newThreadPerTaskExecutor(String)}
+ * starts every task on its own virtual thread, on older runtimes it falls back to a cached pool of daemon platform
+ * threads so callers work unchanged on both.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public final class VirtualThreads {
+
+  /**
+   * Thread.ofVirtual(), null if the runtime does not support virtual threads
+   */
+  private static final Method OF_VIRTUAL;
+
+  /**
+   * Thread.Builder.name(String, long)
+   */
+  private static final Method BUILDER_NAME;
+
+  /**
+   * Thread.Builder.factory()
+   */
+  private static final Method BUILDER_FACTORY;
+
+  /**
+   * Executors.newThreadPerTaskExecutor(ThreadFactory)
+   */
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderFactory = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      builderName = builderClass.getMethod("name", String.class, long.class);
+      builderFactory = builderClass.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (ReflectiveOperationException ex) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_FACTORY = builderFactory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  private VirtualThreads() {
+    super();
+  }
+
+  /**
+   * Helper function for checking if the runtime supports virtual threads
+   * @return true if virtual threads are available and false otherwise
+   */
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates an executor that starts every task on a new virtual thread, or on a cached daemon platform thread when
+   * the runtime does not support virtual threads
+   * @param namePrefix {@link String}: The prefix of the thread names, followed by a counter
+   * @return {@link ExecutorService} which should be shut down once it is no longer used
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    if (isSupported()) {
+      try {
+        Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+        return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, (ThreadFactory) BUILDER_FACTORY.invoke(builder));
+      } catch (ReflectiveOperationException ex) {
+        // Fall through to platform threads, the lookup succeeded so this only happens if the JDK restricts access
+      }
+    }
+    AtomicLong threadCount = new AtomicLong();
+    return Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Getter function for the executor the library shares for blocking work, virtual threads when supported
+   * @return {@link ExecutorService} that must not be shut down by callers
+   */
+  public static ExecutorService getSharedExecutor() {
+    return SharedExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Holder for the shared executor, so it is only created on first use without locking
+   */
+  private static class SharedExecutorHolder {
+
+    private static final ExecutorService EXECUTOR = newThreadPerTaskExecutor("fhir-request-");
+
+  }
+
+}
@@ -0,0 +1,144 @@
+package com.rforristall.fhir.aggregate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.stub.StubFhirServer;
+
+/**
+ * Tests for the timeouts and the partial results of {@link AggregateResult} against a {@link StubFhirServer}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class AggregateResultTest {
+
+  private StubFhirServer server;
+
+  private HapiFhirSpecification fhirSpec;
+
+  private FhirClient fhirClient;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = StubFhirServer.start(FhirDialect.HAPI);
+    server.setSearchTotal(30);
+    server.setPageSize(10);
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth(server.getFhirUrl(), Collections.emptyList(), FhirVersion.R4, false, 0);
+    fhirClient = new FhirClient(fhirSpec);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    fhirSpec.close();
+    server.close();
+  }
+
+  @Test
+  void everyResourceIsTaggedWithItsQuery() {
+    Map<String, Integer> counts = new HashMap<>();
+    try (AggregateResult result = new FanOutAggregator(fhirClient).execute(
+            query("patients", "Patient", Duration.ofSeconds(10)), query("conditions", "Condition", Duration.ofSeconds(10)))) {
+      result.forEachRemaining(entry -> {
+        assertEquals(entry.getQueryName().equals("patients") ? "Patient" : "Condition", entry.getResource().get("resourceType").getAsString());
+        counts.merge(entry.getQueryName(), 1, Integer::sum);
+      });
+      assertFalse(result.isPartial());
+      assertEquals(Arrays.asList("patients", "conditions"), Arrays.asList(result.getOutcomes().keySet().toArray()));
+      assertEquals(30, result.getOutcomes().get("conditions").getResourceCount());
+    }
+    assertEquals(30, counts.get("patients"));
+    assertEquals(30, counts.get("conditions"));
+  }
+
+  @Test
+  void failedQueryLeavesAPartialResult() {
+    server.failNext(1, 400);
+    int count = 0;
+    // One query at a time, so the injected failure is the first page of the first query
+    try (AggregateResult result = new FanOutAggregator(fhirClient, 1, 4).execute(
+            query("failing", "Patient", Duration.ofSeconds(10)), query("working", "Observation", Duration.ofSeconds(10)))) {
+      while (result.hasNext()) {
+        assertEquals("working", result.next().getQueryName());
+        count++;
+      }
+      assertTrue(result.isPartial());
+      QueryOutcome failed = result.getOutcomes().get("failing");
+      assertEquals(QueryOutcome.Status.FAILED, failed.getStatus());
+      assertTrue(failed.getFailure() instanceof HttpErrorException, String.valueOf(failed.getFailure()));
+      assertEquals(QueryOutcome.Status.COMPLETED, result.getOutcomes().get("working").getStatus());
+    }
+    assertEquals(30, count);
+  }
+
+  @Test
+  void slowQueryTimesOutWithoutHoldingBackTheOthers() {
+    server.setLatency(Duration.ofMillis(300));
+    int count = 0;
+    long startNanos = System.nanoTime();
+    try (AggregateResult result = new FanOutAggregator(fhirClient).execute(
+            query("slow", "Patient", Duration.ofMillis(50)), query("fast", "Observation", Duration.ofSeconds(10)))) {
+      while (result.hasNext()) {
+        assertEquals("fast", result.next().getQueryName());
+        count++;
+      }
+      assertEquals(QueryOutcome.Status.TIMED_OUT, result.getOutcomes().get("slow").getStatus());
+      assertEquals(0, result.getOutcomes().get("slow").getResourceCount());
+      assertEquals(QueryOutcome.Status.COMPLETED, result.getOutcomes().get("fast").getStatus());
+      assertTrue(result.isPartial());
+    }
+    assertEquals(30, count);
+    // The three pages of the other query are not delayed by the timed out one
+    assertTrue(System.nanoTime() - startNanos < Duration.ofSeconds(5).toNanos());
+  }
+
+  @Test
+  void timeSpentParkedDoesNotCountAgainstTheTimeout() throws Exception {
+    server.setSearchTotal(50);
+    server.setLatency(Duration.ofMillis(20));
+    int count = 0;
+    // A single buffered page parks the query while the consumer is slow, for far longer than its timeout overall
+    try (AggregateResult result = new FanOutAggregator(fhirClient, 1, 1).execute(query("patients", "Patient", Duration.ofMillis(500)))) {
+      while (result.hasNext()) {
+        result.next();
+        if (++count % 10 == 0) Thread.sleep(150);
+      }
+      assertEquals(QueryOutcome.Status.COMPLETED, result.getOutcomes().get("patients").getStatus());
+      assertFalse(result.isPartial());
+    }
+    assertEquals(50, count);
+  }
+
+  @Test
+  void closeCancelsTheRunningAndPendingQueries() {
+    server.setLatency(Duration.ofMillis(500));
+    AggregateResult result = new FanOutAggregator(fhirClient, 1, 4).execute(
+            query("running", "Patient", Duration.ofSeconds(10)), query("pending", "Observation", Duration.ofSeconds(10)));
+    result.close();
+    assertFalse(result.hasNext());
+    assertEquals(QueryOutcome.Status.CANCELLED, result.getOutcomes().get("running").getStatus());
+    assertEquals(QueryOutcome.Status.CANCELLED, result.getOutcomes().get("pending").getStatus());
+    assertTrue(result.isPartial());
+  }
+
+  private static FanOutQuery query(String name, String resourceType, Duration timeout) {
+    return new FanOutQuery(name, resourceType, ImmutableListMultimap.of(), timeout);
+  }
+
+}
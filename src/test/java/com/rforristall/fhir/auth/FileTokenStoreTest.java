@@ -0,0 +1,146 @@
+package com.rforristall.fhir.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for the encrypted token files and the refresh locks of {@link FileTokenStore}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class FileTokenStoreTest {
+
+  private static final String HEADER_VALUE = "Bearer secret-access-token";
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void storedTokenIsLoadedByAnotherStore() throws Exception {
+    new FileTokenStore(directory, newKey(1)).store("client|system/*.read", newToken());
+    OauthToken loaded = new FileTokenStore(directory, newKey(1)).load("client|system/*.read");
+    assertEquals(HEADER_VALUE, loaded.getHeaderValue());
+    assertEquals(1_000, loaded.getIssuedAtMillis());
+    assertEquals(61_000, loaded.getExpiresAtMillis());
+    assertNull(new FileTokenStore(directory, newKey(1)).load("client|system/Patient.read"));
+  }
+
+  @Test
+  void tokenIsEncryptedAndUnreadableWithAnotherKey() throws Exception {
+    new FileTokenStore(directory, newKey(1)).store("key", newToken());
+    assertFalse(new String(Files.readAllBytes(onlyEntry()), StandardCharsets.UTF_8).contains("secret-access-token"));
+    assertNull(new FileTokenStore(directory, newKey(2)).load("key"));
+  }
+
+  @Test
+  void tamperedOrTruncatedFileIsAMiss() throws Exception {
+    FileTokenStore store = new FileTokenStore(directory, newKey(1));
+    store.store("key", newToken());
+    Path entry = onlyEntry();
+    byte[] bytes = Files.readAllBytes(entry);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(entry, bytes);
+    assertNull(store.load("key"));
+    Files.write(entry, new byte[] { 0x46, 0x4f });
+    assertNull(store.load("key"));
+  }
+
+  @Test
+  void fileMovedToAnotherKeyDoesNotAuthenticate() throws Exception {
+    FileTokenStore store = new FileTokenStore(directory, newKey(1));
+    store.store("other", newToken());
+    Path otherEntry = onlyEntry();
+    store.store("key", newToken());
+    Path entry = null;
+    for (Path candidate : entries()) if (!candidate.equals(otherEntry)) entry = candidate;
+    Files.move(otherEntry, entry, StandardCopyOption.REPLACE_EXISTING);
+    assertNull(store.load("key"));
+  }
+
+  @Test
+  void lockIsHeldUntilReleasedFromAnyThread() throws Exception {
+    FileTokenStore store = new FileTokenStore(directory, newKey(1));
+    TokenStore.StoreLock lock = store.lock("key", Duration.ofSeconds(1));
+    assertNotNull(lock);
+    // Another thread, with its own store on the same directory, gives up once the timeout elapses
+    FileTokenStore otherStore = new FileTokenStore(directory, newKey(1));
+    long startNanos = System.nanoTime();
+    assertNull(CompletableFuture.supplyAsync(() -> tryLock(otherStore, Duration.ofMillis(100))).get(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - startNanos >= Duration.ofMillis(100).toNanos());
+    // Other keys are not held back
+    TokenStore.StoreLock otherLock = store.lock("other", Duration.ZERO);
+    assertNotNull(otherLock);
+    otherLock.close();
+    CompletableFuture<TokenStore.StoreLock> waiting = CompletableFuture.supplyAsync(() -> tryLock(store, Duration.ofSeconds(5)));
+    CompletableFuture.runAsync(() -> {
+      try {
+        lock.close();
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }).get(5, TimeUnit.SECONDS);
+    TokenStore.StoreLock nextLock = waiting.get(5, TimeUnit.SECONDS);
+    assertNotNull(nextLock);
+    // Closing twice does not release the lock of the next holder
+    lock.close();
+    assertNull(store.lock("key", Duration.ZERO));
+    nextLock.close();
+  }
+
+  private static OauthToken newToken() {
+    return new OauthToken(HEADER_VALUE, 1_000, 61_000);
+  }
+
+  private static SecretKey newKey(int seed) {
+    byte[] key = new byte[32];
+    key[0] = (byte) seed;
+    return new SecretKeySpec(key, "AES");
+  }
+
+  /**
+   * Helper function for locking a key from a task, where checked exceptions cannot be thrown
+   */
+  private static TokenStore.StoreLock tryLock(FileTokenStore store, Duration timeout) {
+    try {
+      return store.lock("key", timeout);
+    } catch (IOException | InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private Path onlyEntry() throws IOException {
+    List<Path> entries = entries();
+    assertEquals(1, entries.size(), entries.toString());
+    return entries.get(0);
+  }
+
+  private List<Path> entries() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.token")) {
+      for (Path entry : stream) entries.add(entry);
+    }
+    return entries;
+  }
+
+}
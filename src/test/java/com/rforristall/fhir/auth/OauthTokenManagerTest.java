@@ -0,0 +1,144 @@
+package com.rforristall.fhir.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the single-flight fetch and the refresh ahead of expiry of {@link OauthTokenManager}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class OauthTokenManagerTest {
+
+  @Test
+  void concurrentCallersShareOneFetch() throws Exception {
+    AtomicInteger fetchCount = new AtomicInteger();
+    CompletableFuture<OauthToken> pending = new CompletableFuture<>();
+    OauthTokenManager manager = new OauthTokenManager(() -> {
+      fetchCount.incrementAndGet();
+      return pending;
+    }, OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION);
+    List<CompletableFuture<OauthToken>> callers = new ArrayList<>();
+    for (int i = 0; i < 10; i++) callers.add(manager.getTokenAsync());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      CountDownLatch started = new CountDownLatch(4);
+      List<Future<OauthToken>> blockingCallers = new ArrayList<>();
+      for (int i = 0; i < 4; i++) blockingCallers.add(executor.submit(() -> {
+        started.countDown();
+        return manager.getToken();
+      }));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      OauthToken token = newToken("first", 60_000);
+      pending.complete(token);
+      for (CompletableFuture<OauthToken> caller : callers) assertSame(token, caller.get(5, TimeUnit.SECONDS));
+      for (Future<OauthToken> caller : blockingCallers) assertSame(token, caller.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+      manager.close();
+    }
+    assertEquals(1, fetchCount.get());
+  }
+
+  @Test
+  void validTokenIsServedWithoutFetching() throws Exception {
+    AtomicInteger fetchCount = new AtomicInteger();
+    OauthTokenManager manager = new OauthTokenManager(() -> {
+      fetchCount.incrementAndGet();
+      return CompletableFuture.completedFuture(newToken("token", 60_000));
+    }, OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION);
+    try {
+      assertFalse(manager.hasValidToken());
+      OauthToken token = manager.getToken();
+      assertTrue(manager.hasValidToken());
+      assertSame(token, manager.getToken());
+      assertSame(token, manager.getTokenAsync().get());
+    } finally {
+      manager.close();
+    }
+    assertEquals(1, fetchCount.get());
+  }
+
+  @Test
+  void failedFetchIsRetriedByTheNextCaller() throws Exception {
+    AtomicInteger fetchCount = new AtomicInteger();
+    OauthTokenManager manager = new OauthTokenManager(() -> {
+      if (fetchCount.incrementAndGet() == 1) throw new IOException("endpoint unreachable");
+      return CompletableFuture.completedFuture(newToken("token", 60_000));
+    }, OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION);
+    try {
+      ExecutionException failure = assertThrows(ExecutionException.class, manager::getToken);
+      assertTrue(failure.getCause() instanceof IOException);
+      assertFalse(manager.hasValidToken());
+      assertEquals("token", manager.getToken().getHeaderValue());
+    } finally {
+      manager.close();
+    }
+    assertEquals(2, fetchCount.get());
+  }
+
+  @Test
+  void tokenIsRefreshedAheadOfExpiry() throws Exception {
+    AtomicInteger fetchCount = new AtomicInteger();
+    OauthTokenManager manager = new OauthTokenManager(() -> {
+      int fetch = fetchCount.incrementAndGet();
+      // The first token lives long enough that it is never expired when the refresh replaces it
+      return CompletableFuture.completedFuture(newToken("token-" + fetch, fetch == 1 ? 2_000 : 60_000));
+    }, 0.1);
+    try {
+      OauthToken first = manager.getToken();
+      assertEquals("token-1", first.getHeaderValue());
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (fetchCount.get() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+      assertEquals(2, fetchCount.get());
+      while (manager.getToken() == first && System.currentTimeMillis() < deadline) Thread.sleep(10);
+      assertEquals("token-2", manager.getToken().getHeaderValue());
+      assertTrue(System.currentTimeMillis() < first.getExpiresAtMillis());
+    } finally {
+      manager.close();
+    }
+  }
+
+  @Test
+  void closeCancelsTheBackgroundRefresh() throws Exception {
+    AtomicInteger fetchCount = new AtomicInteger();
+    OauthTokenManager manager = new OauthTokenManager(() -> {
+      fetchCount.incrementAndGet();
+      return CompletableFuture.completedFuture(newToken("token", 1_000));
+    }, 0.1);
+    manager.getToken();
+    manager.close();
+    Thread.sleep(300);
+    assertEquals(1, fetchCount.get());
+    assertTrue(manager.hasValidToken());
+  }
+
+  @Test
+  void refreshAheadFractionMustBeBetweenZeroAndOne() {
+    assertThrows(IllegalArgumentException.class, () -> new OauthTokenManager(() -> null, 0));
+    assertThrows(IllegalArgumentException.class, () -> new OauthTokenManager(() -> null, 1));
+  }
+
+  private static OauthToken newToken(String headerValue, long lifetimeMillis) {
+    long now = System.currentTimeMillis();
+    return new OauthToken(headerValue, now, now + lifetimeMillis);
+  }
+
+}
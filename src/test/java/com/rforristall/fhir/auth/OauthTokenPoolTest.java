@@ -0,0 +1,92 @@
+package com.rforristall.fhir.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the selection of a scope set by {@link OauthTokenPool}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class OauthTokenPoolTest {
+
+  private static final ScopeSet DEFAULT_SCOPES = ScopeSet.of("system/*.read system/*.write");
+
+  /**
+   * The scope sets tokens were fetched for, in order
+   */
+  private final List<ScopeSet> fetched = new CopyOnWriteArrayList<>();
+
+  private OauthTokenPool pool;
+
+  @BeforeEach
+  void setUp() {
+    pool = new OauthTokenPool(this::fetch, DEFAULT_SCOPES, OauthTokenManager.DEFAULT_REFRESH_AHEAD_FRACTION);
+  }
+
+  @AfterEach
+  void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  void singleScopeSetAlwaysUsesTheDefault() {
+    assertSame(pool.getDefaultManager(), pool.select("Patient", ScopeAction.READ));
+    assertSame(pool.getDefaultManager(), pool.select(null, ScopeAction.WRITE));
+  }
+
+  @Test
+  void narrowestRegisteredScopeSetGrantingTheRequestIsSelected() {
+    OauthTokenManager patients = pool.register(ScopeSet.of("system/Patient.read"));
+    OauthTokenManager patientsAndObservations = pool.register(ScopeSet.of("system/Patient.rs system/Observation.rs"));
+    OauthTokenManager everything = pool.register(ScopeSet.of("system/*.read"));
+    assertSame(patients, pool.select("Patient", ScopeAction.READ));
+    assertSame(patientsAndObservations, pool.select("Observation", ScopeAction.READ));
+    assertSame(everything, pool.select("Encounter", ScopeAction.READ));
+    // Nothing registered grants the write, the default scope set does
+    assertSame(pool.getDefaultManager(), pool.select("Patient", ScopeAction.WRITE));
+    assertSame(patients, pool.register(ScopeSet.of("system/Patient.read")));
+  }
+
+  @Test
+  void cachedTokenIsPreferredOverANarrowerOneNotYetFetched() throws Exception {
+    OauthTokenManager everything = pool.register(ScopeSet.of("system/*.read"));
+    everything.getToken();
+    OauthTokenManager patients = pool.register(ScopeSet.of("system/Patient.read"));
+    assertSame(everything, pool.select("Patient", ScopeAction.READ));
+    patients.getToken();
+    assertSame(patients, pool.select("Patient", ScopeAction.READ));
+    assertEquals(2, fetched.size());
+  }
+
+  @Test
+  void constrainedAndOpaqueScopesAreNeverSelected() {
+    pool.register(ScopeSet.of("system/Observation.rs?category=laboratory"));
+    pool.register(ScopeSet.of("openid fhirUser vendor:export"));
+    assertSame(pool.getDefaultManager(), pool.select("Observation", ScopeAction.READ));
+    assertSame(pool.getDefaultManager(), pool.select(null, ScopeAction.READ));
+    assertEquals(0, fetched.size());
+  }
+
+  @Test
+  void closedPoolRejectsNewScopeSets() {
+    pool.close();
+    assertThrows(IllegalStateException.class, () -> pool.register(ScopeSet.of("system/Patient.read")));
+  }
+
+  private CompletableFuture<OauthToken> fetch(ScopeSet scopes) {
+    fetched.add(scopes);
+    long now = System.currentTimeMillis();
+    return CompletableFuture.completedFuture(new OauthToken("Bearer " + scopes, now, now + 60_000));
+  }
+
+}
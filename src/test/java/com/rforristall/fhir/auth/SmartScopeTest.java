@@ -0,0 +1,113 @@
+package com.rforristall.fhir.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the parsing of SMART on FHIR v1 and v2 scopes by {@link SmartScope} and {@link ScopeSet}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class SmartScopeTest {
+
+  @Test
+  void parsesV1Scopes() {
+    SmartScope read = SmartScope.parse("system/Patient.read");
+    assertEquals("system", read.getContext());
+    assertEquals("Patient", read.getResourceType());
+    assertTrue(read.permits("Patient", ScopeAction.READ));
+    assertFalse(read.permits("Patient", ScopeAction.WRITE));
+    assertFalse(read.permits("Observation", ScopeAction.READ));
+
+    SmartScope write = SmartScope.parse("patient/Observation.write");
+    assertEquals("patient", write.getContext());
+    assertFalse(write.permits("Observation", ScopeAction.READ));
+    assertTrue(write.permits("Observation", ScopeAction.WRITE));
+  }
+
+  @Test
+  void parsesV2Permissions() {
+    SmartScope search = SmartScope.parse("user/Encounter.rs");
+    assertTrue(search.permits("Encounter", ScopeAction.READ));
+    assertFalse(search.permits("Encounter", ScopeAction.WRITE));
+
+    SmartScope update = SmartScope.parse("system/Encounter.u");
+    assertFalse(update.permits("Encounter", ScopeAction.READ));
+    assertTrue(update.permits("Encounter", ScopeAction.WRITE));
+
+    assertTrue(SmartScope.parse("system/Encounter.cruds").getBreadth() > search.getBreadth());
+  }
+
+  @Test
+  void wildcardGrantsEveryTypeIncludingTheServerBase() {
+    SmartScope wildcard = SmartScope.parse("system/*.*");
+    assertEquals(SmartScope.WILDCARD, wildcard.getResourceType());
+    assertTrue(wildcard.permits("Patient", ScopeAction.WRITE));
+    assertTrue(wildcard.permits(null, ScopeAction.READ));
+    assertFalse(SmartScope.parse("system/Patient.*").permits(null, ScopeAction.READ));
+    // A wildcard type always weighs more than the same permissions on a named type
+    assertTrue(SmartScope.parse("system/*.read").getBreadth() > SmartScope.parse("system/Patient.*").getBreadth());
+  }
+
+  @Test
+  void constrainedScopesNeverGrantAWholeType() {
+    SmartScope constrained = SmartScope.parse("system/Observation.rs?category=laboratory");
+    assertEquals("Observation", constrained.getResourceType());
+    assertEquals("category=laboratory", constrained.getConstraint());
+    assertTrue(constrained.isConstrained());
+    assertFalse(constrained.permits("Observation", ScopeAction.READ));
+
+    SmartScope emptyQuery = SmartScope.parse("system/Observation.rs?");
+    assertNull(emptyQuery.getConstraint());
+    assertTrue(emptyQuery.permits("Observation", ScopeAction.READ));
+
+    assertFalse(ScopeSet.of("system/Observation.rs?category=laboratory").permits("Observation", ScopeAction.READ));
+    assertTrue(ScopeSet.of("system/Observation.rs?category=laboratory system/Observation.read").permits("Observation", ScopeAction.READ));
+  }
+
+  @Test
+  void nonResourceScopesGrantNothing() {
+    for (String scope : new String[] { "openid", "fhirUser", "launch/patient", "offline_access", "Patient.read", "admin/Patient.read", "vendor:export" }) {
+      SmartScope parsed = SmartScope.parse(scope);
+      assertFalse(parsed.isResourceScope(), scope);
+      assertEquals(0, parsed.getBreadth());
+      assertFalse(parsed.permits("Patient", ScopeAction.READ));
+      assertFalse(parsed.permits(null, ScopeAction.READ));
+    }
+  }
+
+  @Test
+  void unknownScopesAreSentAsIs() {
+    ScopeSet scopes = ScopeSet.of("system/Patient.read vendor:export");
+    assertEquals("system/Patient.read vendor:export", scopes.toString());
+    assertTrue(scopes.permits("Patient", ScopeAction.READ));
+    // An opaque scope adds nothing to the breadth, so it never makes a scope set look broader
+    assertEquals(ScopeSet.of("system/Patient.read").getBreadth(), scopes.getBreadth());
+    assertFalse(ScopeSet.of("vendor:export").permits("Patient", ScopeAction.READ));
+  }
+
+  @Test
+  void rejectsMalformedResourceScopes() {
+    for (String scope : new String[] { "", "a\"b", "system/Patient", "system/Patient.", "patient/Patient.", "user/Patient.?category=x", "system/Patient.sr", "system/Patient.x", "system/.read", "user/" }) {
+      assertFalse(SmartScope.isValid(scope), scope);
+      assertThrows(IllegalArgumentException.class, () -> SmartScope.parse(scope), scope);
+    }
+    assertThrows(IllegalArgumentException.class, () -> SmartScope.parse(null));
+    assertThrows(IllegalArgumentException.class, () -> ScopeSet.of("system/Patient.read system/Observation."));
+  }
+
+  @Test
+  void scopeSetsAreNormalized() {
+    ScopeSet scopes = ScopeSet.of("  system/Patient.read   system/Observation.read system/Patient.read ");
+    assertEquals("system/Observation.read system/Patient.read", scopes.toString());
+    assertEquals(2, scopes.getScopes().size());
+    assertEquals(ScopeSet.of("system/Observation.read system/Patient.read"), scopes);
+    assertEquals(SmartScope.parse("system/Patient.read").getBreadth() * 2, scopes.getBreadth());
+  }
+
+}
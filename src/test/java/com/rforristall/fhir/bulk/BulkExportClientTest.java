@@ -0,0 +1,211 @@
+package com.rforristall.fhir.bulk;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.rforristall.fhir.client.FhirClient;
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the $export flow and the resumed downloads of {@link BulkExportClient}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class BulkExportClientTest {
+
+  private static final int RESOURCE_COUNT = 50;
+
+  /**
+   * The NDJSON body of every file served
+   */
+  private static final byte[] FILE_BODY = newFileBody();
+
+  /**
+   * The number of bytes sent before the first download of a file is cut off, in the middle of a line
+   */
+  private static final int CUT_AFTER = FILE_BODY.length / 2 + 7;
+
+  @TempDir
+  Path directory;
+
+  private HttpServer server;
+
+  private HapiFhirSpecification fhirSpec;
+
+  private BulkExportClient bulkClient;
+
+  private final AtomicInteger statusPolls = new AtomicInteger();
+
+  private final AtomicInteger downloads = new AtomicInteger();
+
+  /**
+   * The Range header of every download, null for downloads sent without one
+   */
+  private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+  private volatile String preferHeader;
+
+  private volatile boolean cutFirstDownload;
+
+  private volatile boolean ignoreRanges;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth(getFhirUrl(), Collections.emptyList(), FhirVersion.R4, false, 0);
+    bulkClient = new BulkExportClient(new FhirClient(fhirSpec), Duration.ofMillis(10), Duration.ofMillis(50), 2);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    fhirSpec.close();
+    server.stop(0);
+  }
+
+  @Test
+  void exportPollsTheStatusUntilTheManifestIsReady() throws Exception {
+    BulkExportManifest manifest = bulkClient.export(BulkExportRequest.createSystemExport(Arrays.asList("Patient", "Observation"), null));
+    assertEquals("respond-async", preferHeader);
+    assertEquals(3, statusPolls.get());
+    assertEquals("2024-01-01T00:00:00Z", manifest.getTransactionTime());
+    assertEquals(2, manifest.getOutput().size());
+    assertEquals("Observation", manifest.getOutput().get(1).getType());
+    assertEquals(getFhirUrl() + "/files/Observation.ndjson", manifest.getOutput().get(1).getUrl());
+  }
+
+  @Test
+  void everyFileIsDownloadedToTheDirectory() throws Exception {
+    List<Path> files = bulkClient.downloadToDirectory(newManifest("Patient", "Observation", "Encounter"), directory);
+    assertEquals(Arrays.asList(directory.resolve("Patient-0.ndjson"), directory.resolve("Observation-1.ndjson"), directory.resolve("Encounter-2.ndjson")), files);
+    for (Path file : files) assertArrayEquals(FILE_BODY, Files.readAllBytes(file));
+  }
+
+  @Test
+  void interruptedStreamResumesAfterTheLastCompleteLine() throws Exception {
+    cutFirstDownload = true;
+    List<String> resources = Collections.synchronizedList(new ArrayList<>());
+    long count = bulkClient.download(newManifest("Patient"), (file, resource) -> resources.add(resource));
+    assertEquals(RESOURCE_COUNT, count);
+    assertEquals(Arrays.asList(new String(FILE_BODY, StandardCharsets.UTF_8).split("\n")), resources);
+    assertEquals(2, downloads.get());
+    assertNull(ranges.get(0));
+    int lastLineEnd = new String(FILE_BODY, 0, CUT_AFTER, StandardCharsets.UTF_8).lastIndexOf('\n') + 1;
+    assertEquals("bytes=" + lastLineEnd + "-", ranges.get(1));
+  }
+
+  @Test
+  void interruptedDownloadSkipsTheBytesAlreadyReceivedWhenTheRangeIsIgnored() throws Exception {
+    cutFirstDownload = true;
+    ignoreRanges = true;
+    Path target = bulkClient.downloadFile(new BulkExportFile("Patient", getFhirUrl() + "/files/Patient.ndjson", -1), false, directory.resolve("patients.ndjson"));
+    assertArrayEquals(FILE_BODY, Files.readAllBytes(target));
+    assertEquals(Arrays.asList(null, "bytes=" + CUT_AFTER + "-"), ranges);
+  }
+
+  @Test
+  void kickOffThatIsNotAcceptedFails() {
+    IOException failure = assertThrows(IOException.class, () -> bulkClient.kickOff(BulkExportRequest.createPatientExport(Collections.emptyList(), null)));
+    assertTrue(failure.getMessage().contains("202"), failure.getMessage());
+  }
+
+  private String getFhirUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+  }
+
+  private BulkExportManifest newManifest(String... types) {
+    List<BulkExportFile> output = new ArrayList<>();
+    for (String type : types) output.add(new BulkExportFile(type, getFhirUrl() + "/files/" + type + ".ndjson", RESOURCE_COUNT));
+    return new BulkExportManifest("2024-01-01T00:00:00Z", false, output, Collections.emptyList());
+  }
+
+  /**
+   * Emulates a server exporting every type at the system level and answering a patient level kick-off with 200
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals("/fhir/$export")) {
+        preferHeader = exchange.getRequestHeaders().getFirst("Prefer");
+        exchange.getResponseHeaders().set("Content-Location", "/fhir/status/1");
+        exchange.sendResponseHeaders(202, -1);
+      } else if (path.equals("/fhir/status/1")) {
+        if (statusPolls.incrementAndGet() < 3) {
+          exchange.getResponseHeaders().set("Retry-After", "0");
+          exchange.sendResponseHeaders(202, -1);
+        } else {
+          respond(exchange, 200, ("{\"transactionTime\":\"2024-01-01T00:00:00Z\",\"requiresAccessToken\":false,\"output\":["
+                  + "{\"type\":\"Patient\",\"url\":\"" + getFhirUrl() + "/files/Patient.ndjson\"},"
+                  + "{\"type\":\"Observation\",\"url\":\"" + getFhirUrl() + "/files/Observation.ndjson\",\"count\":50}],\"error\":[]}")
+                  .getBytes(StandardCharsets.UTF_8));
+        }
+      } else if (path.startsWith("/fhir/files/")) {
+        handleDownload(exchange);
+      } else {
+        respond(exchange, 200, "{\"resourceType\":\"OperationOutcome\"}".getBytes(StandardCharsets.UTF_8));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleDownload(HttpExchange exchange) throws IOException {
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    ranges.add(range);
+    if (downloads.incrementAndGet() == 1 && cutFirstDownload) {
+      // Announce the whole file but drop the connection part way through the body
+      exchange.sendResponseHeaders(200, FILE_BODY.length);
+      OutputStream body = exchange.getResponseBody();
+      body.write(FILE_BODY, 0, CUT_AFTER);
+      body.flush();
+      return;
+    }
+    if (range == null || ignoreRanges) {
+      respond(exchange, 200, FILE_BODY);
+      return;
+    }
+    int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+    exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (FILE_BODY.length - 1) + "/" + FILE_BODY.length);
+    respond(exchange, 206, Arrays.copyOfRange(FILE_BODY, offset, FILE_BODY.length));
+  }
+
+  private static void respond(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(statusCode, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static byte[] newFileBody() {
+    StringBuilder body = new StringBuilder();
+    for (int i = 1; i <= RESOURCE_COUNT; i++) body.append("{\"resourceType\":\"Patient\",\"id\":\"").append(i).append("\"}\n");
+    return body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+}
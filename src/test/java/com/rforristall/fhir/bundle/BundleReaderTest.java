@@ -0,0 +1,119 @@
+package com.rforristall.fhir.bundle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.nimbusds.jose.shaded.gson.JsonObject;
+
+/**
+ * Tests for the entries and the Bundle level elements read by {@link BundleReader}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class BundleReaderTest {
+
+  @Test
+  void readsTheBundleElementsBeforeTheEntries() throws Exception {
+    try (BundleReader reader = new BundleReader(newStream("{'resourceType':'Bundle','type':'searchset','total':3,"
+            + "'link':[{'relation':'self','url':'http://fhir/Patient'},{'relation':'next','url':'http://fhir/Patient?page=2'}],"
+            + "'entry':[{'fullUrl':'http://fhir/Patient/1','resource':{'resourceType':'Patient','id':'1'}},"
+            + "{'resource':{'resourceType':'Patient','id':'2'},'search':{'mode':'match'}}]}"))) {
+      // Everything written before the entries is available before iterating
+      assertEquals("searchset", reader.getType());
+      assertEquals(3, reader.getTotal());
+      assertEquals("http://fhir/Patient?page=2", reader.getNextLink());
+      assertEquals(Arrays.asList("self", "next"), new ArrayList<>(reader.getLinks().keySet()));
+      assertEquals(Arrays.asList("1", "2"), ids(reader));
+    }
+  }
+
+  @Test
+  void elementsAfterTheEntriesAreAvailableOnceFinished() throws Exception {
+    try (BundleReader reader = new BundleReader(new StringReader(json("{'entry':[{'resource':{'id':'1'}}],"
+            + "'link':[{'relation':'next','url':'http://fhir/Patient?page=2'}],'type':'searchset'}")))) {
+      assertNull(reader.getType());
+      assertEquals(-1, reader.getTotal());
+      assertNull(reader.getNextLink());
+      assertEquals(Arrays.asList("1"), ids(reader));
+      assertEquals("searchset", reader.getType());
+      assertEquals("http://fhir/Patient?page=2", reader.getNextLink());
+    }
+  }
+
+  @Test
+  void entriesWithoutResourceAreSkipped() throws Exception {
+    try (BundleReader reader = new BundleReader(newStream("{'entry':[{'fullUrl':'a'},{'resource':{'id':'1'}},"
+            + "{'response':{'status':'204'}},{'resource':{'id':'2'}},{}]}"))) {
+      assertEquals(Arrays.asList("1", "2"), ids(reader));
+      assertThrows(NoSuchElementException.class, reader::next);
+    }
+  }
+
+  @Test
+  void bundleWithoutEntriesHasNoResources() throws Exception {
+    try (BundleReader reader = new BundleReader(newStream("{'type':'searchset','total':0,'entry':[]}"))) {
+      assertFalse(reader.hasNext());
+      assertEquals(0, reader.getTotal());
+    }
+    try (BundleReader reader = new BundleReader(newStream("{'type':'searchset'}"))) {
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  @Test
+  void streamYieldsTheRemainingResourcesAndClosesTheReader() throws Exception {
+    BundleReader reader = new BundleReader(newStream("{'entry':[{'resource':{'id':'1'}},{'resource':{'id':'2'}},{'resource':{'id':'3'}}]}"));
+    assertEquals("1", reader.next().get("id").getAsString());
+    try (Stream<JsonObject> resources = reader.stream()) {
+      assertEquals(Arrays.asList("2", "3"), resources.map(resource -> resource.get("id").getAsString()).collect(Collectors.toList()));
+    }
+    assertFalse(reader.hasNext());
+  }
+
+  @Test
+  void malformedBundlesAreReportedAsIOExceptions() throws Exception {
+    assertThrows(IOException.class, () -> new BundleReader(newStream("['not','a','bundle']")));
+    try (BundleReader reader = new BundleReader(newStream("{'entry':[{'resource':{'id':'1'}},{'resource':"))) {
+      assertEquals("1", reader.next().get("id").getAsString());
+      UncheckedIOException failure = assertThrows(UncheckedIOException.class, reader::hasNext);
+      assertTrue(failure.getCause() instanceof IOException);
+    }
+  }
+
+  private static List<String> ids(BundleReader reader) {
+    List<String> ids = new ArrayList<>();
+    while (reader.hasNext()) ids.add(reader.next().get("id").getAsString());
+    return ids;
+  }
+
+  private static ByteArrayInputStream newStream(String singleQuotedJson) {
+    return new ByteArrayInputStream(json(singleQuotedJson).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Helper function for writing the test Bundles without escaping every quote
+   * @param singleQuotedJson {@link String}: JSON using single quotes
+   * @return {@link String} JSON using double quotes
+   */
+  private static String json(String singleQuotedJson) {
+    return singleQuotedJson.replace('\'', '"');
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.rforristall.fhir.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.http.HttpHeaders;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.client.FhirResponse;
+
+/**
+ * Tests for the freshness and the revalidation of {@link CachedResponse}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class CachedResponseTest {
+
+  private static final long NOW = 1_000_000;
+
+  @Test
+  void maxAgeMakesTheResponseFresh() {
+    CachedResponse cached = CachedResponse.fromResponse(newResponse(200, "{}", "ETag", "\"1\"", "Cache-Control", "public, max-age=60"), NOW);
+    assertTrue(cached.isFresh(NOW + 59_999));
+    assertFalse(cached.isFresh(NOW + 60_000));
+    assertEquals("\"1\"", cached.getEtag());
+    assertEquals(NOW, cached.getStoredAtMillis());
+  }
+
+  @Test
+  void noCacheResponsesAreKeptOnlyWithValidators() {
+    CachedResponse withEtag = CachedResponse.fromResponse(newResponse(200, "{}", "ETag", "\"1\"", "Cache-Control", "no-cache, max-age=60"), NOW);
+    assertFalse(withEtag.isFresh(NOW));
+    assertTrue(withEtag.hasValidators());
+    CachedResponse withLastModified = CachedResponse.fromResponse(newResponse(200, "{}", "Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT"), NOW);
+    assertFalse(withLastModified.isFresh(NOW));
+    assertTrue(withLastModified.hasValidators());
+    assertNull(CachedResponse.fromResponse(newResponse(200, "{}"), NOW));
+  }
+
+  @Test
+  void noStoreAndErrorResponsesAreNotCached() {
+    assertNull(CachedResponse.fromResponse(newResponse(200, "{}", "ETag", "\"1\"", "Cache-Control", "max-age=60, no-store"), NOW));
+    // no-store is honoured even after a no-cache
+    assertNull(CachedResponse.fromResponse(newResponse(200, "{}", "ETag", "\"1\"", "Cache-Control", "no-cache, no-store"), NOW));
+    assertNull(CachedResponse.fromResponse(newResponse(404, "{}", "ETag", "\"1\"", "Cache-Control", "max-age=60"), NOW));
+  }
+
+  @Test
+  void revalidationKeepsTheBodyAndTakesTheNewValidators() {
+    CachedResponse cached = CachedResponse.fromResponse(newResponse(200, "{\"id\":\"1\"}", "ETag", "W/\"1\"", "Content-Type", "application/fhir+json"), NOW);
+    CachedResponse revalidated = cached.revalidate(newResponse(304, "", "ETag", "W/\"2\"", "Cache-Control", "max-age=30"), NOW + 5_000);
+    assertEquals("{\"id\":\"1\"}", revalidated.getBody());
+    assertEquals("W/\"2\"", revalidated.getEtag());
+    assertEquals("application/fhir+json", revalidated.getContentType());
+    assertEquals(NOW + 5_000, revalidated.getStoredAtMillis());
+    assertTrue(revalidated.isFresh(NOW + 34_999));
+    assertFalse(revalidated.isFresh(NOW + 35_000));
+  }
+
+  @Test
+  void revalidationWithoutHeadersKeepsTheValidatorsAndStaysStale() {
+    CachedResponse cached = CachedResponse.fromResponse(newResponse(200, "{}", "ETag", "\"1\"", "Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT"), NOW);
+    CachedResponse revalidated = cached.revalidate(newResponse(304, ""), NOW + 1_000);
+    assertEquals("\"1\"", revalidated.getEtag());
+    assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", revalidated.getLastModified());
+    assertFalse(revalidated.isFresh(NOW + 1_000));
+  }
+
+  @Test
+  void cacheHitIsServedWithTheStoredHeaders() {
+    CachedResponse cached = new CachedResponse("{}", "\"1\"", null, "application/fhir+json", NOW, NOW);
+    FhirResponse response = cached.toFhirResponse();
+    assertEquals(200, response.getStatusCode());
+    assertEquals("{}", response.getBody());
+    assertEquals("\"1\"", response.getHeaders().firstValue("etag").orElse(null));
+    assertFalse(response.getHeaders().firstValue("Last-Modified").isPresent());
+  }
+
+  /**
+   * Helper function for building a response
+   * @param statusCode int: The status code of the response
+   * @param body {@link String}: The body of the response
+   * @param headers {@link String}...: The header names each followed by its value
+   * @return {@link FhirResponse} with the provided headers
+   */
+  private static FhirResponse newResponse(int statusCode, String body, String... headers) {
+    Map<String, List<String>> headerMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 0; i < headers.length; i += 2) headerMap.put(headers[i], Collections.singletonList(headers[i + 1]));
+    return new FhirResponse(statusCode, HttpHeaders.of(headerMap, (name, value) -> true), body);
+  }
+
+}
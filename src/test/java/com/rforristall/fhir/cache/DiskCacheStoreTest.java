@@ -0,0 +1,127 @@
+package com.rforristall.fhir.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for the entry files, their encryption and their permissions of {@link DiskCacheStore}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class DiskCacheStoreTest {
+
+  private static final String BODY = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Doe\"}]}";
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void entriesSurviveANewStore() throws Exception {
+    Path directory = tempDir.resolve("plain");
+    new DiskCacheStore(directory).store("key", newResponse());
+    CachedResponse loaded = new DiskCacheStore(directory).load("key");
+    assertEquals(BODY, loaded.getBody());
+    assertEquals("\"1\"", loaded.getEtag());
+    assertNull(loaded.getLastModified());
+    assertEquals(2_000, loaded.getFreshUntilMillis());
+    assertNull(new DiskCacheStore(directory).load("other"));
+  }
+
+  @Test
+  void encryptedEntriesCanOnlyBeReadWithTheirKeyAndCacheKey() throws Exception {
+    Path directory = tempDir.resolve("encrypted");
+    DiskCacheStore store = new DiskCacheStore(directory, DiskCacheStore.DEFAULT_MAX_BYTES, newKey(1));
+    assertTrue(store.isEncrypted());
+    store.store("key", newResponse());
+    assertFalse(new String(Files.readAllBytes(onlyEntry(directory)), StandardCharsets.UTF_8).contains("Doe"));
+    assertEquals(BODY, new DiskCacheStore(directory, DiskCacheStore.DEFAULT_MAX_BYTES, newKey(1)).load("key").getBody());
+    assertNull(new DiskCacheStore(directory, DiskCacheStore.DEFAULT_MAX_BYTES, newKey(2)).load("key"));
+    assertNull(new DiskCacheStore(directory).load("key"));
+    // An entry moved to the file of another key does not authenticate
+    Files.move(onlyEntry(directory), directory.resolve(onlyEntry(tempDir.resolve("other"), "other").getFileName()));
+    assertNull(store.load("other"));
+  }
+
+  @Test
+  void tamperedEntryIsAMiss() throws Exception {
+    Path directory = tempDir.resolve("tampered");
+    DiskCacheStore store = new DiskCacheStore(directory, DiskCacheStore.DEFAULT_MAX_BYTES, newKey(1));
+    store.store("key", newResponse());
+    Path entry = onlyEntry(directory);
+    byte[] bytes = Files.readAllBytes(entry);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(entry, bytes);
+    assertNull(store.load("key"));
+  }
+
+  @Test
+  void lengthLargerThanTheEntryIsRejectedBeforeAllocating() throws Exception {
+    Path directory = tempDir.resolve("corrupt");
+    DiskCacheStore store = new DiskCacheStore(directory);
+    store.store("key", newResponse());
+    ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(corrupt)) {
+      out.write(Files.readAllBytes(onlyEntry(directory)), 0, 8);
+      out.writeInt(Integer.MAX_VALUE);
+    }
+    Files.write(onlyEntry(directory), corrupt.toByteArray());
+    assertThrows(IOException.class, () -> store.load("key"));
+  }
+
+  @Test
+  void directoryAndEntriesAreOwnerOnly() throws Exception {
+    Path directory = tempDir.resolve("private");
+    new DiskCacheStore(directory).store("key", newResponse());
+    if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) return;
+    assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+    assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(onlyEntry(directory))));
+  }
+
+  private static CachedResponse newResponse() {
+    return new CachedResponse(BODY, "\"1\"", null, "application/fhir+json", 1_000, 2_000);
+  }
+
+  private static SecretKey newKey(int seed) {
+    byte[] key = new byte[32];
+    key[0] = (byte) seed;
+    return new SecretKeySpec(key, "AES");
+  }
+
+  /**
+   * Helper function for writing an entry for a key into a new directory and returning its file
+   */
+  private static Path onlyEntry(Path directory, String key) throws IOException {
+    new DiskCacheStore(directory).store(key, newResponse());
+    return onlyEntry(directory);
+  }
+
+  private static Path onlyEntry(Path directory) throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.entry")) {
+      for (Path entry : stream) entries.add(entry);
+    }
+    assertEquals(1, entries.size(), entries.toString());
+    return entries.get(0);
+  }
+
+}
@@ -0,0 +1,201 @@
+package com.rforristall.fhir.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the eviction and the store tier of {@link ResponseCache}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class ResponseCacheTest {
+
+  /**
+   * The weight of a response with a 100 character body
+   */
+  private static final long ENTRY_WEIGHT = newResponse("a").getWeight();
+
+  @Test
+  void leastRecentlyUsedEntryIsEvictedOnceOverTheBound() {
+    ResponseCache cache = new ResponseCache(3 * ENTRY_WEIGHT, null);
+    CachedResponse a = newResponse("a");
+    cache.put("a", a);
+    cache.put("b", newResponse("b"));
+    cache.put("c", newResponse("c"));
+    assertEquals(3 * ENTRY_WEIGHT, cache.getCurrentBytes());
+    // Reading a makes b the least recently used entry
+    assertSame(a, cache.get("a"));
+    cache.put("d", newResponse("d"));
+    assertEquals(3, cache.size());
+    assertNull(cache.get("b"));
+    assertSame(a, cache.get("a"));
+    assertEquals(3 * ENTRY_WEIGHT, cache.getCurrentBytes());
+  }
+
+  @Test
+  void replacingAnEntryKeepsTheWeightAccurate() {
+    ResponseCache cache = new ResponseCache(10 * ENTRY_WEIGHT, null);
+    cache.put("a", newResponse("a"));
+    cache.put("a", newResponse("b"));
+    assertEquals(1, cache.size());
+    assertEquals(ENTRY_WEIGHT, cache.getCurrentBytes());
+    cache.invalidate("a");
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getCurrentBytes());
+  }
+
+  @Test
+  void responseLargerThanTheCacheIsNotKept() {
+    ResponseCache cache = new ResponseCache(2 * ENTRY_WEIGHT, null);
+    cache.put("a", newResponse("a"));
+    cache.put("huge", new CachedResponse(String.join("", Collections.nCopies(1000, "x")), "\"1\"", null, null, 0, 0));
+    assertNull(cache.get("huge"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void responseLargerThanTheCacheDropsTheOneItReplaces() {
+    ResponseCache cache = new ResponseCache(2 * ENTRY_WEIGHT, null);
+    cache.put("a", newResponse("a"));
+    cache.put("b", newResponse("b"));
+    cache.put("a", new CachedResponse(String.join("", Collections.nCopies(1000, "x")), "\"2\"", null, null, 0, 0));
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.size());
+    assertEquals(ENTRY_WEIGHT, cache.getCurrentBytes());
+  }
+
+  @Test
+  void missesAreLoadedFromTheStoreAndKeptInMemory() throws Exception {
+    MemoryStore store = new MemoryStore();
+    CachedResponse stored = newResponse("stored");
+    store.entries.put("a", stored);
+    ResponseCache cache = new ResponseCache(10 * ENTRY_WEIGHT, store);
+    assertSame(stored, cache.get("a"));
+    assertEquals(1, cache.size());
+    assertNull(cache.get("missing"));
+  }
+
+  @Test
+  void putsAreWrittenThroughToTheStore() throws Exception {
+    MemoryStore store = new MemoryStore();
+    ResponseCache cache = new ResponseCache(10 * ENTRY_WEIGHT, store);
+    CachedResponse response = newResponse("a");
+    cache.put("a", response);
+    store.awaitOperations(1);
+    assertSame(response, store.entries.get("a"));
+    cache.clear();
+    // Keys are only loaded from the store once their pending operations are done
+    CachedResponse loaded = cache.get("a");
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (loaded == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+      loaded = cache.get("a");
+    }
+    assertSame(response, loaded);
+  }
+
+  @Test
+  void invalidationIsNeverOvertakenByTheWriteItReplaced() throws Exception {
+    MemoryStore store = new MemoryStore();
+    store.entries.put("a", newResponse("old"));
+    CountDownLatch storeBlocked = new CountDownLatch(1);
+    store.blockStores = storeBlocked;
+    ResponseCache cache = new ResponseCache(10 * ENTRY_WEIGHT, store);
+    cache.put("a", newResponse("new"));
+    cache.invalidate("a");
+    // While the store is behind, the memory tier answers and the stale stored entry is not loaded
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    storeBlocked.countDown();
+    store.awaitOperations(2);
+    assertEquals(Arrays.asList("store a", "remove a"), store.operations);
+    assertFalse(store.entries.containsKey("a"));
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  void unreadableStoreIsAMiss() {
+    ResponseCache cache = new ResponseCache(10 * ENTRY_WEIGHT, new MemoryStore() {
+
+      @Override
+      public CachedResponse load(String key) throws IOException {
+        throw new IOException("corrupt entry");
+      }
+
+    });
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  void maximumSizeMustBePositive() {
+    assertThrows(IllegalArgumentException.class, () -> new ResponseCache(0, null));
+  }
+
+  private static CachedResponse newResponse(String name) {
+    StringBuilder body = new StringBuilder(name);
+    while (body.length() < 100) body.append(' ');
+    return new CachedResponse(body.toString(), "\"" + name + "\"", null, "application/fhir+json", 0, 0);
+  }
+
+  /**
+   * Store keeping its entries in a map and recording the operations made on it
+   */
+  private static class MemoryStore implements CacheStore {
+
+    private final Map<String, CachedResponse> entries = new ConcurrentHashMap<>();
+
+    private final List<String> operations = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Latch the writes wait on before storing, null to store right away
+     */
+    private volatile CountDownLatch blockStores;
+
+    @Override
+    public CachedResponse load(String key) throws IOException {
+      return entries.get(key);
+    }
+
+    @Override
+    public void store(String key, CachedResponse response) throws IOException {
+      CountDownLatch blocked = blockStores;
+      try {
+        if (blocked != null) assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      entries.put(key, response);
+      operations.add("store " + key);
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+      entries.remove(key);
+      operations.add("remove " + key);
+    }
+
+    private void awaitOperations(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (operations.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+      assertEquals(count, operations.size(), operations.toString());
+    }
+
+  }
+
+}
@@ -0,0 +1,115 @@
+package com.rforristall.fhir.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.epic.EpicFhirSpecification;
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.stub.StubFhirServer;
+
+/**
+ * Tests for the grouping of writes into Bundles by {@link BatchWriter} against a {@link StubFhirServer}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class BatchWriterTest {
+
+  private static final String PATIENT = "{\"resourceType\":\"Patient\"}";
+
+  private StubFhirServer server;
+
+  private HapiFhirSpecification fhirSpec;
+
+  private FhirClient fhirClient;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = StubFhirServer.start(FhirDialect.HAPI);
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth(server.getFhirUrl(), Collections.emptyList(), FhirVersion.R4, false, 0);
+    fhirClient = new FhirClient(fhirSpec);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    fhirSpec.close();
+    server.close();
+  }
+
+  @Test
+  void fullBatchIsSentAsOneBundle() throws Exception {
+    try (BatchWriter writer = new BatchWriter(fhirClient, BatchWriter.BundleType.BATCH, 3, Duration.ofMinutes(1))) {
+      List<CompletableFuture<FhirResponse>> writes = new ArrayList<>();
+      for (int i = 0; i < 3; i++) writes.add(writer.create("Patient", PATIENT));
+      for (int i = 0; i < 3; i++) {
+        FhirResponse response = writes.get(i).get(5, TimeUnit.SECONDS);
+        assertEquals(201, response.getStatusCode());
+        // Every write gets its own entry of the response Bundle
+        assertEquals("Patient/batch-" + (i + 1) + "/_history/1", response.getHeaders().firstValue("Location").orElse(null));
+      }
+      assertEquals(1, server.getRequestCount());
+    }
+  }
+
+  @Test
+  void partialBatchIsSentOnceTheDelayIsOver() throws Exception {
+    try (BatchWriter writer = new BatchWriter(fhirClient, BatchWriter.BundleType.TRANSACTION, 100, Duration.ofMillis(20))) {
+      CompletableFuture<FhirResponse> update = writer.update("Patient", "1", PATIENT);
+      CompletableFuture<FhirResponse> delete = writer.delete("Patient", "2");
+      assertEquals(200, update.get(5, TimeUnit.SECONDS).getStatusCode());
+      assertEquals("W/\"1\"", update.get().getHeaders().firstValue("ETag").orElse(null));
+      assertEquals(204, delete.get(5, TimeUnit.SECONDS).getStatusCode());
+      assertEquals(1, server.getRequestCount());
+    }
+  }
+
+  @Test
+  void closeSendsThePendingWritesAndRejectsNewOnes() throws Exception {
+    BatchWriter writer = new BatchWriter(fhirClient, BatchWriter.BundleType.BATCH, 100, Duration.ofMinutes(1));
+    CompletableFuture<FhirResponse> delete = writer.delete("Patient", "1");
+    Thread.sleep(50);
+    assertFalse(delete.isDone());
+    writer.close();
+    assertEquals(204, delete.get(5, TimeUnit.SECONDS).getStatusCode());
+    assertThrows(IllegalStateException.class, () -> writer.create("Patient", PATIENT));
+  }
+
+  @Test
+  void rejectedBundleFailsEveryWrite() throws Exception {
+    server.failNext(1, 400);
+    List<CompletableFuture<FhirResponse>> writes = new ArrayList<>();
+    try (BatchWriter writer = new BatchWriter(fhirClient, BatchWriter.BundleType.TRANSACTION, 2, Duration.ofMinutes(1))) {
+      writes.add(writer.create("Patient", PATIENT));
+      writes.add(writer.update("Patient", "1", PATIENT));
+    }
+    for (CompletableFuture<FhirResponse> write : writes) {
+      CompletionException failure = assertThrows(CompletionException.class, write::join);
+      assertTrue(failure.getCause() instanceof HttpErrorException, String.valueOf(failure.getCause()));
+    }
+  }
+
+  @Test
+  void dialectsWithoutBatchWritesAreRejected() throws Exception {
+    try (EpicFhirSpecification epicSpec = EpicFhirSpecification.createSpecWithBasicAuth(server.getFhirUrl(), Collections.emptyList(), FhirVersion.R4, false, 0, "user", "password", "client")) {
+      assertThrows(IllegalArgumentException.class, () -> new BatchWriter(new FhirClient(epicSpec), BatchWriter.BundleType.BATCH));
+    }
+    assertThrows(IllegalArgumentException.class, () -> new BatchWriter(fhirClient, BatchWriter.BundleType.BATCH, 0, Duration.ZERO));
+  }
+
+}
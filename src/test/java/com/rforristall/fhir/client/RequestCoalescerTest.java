@@ -0,0 +1,154 @@
+package com.rforristall.fhir.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirVersion;
+
+/**
+ * Tests for the single-flight deduplication of {@link RequestCoalescer} and which requests a write detaches.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class RequestCoalescerTest {
+
+  private HapiFhirSpecification fhirSpec;
+
+  private RequestCoalescer coalescer;
+
+  /**
+   * The calls started through {@link #start(FhirRequest)}, completed by the tests
+   */
+  private final List<CompletableFuture<FhirResponse>> calls = new ArrayList<>();
+
+  private final AtomicInteger coalescedCount = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    // Each test gets its own specification and therefore its own coalescer
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth("http://localhost", Collections.emptyList(), FhirVersion.R4, false, 0);
+    coalescer = RequestCoalescer.forSpecification(fhirSpec);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    fhirSpec.close();
+  }
+
+  @Test
+  void identicalRequestsShareOneCall() {
+    CompletableFuture<FhirResponse> first = start(read("Patient", "Patient/1"));
+    CompletableFuture<FhirResponse> second = start(read("Patient", "Patient/1"));
+    CompletableFuture<FhirResponse> other = start(read("Patient", "Patient/2"));
+    assertEquals(2, calls.size());
+    assertEquals(1, coalescedCount.get());
+    assertEquals(1, coalescer.getCoalescedCount());
+    FhirResponse response = newResponse("patient-1");
+    calls.get(0).complete(response);
+    assertSame(response, first.join());
+    assertSame(response, second.join());
+    assertFalse(other.isDone());
+    // Once the call completed the next identical request sends its own
+    start(read("Patient", "Patient/1"));
+    assertEquals(3, calls.size());
+  }
+
+  @Test
+  void joinedCallersCannotCompleteTheSharedCall() {
+    CompletableFuture<FhirResponse> first = start(read("Patient", "Patient/1"));
+    CompletableFuture<FhirResponse> second = start(read("Patient", "Patient/1"));
+    second.complete(newResponse("forged"));
+    FhirResponse response = newResponse("patient-1");
+    calls.get(0).complete(response);
+    assertSame(response, first.join());
+  }
+
+  @Test
+  void detachOnlyAffectsTheWrittenType() {
+    start(read("Patient", "Patient/1"));
+    start(read("Observation", "Observation?patient=1"));
+    coalescer.detach("Patient");
+    start(read("Patient", "Patient/1"));
+    start(read("Observation", "Observation?patient=1"));
+    // The Patient read was sent again while the Observation search joined the one in flight
+    assertEquals(3, calls.size());
+    assertEquals(1, coalescedCount.get());
+  }
+
+  @Test
+  void detachAffectsRequestsThatMayIncludeOtherTypes() {
+    start(read("Observation", "Observation?_include=Observation:patient"));
+    start(read("Encounter", "Encounter?_revinclude=Condition:encounter"));
+    start(read("Practitioner", "Practitioner?_has:PractitionerRole:practitioner:role=doctor"));
+    start(read(null, "?_type=Patient,Observation"));
+    start(read("Medication", "Medication/1"));
+    coalescer.detach("Patient");
+    start(read("Observation", "Observation?_include=Observation:patient"));
+    start(read("Encounter", "Encounter?_revinclude=Condition:encounter"));
+    start(read("Practitioner", "Practitioner?_has:PractitionerRole:practitioner:role=doctor"));
+    start(read(null, "?_type=Patient,Observation"));
+    start(read("Medication", "Medication/1"));
+    assertEquals(9, calls.size());
+    assertEquals(1, coalescedCount.get());
+  }
+
+  @Test
+  void detachWithoutTypeDetachesEverything() {
+    start(read("Patient", "Patient/1"));
+    start(read("Observation", "Observation/1"));
+    coalescer.detach(null);
+    start(read("Patient", "Patient/1"));
+    start(read("Observation", "Observation/1"));
+    assertEquals(4, calls.size());
+    assertEquals(0, coalescedCount.get());
+  }
+
+  @Test
+  void detachedCallStillCompletesForItsCallers() {
+    CompletableFuture<FhirResponse> first = start(read("Patient", "Patient/1"));
+    CompletableFuture<FhirResponse> joined = start(read("Patient", "Patient/1"));
+    coalescer.detach("Patient");
+    CompletableFuture<FhirResponse> after = start(read("Patient", "Patient/1"));
+    FhirResponse before = newResponse("before");
+    calls.get(0).complete(before);
+    assertSame(before, first.join());
+    assertSame(before, joined.join());
+    assertFalse(after.isDone());
+    // The detached call completing must not remove the call that replaced it
+    start(read("Patient", "Patient/1"));
+    assertEquals(2, calls.size());
+    FhirResponse later = newResponse("after");
+    calls.get(1).complete(later);
+    assertSame(later, after.join());
+  }
+
+  private CompletableFuture<FhirResponse> start(FhirRequest request) {
+    return coalescer.executeAsync(request, () -> {
+      CompletableFuture<FhirResponse> call = new CompletableFuture<>();
+      calls.add(call);
+      return call;
+    }, coalescedCount::incrementAndGet);
+  }
+
+  private static FhirRequest read(String resourceType, String path) {
+    return new FhirRequest(HttpMethod.GET, resourceType, path, null);
+  }
+
+  private static FhirResponse newResponse(String body) {
+    return new FhirResponse(200, HttpHeaders.of(Collections.emptyMap(), (name, value) -> true), body);
+  }
+
+}
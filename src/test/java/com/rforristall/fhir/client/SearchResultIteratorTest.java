@@ -0,0 +1,105 @@
+package com.rforristall.fhir.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.exception.HttpErrorException;
+import com.rforristall.fhir.hapi.HapiFhirSpecification;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.stub.StubFhirServer;
+
+/**
+ * Tests for the paging and the prefetching of {@link SearchResultIterator} against a {@link StubFhirServer}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class SearchResultIteratorTest {
+
+  private StubFhirServer server;
+
+  private HapiFhirSpecification fhirSpec;
+
+  private FhirClient fhirClient;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = StubFhirServer.start(FhirDialect.HAPI);
+    fhirSpec = HapiFhirSpecification.createSpecWithNoAuth(server.getFhirUrl(), Collections.emptyList(), FhirVersion.R4, false, 0);
+    fhirClient = new FhirClient(fhirSpec);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    fhirSpec.close();
+    server.close();
+  }
+
+  @Test
+  void iteratesEveryResourceOfEveryPageInOrder() {
+    server.setSearchTotal(45);
+    server.setPageSize(20);
+    List<String> ids = new ArrayList<>();
+    try (SearchResultIterator iterator = fhirClient.searchAll("Patient", null)) {
+      iterator.forEachRemaining(resource -> ids.add(resource.get("id").getAsString()));
+    }
+    assertEquals(IntStream.rangeClosed(1, 45).mapToObj(Integer::toString).collect(Collectors.toList()), ids);
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test
+  void fetchingStopsOnceThePrefetchBufferIsFull() throws Exception {
+    server.setSearchTotal(100);
+    server.setPageSize(10);
+    try (SearchResultIterator iterator = fhirClient.searchAll("Patient", null, 1)) {
+      assertEquals("1", iterator.next().get("id").getAsString());
+      // The first page is being consumed and the second one fills the buffer, the third waits for the caller
+      awaitRequestCount(2);
+      Thread.sleep(200);
+      assertEquals(2, server.getRequestCount());
+      for (int i = 2; i <= 11; i++) assertEquals(Integer.toString(i), iterator.next().get("id").getAsString());
+      awaitRequestCount(3);
+    }
+  }
+
+  @Test
+  void closedIteratorHasNoMoreResources() {
+    server.setSearchTotal(100);
+    server.setPageSize(10);
+    SearchResultIterator iterator = fhirClient.searchAll("Patient", null);
+    assertTrue(iterator.hasNext());
+    iterator.close();
+    // The page already being consumed is still served, nothing after it
+    for (int i = 0; i < 10; i++) iterator.next();
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  void failedPageIsReportedToTheCaller() {
+    server.failNext(1, 400);
+    try (SearchResultIterator iterator = fhirClient.searchAll("Patient", null)) {
+      CompletionException failure = assertThrows(CompletionException.class, iterator::hasNext);
+      assertTrue(failure.getCause() instanceof HttpErrorException, String.valueOf(failure.getCause()));
+    }
+  }
+
+  private void awaitRequestCount(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (server.getRequestCount() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    assertEquals(count, server.getRequestCount());
+  }
+
+}
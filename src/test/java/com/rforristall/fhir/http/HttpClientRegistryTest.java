@@ -0,0 +1,57 @@
+package com.rforristall.fhir.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the sharing and the reference counting of the clients of {@link HttpClientRegistry}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class HttpClientRegistryTest {
+
+  private final HttpClientRegistry registry = new HttpClientRegistry();
+
+  private final HttpClientSettings settings = HttpClientSettings.defaultSettings();
+
+  @Test
+  void sameHostAndSettingsShareOneClient() {
+    HttpClient first = registry.acquire("https://fhir.example.org/R4/Patient/1", settings);
+    HttpClient second = registry.acquire("https://FHIR.example.org:443/R4/Observation", settings);
+    assertSame(first, second);
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  void differentHostsPortsOrSettingsGetTheirOwnClient() {
+    HttpClient client = registry.acquire("https://fhir.example.org/R4", settings);
+    assertNotSame(client, registry.acquire("https://auth.example.org/token", settings));
+    assertNotSame(client, registry.acquire("http://fhir.example.org/R4", settings));
+    assertNotSame(client, registry.acquire("https://fhir.example.org:8443/R4", settings));
+    assertNotSame(client, registry.acquire("https://fhir.example.org/R4", new HttpClientSettings(false, Duration.ofSeconds(1), null, null)));
+    assertEquals(5, registry.size());
+  }
+
+  @Test
+  void clientIsDroppedOnceItsLastHolderReleasesIt() {
+    HttpClient client = registry.acquire("http://localhost/fhir", settings);
+    registry.acquire("http://localhost:80/other", settings);
+    registry.release("http://localhost/fhir", settings);
+    assertEquals(1, registry.size());
+    assertSame(client, registry.acquire("http://localhost/fhir", settings));
+    registry.release("http://localhost/fhir", settings);
+    registry.release("http://localhost/fhir", settings);
+    assertEquals(0, registry.size());
+    // Releasing more than was acquired is ignored and the next holder gets a new client
+    registry.release("http://localhost/fhir", settings);
+    assertNotSame(client, registry.acquire("http://localhost/fhir", settings));
+    assertEquals(1, registry.size());
+  }
+
+}
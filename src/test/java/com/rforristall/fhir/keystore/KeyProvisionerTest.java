@@ -0,0 +1,118 @@
+package com.rforristall.fhir.keystore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.rforristall.fhir.util.CertificateInfo;
+
+/**
+ * Tests for the parallel provisioning of keystores by {@link KeyProvisioner}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class KeyProvisionerTest {
+
+  private static final CertificateInfo CERTIFICATE_INFO = new CertificateInfo("test", "test", "US");
+
+  @TempDir
+  Path storeDir;
+
+  @Test
+  void everyKeyStoreIsProvisioned() throws Exception {
+    List<KeyStoreSpec> specs = new ArrayList<>();
+    for (int i = 0; i < 6; i++) specs.add(newSpec("tenant-" + i + ".p12", "client"));
+    try (KeyProvisioner provisioner = new KeyProvisioner(3)) {
+      assertEquals(Collections.emptyMap(), provisioner.provisionAll(specs, JWSAlgorithm.ES256, CERTIFICATE_INFO));
+    }
+    for (KeyStoreSpec spec : specs) {
+      assertEquals(Collections.singletonList("client"), loadAliases(spec));
+      assertTrue(Files.exists(spec.getKeySetFilePath()), spec.toString());
+    }
+  }
+
+  @Test
+  void specsSharingAKeyStoreAreProvisionedOneAfterTheOther() throws Exception {
+    List<KeyStoreSpec> specs = new ArrayList<>();
+    for (int i = 0; i < 5; i++) specs.add(newSpec("shared.p12", "client-" + i));
+    try (KeyProvisioner provisioner = new KeyProvisioner(4)) {
+      assertEquals(Collections.emptyMap(), provisioner.provisionAll(specs, JWSAlgorithm.ES256, CERTIFICATE_INFO));
+    }
+    // Concurrent read, add and write of the same file would lose all but the last key
+    assertEquals(Arrays.asList("client-0", "client-1", "client-2", "client-3", "client-4"), sorted(loadAliases(specs.get(0))));
+  }
+
+  @Test
+  void failedSpecIsReportedWithoutHoldingBackTheOthers() throws Exception {
+    KeyStoreSpec existing = newSpec("existing.p12", "client");
+    try (KeyProvisioner provisioner = new KeyProvisioner(2)) {
+      provisioner.provision(existing, JWSAlgorithm.ES256, CERTIFICATE_INFO).get(30, TimeUnit.SECONDS);
+      KeyStoreSpec wrongPassword = new KeyStoreSpec(storeDir, "existing.p12", "wrong-pass", "other", "key-pass", "kid-other");
+      KeyStoreSpec next = newSpec("existing.p12", "next");
+      KeyStoreSpec separate = newSpec("separate.p12", "client");
+      Map<KeyStoreSpec, Throwable> failures = provisioner.provisionAll(Arrays.asList(wrongPassword, next, separate), JWSAlgorithm.ES256, CERTIFICATE_INFO);
+      assertEquals(Collections.singleton(wrongPassword), failures.keySet());
+      assertTrue(failures.get(wrongPassword) instanceof IOException, String.valueOf(failures.get(wrongPassword)));
+      assertEquals(Arrays.asList("client", "next"), sorted(loadAliases(existing)));
+      assertEquals(Collections.singletonList("client"), loadAliases(separate));
+    }
+  }
+
+  @Test
+  void provisionedKeyStoreIsLeftUnchanged() throws Exception {
+    KeyStoreSpec spec = newSpec("rerun.p12", "client");
+    try (KeyProvisioner provisioner = new KeyProvisioner(1)) {
+      provisioner.provision(spec, JWSAlgorithm.ES256, CERTIFICATE_INFO).get(30, TimeUnit.SECONDS);
+      byte[] keyStoreBytes = Files.readAllBytes(spec.getKeyStoreFilePath());
+      provisioner.provision(spec, JWSAlgorithm.ES256, CERTIFICATE_INFO).get(30, TimeUnit.SECONDS);
+      assertArrayEquals(keyStoreBytes, Files.readAllBytes(spec.getKeyStoreFilePath()));
+    }
+  }
+
+  @Test
+  void closedProvisionerRejectsNewSpecs() {
+    KeyProvisioner provisioner = new KeyProvisioner(1);
+    provisioner.close();
+    ExecutionException failure = assertThrows(ExecutionException.class,
+            () -> provisioner.provision(newSpec("closed.p12", "client"), JWSAlgorithm.ES256, CERTIFICATE_INFO).get(30, TimeUnit.SECONDS));
+    assertTrue(failure.getCause() instanceof RejectedExecutionException, String.valueOf(failure.getCause()));
+    assertThrows(IllegalArgumentException.class, () -> new KeyProvisioner(0));
+  }
+
+  private KeyStoreSpec newSpec(String fileName, String keyAlias) {
+    return new KeyStoreSpec(storeDir, fileName, "store-pass", keyAlias, "key-pass", "kid-" + keyAlias);
+  }
+
+  private static List<String> loadAliases(KeyStoreSpec keyStoreSpec) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStoreAccessor.getKeyStoreType());
+    try (InputStream in = Files.newInputStream(keyStoreSpec.getKeyStoreFilePath())) {
+      keyStore.load(in, keyStoreSpec.getStorePassword().toCharArray());
+    }
+    return Collections.list(keyStore.aliases());
+  }
+
+  private static List<String> sorted(List<String> values) {
+    Collections.sort(values);
+    return values;
+  }
+
+}
@@ -0,0 +1,101 @@
+package com.rforristall.fhir.keystore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jwt.SignedJWT;
+import com.rforristall.fhir.util.CertificateInfo;
+
+/**
+ * Tests for the client assertions signed by {@link KeyStoreAccessor} and the cache of its signing keys.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class KeyStoreAccessorTest {
+
+  private static final CertificateInfo CERTIFICATE_INFO = new CertificateInfo("test", "test", "US");
+
+  @TempDir
+  Path storeDir;
+
+  @Test
+  void signsAssertionsWithTheStoredKey() throws Exception {
+    KeyStoreAccessor ecAccessor = newAccessor("ec.p12", JWSAlgorithm.ES256);
+    SignedJWT ecJwt = ecAccessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300);
+    assertTrue(ecJwt.verify(new ECDSAVerifier((ECPublicKey) loadPublicKey(ecAccessor.getKeyStoreSpec()))));
+    assertEquals("client", ecJwt.getJWTClaimsSet().getIssuer());
+    assertEquals("kid-ec.p12", ecJwt.getHeader().getKeyID());
+
+    KeyStoreAccessor rsaAccessor = newAccessor("rsa.p12", JWSAlgorithm.RS384);
+    SignedJWT rsaJwt = rsaAccessor.getSignedJwtToken(JWSAlgorithm.RS384, "client", "https://auth.example.org/token", 300);
+    assertTrue(rsaJwt.verify(new RSASSAVerifier((RSAPublicKey) loadPublicKey(rsaAccessor.getKeyStoreSpec()))));
+  }
+
+  @Test
+  void unchangedKeyStoreIsNotReadAgain() throws Exception {
+    KeyStoreAccessor accessor = newAccessor("cached.p12", JWSAlgorithm.ES256);
+    PublicKey publicKey = loadPublicKey(accessor.getKeyStoreSpec());
+    accessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300);
+    Path keyStorePath = accessor.getKeyStoreSpec().getKeyStoreFilePath();
+    byte[] keyStoreBytes = Files.readAllBytes(keyStorePath);
+    FileTime lastModified = Files.getLastModifiedTime(keyStorePath);
+
+    // Signing keeps working from the cache while the file keeps its modification time
+    Files.write(keyStorePath, new byte[] { 1, 2, 3 });
+    Files.setLastModifiedTime(keyStorePath, lastModified);
+    SignedJWT cached = new KeyStoreAccessor(accessor.getKeyStoreSpec()).getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300);
+    assertTrue(cached.verify(new ECDSAVerifier((ECPublicKey) publicKey)));
+
+    // A modified file is read again
+    Files.setLastModifiedTime(keyStorePath, FileTime.fromMillis(lastModified.toMillis() + 10_000));
+    assertThrows(IOException.class, () -> accessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300));
+    Files.write(keyStorePath, keyStoreBytes);
+    assertTrue(accessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300).verify(new ECDSAVerifier((ECPublicKey) publicKey)));
+  }
+
+  @Test
+  void replacedKeyIsPickedUp() throws Exception {
+    KeyStoreAccessor accessor = newAccessor("replaced.p12", JWSAlgorithm.ES256);
+    accessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300);
+    Path keyStorePath = accessor.getKeyStoreSpec().getKeyStoreFilePath();
+    FileTime lastModified = Files.getLastModifiedTime(keyStorePath);
+    Files.delete(keyStorePath);
+    accessor.createKeyStoreAndKeySet(JWSAlgorithm.ES256, CERTIFICATE_INFO);
+    // Even when the new file has the same modification time the cache is dropped once the key is generated
+    Files.setLastModifiedTime(keyStorePath, lastModified);
+    SignedJWT jwt = accessor.getSignedJwtToken(JWSAlgorithm.ES256, "client", "https://auth.example.org/token", 300);
+    assertTrue(jwt.verify(new ECDSAVerifier((ECPublicKey) loadPublicKey(accessor.getKeyStoreSpec()))));
+  }
+
+  private KeyStoreAccessor newAccessor(String fileName, JWSAlgorithm securityAlg) throws Exception {
+    KeyStoreAccessor accessor = new KeyStoreAccessor(new KeyStoreSpec(storeDir, fileName, "store-pass", "client", "key-pass", "kid-" + fileName));
+    accessor.createKeyStoreAndKeySet(securityAlg, CERTIFICATE_INFO);
+    return accessor;
+  }
+
+  private static PublicKey loadPublicKey(KeyStoreSpec keyStoreSpec) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStoreAccessor.getKeyStoreType());
+    try (InputStream in = Files.newInputStream(keyStoreSpec.getKeyStoreFilePath())) {
+      keyStore.load(in, keyStoreSpec.getStorePassword().toCharArray());
+    }
+    return keyStore.getCertificate(keyStoreSpec.getKeyAlias()).getPublicKey();
+  }
+
+}
@@ -0,0 +1,117 @@
+package com.rforristall.fhir.ratelimit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Tests for the bursts, spacing and pauses of {@link RateLimiter}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class RateLimiterTest {
+
+  @Test
+  void grantsTheBurstThenDenies() {
+    RateLimiter limiter = new RateLimiter(1, 3);
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  void reservationsAreSpacedByTheEmissionInterval() {
+    RateLimiter limiter = new RateLimiter(10, 1);
+    assertEquals(0, limiter.reserve());
+    long second = limiter.reserve();
+    long third = limiter.reserve();
+    assertTrue(second > TimeUnit.MILLISECONDS.toNanos(90) && second <= TimeUnit.MILLISECONDS.toNanos(100), "second=" + second);
+    assertTrue(third > TimeUnit.MILLISECONDS.toNanos(190) && third <= TimeUnit.MILLISECONDS.toNanos(200), "third=" + third);
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  void unlimitedNeverWaits() {
+    RateLimiter limiter = RateLimiter.unlimited();
+    for (int i = 0; i < 1000; i++) assertTrue(limiter.tryAcquire());
+    assertEquals(0, limiter.reserve());
+    assertTrue(limiter.acquireAsync().isDone());
+    assertEquals(0, limiter.getPermitsPerSecond());
+  }
+
+  @Test
+  void intervalIsConvertedToARate() {
+    RateLimiter limiter = RateLimiter.fromInterval(Duration.ofMillis(500));
+    assertEquals(2, limiter.getPermitsPerSecond(), 0.001);
+    assertEquals(1, limiter.getBurst());
+    assertEquals(0, RateLimiter.fromInterval(Duration.ZERO).getPermitsPerSecond());
+  }
+
+  @Test
+  void pauseStopsEvenAnUnlimitedLimiter() {
+    RateLimiter limiter = RateLimiter.unlimited();
+    limiter.pause(Duration.ofSeconds(1));
+    assertFalse(limiter.tryAcquire());
+    long waitNanos = limiter.reserve();
+    assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(900) && waitNanos <= TimeUnit.SECONDS.toNanos(1), "wait=" + waitNanos);
+  }
+
+  @Test
+  void shorterPauseDoesNotShortenALongerOne() {
+    RateLimiter limiter = RateLimiter.unlimited();
+    limiter.pause(Duration.ofSeconds(2));
+    limiter.pause(Duration.ofMillis(100));
+    assertTrue(limiter.reserve() > TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  void throttlingResponsesPauseTheLimiter() {
+    RateLimiter limiter = RateLimiter.unlimited();
+    assertFalse(limiter.onThrottled(newError(404, null)));
+    assertFalse(limiter.onThrottled(newError(503, null)));
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.onThrottled(newError(503, "2")));
+    long waitNanos = limiter.reserve();
+    assertTrue(waitNanos > TimeUnit.SECONDS.toNanos(1) && waitNanos <= TimeUnit.SECONDS.toNanos(2), "wait=" + waitNanos);
+
+    RateLimiter defaultPause = RateLimiter.unlimited();
+    assertTrue(defaultPause.onThrottled(newError(429, null)));
+    assertFalse(defaultPause.tryAcquire());
+  }
+
+  @Test
+  void rateChangesApplyToLaterPermits() {
+    RateLimiter limiter = new RateLimiter(1, 1);
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    limiter.setRate(1, 5);
+    assertEquals(5, limiter.getBurst());
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  void burstMustBeAtLeastOne() {
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 0));
+  }
+
+  private static HttpErrorException newError(int statusCode, String retryAfter) {
+    Map<String, List<String>> headers = retryAfter != null
+            ? Collections.singletonMap("Retry-After", Collections.singletonList(retryAfter))
+            : Collections.emptyMap();
+    return HttpErrorException.createExceptionFromResponse(statusCode, HttpHeaders.of(headers, (name, value) -> true), "");
+  }
+
+}
@@ -0,0 +1,134 @@
+package com.rforristall.fhir.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.rforristall.fhir.client.HttpMethod;
+import com.rforristall.fhir.exception.HttpErrorException;
+
+/**
+ * Tests for the retry classification, delays and budgets of {@link RetryPolicy}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class RetryPolicyTest {
+
+  private static final String HOST = "fhir.example.org";
+
+  @Test
+  void throttlingAndConnectFailuresAreRetryableForEveryMethod() {
+    RetryPolicy policy = RetryPolicy.defaultPolicy();
+    for (HttpMethod method : HttpMethod.values()) {
+      assertTrue(policy.isRetryable(method, newError(408, null)), method.name());
+      assertTrue(policy.isRetryable(method, newError(429, null)), method.name());
+      assertTrue(policy.isRetryable(method, new ConnectException("refused")), method.name());
+      assertTrue(policy.isRetryable(method, new HttpConnectTimeoutException("connect timed out")), method.name());
+    }
+  }
+
+  @Test
+  void serverErrorsAndResetsAreOnlyRetryableForIdempotentMethods() {
+    RetryPolicy policy = RetryPolicy.defaultPolicy();
+    assertTrue(policy.isRetryable(HttpMethod.GET, newError(503, null)));
+    assertTrue(policy.isRetryable(HttpMethod.PUT, newError(500, null)));
+    assertFalse(policy.isRetryable(HttpMethod.POST, newError(503, null)));
+    assertTrue(policy.isRetryable(HttpMethod.GET, new HttpTimeoutException("request timed out")));
+    assertFalse(policy.isRetryable(HttpMethod.POST, new HttpTimeoutException("request timed out")));
+    assertTrue(policy.isRetryable(HttpMethod.DELETE, new SocketException("Connection reset")));
+    assertTrue(policy.isRetryable(HttpMethod.GET, new IOException("connection closed locally")));
+    assertTrue(policy.isRetryable(HttpMethod.GET, new IOException("wrapped", new SocketException("Broken pipe"))));
+    assertFalse(policy.isRetryable(HttpMethod.POST, new IOException("connection closed locally")));
+  }
+
+  @Test
+  void otherFailuresAreNotRetryable() {
+    RetryPolicy policy = RetryPolicy.defaultPolicy();
+    assertFalse(policy.isRetryable(HttpMethod.GET, newError(400, null)));
+    assertFalse(policy.isRetryable(HttpMethod.GET, newError(404, null)));
+    assertFalse(policy.isRetryable(HttpMethod.GET, new IOException("malformed response")));
+    assertFalse(policy.isRetryable(HttpMethod.GET, new IllegalStateException()));
+  }
+
+  @Test
+  void retryAfterIsHonoredUpToTheMaximum() {
+    RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(100), Duration.ofSeconds(1), Duration.ofSeconds(10), 0, 10);
+    assertEquals(TimeUnit.SECONDS.toNanos(5), policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(429, "5"), 1));
+    assertEquals(-1, policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(429, "11"), 1));
+  }
+
+  @Test
+  void backoffIsCappedAndJittered() {
+    RetryPolicy policy = new RetryPolicy(40, Duration.ofMillis(100), Duration.ofSeconds(1), Duration.ZERO, 0, 1000);
+    for (int i = 0; i < 100; i++) {
+      long first = policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1);
+      assertTrue(first >= 0 && first <= TimeUnit.MILLISECONDS.toNanos(100), "first=" + first);
+      long third = policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 3);
+      assertTrue(third >= 0 && third <= TimeUnit.MILLISECONDS.toNanos(400), "third=" + third);
+      long late = policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 39);
+      assertTrue(late >= 0 && late <= TimeUnit.SECONDS.toNanos(1), "late=" + late);
+    }
+  }
+
+  @Test
+  void attemptsStopAtTheMaximum() {
+    RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ZERO, 0, 10);
+    assertTrue(policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 2) >= 0);
+    assertEquals(-1, policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 3));
+    assertEquals(-1, RetryPolicy.noRetries().getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1));
+  }
+
+  @Test
+  void budgetLimitsRetriesPerHost() {
+    RetryPolicy policy = new RetryPolicy(10, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ZERO, 0.5, 2);
+    assertTrue(policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1) >= 0);
+    assertTrue(policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1) >= 0);
+    assertEquals(-1, policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1));
+    // Another host has its own budget
+    assertTrue(policy.getRetryDelayNanos("other.example.org", HttpMethod.GET, newError(503, null), 1) >= 0);
+    // Two requests earn one retry at a ratio of 0.5
+    policy.onRequest(HOST);
+    assertEquals(-1, policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1));
+    policy.onRequest(HOST);
+    policy.onRequest(HOST);
+    assertTrue(policy.getRetryDelayNanos(HOST, HttpMethod.GET, newError(503, null), 1) >= 0);
+  }
+
+  @Test
+  void budgetIsCappedAtTheReserve() {
+    RetryBudget budget = new RetryBudget(1, 2);
+    for (int i = 0; i < 10; i++) budget.onRequest();
+    assertEquals(2, budget.getAvailableRetries());
+    assertTrue(budget.tryWithdraw());
+    assertTrue(budget.tryWithdraw());
+    assertFalse(budget.tryWithdraw());
+  }
+
+  @Test
+  void requestMustBeAttemptedAtLeastOnce() {
+    assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(0, Duration.ZERO, Duration.ZERO, Duration.ZERO, 0, 0));
+  }
+
+  private static HttpErrorException newError(int statusCode, String retryAfter) {
+    Map<String, List<String>> headers = retryAfter != null
+            ? Collections.singletonMap("Retry-After", Collections.singletonList(retryAfter))
+            : Collections.emptyMap();
+    return HttpErrorException.createExceptionFromResponse(statusCode, HttpHeaders.of(headers, (name, value) -> true), "");
+  }
+
+}
@@ -0,0 +1,542 @@
+package com.rforristall.fhir.stub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nimbusds.jose.shaded.gson.JsonArray;
+import com.nimbusds.jose.shaded.gson.JsonElement;
+import com.nimbusds.jose.shaded.gson.JsonObject;
+import com.nimbusds.jose.shaded.gson.JsonParser;
+import com.rforristall.fhir.spec.FhirDialect;
+import com.rforristall.fhir.spec.FhirVersion;
+import com.rforristall.fhir.util.VirtualThreads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a FHIR server and its OAuth token endpoint, for load tests and benchmarks that must run
+ * offline.
+ *
+ * The server listens on an ephemeral loopback port and lays out its URLs like the emulated {@link FhirDialect} (i.e.
+ * /api/FHIR/R4 for Epic), including the dialect's style of search paging links. Resources are generated on the fly,
+ * so reads always succeed and searches return {@link #setSearchTotal(int)} resources in pages of
+ * {@link #setPageSize(int)}, which makes arbitrarily large Bundles cheap to serve. Reads carry an ETag and answer a
+ * matching If-None-Match with 304 Not Modified. Creates, updates, deletes and batch or transaction Bundles are
+ * acknowledged without storing anything.
+ *
+ * Latency, 429 responses with a Retry-After header, bursts of 5xx responses and token endpoint failures can be injected
+ * at any time while the server runs. Requests are handled on virtual threads when the runtime supports them, so
+ * injected latency does not limit the number of concurrent requests.
+ *
+ * Run the JVM with -Dsun.net.httpserver.nodelay=true when measuring latency, otherwise Nagle's algorithm adds a
+ * delayed ACK of around 40ms to every response of the JDK HTTP server.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+public class StubFhirServer implements AutoCloseable {
+
+  /**
+   * The default number of resources matching every search
+   */
+  public static final int DEFAULT_SEARCH_TOTAL = 50;
+
+  /**
+   * The default number of resources in a page of search results
+   */
+  public static final int DEFAULT_PAGE_SIZE = 20;
+
+  /**
+   * The default lifetime of the tokens issued by the token endpoint
+   */
+  public static final Duration DEFAULT_TOKEN_LIFETIME = Duration.ofMinutes(5);
+
+  /**
+   * The tenant id used in the URLs of dialects that include one (i.e. Cerner)
+   */
+  private static final String TENANT_ID = "stub-tenant";
+
+  /**
+   * The ETag of every generated resource, matching its meta.versionId
+   */
+  private static final String RESOURCE_ETAG = "W/\"1\"";
+
+  /**
+   * The dialect whose URLs and paging links are emulated
+   */
+  private final FhirDialect fhirDialect;
+
+  /**
+   * The version whose JSON mime type is returned
+   */
+  private final FhirVersion fhirVersion;
+
+  /**
+   * The JDK server accepting the connections
+   */
+  private final HttpServer server;
+
+  /**
+   * The executor the requests are handled on
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The path of the FHIR base, i.e. /fhir
+   */
+  private final String fhirPath;
+
+  /**
+   * The path of the token endpoint
+   */
+  private final String tokenPath;
+
+  private volatile long minLatencyNanos;
+
+  private volatile long maxLatencyNanos;
+
+  private volatile int searchTotal = DEFAULT_SEARCH_TOTAL;
+
+  private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+  private volatile Duration tokenLifetime = DEFAULT_TOKEN_LIFETIME;
+
+  private volatile Duration throttleRetryAfter = Duration.ofSeconds(1);
+
+  private volatile int failureStatusCode = 503;
+
+  /**
+   * The number of upcoming FHIR requests answered with 429
+   */
+  private final AtomicInteger throttledRemaining = new AtomicInteger();
+
+  /**
+   * The number of upcoming FHIR requests answered with the failure status code
+   */
+  private final AtomicInteger failuresRemaining = new AtomicInteger();
+
+  /**
+   * The number of upcoming token requests answered with 500
+   */
+  private final AtomicInteger tokenFailuresRemaining = new AtomicInteger();
+
+  private final AtomicLong requestCount = new AtomicLong();
+
+  private final AtomicLong tokenRequestCount = new AtomicLong();
+
+  private final AtomicLong tokensIssued = new AtomicLong();
+
+  /**
+   * Constructor for a stub server, use {@link #start(FhirDialect, FhirVersion)} to create one
+   * @param fhirDialect {@link FhirDialect}: The dialect whose URLs and paging links are emulated
+   * @param fhirVersion {@link FhirVersion}: The version whose JSON mime type is returned
+   * @throws IOException if the server could not be bound
+   */
+  private StubFhirServer(FhirDialect fhirDialect, FhirVersion fhirVersion) throws IOException {
+    super();
+    this.fhirDialect = fhirDialect;
+    this.fhirVersion = fhirVersion;
+    String versionName = fhirVersion.getName();
+    switch (fhirDialect) {
+    case EPIC:
+      this.fhirPath = "/api/FHIR/" + versionName;
+      this.tokenPath = "/oauth2/token";
+      break;
+    case CERNER:
+      this.fhirPath = "/" + versionName.toLowerCase(Locale.ROOT) + "/" + TENANT_ID;
+      this.tokenPath = "/tenants/" + TENANT_ID + "/protocols/oauth2/profiles/smart-v1/token";
+      break;
+    default:
+      this.fhirPath = "/fhir";
+      this.tokenPath = "/oauth2/token";
+      break;
+    }
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    this.executor = VirtualThreads.newThreadPerTaskExecutor("fhir-stub-");
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * Starts a stub server emulating an R4 server of the provided dialect
+   * @param fhirDialect {@link FhirDialect}: The dialect whose URLs and paging links are emulated
+   * @return {@link StubFhirServer} that is listening on an ephemeral loopback port
+   * @throws IOException if the server could not be bound
+   */
+  public static StubFhirServer start(FhirDialect fhirDialect) throws IOException {
+    return start(fhirDialect, FhirVersion.R4);
+  }
+
+  /**
+   * Starts a stub server
+   * @param fhirDialect {@link FhirDialect}: The dialect whose URLs and paging links are emulated
+   * @param fhirVersion {@link FhirVersion}: The version whose JSON mime type is returned
+   * @return {@link StubFhirServer} that is listening on an ephemeral loopback port
+   * @throws IOException if the server could not be bound
+   */
+  public static StubFhirServer start(FhirDialect fhirDialect, FhirVersion fhirVersion) throws IOException {
+    return new StubFhirServer(fhirDialect, fhirVersion);
+  }
+
+  /**
+   * Getter function for the FHIR base URL, to be used as the hostname of a specification
+   * @return {@link String} base URL without a trailing slash
+   */
+  public String getFhirUrl() {
+    return getBaseUrl() + fhirPath;
+  }
+
+  /**
+   * Getter function for the URL of the token endpoint, to be used as the OAuth endpoint of a specification
+   * @return {@link String} token endpoint URL
+   */
+  public String getTokenUrl() {
+    return getBaseUrl() + tokenPath;
+  }
+
+  public String getBaseUrl() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  public FhirDialect getFhirDialect() {
+    return fhirDialect;
+  }
+
+  public FhirVersion getFhirVersion() {
+    return fhirVersion;
+  }
+
+  /**
+   * Adds a fixed latency to every response
+   * @param latency {@link Duration}: The latency added before responding
+   */
+  public void setLatency(Duration latency) {
+    setLatency(latency, latency);
+  }
+
+  /**
+   * Adds a latency picked uniformly between the bounds to every response
+   * @param minLatency {@link Duration}: The minimum latency added before responding
+   * @param maxLatency {@link Duration}: The maximum latency added before responding
+   */
+  public void setLatency(Duration minLatency, Duration maxLatency) {
+    if (minLatency.isNegative() || maxLatency.compareTo(minLatency) < 0)
+      throw new IllegalArgumentException("The latency may not be negative and the maximum may not be less than the minimum!");
+    this.maxLatencyNanos = maxLatency.toNanos();
+    this.minLatencyNanos = minLatency.toNanos();
+  }
+
+  /**
+   * Sets the number of resources matching every search
+   * @param searchTotal int: The number of resources matching every search
+   */
+  public void setSearchTotal(int searchTotal) {
+    if (searchTotal < 0) throw new IllegalArgumentException("The search total may not be negative!");
+    this.searchTotal = searchTotal;
+  }
+
+  /**
+   * Sets the number of resources in a page of search results, large values produce large Bundles
+   * @param pageSize int: The number of resources in a page, at least 1
+   */
+  public void setPageSize(int pageSize) {
+    if (pageSize < 1) throw new IllegalArgumentException("The page size must be at least 1!");
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Sets the lifetime reported in the expires_in of the issued tokens
+   * @param tokenLifetime {@link Duration}: The lifetime of the issued tokens
+   */
+  public void setTokenLifetime(Duration tokenLifetime) {
+    this.tokenLifetime = tokenLifetime;
+  }
+
+  /**
+   * Answers the next FHIR requests with 429 Too Many Requests
+   * @param count int: The number of requests to throttle
+   * @param retryAfter {@link Duration}: The value of the Retry-After header, in whole seconds
+   */
+  public void throttleNext(int count, Duration retryAfter) {
+    this.throttleRetryAfter = retryAfter;
+    throttledRemaining.set(count);
+  }
+
+  /**
+   * Answers the next FHIR requests with a server error, i.e. to emulate a burst of 503 responses
+   * @param count int: The number of requests to fail
+   * @param statusCode int: The status code of the failures, i.e. 500 or 503
+   */
+  public void failNext(int count, int statusCode) {
+    this.failureStatusCode = statusCode;
+    failuresRemaining.set(count);
+  }
+
+  /**
+   * Answers the next token requests with 500 Internal Server Error
+   * @param count int: The number of token requests to fail
+   */
+  public void failNextTokenRequests(int count) {
+    tokenFailuresRemaining.set(count);
+  }
+
+  /**
+   * Getter function for the number of FHIR requests received, including the ones answered with an injected failure
+   * @return long number of FHIR requests
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Getter function for the number of token requests received, including the ones answered with an injected failure
+   * @return long number of token requests
+   */
+  public long getTokenRequestCount() {
+    return tokenRequestCount.get();
+  }
+
+  /**
+   * Stops the server right away, requests that are being handled are dropped
+   */
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return "StubFhirServer [fhirDialect=" + fhirDialect + ", fhirVersion=" + fhirVersion + ", fhirUrl=" + getFhirUrl() + "]";
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getRawPath();
+      if (path.equals(tokenPath)) {
+        handleToken(exchange);
+      } else if (path.equals(fhirPath) || path.startsWith(fhirPath + "/")) {
+        handleFhir(exchange, path.substring(fhirPath.length()));
+      } else {
+        respond(exchange, 404, operationOutcome("not-found", "Unknown path " + path), fhirVersion.getJsonMimeType());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException ex) {
+      respond(exchange, 500, operationOutcome("exception", String.valueOf(ex.getMessage())), fhirVersion.getJsonMimeType());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleToken(HttpExchange exchange) throws IOException, InterruptedException {
+    tokenRequestCount.incrementAndGet();
+    Map<String, String> form = parseQuery(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+    sleepLatency();
+    if (takeOne(tokenFailuresRemaining)) {
+      respond(exchange, 500, "{\"error\":\"server_error\"}", "application/json");
+    } else if (!"POST".equals(exchange.getRequestMethod()) || !"client_credentials".equals(form.get("grant_type")) || !form.containsKey("client_assertion")) {
+      respond(exchange, 400, "{\"error\":\"invalid_request\"}", "application/json");
+    } else {
+      JsonObject token = new JsonObject();
+      token.addProperty("access_token", "stub-token-" + tokensIssued.incrementAndGet());
+      token.addProperty("token_type", "Bearer");
+      token.addProperty("expires_in", tokenLifetime.getSeconds());
+      if (form.containsKey("scope")) token.addProperty("scope", form.get("scope"));
+      respond(exchange, 200, token.toString(), "application/json");
+    }
+  }
+
+  private void handleFhir(HttpExchange exchange, String relativePath) throws IOException, InterruptedException {
+    requestCount.incrementAndGet();
+    byte[] requestBody = exchange.getRequestBody().readAllBytes();
+    sleepLatency();
+    String mimeType = fhirVersion.getJsonMimeType();
+    if (takeOne(throttledRemaining)) {
+      exchange.getResponseHeaders().set("Retry-After", Long.toString(throttleRetryAfter.getSeconds()));
+      respond(exchange, 429, operationOutcome("throttled", "Too many requests"), mimeType);
+      return;
+    }
+    if (takeOne(failuresRemaining)) {
+      respond(exchange, failureStatusCode, operationOutcome("transient", "Injected failure"), mimeType);
+      return;
+    }
+    String[] segments = relativePath.isEmpty() || relativePath.equals("/") ? new String[0] : relativePath.substring(1).split("/");
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    String method = exchange.getRequestMethod();
+    if (segments.length == 0) {
+      if ("POST".equals(method)) respond(exchange, 200, batchResponse(new String(requestBody, StandardCharsets.UTF_8)), mimeType);
+      else if (query.containsKey("_getpages")) respond(exchange, 200, searchPage(query.get("_getpages"), Integer.parseInt(query.get("_getpagesoffset")), Integer.parseInt(query.get("_count"))), mimeType);
+      else respond(exchange, 404, operationOutcome("not-found", "Unknown request"), mimeType);
+      return;
+    }
+    String resourceType = segments[0];
+    if (segments.length == 1 && "GET".equals(method)) {
+      int offset = 0;
+      int count = query.containsKey("_count") ? Integer.parseInt(query.get("_count")) : pageSize;
+      if (query.containsKey("sessionID")) {
+        String[] session = query.get("sessionID").split("\\.");
+        offset = Integer.parseInt(session[0]);
+        count = Integer.parseInt(session[1]);
+      } else if (query.containsKey("-pageContext")) {
+        String[] context = query.get("-pageContext").split("\\.");
+        offset = Integer.parseInt(context[0]);
+        count = Integer.parseInt(context[1]);
+      }
+      respond(exchange, 200, searchPage(resourceType, offset, count), mimeType);
+    } else if (segments.length == 1 && "POST".equals(method)) {
+      exchange.getResponseHeaders().set("Location", getFhirUrl() + "/" + resourceType + "/" + requestCount.get() + "/_history/1");
+      respond(exchange, 201, new String(requestBody, StandardCharsets.UTF_8), mimeType);
+    } else if (segments.length == 2 && "GET".equals(method)) {
+      // Generated resources never change, so every read can be revalidated against the same version
+      exchange.getResponseHeaders().set("ETag", RESOURCE_ETAG);
+      if (RESOURCE_ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) respond(exchange, 304, null, mimeType);
+      else respond(exchange, 200, resource(resourceType, segments[1]), mimeType);
+    } else if (segments.length == 2 && "PUT".equals(method)) {
+      exchange.getResponseHeaders().set("Location", getFhirUrl() + "/" + resourceType + "/" + segments[1] + "/_history/2");
+      respond(exchange, 200, new String(requestBody, StandardCharsets.UTF_8), mimeType);
+    } else if (segments.length == 2 && "DELETE".equals(method)) {
+      respond(exchange, 204, null, mimeType);
+    } else {
+      respond(exchange, 404, operationOutcome("not-supported", "Unsupported interaction " + method + " " + relativePath), mimeType);
+    }
+  }
+
+  private String searchPage(String resourceType, int offset, int count) {
+    int total = searchTotal;
+    int end = Math.min(total, offset + count);
+    StringBuilder bundle = new StringBuilder(256 + Math.max(0, end - offset) * 160)
+            .append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(total)
+            .append(",\"link\":[{\"relation\":\"self\",\"url\":\"").append(pageLink(resourceType, offset, count)).append("\"}");
+    if (end < total) bundle.append(",{\"relation\":\"next\",\"url\":\"").append(pageLink(resourceType, end, count)).append("\"}");
+    bundle.append("],\"entry\":[");
+    for (int i = offset; i < end; i++) {
+      if (i > offset) bundle.append(',');
+      String id = Integer.toString(i + 1);
+      bundle.append("{\"fullUrl\":\"").append(getFhirUrl()).append('/').append(resourceType).append('/').append(id)
+              .append("\",\"resource\":").append(resource(resourceType, id))
+              .append(",\"search\":{\"mode\":\"match\"}}");
+    }
+    return bundle.append("]}").toString();
+  }
+
+  /**
+   * Helper function for building a paging link in the style of the emulated dialect
+   */
+  private String pageLink(String resourceType, int offset, int count) {
+    switch (fhirDialect) {
+    case EPIC:
+      return getFhirUrl() + "/" + resourceType + "?sessionID=" + offset + "." + count;
+    case CERNER:
+      return getFhirUrl() + "/" + resourceType + "?-pageContext=" + offset + "." + count + "&-pageDirection=NEXT";
+    default:
+      return getFhirUrl() + "?_getpages=" + resourceType + "&_getpagesoffset=" + offset + "&_count=" + count;
+    }
+  }
+
+  private static String resource(String resourceType, String id) {
+    return "{\"resourceType\":\"" + resourceType + "\",\"id\":\"" + id + "\",\"meta\":{\"versionId\":\"1\"},"
+            + "\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Stub</div>\"}}";
+  }
+
+  private static String batchResponse(String body) {
+    JsonObject bundle = JsonParser.parseString(body).getAsJsonObject();
+    String type = bundle.has("type") ? bundle.get("type").getAsString() : "batch";
+    JsonArray entries = new JsonArray();
+    JsonElement requestEntries = bundle.get("entry");
+    if (requestEntries != null && requestEntries.isJsonArray()) {
+      int index = 0;
+      for (JsonElement element : requestEntries.getAsJsonArray()) {
+        JsonObject request = element.getAsJsonObject().getAsJsonObject("request");
+        String method = request != null && request.has("method") ? request.get("method").getAsString() : "POST";
+        String url = request != null && request.has("url") ? request.get("url").getAsString() : "";
+        JsonObject response = new JsonObject();
+        if ("POST".equals(method)) {
+          response.addProperty("status", "201 Created");
+          response.addProperty("location", url + "/batch-" + (++index) + "/_history/1");
+        } else if ("DELETE".equals(method)) {
+          response.addProperty("status", "204 No Content");
+        } else {
+          response.addProperty("status", "200 OK");
+          if ("PUT".equals(method)) response.addProperty("location", url + "/_history/2");
+        }
+        response.addProperty("etag", "W/\"1\"");
+        JsonObject entry = new JsonObject();
+        entry.add("response", response);
+        entries.add(entry);
+      }
+    }
+    JsonObject responseBundle = new JsonObject();
+    responseBundle.addProperty("resourceType", "Bundle");
+    responseBundle.addProperty("type", type + "-response");
+    responseBundle.add("entry", entries);
+    return responseBundle.toString();
+  }
+
+  private static String operationOutcome(String code, String diagnostics) {
+    JsonObject issue = new JsonObject();
+    issue.addProperty("severity", "error");
+    issue.addProperty("code", code);
+    issue.addProperty("diagnostics", diagnostics);
+    JsonArray issues = new JsonArray();
+    issues.add(issue);
+    JsonObject outcome = new JsonObject();
+    outcome.addProperty("resourceType", "OperationOutcome");
+    outcome.add("issue", issues);
+    return outcome.toString();
+  }
+
+  private static void respond(HttpExchange exchange, int statusCode, String body, String contentType) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(statusCode, -1);
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(statusCode, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private void sleepLatency() throws InterruptedException {
+    long min = minLatencyNanos;
+    long max = maxLatencyNanos;
+    long latency = max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+    if (latency > 0) TimeUnit.NANOSECONDS.sleep(latency);
+  }
+
+  /**
+   * Helper function for consuming one of the remaining injected failures
+   * @return true if a failure was consumed and false if none remained
+   */
+  private static boolean takeOne(AtomicInteger remaining) {
+    return remaining.getAndUpdate(value -> value > 0 ? value - 1 : 0) > 0;
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<>();
+    if (query == null || query.isEmpty()) return params;
+    for (String pair : query.split("&")) {
+      int separator = pair.indexOf('=');
+      String name = separator >= 0 ? pair.substring(0, separator) : pair;
+      String value = separator >= 0 ? pair.substring(separator + 1) : "";
+      params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return params;
+  }
+
+}
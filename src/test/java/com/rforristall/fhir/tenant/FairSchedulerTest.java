@@ -0,0 +1,121 @@
+package com.rforristall.fhir.tenant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the round-robin fairness and the permit accounting of {@link FairScheduler}.
+ *
+ * @author Robert Forristall (robert.s.forristall@gmail.com)
+ */
+class FairSchedulerTest {
+
+  @Test
+  void tenantNeverHoldsMoreThanItsLimit() {
+    FairScheduler scheduler = new FairScheduler(10, 2);
+    scheduler.register("a");
+    assertTrue(scheduler.acquire("a").isDone());
+    assertTrue(scheduler.acquire("a").isDone());
+    CompletableFuture<Void> third = scheduler.acquire("a");
+    assertFalse(third.isDone());
+    assertEquals(2, scheduler.getInFlight());
+    assertEquals(1, scheduler.getWaiting("a"));
+    scheduler.release("a");
+    assertTrue(third.isDone());
+    assertEquals(2, scheduler.getInFlight());
+    assertEquals(0, scheduler.getWaiting("a"));
+  }
+
+  @Test
+  void releasedPermitsAreHandedOutRoundRobin() {
+    FairScheduler scheduler = new FairScheduler(1, 1);
+    scheduler.register("a");
+    scheduler.register("b");
+    List<String> order = new ArrayList<>();
+    assertTrue(scheduler.acquire("a").isDone());
+    // Tenant a queues its whole backlog before b queues anything
+    for (int i = 2; i <= 4; i++) queue(scheduler, "a", "a" + i, order);
+    for (int i = 1; i <= 2; i++) queue(scheduler, "b", "b" + i, order);
+    String holder = "a";
+    for (int i = 0; i < 5; i++) {
+      scheduler.release(holder);
+      holder = order.get(order.size() - 1).substring(0, 1);
+      assertEquals(1, scheduler.getInFlight());
+    }
+    assertEquals(Arrays.asList("a2", "b1", "a3", "b2", "a4"), order);
+    scheduler.release(holder);
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  void newRequestsDoNotOvertakeWaitingOnes() {
+    FairScheduler scheduler = new FairScheduler(1, 1);
+    scheduler.register("a");
+    scheduler.register("b");
+    assertTrue(scheduler.acquire("a").isDone());
+    CompletableFuture<Void> waiting = scheduler.acquire("b");
+    scheduler.release("a");
+    assertTrue(waiting.isDone());
+    // b holds its only permit, so a later request of b waits even once a permit is free
+    CompletableFuture<Void> later = scheduler.acquire("b");
+    assertFalse(later.isDone());
+    scheduler.release("b");
+    assertTrue(later.isDone());
+    scheduler.release("b");
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  void unregisterFailsTheWaitingRequests() {
+    FairScheduler scheduler = new FairScheduler(1, 1);
+    scheduler.register("a");
+    scheduler.register("b");
+    assertTrue(scheduler.acquire("a").isDone());
+    CompletableFuture<Void> waiting = scheduler.acquire("b");
+    scheduler.unregister("b");
+    CompletionException failure = assertThrows(CompletionException.class, waiting::join);
+    assertTrue(failure.getCause() instanceof IllegalStateException);
+    scheduler.release("a");
+    assertEquals(0, scheduler.getInFlight());
+    assertThrows(IllegalArgumentException.class, () -> scheduler.acquire("b"));
+  }
+
+  @Test
+  void permitsHeldByAnUnregisteredTenantAreStillReturned() {
+    FairScheduler scheduler = new FairScheduler(1, 1);
+    scheduler.register("a");
+    scheduler.register("b");
+    assertTrue(scheduler.acquire("a").isDone());
+    CompletableFuture<Void> waiting = scheduler.acquire("b");
+    scheduler.unregister("a");
+    scheduler.release("a");
+    assertTrue(waiting.isDone());
+    assertEquals(1, scheduler.getInFlight());
+  }
+
+  @Test
+  void rejectsInvalidLimitsAndDuplicateTenants() {
+    assertThrows(IllegalArgumentException.class, () -> new FairScheduler(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new FairScheduler(1, 0));
+    FairScheduler scheduler = new FairScheduler(1, 1);
+    scheduler.register("a");
+    assertThrows(IllegalArgumentException.class, () -> scheduler.register("a"));
+  }
+
+  private static void queue(FairScheduler scheduler, String tenantId, String name, List<String> order) {
+    CompletableFuture<Void> waiter = scheduler.acquire(tenantId);
+    assertFalse(waiter.isDone());
+    waiter.thenRun(() -> order.add(name));
+  }
+
+}